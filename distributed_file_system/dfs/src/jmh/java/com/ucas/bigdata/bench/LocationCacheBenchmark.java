@@ -0,0 +1,119 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.client.BlockLocationCache;
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.ReplicaStatus;
+import com.ucas.bigdata.implement.MetadataServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测量读多写少的负载下，客户端数据块位置缓存减少的元数据请求。
+ * 在进程内启动MetadataServer(临时RocksDB目录、随机端口)，创建并关闭一批文件后，
+ * 按随机顺序反复查询其中的文件位置，对比每次都请求元数据服务器与经过BlockLocationCache的吞吐和请求数。
+ * 用法：LocationCacheBenchmark [文件数] [查询次数] [缓存有效时间ms]
+ */
+public class LocationCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        long ttlMs = args.length > 2 ? Long.parseLong(args[2]) : Config.CLIENT_LOCATION_CACHE_TTL_MS;
+
+        File dbDir = Files.createTempDirectory("dfs-cache-bench").toFile();
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final MetadataServer server = new MetadataServer(port, dbDir.getAbsolutePath());
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "meta-bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        // 客户端每个操作都会打印结果，测量期间屏蔽标准输出
+        PrintStream console = System.out;
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        MetaServerClient client = new MetaServerClient("localhost", port);
+        try {
+            System.setOut(quiet);
+            List<String> paths = new ArrayList<>(files);
+            for (int i = 0; i < files; i++) {
+                paths.add("/cache/d" + (i / 100) + "/f" + i);
+            }
+            client.createFiles(paths);
+            // 关闭文件，各副本都标记为写入完成，正在写入的文件不会被缓存
+            for (String path : paths) {
+                List<Integer> status = new ArrayList<>();
+                for (int i = 0; i < client.getBlockLocations(path).get(0).getLocations().size(); i++) {
+                    status.add(ReplicaStatus.FINALIZED);
+                }
+                client.closeFile(path, 0, status);
+            }
+            console.println("files=" + files + " lookups=" + lookups + " ttl=" + ttlMs + "ms");
+
+            run(client, paths, Math.min(lookups, 20000), null); // 预热
+            long[] direct = run(client, paths, lookups, null);
+            long[] cached = run(client, paths, lookups, new BlockLocationCache(Config.CLIENT_LOCATION_CACHE_SIZE, ttlMs));
+            console.printf("no cache   %9.0f lookups/s   server requests %d%n", lookups * 1e9 / direct[0], direct[1]);
+            console.printf("cache      %9.0f lookups/s   server requests %d%n", lookups * 1e9 / cached[0], cached[1]);
+        } finally {
+            System.setOut(console);
+            client.close();
+            server.stop();
+            deleteRecursive(dbDir);
+        }
+    }
+
+    // 返回耗时(ns)和发往元数据服务器的请求数
+    private static long[] run(MetaServerClient client, List<String> paths, int lookups, BlockLocationCache cache)
+            throws IOException {
+        Random random = new Random(1);
+        long requests = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String path = paths.get(random.nextInt(paths.size()));
+            List<BlockInfo> blocks = cache == null ? null : cache.get(path);
+            if (blocks == null) {
+                blocks = client.getBlockLocations(path);
+                requests++;
+                if (blocks == null) {
+                    throw new IOException("lookup failed: " + path);
+                }
+                if (cache != null) {
+                    cache.put(path, blocks);
+                }
+            }
+        }
+        return new long[]{System.nanoTime() - start, requests};
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursive(c);
+            }
+        }
+        f.delete();
+    }
+}
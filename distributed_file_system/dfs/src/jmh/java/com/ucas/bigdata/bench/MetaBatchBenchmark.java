@@ -0,0 +1,154 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.implement.MetadataServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对比逐个请求和BATCH请求执行大量 create / getBlockLocations / delete 的吞吐。
+ * 在进程内启动MetadataServer(临时RocksDB目录、随机端口)，单个客户端连接，
+ * 文件为 /batch&lt;轮次&gt;/d&lt;i&gt;/f&lt;j&gt;，每个目录100个文件，父目录由创建请求一并创建。
+ * 用法：MetaBatchBenchmark [文件数] [每个BATCH请求的子请求数,可逗号分隔多个]
+ */
+public class MetaBatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String[] sizes = (args.length > 1 ? args[1] : "10,100,500").split(",");
+
+        File dbDir = Files.createTempDirectory("dfs-batch-bench").toFile();
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final MetadataServer server = new MetadataServer(port, dbDir.getAbsolutePath());
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "meta-bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        // 客户端逐个请求时会打印结果，测量期间屏蔽标准输出
+        PrintStream console = System.out;
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        MetaServerClient client = new MetaServerClient("localhost", port);
+        try {
+            console.println("files=" + files + " cores=" + Runtime.getRuntime().availableProcessors());
+            System.setOut(quiet);
+            int round = 0;
+            runSingle(client, paths(round++, Math.min(files, 2000))); // 预热
+            runBatch(client, paths(round++, Math.min(files, 2000)), 100);
+            double[] single = runSingle(client, paths(round++, files));
+            print(console, "single", files, single);
+            for (String size : sizes) {
+                int batchSize = Integer.parseInt(size.trim());
+                print(console, "batch=" + batchSize, files, runBatch(client, paths(round++, files), batchSize));
+            }
+        } finally {
+            System.setOut(console);
+            client.close();
+            server.stop();
+            deleteRecursive(dbDir);
+        }
+    }
+
+    private static List<String> paths(int round, int files) {
+        List<String> paths = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            paths.add("/batch" + round + "/d" + (i / 100) + "/f" + i);
+        }
+        return paths;
+    }
+
+    // 返回三个阶段各自的耗时(秒)
+    private static double[] runSingle(MetaServerClient client, List<String> paths) throws IOException {
+        double[] secs = new double[3];
+        long start = System.nanoTime();
+        for (String path : paths) {
+            if (client.createFile(path) == null) {
+                throw new IOException("create failed: " + path);
+            }
+        }
+        secs[0] = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (String path : paths) {
+            if (client.getBlockLocations(path) == null) {
+                throw new IOException("lookup failed: " + path);
+            }
+        }
+        secs[1] = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (String path : paths) {
+            if (!client.deleteFile(path)) {
+                throw new IOException("delete failed: " + path);
+            }
+        }
+        secs[2] = (System.nanoTime() - start) / 1e9;
+        return secs;
+    }
+
+    private static double[] runBatch(MetaServerClient client, List<String> paths, int batchSize) throws IOException {
+        int saved = Config.CLIENT_BATCH_SIZE;
+        Config.CLIENT_BATCH_SIZE = batchSize;
+        try {
+            double[] secs = new double[3];
+            long start = System.nanoTime();
+            for (String id : client.createFiles(paths)) {
+                if (id == null) {
+                    throw new IOException("batch create failed");
+                }
+            }
+            secs[0] = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            Map<String, List<BlockInfo>> blocks = client.getBlockLocations(paths);
+            if (blocks.size() != paths.size()) {
+                throw new IOException("batch lookup returned " + blocks.size() + " of " + paths.size());
+            }
+            secs[1] = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            for (boolean deleted : client.deleteFiles(paths)) {
+                if (!deleted) {
+                    throw new IOException("batch delete failed");
+                }
+            }
+            secs[2] = (System.nanoTime() - start) / 1e9;
+            return secs;
+        } finally {
+            Config.CLIENT_BATCH_SIZE = saved;
+        }
+    }
+
+    private static void print(PrintStream console, String mode, int files, double[] secs) {
+        console.printf("%-10s create %9.0f ops/s   lookup %9.0f ops/s   delete %9.0f ops/s%n",
+                mode, files / secs[0], files / secs[1], files / secs[2]);
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursive(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,104 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileInfoCodec;
+import com.ucas.bigdata.implement.MetaCommitter;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.WriteOptions;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 对比元数据写入RocksDB的两种方式：每个请求单独db.put，以及经MetaCommitter组提交(每个请求写入日志记录和inode表两个key)。
+ * 分别测量不fsync和每次写入fsync WAL时，不同并发线程数下的吞吐。
+ * 用法：MetaCommitBenchmark [每线程写入次数] [最大线程数]
+ */
+public class MetaCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        RocksDB.loadLibrary();
+
+        FileInfo root = new FileInfo(null, "/", true, 0L, "root", 0L);
+        byte[] value = new FileInfoCodec().encodeToArray(new FileInfo("/bench/file", "syangl", false, root));
+        System.out.println("writes/thread=" + perThread + " value=" + value.length + "B");
+
+        for (boolean sync : new boolean[]{false, true}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 4) {
+                // fsync时每次单独写入很慢，减少写入次数
+                int n = sync ? Math.max(1, perThread / 10) : perThread;
+                double direct = run(false, sync, threads, n, value);
+                double group = run(true, sync, threads, n, value);
+                System.out.printf("sync=%-5s threads=%-3d direct %9.0f ops/s   group %9.0f ops/s%n",
+                        sync, threads, direct, group);
+            }
+        }
+    }
+
+    private static double run(boolean grouped, final boolean sync, int threads, final int perThread,
+                              final byte[] value) throws Exception {
+        File dir = Files.createTempDirectory("dfs-commit-bench").toFile();
+        Options options = new Options().setCreateIfMissing(true);
+        final RocksDB db = RocksDB.open(options, dir.getAbsolutePath());
+        final WriteOptions writeOptions = new WriteOptions().setSync(sync);
+        final MetaCommitter committer = grouped ? new MetaCommitter(db, sync, 256) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch startGate = new CountDownLatch(1);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        startGate.await();
+                        for (int i = 0; i < perThread; i++) {
+                            long inode = ((long) id << 32) + i;
+                            if (committer != null) {
+                                committer.commit(new MetaCommitter.Mutation().putInode(inode, value));
+                            } else {
+                                db.put(writeOptions, ("/bench/t" + id + "/f" + i).getBytes(), value);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            startGate.countDown();
+            for (Future<?> f : results) {
+                f.get();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            return threads * perThread / secs;
+        } finally {
+            pool.shutdown();
+            if (committer != null) {
+                committer.close();
+            }
+            writeOptions.close();
+            db.close();
+            options.close();
+            deleteRecursive(dir);
+        }
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursive(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,378 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.Histogram;
+import com.ucas.bigdata.common.MetaOpCode;
+import com.ucas.bigdata.implement.MetadataServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 元数据服务器的负载生成器：N个客户端线程各用一个MetaServerClient连接，按给定比例混合执行
+ * create / lookup / list / delete / rename，持续一段时间，按MetaOpCode输出吞吐和p50/p99/p999延迟。
+ * 命名空间是depth层、每层fanout个子目录的目录树，预先在叶子目录中均匀创建files个文件。
+ * 每个线程只对自己创建的文件做lookup、delete和rename，保证目标存在；list随机选一个叶子目录。
+ * 默认在进程内启动MetadataServer(临时RocksDB目录、回环地址的随机端口)，也可以指定host:port压测已有的服务器。
+ * 用法：MetaLoadGenerator [线程数] [测量秒数] [文件数] [深度] [扇出] [操作比例] [host:port]
+ * 操作比例形如 create=20,lookup=50,list=20,delete=10,rename=0
+ */
+public class MetaLoadGenerator {
+    private static final String ROOT = "/load";
+
+    // 操作类型和对应的元数据请求
+    private enum Op {
+        CREATE(MetaOpCode.CREATE_FILE),
+        LOOKUP(MetaOpCode.GET_BLOCK_LOCATIONS),
+        LIST(MetaOpCode.LIST_STATUS),
+        DELETE(MetaOpCode.DEL_FILE),
+        RENAME(MetaOpCode.RENAME_FILE);
+
+        final MetaOpCode code;
+
+        Op(MetaOpCode code) {
+            this.code = code;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int fanout = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int[] mix = parseMix(args.length > 5 ? args[5] : "create=20,lookup=50,list=20,delete=10");
+        String target = args.length > 6 ? args[6] : null;
+
+        File dbDir = null;
+        MetadataServer server = null;
+        String host;
+        int port;
+        if (target == null) {
+            // 预置的dfs101~dfs103在压测期间保持存活，创建文件时可以分配数据块
+            Config.HEARTBEAT_SECS = 3600;
+            dbDir = Files.createTempDirectory("dfs-meta-load").toFile();
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            host = "127.0.0.1";
+            server = startServer(port, dbDir);
+        } else {
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        }
+
+        List<String> dirs = new ArrayList<>();
+        leafDirs(ROOT, depth, fanout, dirs);
+        // 客户端每个操作都会打印结果，压测期间屏蔽标准输出和错误输出，失败计入errors
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        try {
+            console.printf("server=%s:%d threads=%d seconds=%d files=%d depth=%d fanout=%d dirs=%d mix=%s%n",
+                    host, port, threads, seconds, files, depth, fanout, dirs.size(), mixString(mix));
+            System.setOut(quiet);
+            System.setErr(quiet);
+
+            long start = System.currentTimeMillis();
+            List<List<String>> owned = preload(host, port, files, dirs, threads);
+            console.printf("preloaded %d files in %dms%n", files, System.currentTimeMillis() - start);
+
+            // 前1/5的时间(至少1秒)作为预热，不计入结果
+            long warmupNanos = Math.max(1, seconds / 5) * 1000_000_000L;
+            Stats[] total = run(host, port, threads, dirs, owned, mix, warmupNanos, seconds * 1000_000_000L);
+            report(console, total, seconds);
+        } finally {
+            System.setOut(console);
+            System.setErr(errors);
+            if (server != null) {
+                server.stop();
+                deleteRecursive(dbDir);
+            }
+        }
+    }
+
+    private static MetadataServer startServer(int port, File dbDir) {
+        final MetadataServer server = new MetadataServer(port, dbDir.getAbsolutePath());
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "meta-load-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    // 各操作的权重，按Op的顺序
+    private static int[] parseMix(String spec) {
+        int[] mix = new int[Op.values().length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            mix[Op.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        return mix;
+    }
+
+    private static String mixString(int[] mix) {
+        StringBuilder sb = new StringBuilder();
+        for (Op op : Op.values()) {
+            if (mix[op.ordinal()] > 0) {
+                sb.append(sb.length() == 0 ? "" : ",").append(op.name().toLowerCase()).append('=').append(mix[op.ordinal()]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void leafDirs(String parent, int depth, int fanout, List<String> dirs) {
+        if (depth == 0) {
+            dirs.add(parent);
+            return;
+        }
+        for (int i = 0; i < fanout; i++) {
+            leafDirs(parent + "/d" + i, depth - 1, fanout, dirs);
+        }
+    }
+
+    /**
+     * 用BATCH请求在叶子目录中均匀创建files个文件
+     * @return 每个线程拥有的文件，第i个文件属于第i % threads个线程
+     */
+    private static List<List<String>> preload(String host, int port, int files, List<String> dirs, int threads)
+            throws IOException {
+        List<List<String>> owned = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            owned.add(new ArrayList<String>());
+        }
+        MetaServerClient client = new MetaServerClient(host, port);
+        try {
+            List<String> batch = new ArrayList<>(Config.META_BATCH_MAX);
+            for (int i = 0; i < files; i++) {
+                String path = dirs.get(i % dirs.size()) + "/f" + i;
+                batch.add(path);
+                owned.get(i % threads).add(path);
+                if (batch.size() == Config.META_BATCH_MAX || i == files - 1) {
+                    List<String> created = client.createFiles(batch);
+                    if (created.contains(null)) {
+                        throw new IOException("Preload failed near " + path);
+                    }
+                    batch.clear();
+                }
+            }
+        } finally {
+            client.close();
+        }
+        return owned;
+    }
+
+    private static Stats[] run(final String host, final int port, int threads, final List<String> dirs,
+                               final List<List<String>> owned, final int[] mix,
+                               final long warmupNanos, final long measureNanos) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final long[] window = new long[2];  // 测量开始和结束的时刻
+        List<Future<Stats[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            results.add(pool.submit(new Callable<Stats[]>() {
+                public Stats[] call() throws IOException, InterruptedException {
+                    Worker worker = new Worker(id, new MetaServerClient(host, port), dirs, owned.get(id), mix);
+                    try {
+                        startGate.await();
+                        return worker.run(window[0], window[1]);
+                    } finally {
+                        worker.client.close();
+                    }
+                }
+            }));
+        }
+        window[0] = System.nanoTime() + warmupNanos;
+        window[1] = window[0] + measureNanos;
+        startGate.countDown();
+        Stats[] total = newStats();
+        for (Future<Stats[]> f : results) {
+            Stats[] stats = f.get();
+            for (int i = 0; i < total.length; i++) {
+                total[i].add(stats[i]);
+            }
+        }
+        pool.shutdown();
+        return total;
+    }
+
+    private static Stats[] newStats() {
+        Stats[] stats = new Stats[Op.values().length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+        return stats;
+    }
+
+    // 一个客户端线程
+    private static class Worker {
+        final int id;
+        final MetaServerClient client;
+        final List<String> dirs;
+        final List<String> files;   // 该线程拥有的现存文件
+        final int[] mix;
+        final int weights;
+        final Random random;
+        long seq;
+
+        Worker(int id, MetaServerClient client, List<String> dirs, List<String> files, int[] mix) {
+            this.id = id;
+            this.client = client;
+            this.dirs = dirs;
+            this.files = files;
+            this.mix = mix;
+            int sum = 0;
+            for (int w : mix) {
+                sum += w;
+            }
+            this.weights = sum;
+            this.random = new Random(id);
+        }
+
+        Stats[] run(long measureStart, long measureEnd) {
+            Stats[] stats = newStats();
+            long now;
+            while ((now = System.nanoTime()) < measureEnd) {
+                Op op = pick();
+                boolean ok;
+                try {
+                    ok = execute(op);
+                } catch (IOException e) {
+                    ok = false;
+                }
+                long end = System.nanoTime();
+                if (now >= measureStart) {
+                    stats[op.ordinal()].record(end - now, ok);
+                }
+            }
+            return stats;
+        }
+
+        private Op pick() {
+            int r = random.nextInt(weights);
+            for (Op op : Op.values()) {
+                r -= mix[op.ordinal()];
+                if (r < 0) {
+                    // 没有自己的文件时无法lookup/delete/rename，改为create
+                    return files.isEmpty() && op != Op.LIST ? Op.CREATE : op;
+                }
+            }
+            return Op.CREATE;
+        }
+
+        private String newPath() {
+            return dirs.get(random.nextInt(dirs.size())) + "/n" + id + "_" + (seq++);
+        }
+
+        // 返回请求是否成功，MetaServerClient的大部分方法自己处理异常，以返回值表示失败
+        private boolean execute(Op op) throws IOException {
+            switch (op) {
+                case CREATE: {
+                    String path = newPath();
+                    if (client.createFile(path) == null) {
+                        return false;
+                    }
+                    files.add(path);
+                    return true;
+                }
+                case LOOKUP:
+                    return client.getBlockLocations(files.get(random.nextInt(files.size()))) != null;
+                case LIST:
+                    return client.listStatus(dirs.get(random.nextInt(dirs.size())), "", Config.META_LIST_MAX_PAGE) != null;
+                case DELETE: {
+                    // 与末尾交换后删除，O(1)
+                    int i = random.nextInt(files.size());
+                    String path = files.get(i);
+                    files.set(i, files.get(files.size() - 1));
+                    files.remove(files.size() - 1);
+                    return client.deleteFile(path);
+                }
+                case RENAME: {
+                    int i = random.nextInt(files.size());
+                    String path = newPath();
+                    if (!client.renameFile(files.get(i), path)) {
+                        return false;
+                    }
+                    files.set(i, path);
+                    return true;
+                }
+                default:
+                    throw new IllegalStateException(op.name());
+            }
+        }
+    }
+
+    // 一种操作的计数和延迟分布
+    private static class Stats {
+        final Histogram latency = new Histogram();
+        long errors;
+
+        void record(long nanos, boolean ok) {
+            latency.record(nanos);
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        void add(Stats other) {
+            latency.add(other.latency);
+            errors += other.errors;
+        }
+    }
+
+    private static void report(PrintStream out, Stats[] stats, int seconds) {
+        out.printf("%-20s %9s %10s %10s %10s %10s %10s %7s%n",
+                "op", "count", "ops/s", "p50(us)", "p99(us)", "p999(us)", "max(us)", "errors");
+        Stats all = new Stats();
+        Map<String, Stats> rows = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            if (stats[op.ordinal()].latency.count() > 0) {
+                rows.put(op.code.name(), stats[op.ordinal()]);
+                all.add(stats[op.ordinal()]);
+            }
+        }
+        rows.put("TOTAL", all);
+        for (Map.Entry<String, Stats> row : rows.entrySet()) {
+            Histogram h = row.getValue().latency;
+            long[] p = h.percentiles(50, 99, 99.9);
+            out.printf("%-20s %9d %10.0f %10.1f %10.1f %10.1f %10.1f %7d%n", row.getKey(), h.count(),
+                    (double) h.count() / seconds, p[0] / 1e3, p[1] / 1e3, p[2] / 1e3, h.max() / 1e3,
+                    row.getValue().errors);
+        }
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursive(c);
+            }
+        }
+        f.delete();
+    }
+}
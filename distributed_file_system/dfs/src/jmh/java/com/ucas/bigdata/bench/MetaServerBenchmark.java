@@ -0,0 +1,125 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.implement.MetadataServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 测量元数据服务器在不同客户端线程数下的吞吐。
+ * 在进程内启动MetadataServer(临时RocksDB目录、随机端口)，每个客户端线程使用独立连接，
+ * 循环执行 create / getBlockLocations / list / delete 的混合负载，
+ * 一半文件在线程自己的目录下，一半在所有线程共享的目录下。
+ * 用法：MetaServerBenchmark [每线程操作轮数] [最大线程数]
+ */
+public class MetaServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors() * 2;
+
+        File dbDir = Files.createTempDirectory("dfs-meta-bench").toFile();
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final MetadataServer server = new MetadataServer(port, dbDir.getAbsolutePath());
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "meta-bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        // 客户端每个操作都会打印结果，测量期间屏蔽标准输出
+        PrintStream console = System.out;
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        try {
+            console.println("rounds/thread=" + rounds + " ops/round=4 cores="
+                    + Runtime.getRuntime().availableProcessors());
+            System.setOut(quiet);
+            run(port, 1, Math.min(rounds, 500), 0); // 预热
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                long start = System.nanoTime();
+                long ops = run(port, threads, rounds, threads);
+                double secs = (System.nanoTime() - start) / 1e9;
+                console.printf("threads=%-3d ops=%-8d %10.0f ops/s%n", threads, ops, ops / secs);
+            }
+        } finally {
+            System.setOut(console);
+            server.stop();
+            deleteRecursive(dbDir);
+        }
+    }
+
+    private static long run(final int port, int threads, final int rounds, final int tag) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch startGate = new CountDownLatch(1);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            results.add(pool.submit(new Callable<Long>() {
+                public Long call() throws IOException, InterruptedException {
+                    MetaServerClient client = new MetaServerClient("localhost", port);
+                    String own = "/bench" + tag + "/t" + id;
+                    String shared = "/bench" + tag + "/shared";
+                    long ops = 0;
+                    try {
+                        startGate.await();
+                        for (int i = 0; i < rounds; i++) {
+                            String dir = (i & 1) == 0 ? own : shared;
+                            String path = dir + "/f" + id + "_" + i;
+                            if (client.createFile(path) == null) {
+                                throw new IOException("create failed: " + path);
+                            }
+                            client.getBlockLocations(path);
+                            client.listFiles(dir);
+                            client.deleteFile(path);
+                            ops += 4;
+                        }
+                    } finally {
+                        client.close();
+                    }
+                    return ops;
+                }
+            }));
+        }
+        startGate.countDown();
+        long total = 0;
+        for (Future<Long> f : results) {
+            total += f.get();
+        }
+        pool.shutdown();
+        return total;
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursive(c);
+            }
+        }
+        f.delete();
+    }
+}
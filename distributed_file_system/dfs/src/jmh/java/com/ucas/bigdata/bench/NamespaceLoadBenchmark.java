@@ -0,0 +1,165 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileInfoCodec;
+import com.ucas.bigdata.common.ReplicaStatus;
+import com.ucas.bigdata.implement.InodeTable;
+import com.ucas.bigdata.implement.MetaCommitter;
+import com.ucas.bigdata.implement.NamespaceImage;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 测量MetadataServer启动时恢复命名空间的耗时：
+ * 镜像在不同解码线程数下的加载和建立目录树，以及没有镜像时顺序扫描RocksDB中的InodeTable作为对比。
+ * 命名空间为 /d&lt;i&gt;/f&lt;j&gt;，每个目录fanout个文件，每个文件1个数据块3副本。
+ * 用法：NamespaceLoadBenchmark [条目数] [最大线程数] [fanout] [是否测InodeTable扫描 true|false]
+ * 千万级条目需要相应的堆，例如 -Xmx16g。
+ */
+public class NamespaceLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int fanout = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        boolean tables = args.length > 3 ? Boolean.parseBoolean(args[3]) : true;
+
+        File dir = Files.createTempDirectory("dfs-ns-bench").toFile();
+        try {
+            long start = System.currentTimeMillis();
+            Map<String, FileInfo> ns = generate(entries, fanout);
+            File image;
+            try (NamespaceImage.Writer writer = new NamespaceImage.Writer(new File(dir, "image"), 1, ns.size())) {
+                for (Map.Entry<String, FileInfo> e : ns.entrySet()) {
+                    if (!"/".equals(e.getKey())) {
+                        writer.append(e.getValue());
+                    }
+                }
+                image = writer.commit();
+            }
+            System.out.printf("entries=%d fanout=%d image=%dMB written in %dms%n", ns.size(), fanout,
+                    image.length() >> 20, System.currentTimeMillis() - start);
+
+            File db = new File(dir, "db");
+            if (tables) {
+                writeTables(ns, db);
+            }
+            ns = null;
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                runImage(image, threads);
+            }
+            if (tables) {
+                runTables(db);
+            }
+        } finally {
+            deleteRecursive(dir);
+        }
+    }
+
+    private static Map<String, FileInfo> generate(int entries, int fanout) {
+        Map<String, FileInfo> ns = new ConcurrentHashMap<>(entries * 2);
+        FileInfo root = newRoot();
+        ns.put("/", root);
+        long inode = InodeTable.ROOT_ID;
+        String[] nodes = {"dfs101", "dfs102", "dfs103"};
+        FileInfo dir = null;
+        for (int i = 0; ns.size() < entries; i++) {
+            if (i % (fanout + 1) == 0) {
+                dir = new FileInfo("/d" + (i / (fanout + 1)), "syangl", true, root);
+                dir.setInodeId(++inode);
+                ns.put(dir.getPath(), dir);
+                continue;
+            }
+            FileInfo f = new FileInfo(dir.getPath() + "/f" + i, "syangl", false, dir);
+            f.setInodeId(++inode);
+            BlockInfo block = new BlockInfo(UUID.randomUUID().toString(), 64L << 20);
+            for (int r = 0; r < 3; r++) {
+                block.addLocation(nodes[(i + r) % nodes.length], ReplicaStatus.FINALIZED);
+            }
+            f.getBlocks().add(block);
+            f.updateFileSize();
+            ns.put(f.getPath(), f);
+        }
+        return ns;
+    }
+
+    private static FileInfo newRoot() {
+        FileInfo root = new FileInfo(null, "/", true, 0L, "root", 0L);
+        root.setInodeId(InodeTable.ROOT_ID);
+        return root;
+    }
+
+    private static void runImage(File image, int threads) throws Exception {
+        System.gc();
+        Map<Long, FileInfo> inodes = new ConcurrentHashMap<>();
+        FileInfo root = newRoot();
+        inodes.put(InodeTable.ROOT_ID, root);
+        long start = System.currentTimeMillis();
+        NamespaceImage.LoadStats stats = NamespaceImage.load(image, inodes, threads);
+        long linkStart = System.currentTimeMillis();
+        long orphans = NamespaceImage.link(inodes, root, threads);
+        long end = System.currentTimeMillis();
+        System.out.printf("image  threads=%-2d load %6dms  link %6dms  total %6dms  %9.0f entries/s  orphans=%d%n",
+                threads, stats.millis, end - linkStart, end - start, inodes.size() * 1000.0 / (end - start), orphans);
+    }
+
+    // InodeTable格式：每个条目一个inode记录和一个目录项
+    private static void writeTables(Map<String, FileInfo> ns, File db) throws Exception {
+        FileInfoCodec codec = new FileInfoCodec();
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB rocks = RocksDB.open(options, db.getAbsolutePath())) {
+            MetaCommitter committer = new MetaCommitter(rocks, false, 1);
+            MetaCommitter.Mutation m = new MetaCommitter.Mutation();
+            for (Map.Entry<String, FileInfo> e : ns.entrySet()) {
+                FileInfo fi = e.getValue();
+                if ("/".equals(e.getKey())) {
+                    continue;
+                }
+                m.putInode(fi.getInodeId(), codec.encodeToArray(fi)).link(fi.getParentId(), fi.getFileName(), fi.getInodeId());
+                if (m.size() >= 10000) {
+                    committer.commit(m);
+                    m = new MetaCommitter.Mutation();
+                }
+            }
+            committer.commit(m);
+            committer.truncate(committer.getLastTxId());
+            committer.close();
+            rocks.compactRange();
+        }
+    }
+
+    private static void runTables(File db) throws Exception {
+        System.gc();
+        Map<Long, FileInfo> inodes = new ConcurrentHashMap<>();
+        FileInfo root = newRoot();
+        inodes.put(InodeTable.ROOT_ID, root);
+        long start = System.currentTimeMillis();
+        try (Options options = new Options();
+             RocksDB rocks = RocksDB.open(options, db.getAbsolutePath())) {
+            new InodeTable(rocks).load(inodes);
+        }
+        long linkStart = System.currentTimeMillis();
+        NamespaceImage.link(inodes, root, 1);
+        long end = System.currentTimeMillis();
+        System.out.printf("inode table scan load %6dms  link %6dms  total %6dms  %9.0f entries/s%n",
+                linkStart - start, end - linkStart, end - start, inodes.size() * 1000.0 / (end - start));
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursive(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,263 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.NodeStats;
+import com.ucas.bigdata.implement.BlockPlacementPolicy;
+import com.ucas.bigdata.implement.StorageNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 用模拟的集群对比副本放置策略。节点的容量、初始使用率和磁盘带宽各不相同，
+ * 数据块写入按泊松过程到达，每个副本占用节点带宽(同一节点上的传输平分带宽)，三个副本都写完时数据块完成。
+ * 节点按HEARTBEAT_SECS汇报NodeStats，放置策略只能看到心跳中的状态。第0个节点在运行到一半时停止心跳，
+ * 它上面未完成的副本算作失败。输出数据块写入延迟、各节点磁盘使用率的分布和带宽利用率，
+ * 以及节点超时后仍被选中的次数。
+ * 用法：PlacementBenchmark [节点数] [模拟秒数] [带宽利用率目标] [策略,可逗号分隔多个]
+ */
+public class PlacementBenchmark {
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+    private static final double DT = 0.1;   // 模拟步长(秒)
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 1200;
+        double utilization = args.length > 2 ? Double.parseDouble(args[2]) : 0.7;
+        String[] policies = (args.length > 3 ? args[3] : "random,load").split(",");
+
+        System.out.printf("nodes=%d seconds=%d target utilization=%.0f%% block=%dMB replication=%d%n",
+                nodes, seconds, utilization * 100, Config.BLOCK_SIZE / MB, Config.REPLICATION);
+        for (String policy : policies) {
+            new Simulation(nodes, seconds, utilization, BlockPlacementPolicy.create(policy.trim())).run(policy.trim());
+        }
+    }
+
+    private static class Transfer {
+        final Block block;
+        long remaining;
+
+        Transfer(Block block, long remaining) {
+            this.block = block;
+            this.remaining = remaining;
+        }
+    }
+
+    private static class Block {
+        final double arrival;
+        int pending;
+
+        Block(double arrival) {
+            this.arrival = arrival;
+        }
+    }
+
+    private static class SimNode {
+        final StorageNode state;
+        final long capacity;
+        final long bandwidth;     // 字节/秒
+        long used;
+        long written;             // 累计写入字节
+        long writtenAtHeartbeat;
+        double busySecs;          // 有传输进行的时间
+        final List<Transfer> transfers = new ArrayList<>();
+        boolean dead;
+
+        SimNode(String name, long capacity, long bandwidth, long used) {
+            this.state = new StorageNode(name, 0);
+            this.capacity = capacity;
+            this.bandwidth = bandwidth;
+            this.used = used;
+        }
+
+        double usedRatio() {
+            return (double) used / capacity;
+        }
+    }
+
+    private static class Simulation {
+        final List<SimNode> nodes = new ArrayList<>();
+        final List<StorageNode> states = new ArrayList<>();
+        final int seconds;
+        final double arrivalsPerSec;
+        final BlockPlacementPolicy policy;
+        final Random random = new Random(42);
+        final List<Double> latencies = new ArrayList<>();
+        int failedReplicas;
+        int placedOnDead;     // 节点超时之后仍被选中的次数
+
+        Simulation(int n, int seconds, double utilization, BlockPlacementPolicy policy) {
+            this.seconds = seconds;
+            this.policy = policy;
+            Random setup = new Random(7);
+            long totalBandwidth = 0;
+            for (int i = 0; i < n; i++) {
+                long capacity = (2 + (i % 3) * 2) * 1024 * GB / 8;            // 256GB、512GB、768GB
+                long bandwidth = (i % 4 == 3 ? 40 : 120) * MB;                 // 每4个节点有一个慢盘
+                long used = (long) (capacity * (0.1 + 0.5 * setup.nextDouble())); // 初始使用率10%~60%
+                SimNode node = new SimNode("node" + i, capacity, bandwidth, used);
+                nodes.add(node);
+                states.add(node.state);
+                totalBandwidth += bandwidth;
+            }
+            arrivalsPerSec = utilization * totalBandwidth / (Config.REPLICATION * Config.BLOCK_SIZE);
+        }
+
+        void run(String name) {
+            long heartbeatMs = Config.HEARTBEAT_SECS * 1000L;
+            long deadAfterMs = Config.TIMEOUT_OF_HEARTBEATS * heartbeatMs;
+            int steps = (int) (seconds / DT);
+            long deathMs = seconds * 500L;
+            for (SimNode node : nodes) {
+                heartbeat(node, 0, heartbeatMs);
+            }
+            for (int step = 0; step < steps; step++) {
+                double now = step * DT;
+                long nowMs = (long) (now * 1000);
+                // 泊松到达
+                int arrivals = poisson(arrivalsPerSec * DT);
+                for (int a = 0; a < arrivals; a++) {
+                    place(new Block(now), nowMs, deathMs + deadAfterMs);
+                }
+                for (int i = 0; i < nodes.size(); i++) {
+                    SimNode node = nodes.get(i);
+                    if (i == 0 && !node.dead && nowMs >= deathMs) {
+                        node.dead = true;
+                        for (Transfer t : node.transfers) {
+                            failedReplicas++;
+                            finish(t.block, now);
+                        }
+                        node.transfers.clear();
+                    }
+                    if (node.dead) {
+                        continue;
+                    }
+                    advance(node, now);
+                    // 各节点的心跳错开
+                    if ((nowMs + i * heartbeatMs / nodes.size()) % heartbeatMs < DT * 1000) {
+                        heartbeat(node, nowMs, heartbeatMs);
+                    }
+                }
+            }
+            report(name);
+        }
+
+        void place(Block block, long nowMs, long declaredDeadMs) {
+            List<StorageNode> targets = policy.chooseTargets(states, Config.REPLICATION, nowMs);
+            block.pending = targets.size();
+            for (StorageNode target : targets) {
+                target.addPendingBlock();
+                SimNode node = nodes.get(states.indexOf(target));
+                if (node.dead) {
+                    if (nowMs >= declaredDeadMs) {
+                        placedOnDead++;
+                    }
+                    failedReplicas++;
+                    block.pending--;
+                    continue;
+                }
+                node.transfers.add(new Transfer(block, Config.BLOCK_SIZE));
+            }
+            if (block.pending == 0) {
+                block.pending = 1;
+                finish(block, nowMs / 1000.0);
+            }
+        }
+
+        // 节点带宽在正在进行的传输之间平分
+        void advance(SimNode node, double now) {
+            if (node.transfers.isEmpty()) {
+                return;
+            }
+            node.busySecs += DT;
+            long budget = (long) (node.bandwidth * DT);
+            while (budget > 0 && !node.transfers.isEmpty()) {
+                long share = Math.max(1, budget / node.transfers.size());
+                long spent = 0;
+                for (int i = node.transfers.size() - 1; i >= 0; i--) {
+                    Transfer t = node.transfers.get(i);
+                    long n = Math.min(share, t.remaining);
+                    t.remaining -= n;
+                    spent += n;
+                    if (t.remaining == 0) {
+                        node.transfers.remove(i);
+                        finish(t.block, now + DT);
+                    }
+                }
+                node.used += spent;
+                node.written += spent;
+                budget -= spent;
+                if (spent == 0) {
+                    break;
+                }
+            }
+        }
+
+        void finish(Block block, double now) {
+            if (--block.pending == 0) {
+                latencies.add(now - block.arrival);
+            }
+        }
+
+        void heartbeat(SimNode node, long nowMs, long heartbeatMs) {
+            long rate = (node.written - node.writtenAtHeartbeat) * 1000 / heartbeatMs;
+            node.writtenAtHeartbeat = node.written;
+            node.state.heartbeat(new NodeStats(node.capacity, node.capacity - node.used, node.transfers.size(), rate),
+                    nowMs);
+        }
+
+        int poisson(double mean) {
+            double l = Math.exp(-mean);
+            double p = 1;
+            int k = 0;
+            do {
+                k++;
+                p *= random.nextDouble();
+            } while (p > l);
+            return k - 1;
+        }
+
+        void report(String name) {
+            double[] lat = new double[latencies.size()];
+            double sum = 0;
+            for (int i = 0; i < lat.length; i++) {
+                lat[i] = latencies.get(i);
+                sum += lat[i];
+            }
+            Arrays.sort(lat);
+            double minFill = 1, maxFill = 0, fillSum = 0, fillSq = 0, minUtil = 1, maxUtil = 0;
+            int live = 0;
+            StringBuilder perNode = new StringBuilder();
+            for (SimNode node : nodes) {
+                double util = node.busySecs / seconds;
+                perNode.append(String.format(" %.0f%%/%.0f%%", node.usedRatio() * 100, util * 100));
+                if (node.dead) {
+                    continue;
+                }
+                live++;
+                double fill = node.usedRatio();
+                minFill = Math.min(minFill, fill);
+                maxFill = Math.max(maxFill, fill);
+                fillSum += fill;
+                fillSq += fill * fill;
+                minUtil = Math.min(minUtil, util);
+                maxUtil = Math.max(maxUtil, util);
+            }
+            double mean = fillSum / live;
+            System.out.printf("%-7s blocks=%d latency mean %.2fs p50 %.2fs p99 %.2fs max %.2fs | fill min %.1f%% max %.1f%% "
+                            + "stddev %.1f%% | busy min %.0f%% max %.0f%% | failed replicas %d, placed on dead node %d%n",
+                    name, lat.length, sum / lat.length, percentile(lat, 0.5), percentile(lat, 0.99),
+                    lat.length == 0 ? 0 : lat[lat.length - 1], minFill * 100, maxFill * 100,
+                    Math.sqrt(Math.max(0, fillSq / live - mean * mean)) * 100, minUtil * 100, maxUtil * 100,
+                    failedReplicas, placedOnDead);
+            System.out.println("        fill/busy per node:" + perNode);
+        }
+
+        static double percentile(double[] sorted, double p) {
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+        }
+    }
+}
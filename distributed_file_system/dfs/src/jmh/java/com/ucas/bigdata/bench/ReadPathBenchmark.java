@@ -0,0 +1,179 @@
+package com.ucas.bigdata.bench;
+
+import com.ucas.bigdata.client.BlockReader;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataChecksum;
+import com.ucas.bigdata.implement.BlockSender;
+import com.ucas.bigdata.implement.ChecksumFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+/**
+ * 对比DataServer读路径在回环socket上的吞吐：
+ * 旧的1KB拷贝路径、transferTo零拷贝路径、以及零拷贝加客户端逐chunk校验(READ_RANGE)。
+ * 另外单独测量CRC32C与CRC32的计算吞吐。
+ * 用法：ReadPathBenchmark [文件大小MB] [重复次数] [分段大小KB]
+ */
+public class ReadPathBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int segmentSize = args.length > 2 ? Integer.parseInt(args[2]) * 1024 : Config.DATA_READ_SEGMENT_SIZE;
+
+        File data = File.createTempFile("dfs-read-bench", ".blk");
+        data.deleteOnExit();
+        writeRandomFile(data, sizeMb * 1024L * 1024L);
+        File meta = ChecksumFile.metaFileOf(data);
+        meta.deleteOnExit();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        ExecutorService clientPool = Executors.newSingleThreadExecutor();
+        try {
+            System.out.println("file=" + sizeMb + "MB iterations=" + iterations + " segment=" + segmentSize + "B"
+                    + " bytesPerChecksum=" + Config.BYTES_PER_CHECKSUM);
+            benchChecksum(DataChecksum.TYPE_CRC32, iterations);
+            if (DataChecksum.defaultType() == DataChecksum.TYPE_CRC32C) {
+                benchChecksum(DataChecksum.TYPE_CRC32C, iterations);
+            }
+            for (String mode : new String[]{"copy", "zerocopy", "checked"}) {
+                // 第一轮作为预热
+                run(server, clientPool, data, mode, segmentSize);
+                double best = 0, sum = 0;
+                for (int i = 0; i < iterations; i++) {
+                    double mbps = run(server, clientPool, data, mode, segmentSize);
+                    best = Math.max(best, mbps);
+                    sum += mbps;
+                }
+                System.out.printf("%-9s avg %8.1f MB/s  best %8.1f MB/s%n", mode, sum / iterations, best);
+            }
+        } finally {
+            clientPool.shutdownNow();
+            server.close();
+            data.delete();
+            meta.delete();
+        }
+    }
+
+    private static double run(ServerSocketChannel server, ExecutorService clientPool, File data,
+                              String mode, int segmentSize) throws Exception {
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        final boolean checked = "checked".equals(mode);
+        Future<Long> received = clientPool.submit(new Callable<Long>() {
+            public Long call() throws IOException {
+                return checked ? drainChecked(port) : drain(port);
+            }
+        });
+        long start = System.nanoTime();
+        try (SocketChannel channel = server.accept();
+             RandomAccessFile file = new RandomAccessFile(data, "r")) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(channel.socket().getOutputStream(), Config.DATA_IO_BUFFER_SIZE));
+            if ("copy".equals(mode)) {
+                BlockSender.sendCopy(file, 0, out);
+            } else if (checked) {
+                try (RandomAccessFile metaFile = new RandomAccessFile(ChecksumFile.metaFileOf(data), "r")) {
+                    BlockSender.sendChecked(file.getChannel(), metaFile.getChannel(), 0, Long.MAX_VALUE,
+                            out, channel, segmentSize);
+                }
+            } else {
+                BlockSender.sendZeroCopy(file.getChannel(), 0, out, channel, segmentSize);
+            }
+        }
+        long bytes = received.get();
+        long elapsed = System.nanoTime() - start;
+        if (bytes != data.length()) {
+            throw new IOException(mode + " received " + bytes + " of " + data.length() + " bytes");
+        }
+        return bytes / (1024.0 * 1024.0) / (elapsed / 1e9);
+    }
+
+    // 按READ_FILE帧格式读取并丢弃数据
+    private static long drain(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int len;
+            while ((len = in.readInt()) != BlockSender.END_STREAM) {
+                if (len > buffer.length) {
+                    buffer = new byte[len];
+                }
+                in.readFully(buffer, 0, len);
+                total += len;
+            }
+            return total;
+        }
+    }
+
+    // 按READ_RANGE帧格式读取并逐chunk校验，数据丢弃
+    private static long drainChecked(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+            return new BlockReader("bench").read(in, 0, Long.MAX_VALUE, new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        }
+    }
+
+    // 只测量校验和计算的吞吐
+    private static void benchChecksum(int type, int iterations) {
+        byte[] buffer = new byte[64 * 1024 * 1024];
+        new Random(7).nextBytes(buffer);
+        Checksum sum = DataChecksum.newChecksum(type);
+        int bpc = Config.BYTES_PER_CHECKSUM;
+        double best = 0;
+        int sink = 0;
+        for (int i = 0; i <= iterations; i++) {
+            long start = System.nanoTime();
+            for (int off = 0; off < buffer.length; off += bpc) {
+                sink += DataChecksum.compute(sum, buffer, off, Math.min(bpc, buffer.length - off));
+            }
+            double mbps = buffer.length / (1024.0 * 1024.0) / ((System.nanoTime() - start) / 1e9);
+            if (i > 0) { // 第一轮作为预热
+                best = Math.max(best, mbps);
+            }
+        }
+        System.out.printf("%-9s best %8.1f MB/s (%d)%n", type == DataChecksum.TYPE_CRC32C ? "crc32c" : "crc32", best, sink & 1);
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        ChecksumFile.Writer checksums = new ChecksumFile.Writer(ChecksumFile.metaFileOf(file),
+                DataChecksum.defaultType(), Config.BYTES_PER_CHECKSUM);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                int n = (int) Math.min(chunk.length, size - written);
+                out.write(chunk, 0, n);
+                checksums.update(chunk, 0, n);
+            }
+        } finally {
+            checksums.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.ucas.bigdata.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件元数据的编码和解码：当前的二进制格式(FileInfoCodec)与旧的Java序列化格式对比。
+ * blocks是文件的数据块数，每个数据块3个副本。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileInfoCodecBenchmark {
+    @Param({"1", "16", "256"})
+    int blocks;
+
+    private FileInfo file;
+    private FileInfoCodec codec;
+    private byte[] encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        FileInfo root = new FileInfo(null, "/", true, 0L, "root", 0L);
+        FileInfo dir = new FileInfo("/data", "dfs", true, root);
+        file = new FileInfo("/data/part-00000", "dfs", false, dir);
+        for (int i = 0; i < blocks; i++) {
+            BlockInfo block = new BlockInfo(UUID.randomUUID().toString(), Config.BLOCK_SIZE);
+            for (int r = 0; r < 3; r++) {
+                block.addLocation("dfs10" + (1 + (i + r) % 3), ReplicaStatus.FINALIZED);
+            }
+            file.getBlocks().add(block);
+        }
+        file.setFileSize(blocks * Config.BLOCK_SIZE);
+        file.getLocations().addAll(file.getBlocks().get(0).getLocations());
+        file.getStatus().addAll(file.getBlocks().get(0).getStatus());
+
+        codec = new FileInfoCodec();
+        encoded = codec.encodeToArray(file);
+        serialized = serialize(file);
+    }
+
+    private static byte[] serialize(FileInfo fi) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(fi);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public int encode() {
+        return codec.encode(file);
+    }
+
+    @Benchmark
+    public byte[] encodeToArray() {
+        return codec.encodeToArray(file);
+    }
+
+    @Benchmark
+    public FileInfo decode() throws IOException {
+        return FileInfoCodec.decode(file.getPath(), encoded);
+    }
+
+    @Benchmark
+    public byte[] legacySerialize() throws IOException {
+        return serialize(file);
+    }
+
+    @Benchmark
+    public FileInfo legacyDeserialize() throws IOException {
+        return FileInfoCodec.decode(file.getPath(), serialized);
+    }
+}
@@ -0,0 +1,140 @@
+package com.ucas.bigdata.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求的组帧和解析：操作码加请求头，以及写数据块时长度前缀的数据包。
+ * 输出经过与socket路径相同大小的缓冲区写到空设备，只计算组帧的开销。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpCodeFramingBenchmark {
+    private static final String PATH = "/user/dfs/warehouse/logs/2023/12/part-00042";
+    private static final String BLOCK_ID = "7f3c2a8e-5b1d-4e6f-9a0b-c1d2e3f4a5b6";
+
+    private DataOutputStream out;
+    private ByteArrayInputStream createRequest;
+    private DataInputStream createIn;
+    private ByteArrayInputStream readRangeRequest;
+    private DataInputStream readRangeIn;
+
+    @Setup
+    public void setup() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }, Config.DATA_IO_BUFFER_SIZE));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(bytes);
+        writeCreate(request);
+        createRequest = new ByteArrayInputStream(bytes.toByteArray());
+        createIn = new DataInputStream(createRequest);
+
+        bytes.reset();
+        writeReadRange(request);
+        readRangeRequest = new ByteArrayInputStream(bytes.toByteArray());
+        readRangeIn = new DataInputStream(readRangeRequest);
+    }
+
+    private static void writeCreate(DataOutputStream out) throws IOException {
+        MetaOpCode.CREATE_FILE.write(out);
+        out.writeUTF(PATH);
+        out.writeUTF("dfs");
+        out.writeBoolean(false);
+    }
+
+    private static void writeReadRange(DataOutputStream out) throws IOException {
+        DataOpCode.READ_RANGE.write(out);
+        out.writeUTF(BLOCK_ID);
+        out.writeLong(4L << 20);
+        out.writeLong(1L << 20);
+    }
+
+    @Benchmark
+    public void metaCreateWrite() throws IOException {
+        writeCreate(out);
+        out.flush();
+    }
+
+    @Benchmark
+    public void metaCreateRead(Blackhole bh) throws IOException {
+        createRequest.reset();
+        bh.consume(MetaOpCode.read(createIn));
+        bh.consume(createIn.readUTF());
+        bh.consume(createIn.readUTF());
+        bh.consume(createIn.readBoolean());
+    }
+
+    @Benchmark
+    public void dataReadRangeWrite() throws IOException {
+        writeReadRange(out);
+        out.flush();
+    }
+
+    @Benchmark
+    public void dataReadRangeRead(Blackhole bh) throws IOException {
+        readRangeRequest.reset();
+        bh.consume(DataOpCode.read(readRangeIn));
+        bh.consume(readRangeIn.readUTF());
+        bh.consume(readRangeIn.readLong());
+        bh.consume(readRangeIn.readLong());
+    }
+
+    // 数据包大小只影响dataPacketWrite，单独放在一个State中
+    @State(Scope.Thread)
+    public static class Packet {
+        @Param({"4096", "65536"})
+        int packetSize;
+
+        byte[] data;
+
+        @Setup
+        public void setup() {
+            data = new byte[packetSize];
+            new Random(42).nextBytes(data);
+        }
+    }
+
+    // 写数据块的一个数据包：int长度加数据
+    @Benchmark
+    public void dataPacketWrite(Packet packet) throws IOException {
+        out.writeInt(packet.data.length);
+        out.write(packet.data, 0, packet.data.length);
+    }
+
+    @Benchmark
+    public void dataOpCodeDecode(Blackhole bh) {
+        for (DataOpCode op : DataOpCode.values()) {
+            bh.consume(DataOpCode.valueOf(op.code));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.BlockReader;
+import com.ucas.bigdata.client.Connection;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataOpCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过本机回环socket读写DataServer。
+ * writeBlock以chunkSize大小的数据包写入一个BLOCK_BYTES的数据块(无下游副本)；
+ * readRange用READ_RANGE从一个BLOCK_BYTES的数据块中依次读取chunkSize字节，并像客户端一样校验。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataServerBenchmark {
+    static final int BLOCK_BYTES = 4 << 20;
+    private static final String READ_BLOCK = "bench-read";
+    private static final String WRITE_BLOCK = "bench-write";
+
+    @Param({"4096", "65536", "1048576"})
+    int chunkSize;
+
+    @Param({"blocking", "nio"})
+    String engine;
+
+    private File dir;
+    private MetadataServer meta;
+    private DataServer data;
+    private Connection connection;
+    private byte[] chunk;
+    private long offset;
+    private final OutputStream sink = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        Config.HEARTBEAT_SECS = 3600;
+        Config.DATA_SERVER_IDLE_TIMEOUT_MS = 600 * 1000; // 迭代之间连接保持空闲
+        Config.DATA_SERVER_ENGINE = engine;
+        // DataServer启动时连接元数据服务器，两者都使用空闲端口
+        Config.META_SERVRE_PORT = LocalServers.freePort();
+        Config.DATA_SERVRE_PORT = LocalServers.freePort();
+        dir = LocalServers.tempDir("data-bench");
+        File storage = new File(dir, "data");
+        storage.mkdirs();
+        meta = LocalServers.startMeta(Config.META_SERVRE_PORT, dir);
+        data = LocalServers.startData("127.0.0.1", storage);
+        connection = new Connection("127.0.0.1", Config.DATA_SERVRE_PORT);
+
+        chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        byte[] packet = new byte[Config.PACKET_SIZE];
+        new Random(7).nextBytes(packet);
+        write(READ_BLOCK, packet);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connection.close();
+        data.stop();
+        meta.stop();
+        LocalServers.delete(dir);
+    }
+
+    // 用WRITE_BLOCK写入BLOCK_BYTES字节，每个数据包packet.length字节
+    private int write(String blockId, byte[] packet) throws IOException {
+        DataOutputStream out = connection.getOut();
+        DataInputStream in = connection.getIn();
+        DataOpCode.WRITE_BLOCK.write(out);
+        out.writeUTF(blockId);
+        out.writeInt(0);
+        for (int sent = 0; sent < BLOCK_BYTES; sent += packet.length) {
+            int n = Math.min(packet.length, BLOCK_BYTES - sent);
+            out.writeInt(n);
+            out.write(packet, 0, n);
+        }
+        out.writeInt(BlockSender.END_STREAM);
+        out.flush();
+        int retCode = in.readInt();
+        String msg = in.readUTF();
+        int replicas = in.readInt();
+        for (int i = 0; i < replicas; i++) {
+            in.readInt();
+        }
+        if (retCode != 0) {
+            throw new IOException(msg);
+        }
+        return replicas;
+    }
+
+    @Benchmark
+    public int writeBlock() throws IOException {
+        return write(WRITE_BLOCK, chunk);
+    }
+
+    @Benchmark
+    public long readRange() throws IOException {
+        DataOutputStream out = connection.getOut();
+        DataInputStream in = connection.getIn();
+        DataOpCode.READ_RANGE.write(out);
+        out.writeUTF(READ_BLOCK);
+        out.writeLong(offset);
+        out.writeLong(chunkSize);
+        out.flush();
+        if (in.readInt() != 0) {
+            throw new IOException(in.readUTF());
+        }
+        in.readUTF();
+        long read = new BlockReader(READ_BLOCK).read(in, offset, chunkSize, sink);
+        offset = (offset + chunkSize) % BLOCK_BYTES;
+        return read;
+    }
+}
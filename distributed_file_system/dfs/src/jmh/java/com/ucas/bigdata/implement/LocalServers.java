@@ -0,0 +1,69 @@
+package com.ucas.bigdata.implement;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+
+/**
+ * 在本机临时目录中启动元数据服务器和DataServer，供基准测试使用。
+ */
+class LocalServers {
+    private LocalServers() {
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // 启动元数据服务器，返回时已经在接受请求
+    static MetadataServer startMeta(int port, File dir) throws InterruptedException {
+        final MetadataServer server = new MetadataServer(port, new File(dir, "meta").getPath());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "bench-meta");
+        thread.setDaemon(true);
+        thread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(1);
+        }
+        return server;
+    }
+
+    static DataServer startData(String nodeName, File dir) throws InterruptedException {
+        final DataServer server = new DataServer(nodeName, dir.getPath());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    // stop()关闭监听socket后accept抛出异常
+                }
+            }
+        }, "bench-data");
+        thread.setDaemon(true);
+        thread.start();
+        while (!server.isRunning) {
+            Thread.sleep(1);
+        }
+        return server;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
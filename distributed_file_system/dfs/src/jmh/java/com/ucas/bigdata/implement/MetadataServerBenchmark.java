@@ -0,0 +1,134 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.MetaOpCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 元数据服务器在大命名空间上的创建、删除和列目录。
+ * 请求不经过socket，直接交给process()，计入路径锁、目录树和RocksDB提交的开销。
+ * 命名空间有files个文件，每个目录dirSize个，形如/ns/d<i>/f<j>；列目录列出其中一个目录。
+ * 预置的命名空间和delete要删除的文件也经过process()创建，内存和RocksDB中的状态一致。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataServerBenchmark {
+    @Param({"10000", "200000"})
+    int files;
+
+    @Param({"100", "10000"})
+    int dirSize;
+
+    private File dir;
+    private MetadataServer server;
+    private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        // 预置的dfs101~dfs103在测试期间保持存活，创建文件时可以分配数据块
+        Config.HEARTBEAT_SECS = 3600;
+        dir = LocalServers.tempDir("meta-bench");
+        server = LocalServers.startMeta(0, dir);
+        // 用BATCH请求批量创建，每批一次提交
+        for (int i = 0; i < files; i += Config.META_BATCH_MAX) {
+            int n = Math.min(Config.META_BATCH_MAX, files - i);
+            DataOutputStream out = newRequest();
+            out.writeInt(n);
+            for (int j = i; j < i + n; j++) {
+                MetaOpCode.CREATE_FILE.write(out);
+                out.writeUTF(path("/ns", j));
+                out.writeUTF("dfs");
+                out.writeBoolean(false);
+            }
+            call(MetaOpCode.BATCH);
+            if (new DataInputStream(new ByteArrayInputStream(response.toByteArray())).readInt() != 0) {
+                throw new IOException("Cannot populate the namespace");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        LocalServers.delete(dir);
+    }
+
+    private String path(String prefix, long i) {
+        return prefix + "/d" + (i / dirSize) + "/f" + i;
+    }
+
+    private int call(MetaOpCode op) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request.toByteArray()));
+        response.reset();
+        server.process(null, op, in, new DataOutputStream(response));
+        return response.size();
+    }
+
+    private DataOutputStream newRequest() {
+        request.reset();
+        return new DataOutputStream(request);
+    }
+
+    private int createFile(String path) throws IOException {
+        DataOutputStream out = newRequest();
+        out.writeUTF(path);
+        out.writeUTF("dfs");
+        out.writeBoolean(false);
+        return call(MetaOpCode.CREATE_FILE);
+    }
+
+    @Benchmark
+    public int create() throws IOException {
+        return createFile(path("/new", seq++));
+    }
+
+    // delete要删除的文件，每次调用前用CREATE_FILE创建，不计入测量
+    @State(Scope.Thread)
+    public static class Victim {
+        String path;
+
+        @Setup(Level.Invocation)
+        public void create(MetadataServerBenchmark bench) throws IOException {
+            path = bench.path("/victims", bench.seq++);
+            bench.createFile(path);
+        }
+    }
+
+    @Benchmark
+    public int delete(Victim victim) throws IOException {
+        newRequest().writeUTF(victim.path);
+        return call(MetaOpCode.DEL_FILE);
+    }
+
+    @Benchmark
+    public int listFile() throws IOException {
+        newRequest().writeUTF("/ns/d0");
+        return call(MetaOpCode.LIST_FILE);
+    }
+}
@@ -0,0 +1,108 @@
+package com.ucas.bigdata.client;
+
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.ReplicaStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 客户端缓存的文件数据块位置，按LRU淘汰，每项在ttlMs后过期。
+ * 本客户端修改文件时显式失效；其他客户端的修改只能等过期，或者读数据块失败时由调用方失效后重新查询。
+ * 文件重写时会分配新的数据块ID，过时的位置在DataServer上读不到数据，不会读到错误的内容。
+ * 正在写入的文件(最后一个数据块还有PENDING副本)不缓存。
+ */
+public class BlockLocationCache {
+    private final int capacity;
+    private final long ttlMs;
+    private final LinkedHashMap<String, CachedLocations> entries;
+    private long hits;
+    private long misses;
+
+    private static class CachedLocations {
+        final List<BlockInfo> blocks;
+        final long expireAt;
+
+        CachedLocations(List<BlockInfo> blocks, long expireAt) {
+            this.blocks = blocks;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * @param capacity 最多缓存的文件数
+     * @param ttlMs 缓存项的有效时间，小于等于0时不缓存
+     */
+    public BlockLocationCache(final int capacity, long ttlMs) {
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, CachedLocations>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLocations> eldest) {
+                return size() > BlockLocationCache.this.capacity;
+            }
+        };
+    }
+
+    // 未缓存或已过期时返回null
+    public synchronized List<BlockInfo> get(String path) {
+        CachedLocations e = entries.get(path);
+        if (e != null && e.expireAt - System.currentTimeMillis() <= 0) {
+            entries.remove(path);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.blocks;
+    }
+
+    public synchronized void put(String path, List<BlockInfo> blocks) {
+        if (ttlMs <= 0 || capacity <= 0 || underConstruction(blocks)) {
+            return;
+        }
+        entries.put(path, new CachedLocations(Collections.unmodifiableList(new ArrayList<>(blocks)),
+                System.currentTimeMillis() + ttlMs));
+    }
+
+    public synchronized void invalidate(String path) {
+        entries.remove(path);
+    }
+
+    // 失效path及其下的所有文件，用于目录改名和删除
+    public synchronized void invalidateTree(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (key.equals(path) || key.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized String metrics() {
+        return String.format("locationCache{size=%d hits=%d misses=%d}", entries.size(), hits, misses);
+    }
+
+    private static boolean underConstruction(List<BlockInfo> blocks) {
+        if (blocks.isEmpty()) {
+            return false;
+        }
+        BlockInfo last = blocks.get(blocks.size() - 1);
+        for (int i = 0; i < last.getLocations().size(); i++) {
+            if (last.getStatus(i) == ReplicaStatus.PENDING) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
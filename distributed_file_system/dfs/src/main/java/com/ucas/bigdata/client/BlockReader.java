@@ -0,0 +1,78 @@
+package com.ucas.bigdata.client;
+
+import com.ucas.bigdata.common.ChecksumException;
+import com.ucas.bigdata.common.DataChecksum;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * 读取READ_RANGE的响应数据并逐chunk校验。
+ * 服务端把读取范围对齐到chunk边界发送，这里每收到一个chunk就校验，
+ * 只把与请求范围[offset, offset+length)重叠的部分写入sink。
+ */
+public class BlockReader {
+    private final String blockId;
+    private byte[] buffer = new byte[0];
+    private int[] sums = new int[0];
+
+    public BlockReader(String blockId) {
+        this.blockId = blockId;
+    }
+
+    /**
+     * 读取返回码之后的数据部分
+     * @return 写入sink的字节数
+     * @throws ChecksumException 数据与校验和不一致，应换一个副本读取
+     */
+    public long read(DataInputStream in, long offset, long length, OutputStream sink) throws IOException {
+        int type = in.readByte();
+        int bytesPerChecksum = in.readInt();
+        long position = in.readLong();
+        if (bytesPerChecksum <= 0 || position > offset) {
+            throw new IOException("Bad read header for block " + blockId);
+        }
+        Checksum checksum = DataChecksum.newChecksum(type);
+        long end = length >= Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length;
+        long delivered = 0;
+
+        int len;
+        while ((len = in.readInt()) != -1) {
+            int n = in.readInt();
+            int expected = checksum != null ? DataChecksum.chunkCount(len, bytesPerChecksum) : 0;
+            if (len < 0 || n != expected) {
+                throw new IOException("Bad segment header for block " + blockId + ": len=" + len + " checksums=" + n);
+            }
+            if (n > sums.length) {
+                sums = new int[n];
+            }
+            for (int i = 0; i < n; i++) {
+                sums[i] = in.readInt();
+            }
+            // 逐chunk读取、校验、交付，校验与接收交替进行，socket不会因为校验而停顿
+            int step = checksum != null ? bytesPerChecksum : Math.max(len, 1);
+            if (Math.min(step, len) > buffer.length) {
+                buffer = new byte[Math.min(step, len)];
+            }
+            for (int i = 0, off = 0; off < len; i++, off += step) {
+                int chunk = Math.min(step, len - off);
+                in.readFully(buffer, 0, chunk);
+                if (checksum != null && DataChecksum.compute(checksum, buffer, 0, chunk) != sums[i]) {
+                    throw new ChecksumException("Checksum error in block " + blockId
+                            + " at " + position, position);
+                }
+                // 只交付与请求范围重叠的部分
+                long from = Math.max(position, offset);
+                long to = Math.min(position + chunk, end);
+                if (from < to) {
+                    sink.write(buffer, (int) (from - position), (int) (to - from));
+                    delivered += to - from;
+                }
+                position += chunk;
+            }
+        }
+        return delivered;
+    }
+}
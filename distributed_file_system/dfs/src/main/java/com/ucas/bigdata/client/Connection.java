@@ -1,5 +1,7 @@
 package com.ucas.bigdata.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -12,15 +14,18 @@ public class Connection{
     private final DataOutputStream out;
     private String host;
     private int port;
+    private long lastUsed;   // 最近一次归还连接池的时间
+    private int useCount;    // 从连接池借出的次数
 
     public Connection(String host, int port) throws IOException {
         this.host = host;
         this.port = port;
         socket = new Socket(host,port);
+        socket.setTcpNoDelay(true); // 请求分多次flush，关闭Nagle避免与对端的延迟确认叠加
 
         // 获取输入流和输出流
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
 
 
@@ -58,6 +63,35 @@ public class Connection{
         return in.readUTF();
     }
 
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    // 是否是从连接池中复用的连接
+    public boolean isReused() {
+        return useCount > 1;
+    }
+
+    void markBorrowed() {
+        useCount++;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
     public void close() throws IOException {
         socket.close();
     }
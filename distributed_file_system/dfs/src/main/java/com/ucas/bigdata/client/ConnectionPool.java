@@ -0,0 +1,173 @@
+package com.ucas.bigdata.client;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按主机维护的DataServer长连接池。
+ * 请求完整结束、协议处于干净状态的连接通过release归还，出错的连接通过invalidate关闭。
+ * 空闲超过idleTimeoutMs的连接由后台线程关闭，时间应小于DataServer端的空闲超时。
+ */
+public class ConnectionPool {
+    private static Logger log = LogManager.getLogger(ConnectionPool.class);
+
+    private final Map<String, Deque<Connection>> idle = new HashMap<>(); // host:port -> 空闲连接，队首最近使用
+    private final int maxIdlePerHost;
+    private final long idleTimeoutMs;
+    private final ScheduledExecutorService evictor;
+    private boolean closed;
+
+    public ConnectionPool(int maxIdlePerHost, long idleTimeoutMs) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dfs-connection-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 借出一个到host:port的连接，没有空闲连接时新建
+     */
+    public Connection borrow(String host, int port) throws IOException {
+        Connection connection = null;
+        synchronized (this) {
+            Deque<Connection> conns = idle.get(key(host, port));
+            while (conns != null && !conns.isEmpty()) {
+                Connection c = conns.pollFirst();
+                if (!c.isClosed()) {
+                    connection = c;
+                    break;
+                }
+            }
+        }
+        if (connection == null) {
+            connection = new Connection(host, port);
+        }
+        connection.markBorrowed();
+        return connection;
+    }
+
+    // 不经过空闲队列直接新建连接，用于复用的连接失效后重试
+    public Connection open(String host, int port) throws IOException {
+        Connection connection = new Connection(host, port);
+        connection.markBorrowed();
+        return connection;
+    }
+
+    /**
+     * 归还连接，调用者必须保证请求的响应已经完整读完
+     */
+    public void release(Connection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        Connection evicted = null;
+        synchronized (this) {
+            if (!closed) {
+                connection.setLastUsed(System.currentTimeMillis());
+                String key = key(connection.getHost(), connection.getPort());
+                Deque<Connection> conns = idle.get(key);
+                if (conns == null) {
+                    conns = new ArrayDeque<>();
+                    idle.put(key, conns);
+                }
+                conns.addFirst(connection);
+                if (conns.size() > maxIdlePerHost) {
+                    evicted = conns.pollLast();
+                }
+            } else {
+                evicted = connection;
+            }
+        }
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+    }
+
+    // 关闭出错或状态未知的连接
+    public void invalidate(Connection connection) {
+        if (connection != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    // 关闭空闲超时的连接
+    void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeoutMs;
+        List<Connection> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Deque<Connection>> it = idle.values().iterator();
+            while (it.hasNext()) {
+                Deque<Connection> conns = it.next();
+                // 队尾是最久未使用的连接
+                while (!conns.isEmpty() && conns.peekLast().getLastUsed() < deadline) {
+                    expired.add(conns.pollLast());
+                }
+                if (conns.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        for (Connection c : expired) {
+            closeQuietly(c);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        int n = 0;
+        for (Deque<Connection> conns : idle.values()) {
+            n += conns.size();
+        }
+        return n;
+    }
+
+    public void close() {
+        List<Connection> all = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<Connection> conns : idle.values()) {
+                all.addAll(conns);
+            }
+            idle.clear();
+        }
+        evictor.shutdownNow();
+        for (Connection c : all) {
+            closeQuietly(c);
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.ucas.bigdata.client;
+
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataOpCode;
+import com.ucas.bigdata.common.ReplicaStatus;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 流式写入DFS文件。
+ * 调用线程把数据切成长度前缀的数据包放入有界队列，后台DataStreamer线程把数据包
+ * 通过WRITE_BLOCK发给副本流水线的首节点，以END_STREAM结束一个数据块。
+ * 队列满时write阻塞，内存占用固定为 (CLIENT_MAX_INFLIGHT_PACKETS + 3) * PACKET_SIZE。
+ * 写满BLOCK_SIZE后等待当前数据块的确认，再向元数据服务器申请下一个数据块。
+ */
+public class DfsOutputStream extends OutputStream {
+    private static Logger log = LogManager.getLogger(DfsOutputStream.class);
+    private static final Packet END_OF_BLOCK = new Packet(0);
+
+    private final String path;
+    private final MetaServerClient metaClient;
+    private final ConnectionPool pool;
+    private final BlockingQueue<Packet> queue;  // 待发送的数据包，容量即在途数据包上限
+    private final BlockingQueue<Packet> free;   // 可复用的数据包缓冲
+    private Packet current;
+    private long blockBytes;                    // 当前数据块已写入的字节数
+    private DataStreamer streamer;
+    private List<Integer> lastStatus = new ArrayList<>();
+    private boolean closed;
+
+    DfsOutputStream(String path, MetaServerClient metaClient, ConnectionPool pool) throws IOException {
+        this.path = path;
+        this.metaClient = metaClient;
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(Config.CLIENT_MAX_INFLIGHT_PACKETS);
+        this.free = new ArrayBlockingQueue<>(Config.CLIENT_MAX_INFLIGHT_PACKETS + 2);
+
+        // 向元数据服务器发送新建文件请求，分配第一个数据块
+        if (metaClient.createFile(path) == null) {
+            throw new IOException("Cannot create file " + path);
+        }
+        List<BlockInfo> blocks = metaClient.getBlockLocations(path);
+        if (blocks == null || blocks.isEmpty()) {
+            throw new IOException("No storage nodes available for file: " + path);
+        }
+        startBlock(blocks.get(0));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (blockBytes == Config.BLOCK_SIZE) {
+                nextBlock();
+            }
+            if (current == null) {
+                current = newPacket();
+            }
+            int n = (int) Math.min(Math.min(len, current.buf.length - current.len), Config.BLOCK_SIZE - blockBytes);
+            System.arraycopy(b, off, current.buf, current.len, n);
+            current.len += n;
+            blockBytes += n;
+            off += n;
+            len -= n;
+            if (current.len == current.buf.length || blockBytes == Config.BLOCK_SIZE) {
+                enqueue(current);
+                current = null;
+            }
+        }
+    }
+
+    // 把未满的数据包也发送出去
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (current != null && current.len > 0) {
+            enqueue(current);
+            current = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            endBlock();
+            if (!metaClient.closeFile(path, blockBytes, lastStatus)) {
+                throw new IOException("Failed to close file on metadata server: " + path);
+            }
+        } finally {
+            closed = true;
+            if (streamer != null) {
+                streamer.abort();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed: " + path);
+        }
+    }
+
+    private void startBlock(BlockInfo block) {
+        blockBytes = 0;
+        streamer = new DataStreamer(block);
+        Thread t = new Thread(streamer, "dfs-streamer-" + block.getBlockId());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // 结束当前数据块并等待流水线确认
+    private void endBlock() throws IOException {
+        if (current != null && current.len > 0) {
+            enqueue(current);
+        }
+        current = null;
+        enqueue(END_OF_BLOCK);
+        try {
+            streamer.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block ack");
+        }
+        if (streamer.error != null) {
+            throw streamer.error;
+        }
+        lastStatus = streamer.statuses;
+        if (!lastStatus.contains(ReplicaStatus.FINALIZED)) {
+            throw new IOException("All replicas failed for block " + streamer.block.getBlockId());
+        }
+    }
+
+    private void nextBlock() throws IOException {
+        endBlock();
+        BlockInfo block = metaClient.addBlock(path, blockBytes, lastStatus);
+        if (block == null) {
+            throw new IOException("Cannot allocate block for " + path);
+        }
+        startBlock(block);
+    }
+
+    private void enqueue(Packet p) throws IOException {
+        try {
+            while (!queue.offer(p, 100, TimeUnit.MILLISECONDS)) {
+                if (streamer.error != null) {
+                    throw streamer.error;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing packet");
+        }
+    }
+
+    private Packet newPacket() {
+        Packet p = free.poll();
+        return p != null ? p : new Packet(Config.PACKET_SIZE);
+    }
+
+    private void recycle(Packet p) {
+        if (p != null && p != END_OF_BLOCK) {
+            p.len = 0;
+            free.offer(p);
+        }
+    }
+
+    private static class Packet {
+        final byte[] buf;
+        int len;
+
+        Packet(int size) {
+            buf = new byte[size];
+        }
+    }
+
+    /**
+     * 把一个数据块的数据包发给流水线首节点。
+     * 第一个数据包在第二个数据包发出之前一直保留，在此之前失败可以换新连接或下一个节点重发。
+     */
+    private class DataStreamer implements Runnable {
+        final BlockInfo block;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile IOException error;
+        List<Integer> statuses = new ArrayList<>();   // 与block.getLocations()一一对应
+        private int head;                  // 流水线首节点在locations中的位置
+        private Connection connection;
+        private boolean freshRetry;        // 复用的连接失效后，在新连接上重试同一节点
+        private Packet first;              // 保留的第一个数据包
+        private boolean firstReleased;     // 第二个数据包已发出，不能再重发
+        private volatile boolean aborted;
+
+        DataStreamer(BlockInfo block) {
+            this.block = block;
+            for (int i = 0; i < block.getLocations().size(); i++) {
+                statuses.add(ReplicaStatus.FAILED);
+            }
+        }
+
+        public void run() {
+            try {
+                while (!aborted) {
+                    Packet p = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (p == null) {
+                        continue;
+                    }
+                    if (p == END_OF_BLOCK) {
+                        deliver(null);
+                        break;
+                    }
+                    deliver(p);
+                }
+            } catch (IOException e) {
+                log.error("Write block " + block.getBlockId() + " failed", e);
+                error = e;
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Streamer interrupted");
+            } finally {
+                if (connection != null) {
+                    pool.invalidate(connection);
+                    connection = null;
+                }
+                recycle(first);
+                first = null;
+                queue.clear();
+                done.countDown();
+            }
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        // 发送一个数据包，p为null表示发送END_STREAM并读取确认
+        private void deliver(Packet p) throws IOException {
+            while (true) {
+                boolean reused = false;
+                try {
+                    if (connection == null) {
+                        connect();
+                    }
+                    reused = connection.isReused();
+                    if (p == null) {
+                        finish();
+                        return;
+                    }
+                    send(p);
+                    if (first == null && !firstReleased) {
+                        first = p;    // 保留第一个数据包
+                    } else {
+                        if (first != null) {
+                            recycle(first);
+                            first = null;
+                        }
+                        firstReleased = true;
+                        recycle(p);
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (connection != null) {
+                        pool.invalidate(connection);
+                        connection = null;
+                    }
+                    if (firstReleased) {
+                        throw e;
+                    }
+                    if (reused && !freshRetry) {
+                        freshRetry = true;
+                    } else {
+                        log.error("Pipeline head " + block.getLocations().get(head) + " failed for block "
+                                + block.getBlockId() + ": " + e.getMessage());
+                        head++;
+                        freshRetry = false;
+                        if (head >= block.getLocations().size()) {
+                            throw new IOException("No storage nodes available for block: " + block.getBlockId(), e);
+                        }
+                    }
+                }
+            }
+        }
+
+        // 连接流水线首节点，发送请求头；重连时重发保留的第一个数据包
+        private void connect() throws IOException {
+            List<String> nodes = block.getLocations();
+            if (head >= nodes.size()) {
+                throw new IOException("No storage nodes available for block: " + block.getBlockId());
+            }
+            String host = nodes.get(head);
+            connection = freshRetry ? pool.open(host, Config.DATA_SERVRE_PORT)
+                    : pool.borrow(host, Config.DATA_SERVRE_PORT);
+            DataOutputStream out = connection.getOut();
+            DataOpCode.WRITE_BLOCK.write(out);//0.发送写数据块的OPCode
+            out.writeUTF(block.getBlockId());//1.发送数据块ID
+            List<String> targets = nodes.subList(head + 1, nodes.size());
+            out.writeInt(targets.size());//2.发送下游副本节点
+            for (String target : targets) {
+                out.writeUTF(target);
+            }
+            if (first != null) {
+                send(first);
+            }
+        }
+
+        private void send(Packet p) throws IOException {//3.按数据包发送
+            DataOutputStream out = connection.getOut();
+            out.writeInt(p.len);
+            out.write(p.buf, 0, p.len);
+        }
+
+        private void finish() throws IOException {
+            DataOutputStream out = connection.getOut();
+            out.writeInt(-1); // END_STREAM
+            out.flush();
+
+            DataInputStream in = connection.getIn();
+            in.readInt();//4.回写返回码
+            String msg = in.readUTF();//5.回写消息
+            int n = in.readInt();//6.各副本状态
+            for (int i = 0; i < n; i++) {
+                int status = in.readInt();
+                if (head + i < statuses.size()) {
+                    statuses.set(head + i, status);
+                }
+            }
+            pool.release(connection);
+            connection = null;
+            log.info("Block " + block.getBlockId() + ": " + msg + " replicas:" + statuses);
+        }
+    }
+}
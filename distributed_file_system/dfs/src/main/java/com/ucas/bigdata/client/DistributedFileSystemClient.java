@@ -1,8 +1,13 @@
 package com.ucas.bigdata.client;
 
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.ChecksumException;
 import com.ucas.bigdata.common.Config;
 import com.ucas.bigdata.common.DataOpCode;
 import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileStatus;
+import com.ucas.bigdata.common.ReplicaStatus;
+import com.ucas.bigdata.common.StatsSnapshot;
 import com.ucas.bigdata.implement.DataServer;
 import com.ucas.bigdata.implement.StorageNode;
 import org.apache.log4j.LogManager;
@@ -10,7 +15,11 @@ import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
 
@@ -18,11 +27,15 @@ public class DistributedFileSystemClient {
     private static Logger log = LogManager.getLogger(DataServer.class);
 
     private MetaServerClient metaDataClient;
+    private ConnectionPool dataConnections; // DataServer长连接池
+    private final BlockLocationCache locationCache =
+            new BlockLocationCache(Config.CLIENT_LOCATION_CACHE_SIZE, Config.CLIENT_LOCATION_CACHE_TTL_MS);
     private List<StorageNode> storageNodes;
     private String cur_dir = "/";
 
     public DistributedFileSystemClient() throws IOException {
         metaDataClient = new MetaServerClient();
+        dataConnections = new ConnectionPool(Config.CLIENT_POOL_MAX_IDLE_PER_HOST, Config.CLIENT_POOL_IDLE_TIMEOUT_MS);
         storageNodes = new ArrayList();
         // 初始化存储节点列表
 //        storageNodes.add(new StorageNode("storage-node-1"));
@@ -33,94 +46,322 @@ public class DistributedFileSystemClient {
 
     public void disconnect() throws IOException {
         // 客户端连接关闭操作
+        dataConnections.close();
         metaDataClient.close();
     }
 
+    /**
+     * 打开文件，返回从头到尾依次读取所有数据块的流。
+     * 数据按OPEN_BUFFER_SIZE分段用READ_RANGE读取，经过校验，副本失败时换下一个副本
+     */
     public DataInputStream openFile(String path) {
-        try {
-            // 获取文件存储位置
-            List<String> locations = metaDataClient.getFileLocations(path);
-            if (locations.isEmpty()) {
-                System.err.println("File not found or no storage nodes available: " + path);
-                return null;
+        List<BlockInfo> blocks = getBlockLocations(path);
+        if (blocks == null) {
+            System.err.println("File not found or no storage nodes available: " + path);
+            return null;
+        }
+        return new DataInputStream(new BlockInputStream(blocks));
+    }
+
+    private static final int OPEN_BUFFER_SIZE = 1024 * 1024; // openFile的流每次从DataServer读取的字节数
+
+    // 依次读取文件的各个数据块
+    private class BlockInputStream extends InputStream {
+        private final List<BlockInfo> blocks;
+        private final byte[] buffer = new byte[OPEN_BUFFER_SIZE];
+        private int index;          // 当前数据块
+        private long offsetInBlock; // 下一次从当前数据块读取的位置
+        private int pos;
+        private int limit;
+
+        BlockInputStream(List<BlockInfo> blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
             }
+            return buffer[pos++] & 0xff;
+        }
 
-            // 连接到第一个存储节点
-            String[] nodeInfo = locations.get(0).split(":");
-            String nodeHost = nodeInfo[0];
-            int nodePort = Config.DATA_SERVRE_PORT;
-
-            Connection connection = new Connection(nodeHost, nodePort);
-            DataOutputStream out = connection.getOut();
-            DataInputStream in = connection.getIn();
-
-            // 发送打开文件请求
-            DataOpCode.READ_FILE.write(out);
-            out.writeUTF(path); // 发送文件路径
-            out.writeLong(0);   // 从文件头开始读取
-            out.flush();
-
-            // 检查响应状态
-            int retCode = in.readInt();
-            if (retCode != 0) {
-                System.err.println("Failed to open file: " + in.readUTF());
-                connection.close();
-                return null;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
             }
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
 
-            // 返回文件数据流
-            return in;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+        // 读取下一段数据，文件结束时返回false
+        private boolean fill() throws IOException {
+            while (index < blocks.size()) {
+                BlockInfo block = blocks.get(index);
+                long remaining = block.getLength() - offsetInBlock;
+                if (remaining > 0) {
+                    int n = (int) Math.min(buffer.length, remaining);
+                    int read = readRange(block, offsetInBlock, buffer, 0, n);
+                    if (read < 0) {
+                        throw new IOException("No readable replica of block " + block.getBlockId());
+                    }
+                    if (read > 0) {
+                        offsetInBlock += read;
+                        if (read < n) {
+                            offsetInBlock = block.getLength(); // 数据块比记录的长度短
+                        }
+                        pos = 0;
+                        limit = read;
+                        return true;
+                    }
+                }
+                index++;
+                offsetInBlock = 0;
+            }
+            return false;
         }
     }
 
+    // 文件的数据块位置，优先使用缓存
+    private List<BlockInfo> getBlockLocations(String path) {
+        List<BlockInfo> blocks = locationCache.get(path);
+        return blocks != null ? blocks : fetchBlockLocations(path);
+    }
+
+    // 向元数据服务器查询文件的数据块位置并更新缓存
+    private List<BlockInfo> fetchBlockLocations(String path) {
+        List<BlockInfo> blocks = metaDataClient.getBlockLocations(path);
+        if (blocks != null) {
+            locationCache.put(path, blocks);
+        }
+        return blocks;
+    }
+
+    /**
+     * 读取文件[offset, offset+len)范围的数据，只请求与该范围重叠的数据块。
+     * 使用缓存的位置读取失败时，位置可能已过时，丢弃缓存重新查询后再读一次
+     * @param len 读取长度，小于0表示读到文件末尾
+     * @return 读到的数据，文件较短时返回的数组可能小于len
+     */
     public byte[] readFile(String path, long offset, int len) {
-        // 实现从文件读取数据的逻辑
-        try {
-            // 获取文件存储位置
-            List<String> locations = metaDataClient.getFileLocations(path);
-            if (locations.isEmpty()) {
-                System.err.println("No storage nodes available for file: " + path);
-                return null;
+        if (len < 0) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            return readFile(path, offset, bos) ? bos.toByteArray() : null;
+        }
+        List<BlockInfo> blocks = locationCache.get(path);
+        if (blocks != null) {
+            byte[] result = readFile(path, blocks, offset, len);
+            if (result != null) {
+                return result;
+            }
+            locationCache.invalidate(path);
+        }
+        return readFile(path, fetchBlockLocations(path), offset, len);
+    }
+
+    private byte[] readFile(String path, List<BlockInfo> blocks, long offset, int len) {
+        if (blocks == null) {
+            System.err.println("No storage nodes available for file: " + path);
+            return null;
+        }
+        long fileSize = 0;
+        for (BlockInfo block : blocks) {
+            fileSize += block.getLength();
+        }
+        // 只分配实际能读到的字节数
+        int total = (int) Math.max(0, Math.min(len, fileSize - offset));
+        byte[] result = new byte[total];
+        int filled = 0;
+        long blockStart = 0;
+        for (BlockInfo block : blocks) {
+            long blockEnd = blockStart + block.getLength();
+            long pos = offset + filled;
+            if (filled < total && pos < blockEnd) {
+                int n = (int) Math.min(total - filled, blockEnd - pos);
+                int read = readRange(block, pos - blockStart, result, filled, n);
+                if (read < 0) {
+                    return null;
+                }
+                filled += read;
+                if (read < n) {
+                    break; // 数据块比记录的长度短
+                }
             }
-            String[] nodeInfo = locations.get(0).split(":");
-            String nodeHost = nodeInfo[0];
-
-            // 连接到数据服务器请求文件数据
-            Connection connection = new Connection(nodeHost, Config.DATA_SERVRE_PORT);
-            DataOutputStream out = connection.getOut();
-            DataInputStream in = connection.getIn();
-
-            // 读文件请求
-            DataOpCode.READ_FILE.write(out);
-            out.writeUTF(path);  // 文件路径
-            out.writeLong(offset); // 读取的起始位置
-            out.flush();
-
-            // 接收服务器响应
-            int retCode = in.readInt();
-            if (retCode != 0) {
-                System.err.println("Failed to read file: " + in.readUTF());
-                connection.close();
-                return null;
+            blockStart = blockEnd;
+        }
+        return filled == total ? result : Arrays.copyOf(result, filled);
+    }
+
+    // 读取时尝试副本的顺序：跳过写入失败的副本，MISSING的副本(节点失效或数据块丢失)放到最后
+    private static List<Integer> readOrder(BlockInfo block) {
+        List<Integer> order = new ArrayList<>(block.getLocations().size());
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < block.getLocations().size(); i++) {
+            int status = block.getStatus(i);
+            if (status == ReplicaStatus.MISSING) {
+                missing.add(i);
+            } else if (status != ReplicaStatus.FAILED) {
+                order.add(i);
             }
+        }
+        order.addAll(missing);
+        return order;
+    }
 
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int chunkSize;
-            while ((chunkSize = in.readInt()) != -1) {
-                byte[] buffer = new byte[chunkSize];
-                in.readFully(buffer);
-                bos.write(buffer);
+    /**
+     * 用READ_RANGE从数据块的某个副本读取n字节，直接写入dest
+     * @return 读取的字节数，所有副本都失败时返回-1
+     */
+    private int readRange(final BlockInfo block, final long offsetInBlock, final byte[] dest, final int destPos, final int n) {
+        for (int i : readOrder(block)) {
+            final String nodeHost = block.getLocations().get(i);
+            try {
+                Integer read = callDataServer(nodeHost, new DataCall<Integer>() {
+                    Integer call(Connection connection) throws IOException {
+                        DataOutputStream out = connection.getOut();
+                        DataInputStream in = connection.getIn();
+
+                        DataOpCode.READ_RANGE.write(out);
+                        out.writeUTF(block.getBlockId());  // 数据块ID
+                        out.writeLong(offsetInBlock); // 读取的起始位置
+                        out.writeLong(n);             // 读取的长度
+                        out.flush();
+
+                        int retCode = in.readInt();
+                        String msg = in.readUTF();
+                        if (retCode != 0) {
+                            System.err.println("Failed to read block " + block.getBlockId() + " from " + nodeHost + ": " + msg);
+                            return null;
+                        }
+
+                        // 校验后的数据直接写入dest
+                        final int[] read = new int[1];
+                        new BlockReader(block.getBlockId()).read(in, offsetInBlock, n, new OutputStream() {
+                            public void write(int b) throws IOException {
+                                write(new byte[]{(byte) b}, 0, 1);
+                            }
+
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                if (len > n - read[0]) {
+                                    throw new IOException("Server sent more data than requested");
+                                }
+                                System.arraycopy(b, off, dest, destPos + read[0], len);
+                                read[0] += len;
+                            }
+                        });
+                        return read[0];
+                    }
+                });
+                if (read != null) {
+                    return read;
+                }
+            } catch (IOException e) {
+                log.error("Failed to read block " + block.getBlockId() + " from " + nodeHost, e);
             }
+        }
+        return -1;
+    }
 
-            connection.close();
-            return bos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * 从offset开始逐个数据块读取文件，写入sink。
+     * 使用缓存的位置读取失败、且还没有数据写入sink时，丢弃缓存重新查询后再读一次
+     */
+    public boolean readFile(String path, long offset, final OutputStream sink) {
+        List<BlockInfo> blocks = locationCache.get(path);
+        if (blocks != null) {
+            final long[] written = new long[1];
+            boolean ok = readFile(path, blocks, offset, new FilterOutputStream(sink) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    written[0] += len;
+                }
+            });
+            if (ok || written[0] > 0) {
+                return ok;
+            }
+            locationCache.invalidate(path);
+        }
+        return readFile(path, fetchBlockLocations(path), offset, sink);
+    }
+
+    private boolean readFile(String path, List<BlockInfo> blocks, long offset, OutputStream sink) {
+        if (blocks == null || blocks.isEmpty()) {
+            System.err.println("No storage nodes available for file: " + path);
+            return false;
+        }
+
+        // 定位offset所在的数据块，最后一个块读到末尾
+        int index = 0;
+        long blockStart = 0;
+        while (index < blocks.size() - 1 && offset >= blockStart + blocks.get(index).getLength()) {
+            blockStart += blocks.get(index).getLength();
+            index++;
+        }
+        long offsetInBlock = Math.max(0, offset - blockStart);
+        for (; index < blocks.size(); index++) {
+            if (!readBlock(blocks.get(index), offsetInBlock, sink)) {
+                return false;
+            }
+            offsetInBlock = 0;
+        }
+        return true;
+    }
+
+    // 从数据块的某个副本读取数据，失败时尝试下一个副本
+    private boolean readBlock(final BlockInfo block, final long offsetInBlock, final OutputStream sink) {
+        final long[] delivered = new long[1]; // 已经写入sink的字节数
+        for (int i : readOrder(block)) {
+            final String nodeHost = block.getLocations().get(i);
+            try {
+                Boolean ok = callDataServer(nodeHost, new DataCall<Boolean>() {
+                    Boolean call(Connection connection) throws IOException {
+                        DataOutputStream out = connection.getOut();
+                        DataInputStream in = connection.getIn();
+
+                        // 读数据块请求，从上一个副本中断的位置继续，读到数据块末尾
+                        final long start = offsetInBlock + delivered[0];
+                        DataOpCode.READ_RANGE.write(out);
+                        out.writeUTF(block.getBlockId());  // 数据块ID
+                        out.writeLong(start);              // 读取的起始位置
+                        out.writeLong(Long.MAX_VALUE);     // 读取的长度
+                        out.flush();
+
+                        // 接收服务器响应
+                        int retCode = in.readInt();
+                        String msg = in.readUTF();
+                        if (retCode != 0) {
+                            System.err.println("Failed to read block " + block.getBlockId() + " from " + nodeHost + ": " + msg);
+                            return false;
+                        }
+
+                        // 校验通过的数据才写入sink，并记录已交付的位置
+                        new BlockReader(block.getBlockId()).read(in, start, Long.MAX_VALUE, new OutputStream() {
+                            public void write(int b) throws IOException {
+                                write(new byte[]{(byte) b}, 0, 1);
+                            }
+
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                sink.write(b, off, len);
+                                delivered[0] += len;
+                            }
+                        });
+                        return true;
+                    }
+                });
+                if (ok) {
+                    return true;
+                }
+            } catch (IOException e) {
+                log.error("Failed to read block " + block.getBlockId() + " from " + nodeHost, e);
+            }
         }
+        return false;
     }
 
     /**
@@ -130,42 +371,90 @@ public class DistributedFileSystemClient {
      * @return
      */
     public boolean writeFile(String path, byte[] data) {
-        try {
-
-            // 向元数据服务器发送新建文件请求，返回fileId
-            String fileId = metaDataClient.createFile(path);
+        return writeFile(path, new ByteArrayInputStream(data));
+    }
 
-            // 获取存储节点地址
-            List<String> locations = metaDataClient.getFileLocations(path);
-            if (locations.isEmpty()) {
-                System.err.println("No storage nodes available for file: " + path);
-                return false;
+    /**
+     * 将输入流按固定大小的数据块逐块写至分布式文件系统路径path
+     */
+    public boolean writeFile(String path, InputStream data) {
+        try (DfsOutputStream out = create(path)) {
+            byte[] buffer = new byte[Config.PACKET_SIZE];
+            int n;
+            while ((n = data.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
             }
-            String[] nodeInfo = locations.get(0).split(":");
-            String nodeHost = nodeInfo[0];
+        } catch (IOException e) {
+            log.error("Write " + path + " failed", e);
+            return false;
+        }
+        return true;
+    }
 
-            // 创建套接字连接到数据服务器
-            Connection connection = new Connection(nodeHost, Config.DATA_SERVRE_PORT);
+    /**
+     * 创建文件并返回流式写入的输出流，数据以数据包为单位边写边发送，close时提交文件
+     */
+    public DfsOutputStream create(String path) throws IOException {
+        locationCache.invalidate(path);
+        return new DfsOutputStream(path, metaDataClient, dataConnections);
+    }
 
+    // 在DataServer连接上执行的一次请求
+    private abstract static class DataCall<T> {
+        abstract T call(Connection connection) throws IOException;
 
-            DataOpCode.WRITE_FILE.write(connection.getOut());//0.发送写文件的OPCode
-            connection.writeUTF(fileId);//1.发送文件ID
-            connection.write(data);//2.遍历写入
+        // 失败后能否在新连接上重新执行
+        boolean canRetry() {
+            return true;
+        }
+    }
 
-            int retCode = connection.readInt();//3.回写返回码
-            String msg = connection.readUTF();//4.回写消息
-            if(retCode == 0){
-                log.info("写入成功，"+msg);
-            }else{
-                log.error("写入失败，"+msg);
+    /**
+     * 使用连接池中的连接执行一次DataServer请求。复用的空闲连接可能已经被DataServer关闭，
+     * 这种情况下在新连接上重试一次。请求正常结束的连接归还连接池，出错的连接直接关闭。
+     */
+    private <T> T callDataServer(String host, DataCall<T> call) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Connection connection = attempt == 0 ? dataConnections.borrow(host, Config.DATA_SERVRE_PORT)
+                    : dataConnections.open(host, Config.DATA_SERVRE_PORT);
+            boolean ok = false;
+            try {
+                T result = call.call(connection);
+                ok = true;
+                return result;
+            } catch (IOException e) {
+                // 校验和错误是副本数据损坏，不在同一节点重试
+                if (attempt > 0 || !connection.isReused() || !call.canRetry() || e instanceof ChecksumException) {
+                    throw e;
+                }
+                log.info("Pooled connection to " + host + " was closed, retrying: " + e.getMessage());
+            } finally {
+                if (ok) {
+                    dataConnections.release(connection);
+                } else {
+                    dataConnections.invalidate(connection);
+                }
             }
-            connection.close();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return false;
+    }
+
+    public StatsSnapshot getMetaStats() throws IOException {
+        return metaDataClient.getStats();
+    }
+
+    // DataServer的指标快照
+    public StatsSnapshot getDataServerStats(String host) throws IOException {
+        return callDataServer(host, new DataCall<StatsSnapshot>() {
+            StatsSnapshot call(Connection connection) throws IOException {
+                DataOpCode.STATS.write(connection.getOut());
+                connection.getOut().flush();
+                DataInputStream in = connection.getIn();
+                if (in.readInt() != 0) {
+                    throw new IOException("Stats failed: " + in.readUTF());
+                }
+                return StatsSnapshot.read(in);
+            }
+        });
     }
 
     public boolean closeFile(String path) {
@@ -180,15 +469,23 @@ public class DistributedFileSystemClient {
     }
 
     private void listFiles(String path) {
-        List<String> fileList = metaDataClient.listFiles(path); // 假设有这个方法来获取文件列表
-
-        if (fileList.isEmpty()) {
+        Iterator<FileStatus> it;
+        try {
+            it = metaDataClient.listStatusIterator(path);
+        } catch (IOException e) {
+            System.err.println("Failed to list " + path + ": " + e.getMessage());
+            return;
+        }
+        if (it == null || !it.hasNext()) {
             System.out.println("No files found.");
-        } else {
-            System.out.println("Files in the system:");
-            for (String file : fileList) {
-                System.out.println(file);
-            }
+            return;
+        }
+        System.out.println("Files in the system:");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        while (it.hasNext()) {
+            FileStatus st = it.next();
+            System.out.printf("%s %2d %-8s %12d %s %s%n", st.isDirectory() ? "d" : "-", st.getReplication(),
+                    st.getOwner(), Math.max(st.getFileSize(), 0), format.format(new Date(st.getCreationTime())), st.getName());
         }
     }
 
@@ -206,53 +503,60 @@ public class DistributedFileSystemClient {
 
 
     public boolean deleteFile(String path) {
-        try {
-            // 向元数据服务器发送删除请求
-            boolean metaDeleteSuccess = metaDataClient.deleteFile(path);
-            if (!metaDeleteSuccess) {
-                System.err.println("Failed to delete file metadata: " + path);
-                return false;
-            }
-
-            // 获取文件的存储位置
-            List<String> locations = metaDataClient.getFileLocations(path);
-            if (locations.isEmpty()) {
-                System.err.println("No storage nodes found for file: " + path);
-                return true; // 如果没有存储位置，说明文件数据可能已被清理
-            }
-
-            // 通知所有存储节点删除文件
-            for (String location : locations) {
-                String[] nodeInfo = location.split(":");
-                String nodeHost = nodeInfo[0];
-                int nodePort = Config.DATA_SERVRE_PORT;
-
-                Connection connection = new Connection(nodeHost, nodePort);
-                DataOutputStream out = connection.getOut();
-                DataInputStream in = connection.getIn();
-
-                // 删除文件请求
-                DataOpCode.DEL_FILE.write(out);
-                out.writeUTF(path);
-                out.flush();
+        // 删除元数据之前先获取文件的数据块位置，不使用缓存
+        List<BlockInfo> blocks = metaDataClient.getBlockLocations(path);
+
+        // 向元数据服务器发送删除请求
+        boolean metaDeleteSuccess = metaDataClient.deleteFile(path);
+        locationCache.invalidateTree(path);
+        if (!metaDeleteSuccess) {
+            System.err.println("Failed to delete file metadata: " + path);
+            return false;
+        }
 
-                // 读取响应
-                int retCode = in.readInt();
-                String msg = in.readUTF();
-                connection.close();
+        if (blocks == null || blocks.isEmpty()) {
+            System.err.println("No storage nodes found for file: " + path);
+            return true; // 目录或空文件，目录下文件的数据块由元数据服务器随心跳回复让节点删除
+        }
 
-                if (retCode != 0) {
-                    System.err.println("Failed to delete file on node " + nodeHost + ": " + msg);
-                } else {
-                    System.out.println("File deleted successfully on node " + nodeHost + ": " + msg);
+        // 通知存储节点删除数据块，不必等到下一次心跳。元数据已经删除，单个副本失败只记录日志，不影响其他副本；
+        // 不是FINALIZED的副本(写入失败或节点失效)不发送请求，由元数据服务器随心跳回复让节点删除
+        for (final BlockInfo block : blocks) {
+            for (int i = 0; i < block.getLocations().size(); i++) {
+                if (block.getStatus(i) != ReplicaStatus.FINALIZED) {
+                    continue;
+                }
+                final String nodeHost = block.getLocations().get(i);
+                try {
+                    String[] reply = callDataServer(nodeHost, new DataCall<String[]>() {
+                        String[] call(Connection connection) throws IOException {
+                            DataOutputStream out = connection.getOut();
+                            DataInputStream in = connection.getIn();
+
+                            // 删除文件请求
+                            DataOpCode.DEL_FILE.write(out);
+                            out.writeUTF(block.getBlockId());
+                            out.flush();
+
+                            // 读取响应
+                            int retCode = in.readInt();
+                            String msg = in.readUTF();
+                            return new String[]{String.valueOf(retCode), msg};
+                        }
+                    });
+
+                    if (!"0".equals(reply[0])) {
+                        System.err.println("Failed to delete block on node " + nodeHost + ": " + reply[1]);
+                    } else {
+                        System.out.println("Block deleted successfully on node " + nodeHost + ": " + reply[1]);
+                    }
+                } catch (IOException e) {
+                    log.error("Failed to delete block " + block.getBlockId() + " on node " + nodeHost, e);
                 }
             }
-
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
         }
+
+        return true;
     }
 
 
@@ -275,9 +579,13 @@ public class DistributedFileSystemClient {
         // 实现复制文件逻辑
         return false;
     }
+    // 只修改元数据，数据块不移动
     public boolean moveFile(String sourcePath, String destinationPath) {
-        // 实现移动文件逻辑
-        return false;
+        boolean renamed = metaDataClient.renameFile(sourcePath, destinationPath);
+        // 目录改名后其下所有文件的路径都变了
+        locationCache.invalidateTree(sourcePath);
+        locationCache.invalidateTree(destinationPath);
+        return renamed;
     }
 
     // 与存储节点断开连接
@@ -344,7 +652,7 @@ public class DistributedFileSystemClient {
                 case "cat":
                     System.out.println("Enter file path:");
                     String f = scanner.nextLine();
-                    byte[] content = client.readFile(f,0,0);
+                    byte[] content = client.readFile(f,0,-1);
                     System.out.println(new String(content));
                     break;
 
@@ -356,6 +664,14 @@ public class DistributedFileSystemClient {
                     System.out.println("Close result: " + (closeSuccess ? "Success" : "Failed"));
                     break;
 
+                case "rename":
+                    System.out.println("Enter source path:");
+                    String src = scanner.nextLine().trim();
+                    System.out.println("Enter destination path:");
+                    String dst = scanner.nextLine().trim();
+                    System.out.println("Rename result: " + (client.moveFile(src, dst) ? "Success" : "Failed"));
+                    break;
+
                 case "delete":
                     System.out.println("Enter file path:");
                     String deletePath = scanner.nextLine().trim();
@@ -363,6 +679,16 @@ public class DistributedFileSystemClient {
                     System.out.println("Delete result: " + (deleteSuccess ? "Success" : "Failed"));
                     break;
 
+                case "stats":
+                    System.out.println("Enter DataServer host (empty for meta server):");
+                    String host = scanner.nextLine().trim();
+                    try {
+                        System.out.print(host.isEmpty() ? client.getMetaStats() : client.getDataServerStats(host));
+                    } catch (IOException e) {
+                        System.out.println("Failed to get stats: " + e.getMessage());
+                    }
+                    break;
+
                 case "exit":
                     running = false;
                     break;
@@ -1,13 +1,25 @@
 package com.ucas.bigdata.client;
 
+import com.ucas.bigdata.common.BlockInfo;
 import com.ucas.bigdata.common.Config;
 import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileStatus;
+import com.ucas.bigdata.common.HeartbeatResponse;
 import com.ucas.bigdata.common.MetaOpCode;
+import com.ucas.bigdata.common.NodeStats;
+import com.ucas.bigdata.common.StatsSnapshot;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 
 public class MetaServerClient {
@@ -15,9 +27,30 @@ public class MetaServerClient {
     private static final String META_SERVRE_HOST = Config.META_SERVRE_HOST; // 元数据服务器的主机名
     private static final int METADATA_SERVER_PORT = Config.META_SERVRE_PORT; // 元数据服务器的端口号
     private Connection connection;
+    private long lastRequest;   // 最近一次请求的开始时间
 
     public MetaServerClient() throws IOException {
-        connection = new Connection(META_SERVRE_HOST, METADATA_SERVER_PORT);
+        this(META_SERVRE_HOST, METADATA_SERVER_PORT);
+    }
+
+    public MetaServerClient(String host, int port) throws IOException {
+        connection = new Connection(host, port);
+        lastRequest = System.currentTimeMillis();
+    }
+
+    /**
+     * 开始一个请求，返回写入请求的输出流。连接空闲超过CLIENT_META_IDLE_TIMEOUT_MS时
+     * 元数据服务器可能已经按空闲超时关闭了它，先重新连接
+     */
+    private DataOutputStream startRequest() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastRequest > Config.CLIENT_META_IDLE_TIMEOUT_MS) {
+            Connection old = connection;
+            connection = new Connection(old.getHost(), old.getPort());
+            old.close();
+        }
+        lastRequest = now;
+        return connection.getOut();
     }
     public static void main(String[] args) {
         MetaServerClient metaServerClient = null;
@@ -42,7 +75,7 @@ public class MetaServerClient {
     public List<String> listFiles(String cur_dir) {
         List<String> fl = new ArrayList<>();
         try {
-            MetaOpCode.LIST_FILE.write(connection.getOut()); //
+            MetaOpCode.LIST_FILE.write(startRequest()); //
             connection.flush();
             connection.writeUTF(cur_dir); // 客户端发送路径
             connection.flush();
@@ -60,15 +93,125 @@ public class MetaServerClient {
         return fl;
     }
 
-    public String heartBeat(String nodeName) {
+    /**
+     * 列出目录的一页条目及其属性
+     * @param startAfter 从这个文件名之后开始，null或""表示从头开始
+     * @param limit 本页最多返回的条目数，服务器可能限制得更小
+     * @return 一页结果，目录不存在返回null
+     */
+    public ListPage listStatus(String path, String startAfter, int limit) throws IOException {
+        MetaOpCode.LIST_STATUS.write(startRequest());
+        connection.writeUTF(path);
+        connection.writeUTF(startAfter == null ? "" : startAfter);
+        connection.getOut().writeInt(limit);
+        connection.flush();
+
+        int retCode = connection.readInt();
+        if (retCode != 0) {
+            System.err.println("Failed to list " + path + ": " + connection.readUTF());
+            return null;
+        }
+        int size = connection.readInt();
+        List<FileStatus> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(FileStatus.read(connection.getIn()));
+        }
+        return new ListPage(entries, connection.getIn().readBoolean());
+    }
+
+    /**
+     * 按文件名顺序遍历目录，每次向服务器取Config.CLIENT_LIST_PAGE_SIZE个条目，用到时才取下一页。
+     * 遍历期间目录被修改时，已经返回过的条目不会重复，之后新建的条目是否出现取决于其文件名。
+     * 遍历中途出错时hasNext/next抛出UncheckedIOException。
+     * @return 目录不存在返回null
+     */
+    public Iterator<FileStatus> listStatusIterator(String path) throws IOException {
+        ListPage first = listStatus(path, null, Config.CLIENT_LIST_PAGE_SIZE);
+        return first == null ? null : new StatusIterator(path, first);
+    }
+
+    /**
+     * LIST_STATUS返回的一页结果
+     */
+    public static class ListPage {
+        private final List<FileStatus> entries;
+        private final boolean hasMore;
+
+        ListPage(List<FileStatus> entries, boolean hasMore) {
+            this.entries = entries;
+            this.hasMore = hasMore;
+        }
+
+        public List<FileStatus> getEntries() {
+            return entries;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+
+        // 下一页的startAfter
+        public String lastName() {
+            return entries.isEmpty() ? null : entries.get(entries.size() - 1).getName();
+        }
+    }
+
+    private class StatusIterator implements Iterator<FileStatus> {
+        private final String path;
+        private ListPage page;
+        private int index;
+
+        StatusIterator(String path, ListPage first) {
+            this.path = path;
+            this.page = first;
+        }
+
+        public boolean hasNext() {
+            while (index == page.getEntries().size()) {
+                if (!page.hasMore() || page.getEntries().isEmpty()) {
+                    return false;
+                }
+                try {
+                    ListPage next = listStatus(path, page.lastName(), Config.CLIENT_LIST_PAGE_SIZE);
+                    if (next == null) {
+                        throw new IOException("Directory " + path + " disappeared while listing");
+                    }
+                    page = next;
+                    index = 0;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        }
+
+        public FileStatus next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.getEntries().get(index++);
+        }
+    }
+
+    /**
+     * 发送心跳，附带上次汇报之后新增和删除的数据块
+     * @return 元数据服务器的回复，请求失败时返回null
+     */
+    public HeartbeatResponse heartBeat(String nodeName, NodeStats stats, Collection<String> added,
+                                       Collection<String> removed) {
         try {
-            MetaOpCode.HEART_BEAT.write(connection.getOut()); //
-            connection.flush();
+            MetaOpCode.HEART_BEAT.write(startRequest()); //
             connection.writeUTF(nodeName); // 读取客户端发送路径
+            stats.write(connection.getOut());
+            writeBlockIds(added);
+            writeBlockIds(removed);
             connection.flush();
             int code = connection.readInt();
-            String msg = connection.readUTF();
-            return msg;
+            if (code != 0) {
+                System.err.println("Heartbeat rejected: " + connection.readUTF());
+                return null;
+            }
+            return HeartbeatResponse.read(connection.getIn());
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -76,9 +219,48 @@ public class MetaServerClient {
         return null;
     }
 
+    /**
+     * 完整块报告：DataServer上现有的全部数据块
+     * @return 元数据服务器是否已处理
+     */
+    public boolean blockReport(String nodeName, Collection<String> blockIds) {
+        try {
+            MetaOpCode.BLOCK_REPORT.write(startRequest());
+            connection.writeUTF(nodeName);
+            writeBlockIds(blockIds);
+            connection.flush();
+            int code = connection.readInt();
+            String msg = connection.readUTF();
+            if (code != 0) {
+                System.err.println("Block report rejected: " + msg);
+            }
+            return code == 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // 元数据服务器的指标快照
+    public StatsSnapshot getStats() throws IOException {
+        MetaOpCode.STATS.write(startRequest());
+        connection.flush();
+        if (connection.readInt() != 0) {
+            throw new IOException("Stats failed: " + connection.readUTF());
+        }
+        return StatsSnapshot.read(connection.getIn());
+    }
+
+    private void writeBlockIds(Collection<String> blockIds) throws IOException {
+        connection.getOut().writeInt(blockIds.size());
+        for (String id : blockIds) {
+            connection.writeUTF(id);
+        }
+    }
+
     public String createFile(String path) {
         try {
-            MetaOpCode.CREATE_FILE.write(connection.getOut()); //
+            MetaOpCode.CREATE_FILE.write(startRequest()); //
             connection.flush();
             connection.writeUTF(path); // 读取客户端发送路径
             connection.writeUTF(Config.USER); // 读取客户端发送用户
@@ -87,6 +269,10 @@ public class MetaServerClient {
             connection.flush();
             int code = connection.readInt();
             String nodeAndFileId = connection.readUTF();
+            if (code != 0) {
+                System.err.println("Failed to create file " + path + ": " + nodeAndFileId);
+                return null;
+            }
             String nodeName = nodeAndFileId.split(":")[0];
             String localFileId = nodeAndFileId.split(":")[1];
             System.out.println(nodeName+":"+localFileId);
@@ -99,13 +285,24 @@ public class MetaServerClient {
     }
 
     public boolean closeFile(String path) {
+        return closeFile(path, -1, Collections.<Integer>emptyList());
+    }
+
+    /**
+     * 关闭文件
+     * @param lastBlockLength 最后一个数据块写入的字节数，-1表示不更新
+     * @param replicaStatus 最后一个数据块各副本的写入结果，与数据块的locations一一对应
+     */
+    public boolean closeFile(String path, long lastBlockLength, List<Integer> replicaStatus) {
         try {
             // 发送操作码
-            MetaOpCode.CLOSE_FILE.write(connection.getOut());
+            MetaOpCode.CLOSE_FILE.write(startRequest());
             connection.flush();
 
             // 发送文件路径
             connection.writeUTF(path);
+            connection.getOut().writeLong(lastBlockLength);
+            writeReplicaStatus(replicaStatus);
             connection.flush();
 
             // 读取元数据服务器的响应
@@ -125,29 +322,123 @@ public class MetaServerClient {
         }
     }
 
+    /**
+     * 为文件申请下一个数据块
+     * @param prevBlockLength 上一个数据块写入的字节数
+     * @param replicaStatus 上一个数据块各副本的写入结果
+     * @return 新数据块，失败返回null
+     */
+    public BlockInfo addBlock(String path, long prevBlockLength, List<Integer> replicaStatus) {
+        try {
+            MetaOpCode.ADD_BLOCK.write(startRequest());
+            connection.writeUTF(path);
+            connection.getOut().writeLong(prevBlockLength);
+            writeReplicaStatus(replicaStatus);
+            connection.flush();
+
+            int retCode = connection.readInt();
+            if (retCode != 0) {
+                System.err.println("Failed to add block for " + path + ": " + connection.readUTF());
+                return null;
+            }
+            return readBlockInfo();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 获取文件所有数据块及其位置，按文件偏移排序
+     * @return 数据块列表，文件不存在返回null
+     */
+    public List<BlockInfo> getBlockLocations(String path) {
+        try {
+            MetaOpCode.GET_BLOCK_LOCATIONS.write(startRequest());
+            connection.writeUTF(path);
+            connection.flush();
+
+            int retCode = connection.readInt();
+            if (retCode != 0) {
+                System.err.println("Failed to get blocks of " + path + ": " + connection.readUTF());
+                return null;
+            }
+            connection.getIn().readLong(); // 文件大小，等于各数据块长度之和
+            int size = connection.readInt();
+            List<BlockInfo> blocks = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                blocks.add(readBlockInfo());
+            }
+            return blocks;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private BlockInfo readBlockInfo() throws IOException {
+        BlockInfo block = new BlockInfo(connection.readUTF(), connection.getIn().readLong());
+        int n = connection.readInt();
+        for (int i = 0; i < n; i++) {
+            block.addLocation(connection.readUTF(), connection.readInt());
+        }
+        return block;
+    }
+
+    private void writeReplicaStatus(List<Integer> replicaStatus) throws IOException {
+        connection.getOut().writeInt(replicaStatus.size());
+        for (int status : replicaStatus) {
+            connection.getOut().writeInt(status);
+        }
+    }
+
     public List<String> getFileLocations(String path) {
+        List<String> locations = new ArrayList<>();
         try {
-            MetaOpCode.CREATE_FILE.write(connection.getOut()); //
+            MetaOpCode.GET_FILE_LOCATIONS.write(startRequest()); //
             connection.flush();
             connection.writeUTF(path); // 读取客户端发送路径
 
             connection.flush();
             // 读取List<String>
             int size = connection.readInt();
-            List<String> locations = new ArrayList<>();
             for(int i = 0;i<size;i++){
                 locations.add(connection.readUTF());
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return null;
+        return locations;
+    }
+
+    /**
+     * 改名或移动文件/目录，目录下的内容随之移动
+     * @return 目标已存在、目标父目录不存在等情况下失败返回false
+     */
+    public boolean renameFile(String src, String dst) {
+        try {
+            MetaOpCode.RENAME_FILE.write(startRequest());
+            connection.writeUTF(src);
+            connection.writeUTF(dst);
+            connection.flush();
+
+            int retCode = connection.readInt();
+            String msg = connection.readUTF();
+            if (retCode != 0) {
+                System.err.println("Failed to rename " + src + " to " + dst + ": " + msg);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     public boolean deleteFile(String path) {
         try {
             // 1. 发送删除文件的操作码
-            MetaOpCode.DEL_FILE.write(connection.getOut());
+            MetaOpCode.DEL_FILE.write(startRequest());
             connection.flush();
 
             // 2. 发送文件路径
@@ -171,6 +462,114 @@ public class MetaServerClient {
         }
     }
 
+    /**
+     * 批量创建文件，不存在的父目录一并创建，每Config.CLIENT_BATCH_SIZE个路径一个BATCH请求
+     * @return 与paths顺序一致，每项为第一个数据块在DataServer上的ID(同createFile)，创建失败的为null
+     */
+    public List<String> createFiles(Collection<String> paths) throws IOException {
+        List<String> result = new ArrayList<>(paths.size());
+        for (List<String> chunk : chunks(paths)) {
+            sendBatch(MetaOpCode.CREATE_FILE, chunk);
+            for (String path : chunk) {
+                int code = connection.readInt();
+                String nodeAndFileId = connection.readUTF();
+                if (code != 0) {
+                    System.err.println("Failed to create file " + path + ": " + nodeAndFileId);
+                    result.add(null);
+                } else {
+                    result.add(nodeAndFileId.split(":")[1]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量获取文件的数据块及其位置，每Config.CLIENT_BATCH_SIZE个路径一个BATCH请求
+     * @return 路径 -&gt; 数据块列表，按paths的顺序，不存在的文件不在其中
+     */
+    public Map<String, List<BlockInfo>> getBlockLocations(Collection<String> paths) throws IOException {
+        Map<String, List<BlockInfo>> result = new LinkedHashMap<>();
+        for (List<String> chunk : chunks(paths)) {
+            sendBatch(MetaOpCode.GET_BLOCK_LOCATIONS, chunk);
+            for (String path : chunk) {
+                if (connection.readInt() != 0) {
+                    connection.readUTF();
+                    continue;
+                }
+                connection.getIn().readLong(); // 文件大小
+                int size = connection.readInt();
+                List<BlockInfo> blocks = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    blocks.add(readBlockInfo());
+                }
+                result.put(path, blocks);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量删除文件或目录，每Config.CLIENT_BATCH_SIZE个路径一个BATCH请求
+     * @return 与paths顺序一致的删除结果
+     */
+    public List<Boolean> deleteFiles(Collection<String> paths) throws IOException {
+        List<Boolean> result = new ArrayList<>(paths.size());
+        for (List<String> chunk : chunks(paths)) {
+            sendBatch(MetaOpCode.DEL_FILE, chunk);
+            for (String path : chunk) {
+                int code = connection.readInt();
+                String msg = connection.readUTF();
+                if (code != 0) {
+                    System.err.println("Failed to delete metadata for file: " + path + ". Reason: " + msg);
+                }
+                result.add(code == 0);
+            }
+        }
+        return result;
+    }
+
+    // 发送每个路径一个op子请求的BATCH请求，读取响应头，之后由调用方逐项读取结果
+    private void sendBatch(MetaOpCode op, List<String> paths) throws IOException {
+        MetaOpCode.BATCH.write(startRequest());
+        connection.getOut().writeInt(paths.size());
+        for (String path : paths) {
+            op.write(connection.getOut());
+            connection.writeUTF(path);
+            if (op == MetaOpCode.CREATE_FILE) {
+                connection.writeUTF(Config.USER);
+                connection.writeBoolean(false); // 是否为目录
+            }
+        }
+        connection.flush();
+
+        int retCode = connection.readInt();
+        if (retCode != 0) {
+            throw new IOException("Batch " + op + " failed: " + connection.readUTF());
+        }
+        int n = connection.readInt();
+        if (n != paths.size()) {
+            throw new IOException("Batch " + op + " returned " + n + " results for " + paths.size() + " requests");
+        }
+    }
+
+    // 按Config.CLIENT_BATCH_SIZE分组
+    private static List<List<String>> chunks(Collection<String> paths) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        for (String path : paths) {
+            if (chunk.size() == Config.CLIENT_BATCH_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+            chunk.add(path);
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
     public void close() throws IOException {
         this.connection.close();
     }
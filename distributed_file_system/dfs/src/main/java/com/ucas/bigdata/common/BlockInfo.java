@@ -0,0 +1,75 @@
+package com.ucas.bigdata.common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BlockInfo implements Serializable { // 数据块元数据
+    private static final long serialVersionUID = 1L;
+
+    private String blockId;
+    private long length;
+    private List<String> locations = new ArrayList<>();//存储该块的节点名
+    private List<Integer> status = new ArrayList<>();  //副本状态，与locations一一对应
+
+    public BlockInfo(String blockId) {
+        this(blockId, 0);
+    }
+
+    public BlockInfo(String blockId, long length) {
+        this.blockId = blockId;
+        this.length = length;
+    }
+
+    public String getBlockId() {
+        return blockId;
+    }
+
+    public void setBlockId(String blockId) {
+        this.blockId = blockId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public List<String> getLocations() {
+        return locations;
+    }
+
+    public void setLocations(List<String> locations) {
+        this.locations = locations;
+    }
+
+    public List<Integer> getStatus() {
+        return status;
+    }
+
+    public void setStatus(List<Integer> status) {
+        this.status = status;
+    }
+
+    // 添加一个副本位置
+    public void addLocation(String node, int replicaStatus) {
+        locations.add(node);
+        status.add(replicaStatus);
+    }
+
+    public int getStatus(int replica) {
+        return replica < status.size() ? status.get(replica) : ReplicaStatus.PENDING;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockInfo{" +
+                "blockId='" + blockId + '\'' +
+                ", length=" + length +
+                ", locations=" + locations +
+                ", status=" + status +
+                '}';
+    }
+}
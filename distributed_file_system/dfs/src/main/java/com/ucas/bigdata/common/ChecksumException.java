@@ -0,0 +1,20 @@
+package com.ucas.bigdata.common;
+
+import java.io.IOException;
+
+// 读取的数据与存储的校验和不一致
+public class ChecksumException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long position;
+
+    public ChecksumException(String message, long position) {
+        super(message);
+        this.position = position;
+    }
+
+    // 出错chunk在数据块中的起始位置
+    public long getPosition() {
+        return position;
+    }
+}
@@ -9,6 +9,66 @@ public class Config {
     public static int TIMEOUT_OF_HEARTBEATS = 20;
     public static int HEARTBEAT_SECS = 3;
     public static String META_DB_PATH = "/opt/meta_data";
+    public static int META_SERVER_WORKERS = 256;         // 元数据服务器工作线程数，每个长连接占用一个
+    public static int META_SERVER_QUEUE_SIZE = 256;
+    public static int META_SERVER_IDLE_TIMEOUT_MS = 30000;   // 长连接空闲超时，超时后关闭连接、释放工作线程；需大于心跳间隔
+    public static boolean META_SERVER_VIRTUAL_THREADS = true;
+    public static int META_LOCK_STRIPES = 1024;          // 命名空间路径锁的分段数
+    public static boolean META_COMMIT_SYNC = false;      // 元数据组提交时是否fsync WAL
+    public static int META_COMMIT_MAX_GROUP = 256;       // 一次组提交最多合并的请求数
+    public static String META_IMAGE_DIR = "/opt/meta_image";   // 命名空间镜像目录
+    public static long META_CHECKPOINT_TXNS = 1000000;   // 日志累积到这么多事务时写入新镜像
+    public static int META_CHECKPOINT_INTERVAL_SECS = 3600;   // 有修改时至少每隔这么久写入新镜像
+    public static int META_IMAGE_RETAIN = 2;             // 保留的镜像个数，日志保留到最旧的镜像
+    public static int META_LIST_MAX_PAGE = 1000;         // LIST_STATUS一页最多返回的条目数
+    public static int META_BATCH_MAX = 1000;             // 一个BATCH请求最多包含的子请求数
+    public static String META_PLACEMENT_POLICY = "load";      // 副本放置策略：load、random或BlockPlacementPolicy实现类名
+    public static double META_PLACEMENT_MIN_FREE_RATIO = 0.05; // 可用空间低于容量的这个比例时不再放置副本
+    public static double META_PLACEMENT_LOAD_SLACK = 2;        // 负载相差不超过这么多时按磁盘使用率选择
+    public static int META_REPLICATION_MAX_STREAMS = 2;       // 每个节点同时作为源(或目标)的复制任务数上限
+    public static int META_REPLICATION_TIMEOUT_SECS = 120;    // 下发的复制任务超过这么久目标节点还没有汇报时重新调度
+    public static int META_BLOCK_DELETES_PER_HEARTBEAT = 1000; // 一次心跳回复中最多下发的删除数据块数
+    public static int META_LOAD_THREADS = Runtime.getRuntime().availableProcessors();  // 启动时解码镜像的线程数
+    public static String META_STATS_DUMP_FILE = "";          // 定期追加指标快照的文件，空表示不写
+
+    // DataServer 并发处理
+    public static int DATA_SERVER_WORKERS = 64;          // 工作线程数
+    public static int DATA_SERVER_QUEUE_SIZE = 256;      // 等待处理的连接数上限，超出后accept阻塞
+    public static boolean DATA_SERVER_VIRTUAL_THREADS = true; // JDK 21+ 使用虚拟线程
+    public static int DATA_IO_BUFFER_SIZE = 64 * 1024;   // socket输出缓冲
+    public static int DATA_SERVER_IDLE_TIMEOUT_MS = 10000; // 长连接空闲超时，超时后DataServer关闭连接
+    public static int DATA_SERVER_BUSY_IDLE_MS = 100;      // 工作线程已满时长连接在两个请求之间最多空闲这么久，之后关闭、让出线程
+    public static String DATA_SERVER_ENGINE = "blocking"; // blocking: 每连接一个线程; nio: Selector非阻塞引擎
+    public static int DATA_REPLICATION_MAX_STREAMS = 2;       // 同时发送(或接收)的复制数据块数
+    public static long DATA_REPLICATION_BANDWIDTH = 32L * 1024 * 1024; // 发送复制数据的总带宽上限(字节/秒)，0表示不限
+    public static int NIO_SELECTOR_THREADS = 2;          // nio引擎的selector线程数
+    public static int NIO_BUFFER_SIZE = 64 * 1024;       // nio引擎每个直接缓冲区的大小
+    public static int NIO_BUFFER_POOL_MAX = 1024;        // 池中最多保留的空闲直接缓冲区数
+    public static String DATA_STATS_DUMP_FILE = "";          // 定期追加指标快照的文件，空表示不写
+    public static int STATS_DUMP_INTERVAL_SECS = 60;         // 写指标快照的间隔
+
+    // 客户端DataServer连接池，空闲超时需小于DATA_SERVER_IDLE_TIMEOUT_MS。
+    // blocking引擎下池中每个空闲连接都占用DataServer的一个工作线程，工作线程满时才被关闭，
+    // 要让池化连接保持复用，CLIENT_POOL_MAX_IDLE_PER_HOST × 客户端数应小于DATA_SERVER_WORKERS
+    public static int CLIENT_POOL_MAX_IDLE_PER_HOST = 8;
+    public static long CLIENT_POOL_IDLE_TIMEOUT_MS = 5000;
+    public static int CLIENT_MAX_INFLIGHT_PACKETS = 16;  // 流式写入时排队等待发送的数据包上限
+    public static int CLIENT_LIST_PAGE_SIZE = 1000;      // 遍历目录时每次请求的条目数
+    public static int CLIENT_BATCH_SIZE = 500;           // 批量操作时每个BATCH请求的子请求数
+    public static int CLIENT_LOCATION_CACHE_SIZE = 10000;      // 客户端缓存数据块位置的文件数
+    public static long CLIENT_LOCATION_CACHE_TTL_MS = 3000;    // 缓存的数据块位置的有效时间，0表示不缓存
+    public static long CLIENT_META_IDLE_TIMEOUT_MS = 20000;    // 元数据连接空闲超过这么久时重新连接，需小于META_SERVER_IDLE_TIMEOUT_MS
+
+    // DataServer 读路径
+    public static boolean DATA_READ_ZERO_COPY = true;        // 使用FileChannel.transferTo发送数据
+    public static int DATA_READ_SEGMENT_SIZE = 1024 * 1024;  // 零拷贝模式下每个长度前缀分段的大小
+    public static int BYTES_PER_CHECKSUM = 4096;             // 每个校验和覆盖的字节数
+    public static long BLOCK_CACHE_SIZE = 0;                 // 堆外块缓存的内存预算(字节)，0表示不启用；需要足够的-XX:MaxDirectMemorySize
+    public static int BLOCK_CACHE_CHUNK_SIZE = 1024 * 1024;  // 缓存单位，需为BYTES_PER_CHECKSUM的整数倍
+
+    public static long BLOCK_SIZE = 128L * 1024 * 1024; // 数据块大小
+    public static int REPLICATION = 3;                  // 副本数
+    public static int PACKET_SIZE = 64 * 1024;          // 写数据包大小
 
     public static String USER = "dfs";
     public static String GROUP = "dfsg";
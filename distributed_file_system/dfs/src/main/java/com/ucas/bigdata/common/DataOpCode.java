@@ -7,7 +7,11 @@ import java.io.IOException;
 public enum DataOpCode {
     WRITE_FILE((byte)10),
     READ_FILE((byte)11),
-    DEL_FILE((byte)12);
+    DEL_FILE((byte)12),
+    WRITE_BLOCK((byte)13),
+    READ_RANGE((byte)14),
+    TRANSFER_BLOCK((byte)15),   // DataServer之间复制数据块
+    STATS((byte)16);            // 查询服务器指标
 
     public final byte code;
 
@@ -17,7 +21,7 @@ public enum DataOpCode {
 
     private static final int FIRST_CODE = values()[0].code;
 
-    private static DataOpCode valueOf(byte code) {
+    public static DataOpCode valueOf(byte code) {
         final int i = (code & 0xff) - FIRST_CODE;
         return i < 0 || i >= values().length? null: values()[i];
     }
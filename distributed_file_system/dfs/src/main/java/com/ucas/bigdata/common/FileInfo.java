@@ -1,9 +1,15 @@
 package com.ucas.bigdata.common;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-public class FileInfo { // 文件元数据结构
+public class FileInfo implements Serializable { // 文件元数据结构
+    private static final long serialVersionUID = 1L;
 
     private String fileName;
     private long fileSize;
@@ -12,10 +18,14 @@ public class FileInfo { // 文件元数据结构
     private String owner;
     private String group;
     private boolean isDirectory;
-    private FileInfo parent;
-    private List<FileInfo> children = new ArrayList();//子节点
+    private long inodeId;    // 条目的唯一编号，持久化记录以它为key，改名后不变
+    private long parentId;   // 父目录的inode号，与parent一致，加载时据此重建目录树
+    // 目录树关系不持久化，加载时重建
+    private transient FileInfo parent;
+    private transient ConcurrentSkipListMap<String, FileInfo> children = new ConcurrentSkipListMap<>();//子节点，按文件名排序
     private List<String> locations = new ArrayList();//存储位置
     private List<Integer> status = new ArrayList();  //副本状态
+    private List<BlockInfo> blocks = new ArrayList<>();//数据块列表，按文件偏移顺序排列
 
 
     public FileInfo(String fileName,String path, boolean isDirectory,long fileSize, String owner,long creationTime) {
@@ -33,9 +43,10 @@ public class FileInfo { // 文件元数据结构
         this.isDirectory = isDirectory;
         this.fileName = getFileName(path);
         this.parent = parentInfo;
+        this.parentId = parentInfo.getInodeId();
         this.fileSize = -1;
         this.creationTime = System.currentTimeMillis();
-        this.parent.getChildren().add(this);
+        this.parent.addChild(this);
     }
 
     // 获取父目录路径
@@ -76,8 +87,14 @@ public class FileInfo { // 文件元数据结构
         this.creationTime = creationTime;
     }
 
+    // 路径由父目录链得出，改名目录时其下的条目不需要修改；没有父目录时(根目录或还未连接的条目)返回保存的路径
     public String getPath() {
-        return path;
+        FileInfo p = parent;
+        if (p == null) {
+            return path;
+        }
+        String parentPath = p.getPath();
+        return "/".equals(parentPath) ? "/" + fileName : parentPath + "/" + fileName;
     }
 
     public void setPath(String path) {
@@ -108,6 +125,22 @@ public class FileInfo { // 文件元数据结构
         isDirectory = directory;
     }
 
+    public long getInodeId() {
+        return inodeId;
+    }
+
+    public void setInodeId(long inodeId) {
+        this.inodeId = inodeId;
+    }
+
+    public long getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(long parentId) {
+        this.parentId = parentId;
+    }
+
     public FileInfo getParent() {
         return parent;
     }
@@ -116,12 +149,42 @@ public class FileInfo { // 文件元数据结构
         this.parent = parent;
     }
 
-    public List<FileInfo> getChildren() {
-        return children;
+    // 把条目移动到newParent下并改名为newName，子树随之移动；调用方需排斥两处目录上的其他操作
+    public void moveTo(FileInfo newParent, String newName) {
+        if (parent != null) {
+            parent.removeChild(fileName);
+        }
+        fileName = newName;
+        parent = newParent;
+        parentId = newParent.getInodeId();
+        newParent.addChild(this);
+    }
+
+    // 按文件名排序的子节点视图，可以在并发修改时遍历
+    public Collection<FileInfo> getChildren() {
+        return children.values();
+    }
+
+    // 文件名大于startAfter的子节点，startAfter为null时从头开始
+    public Collection<FileInfo> getChildrenAfter(String startAfter) {
+        return startAfter == null ? children.values() : children.tailMap(startAfter, false).values();
     }
 
-    public void setChildren(List<FileInfo> children) {
-        this.children = children;
+    public FileInfo getChild(String name) {
+        return children.get(name);
+    }
+
+    public void addChild(FileInfo child) {
+        children.put(child.getFileName(), child);
+    }
+
+    public void removeChild(String name) {
+        children.remove(name);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        children = new ConcurrentSkipListMap<>();
     }
 
     public List<String> getLocations() {
@@ -140,6 +203,24 @@ public class FileInfo { // 文件元数据结构
         this.status = status;
     }
 
+    public List<BlockInfo> getBlocks() {
+        return blocks;
+    }
+
+    public void setBlocks(List<BlockInfo> blocks) {
+        this.blocks = blocks;
+    }
+
+    // 根据数据块长度重新计算文件大小
+    public long updateFileSize() {
+        long size = 0;
+        for (BlockInfo block : blocks) {
+            size += block.getLength();
+        }
+        this.fileSize = size;
+        return size;
+    }
+
     @Override
     public String toString() {
         return "FileInfo{" +
@@ -150,6 +231,8 @@ public class FileInfo { // 文件元数据结构
                 ", owner='" + owner + '\'' +
                 ", group='" + group + '\'' +
                 ", isDirectory=" + isDirectory +
+                ", inodeId=" + inodeId +
+                ", blocks=" + blocks.size() +
                 ", parent=" + parent +
                 '}';
     }
@@ -0,0 +1,345 @@
+package com.ucas.bigdata.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FileInfo的二进制编码，用于RocksDB中的元数据持久化。
+ * 只编码条目自身的字段，不包含parent/children，路径由RocksDB的key给出。
+ * 格式(版本1)：
+ * <pre>
+ *   byte    版本号
+ *   byte    标志位：1=目录
+ *   str     fileName, owner, group
+ *   vlong   fileSize, creationTime
+ *   vint    旧的文件级副本数n，之后n个 (node, vint status)
+ *   vint    数据块数m，之后m个 (blockId, vlong length, vint 副本数k, k个(node, vint status))
+ * </pre>
+ * 整数使用zigzag变长编码；str为 vint(字节数+1) 加UTF-8字节，0表示null。
+ * node使用条目内的字符串表：vint 0后跟新字符串，k>0引用第k个出现过的节点名。
+ * 标准格式的UUID数据块ID编码为16字节。
+ * 一个编码器实例复用内部缓冲区，不是线程安全的。
+ */
+public class FileInfoCodec {
+    public static final byte VERSION = 1;
+    private static final int FLAG_DIRECTORY = 1;
+    private static final byte BLOCK_ID_STRING = 0;
+    private static final byte BLOCK_ID_UUID = 1;
+
+    private byte[] buf;
+    private int pos;
+    private final List<String> nodes = new ArrayList<>();
+
+    public FileInfoCodec() {
+        this(256);
+    }
+
+    public FileInfoCodec(int initialSize) {
+        buf = new byte[initialSize];
+    }
+
+    /**
+     * 把fi编码到内部缓冲区
+     * @return 编码长度，数据在buffer()的[0, 长度)中，下一次encode前有效
+     */
+    public int encode(FileInfo fi) {
+        pos = 0;
+        nodes.clear();
+        ensure(2);
+        buf[pos++] = VERSION;
+        buf[pos++] = (byte) (fi.isDirectory() ? FLAG_DIRECTORY : 0);
+        writeString(fi.getFileName());
+        writeString(fi.getOwner());
+        writeString(fi.getGroup());
+        writeVarLong(fi.getFileSize());
+        writeVarLong(fi.getCreationTime());
+
+        List<String> locations = fi.getLocations();
+        List<Integer> status = fi.getStatus();
+        writeVarLong(locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            writeNode(locations.get(i));
+            writeVarLong(i < status.size() ? status.get(i) : ReplicaStatus.PENDING);
+        }
+
+        List<BlockInfo> blocks = fi.getBlocks();
+        writeVarLong(blocks.size());
+        for (BlockInfo block : blocks) {
+            writeBlockId(block.getBlockId());
+            writeVarLong(block.getLength());
+            List<String> replicas = block.getLocations();
+            writeVarLong(replicas.size());
+            for (int i = 0; i < replicas.size(); i++) {
+                writeNode(replicas.get(i));
+                writeVarLong(block.getStatus(i));
+            }
+        }
+        return pos;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    // 编码并复制出独立的数组
+    public byte[] encodeToArray(FileInfo fi) {
+        int len = encode(fi); // encode可能扩容buf，先编码再取缓冲区
+        return Arrays.copyOf(buf, len);
+    }
+
+    // 是否为旧版本的Java序列化格式(以0xACED开头)
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    /**
+     * 解码一个条目，兼容旧版本的Java序列化格式
+     * @param path 条目的路径(RocksDB的key)
+     */
+    public static FileInfo decode(String path, byte[] data) throws IOException {
+        if (isLegacy(data)) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                return (FileInfo) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Cannot decode legacy entry " + path, e);
+            }
+        }
+        return new Reader(data, 0, data.length).read(path);
+    }
+
+    // 解码data[off, off+len)中的一个条目(仅二进制格式)
+    public static FileInfo decode(String path, byte[] data, int off, int len) throws IOException {
+        return new Reader(data, off, off + len).read(path);
+    }
+
+    private void writeString(String s) {
+        if (s == null) {
+            writeVarLong(0);
+            return;
+        }
+        int n = s.length();
+        boolean ascii = true;
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            // 常见的ASCII路径和节点名直接逐字符写入，不分配中间数组
+            writeVarLong(n + 1);
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                buf[pos++] = (byte) s.charAt(i);
+            }
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(b.length + 1);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+    }
+
+    private void writeNode(String node) {
+        int ref = nodes.indexOf(node);
+        if (ref >= 0) {
+            writeVarLong(ref + 1);
+        } else {
+            writeVarLong(0);
+            writeString(node);
+            nodes.add(node);
+        }
+    }
+
+    private void writeBlockId(String id) {
+        if (id != null && isCanonicalUuid(id)) {
+            ensure(17);
+            buf[pos++] = BLOCK_ID_UUID;
+            int c = 0;
+            for (int i = 0; i < 16; i++) {
+                if (c == 8 || c == 13 || c == 18 || c == 23) {
+                    c++;
+                }
+                buf[pos++] = (byte) ((hex(id.charAt(c)) << 4) | hex(id.charAt(c + 1)));
+                c += 2;
+            }
+        } else {
+            ensure(1);
+            buf[pos++] = BLOCK_ID_STRING;
+            writeString(id);
+        }
+    }
+
+    // 小写、带连字符的36字符UUID，与UUID.toString()的输出一致，可以无损还原
+    private static boolean isCanonicalUuid(String s) {
+        if (s.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char ch = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (ch != '-') {
+                    return false;
+                }
+            } else if (hex(ch) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hex(char ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        }
+        if (ch >= 'a' && ch <= 'f') {
+            return ch - 'a' + 10;
+        }
+        return -1;
+    }
+
+    // zigzag变长整数，小的非负数和-1都只占一个字节
+    private void writeVarLong(long v) {
+        ensure(10);
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((z & 0x7F) | 0x80);
+            z >>>= 7;
+        }
+        buf[pos++] = (byte) z;
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+
+    private static class Reader {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private final byte[] data;
+        private final int end;
+        private int pos;
+        private final List<String> nodes = new ArrayList<>();
+
+        Reader(byte[] data, int off, int end) {
+            this.data = data;
+            this.pos = off;
+            this.end = end;
+        }
+
+        FileInfo read(String path) throws IOException {
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported FileInfo version " + version + " for " + path);
+            }
+            int flags = readByte();
+            String fileName = readString();
+            String owner = readString();
+            String group = readString();
+            long fileSize = readVarLong();
+            long creationTime = readVarLong();
+            FileInfo fi = new FileInfo(fileName, path, (flags & FLAG_DIRECTORY) != 0, fileSize, owner, creationTime);
+            fi.setGroup(group);
+
+            int n = readCount();
+            for (int i = 0; i < n; i++) {
+                fi.getLocations().add(readNode());
+                fi.getStatus().add((int) readVarLong());
+            }
+            int blocks = readCount();
+            for (int b = 0; b < blocks; b++) {
+                BlockInfo block = new BlockInfo(readBlockId(), readVarLong());
+                int replicas = readCount();
+                for (int i = 0; i < replicas; i++) {
+                    block.addLocation(readNode(), (int) readVarLong());
+                }
+                fi.getBlocks().add(block);
+            }
+            if (pos != end) {
+                throw new IOException("Trailing bytes in FileInfo entry " + path);
+            }
+            return fi;
+        }
+
+        private int readByte() throws IOException {
+            if (pos >= end) {
+                throw new IOException("Truncated FileInfo entry");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        private long readVarLong() throws IOException {
+            long z = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                z |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (z >>> 1) ^ -(z & 1);
+                }
+            }
+            throw new IOException("Malformed varint in FileInfo entry");
+        }
+
+        private int readCount() throws IOException {
+            long n = readVarLong();
+            if (n < 0 || n > end - pos) {
+                throw new IOException("Corrupt count " + n + " in FileInfo entry");
+            }
+            return (int) n;
+        }
+
+        private String readString() throws IOException {
+            long n = readVarLong() - 1;
+            if (n < 0) {
+                return null;
+            }
+            if (n > end - pos) {
+                throw new IOException("Truncated FileInfo entry");
+            }
+            String s = new String(data, pos, (int) n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        private String readNode() throws IOException {
+            long ref = readVarLong();
+            if (ref == 0) {
+                String node = readString();
+                nodes.add(node);
+                return node;
+            }
+            if (ref < 0 || ref > nodes.size()) {
+                throw new IOException("Bad node reference " + ref + " in FileInfo entry");
+            }
+            return nodes.get((int) ref - 1);
+        }
+
+        private String readBlockId() throws IOException {
+            int kind = readByte();
+            if (kind == BLOCK_ID_STRING) {
+                return readString();
+            }
+            if (kind != BLOCK_ID_UUID || end - pos < 16) {
+                throw new IOException("Bad block id in FileInfo entry");
+            }
+            char[] c = new char[36];
+            int j = 0;
+            for (int i = 0; i < 16; i++) {
+                if (j == 8 || j == 13 || j == 18 || j == 23) {
+                    c[j++] = '-';
+                }
+                int b = data[pos++] & 0xFF;
+                c[j++] = HEX[b >>> 4];
+                c[j++] = HEX[b & 0xF];
+            }
+            return new String(c);
+        }
+    }
+}
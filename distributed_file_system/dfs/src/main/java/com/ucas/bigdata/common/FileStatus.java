@@ -0,0 +1,87 @@
+package com.ucas.bigdata.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 目录列表中一个条目的属性，由LIST_STATUS返回，客户端不需要再逐个查询
+ */
+public class FileStatus {
+    private final String name;
+    private final boolean isDirectory;
+    private final long fileSize;
+    private final String owner;
+    private final long creationTime;
+    private final int replication;   // 各数据块中副本数最少的一个，目录和空文件为0
+
+    public FileStatus(String name, boolean isDirectory, long fileSize, String owner, long creationTime, int replication) {
+        this.name = name;
+        this.isDirectory = isDirectory;
+        this.fileSize = fileSize;
+        this.owner = owner;
+        this.creationTime = creationTime;
+        this.replication = replication;
+    }
+
+    public static FileStatus of(FileInfo fi) {
+        int replication = 0;
+        if (!fi.isDirectory() && !fi.getBlocks().isEmpty()) {
+            replication = Integer.MAX_VALUE;
+            for (BlockInfo block : fi.getBlocks()) {
+                replication = Math.min(replication, block.getLocations().size());
+            }
+        }
+        return new FileStatus(fi.getFileName(), fi.isDirectory(), fi.getFileSize(), fi.getOwner(),
+                fi.getCreationTime(), replication);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeBoolean(isDirectory);
+        out.writeLong(fileSize);
+        out.writeUTF(owner == null ? "" : owner);
+        out.writeLong(creationTime);
+        out.writeInt(replication);
+    }
+
+    public static FileStatus read(DataInput in) throws IOException {
+        return new FileStatus(in.readUTF(), in.readBoolean(), in.readLong(), in.readUTF(), in.readLong(), in.readInt());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return isDirectory;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public int getReplication() {
+        return replication;
+    }
+
+    @Override
+    public String toString() {
+        return "FileStatus{" +
+                "name='" + name + '\'' +
+                ", isDirectory=" + isDirectory +
+                ", fileSize=" + fileSize +
+                ", owner='" + owner + '\'' +
+                ", creationTime=" + creationTime +
+                ", replication=" + replication +
+                '}';
+    }
+}
@@ -0,0 +1,111 @@
+package com.ucas.bigdata.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 元数据服务器对心跳的回复。retCode之后是信息，是否需要DataServer发送完整块报告，
+ * 下发给该节点的复制任务：把本地的数据块发送给目标节点，
+ * 以及该节点上需要删除的数据块：所属文件已被删除或重写，或者不属于任何文件
+ */
+public class HeartbeatResponse {
+    private final String msg;
+    private final boolean reportNeeded;   // 元数据服务器没有该节点完整的块信息：刚启动或节点曾失效
+    private final List<Transfer> transfers;
+    private final List<String> deletes;
+
+    // 一个复制任务
+    public static class Transfer {
+        private final String blockId;
+        private final String target;
+
+        public Transfer(String blockId, String target) {
+            this.blockId = blockId;
+            this.target = target;
+        }
+
+        public String getBlockId() {
+            return blockId;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public String toString() {
+            return blockId + "->" + target;
+        }
+    }
+
+    public HeartbeatResponse(String msg, boolean reportNeeded) {
+        this(msg, reportNeeded, Collections.<Transfer>emptyList(), Collections.<String>emptyList());
+    }
+
+    public HeartbeatResponse(String msg, boolean reportNeeded, List<Transfer> transfers, List<String> deletes) {
+        this.msg = msg;
+        this.reportNeeded = reportNeeded;
+        this.transfers = transfers;
+        this.deletes = deletes;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(msg);
+        out.writeBoolean(reportNeeded);
+        out.writeInt(transfers.size());
+        for (Transfer t : transfers) {
+            out.writeUTF(t.blockId);
+            out.writeUTF(t.target);
+        }
+        out.writeInt(deletes.size());
+        for (String blockId : deletes) {
+            out.writeUTF(blockId);
+        }
+    }
+
+    public static HeartbeatResponse read(DataInput in) throws IOException {
+        String msg = in.readUTF();
+        boolean reportNeeded = in.readBoolean();
+        int n = in.readInt();
+        List<Transfer> transfers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            transfers.add(new Transfer(in.readUTF(), in.readUTF()));
+        }
+        n = in.readInt();
+        List<String> deletes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            deletes.add(in.readUTF());
+        }
+        return new HeartbeatResponse(msg, reportNeeded, transfers, deletes);
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    public boolean isReportNeeded() {
+        return reportNeeded;
+    }
+
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    public List<String> getDeletes() {
+        return deletes;
+    }
+
+    @Override
+    public String toString() {
+        return "HeartbeatResponse{" +
+                "msg='" + msg + '\'' +
+                ", reportNeeded=" + reportNeeded +
+                ", transfers=" + transfers +
+                ", deletes=" + deletes.size() +
+                '}';
+    }
+}
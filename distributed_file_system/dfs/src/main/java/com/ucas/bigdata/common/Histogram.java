@@ -0,0 +1,142 @@
+package com.ucas.bigdata.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数分桶直方图，用于记录延迟(纳秒)和大小。小于128的值精确记录，
+ * 之后每个2的幂区间分为64个桶，相对误差不超过1/64，覆盖long的全部范围。
+ * 记录只有一次数组元素的原子自增和一次LongAdder累加，可以在请求路径上使用。
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 64;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + 57 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) {
+                break;
+            }
+        }
+    }
+
+    // 把other的记录合并进来
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        sum.add(other.sum.sum());
+        long m;
+        long value = other.max.get();
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) {
+                break;
+            }
+        }
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;  // value >>> shift 落在[64, 128)
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // 桶的中间值
+    private static long valueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long lower = (long) ((index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + (1L << shift) / 2;
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * 一次性计算多个百分位，记录同时进行时结果是近似的
+     * @param percentiles 递增的百分位，如50, 99, 99.9
+     */
+    public long[] percentiles(double... percentiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long top = max.get();
+        long[] result = new long[percentiles.length];
+        int i = 0;
+        long seen = 0;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(total * percentiles[p] / 100));
+            while (i < BUCKETS && seen + snapshot[i] < rank) {
+                seen += snapshot[i++];
+            }
+            result[p] = total == 0 ? 0 : Math.min(i < BUCKETS ? valueOf(i) : top, top);
+        }
+        return result;
+    }
+
+    public long percentile(double p) {
+        return percentiles(p)[0];
+    }
+
+    public Summary summary() {
+        long[] p = percentiles(50, 90, 99, 99.9);
+        return new Summary(count(), sum.sum(), p[0], p[1], p[2], p[3], max.get());
+    }
+
+    /**
+     * 直方图在某一时刻的摘要，随STATS响应发送
+     */
+    public static class Summary {
+        public final long count;
+        public final long sum;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long p999;
+        public final long max;
+
+        public Summary(long count, long sum, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+    }
+}
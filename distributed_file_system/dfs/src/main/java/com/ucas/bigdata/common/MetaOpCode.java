@@ -11,7 +11,13 @@ public enum MetaOpCode {
     DEL_FILE((byte)33),
     LIST_FILE((byte)34),
     GET_FILE_LOCATIONS((byte)35),
-    CLOSE_FILE((byte)36);
+    CLOSE_FILE((byte)36),
+    ADD_BLOCK((byte)37),
+    GET_BLOCK_LOCATIONS((byte)38),
+    LIST_STATUS((byte)39),
+    BATCH((byte)40),
+    BLOCK_REPORT((byte)41),
+    STATS((byte)42);           // 查询服务器指标
 
 
 
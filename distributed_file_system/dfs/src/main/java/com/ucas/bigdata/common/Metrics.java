@@ -0,0 +1,165 @@
+package com.ucas.bigdata.common;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个服务器的指标：计数器(LongAdder)、直方图和即时值(Gauge)，按名称注册，
+ * 调用方在初始化时取得并保存计数器和直方图的引用，请求路径上不再查表。
+ * snapshot()生成STATS请求的响应，startDump()定期把快照追加到文件。
+ */
+public class Metrics {
+    private static Logger log = LogManager.getLogger(Metrics.class);
+
+    // 在快照时计算的值
+    public interface Gauge {
+        long value();
+    }
+
+    private final String source;
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    public Metrics(String source) {
+        this.source = source;
+    }
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder existing = counters.putIfAbsent(name, counter = new LongAdder());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram existing = histograms.putIfAbsent(name, histogram = new Histogram());
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    // 注册一个由其他组件维护的直方图
+    public void register(String name, Histogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    // 没有记录的直方图不出现在快照中
+    public StatsSnapshot snapshot() {
+        StatsSnapshot snapshot = new StatsSnapshot(source, System.currentTimeMillis());
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().value());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram.Summary summary = e.getValue().summary();
+            if (summary.count > 0) {
+                snapshot.put(e.getKey(), summary);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * 启动后台线程，每隔intervalSecs秒把快照追加到file。file为空或间隔不为正时不启动。
+     */
+    public void startDump(final String file, final int intervalSecs) {
+        if (file == null || file.isEmpty() || intervalSecs <= 0) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalSecs * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try (Writer out = new FileWriter(file, true)) {
+                        out.write(snapshot().toString());
+                    } catch (IOException e) {
+                        log.error("Cannot dump metrics to " + file, e);
+                    }
+                }
+            }
+        }, "metrics-dump-" + source);
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Dumping metrics of " + source + " to " + file + " every " + intervalSecs + "s");
+    }
+
+    // 统计读取的字节数，放在缓冲流下面，每次系统调用计数一次
+    public static class CountingInputStream extends FilterInputStream {
+        private final LongAdder bytes;
+
+        public CountingInputStream(InputStream in, LongAdder bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                bytes.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                bytes.add(n);
+            }
+            return n;
+        }
+    }
+
+    public static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder bytes;
+
+        public CountingOutputStream(OutputStream out, LongAdder bytes) {
+            super(out);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.add(len);
+        }
+    }
+}
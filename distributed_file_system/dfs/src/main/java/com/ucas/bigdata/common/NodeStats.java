@@ -0,0 +1,59 @@
+package com.ucas.bigdata.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * DataServer在心跳中汇报的存储空间和负载，元数据服务器据此选择数据块的副本节点
+ */
+public class NodeStats {
+    private final long capacity;         // 存储目录所在磁盘的总空间(字节)
+    private final long remaining;        // 可用空间(字节)
+    private final int activeTransfers;   // 正在进行的读写请求数
+    private final long ioBytesPerSec;    // 上一个心跳周期内平均每秒读写的字节数
+
+    public NodeStats(long capacity, long remaining, int activeTransfers, long ioBytesPerSec) {
+        this.capacity = capacity;
+        this.remaining = remaining;
+        this.activeTransfers = activeTransfers;
+        this.ioBytesPerSec = ioBytesPerSec;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(capacity);
+        out.writeLong(remaining);
+        out.writeInt(activeTransfers);
+        out.writeLong(ioBytesPerSec);
+    }
+
+    public static NodeStats read(DataInput in) throws IOException {
+        return new NodeStats(in.readLong(), in.readLong(), in.readInt(), in.readLong());
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    public int getActiveTransfers() {
+        return activeTransfers;
+    }
+
+    public long getIoBytesPerSec() {
+        return ioBytesPerSec;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeStats{" +
+                "capacity=" + capacity +
+                ", remaining=" + remaining +
+                ", activeTransfers=" + activeTransfers +
+                ", ioBytesPerSec=" + ioBytesPerSec +
+                '}';
+    }
+}
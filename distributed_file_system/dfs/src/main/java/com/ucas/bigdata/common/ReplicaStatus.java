@@ -0,0 +1,9 @@
+package com.ucas.bigdata.common;
+
+// 副本状态，对应 FileInfo.status / BlockInfo.status 中的取值
+public class ReplicaStatus {
+    public static final int PENDING = 0;    // 已分配，尚未确认写入
+    public static final int FINALIZED = 1;  // 数据已完整写入该节点
+    public static final int FAILED = 2;     // 写入失败
+    public static final int MISSING = 3;    // 节点失效或块报告中没有该副本，暂不可读，节点再次汇报该块后恢复为FINALIZED
+}
@@ -0,0 +1,110 @@
+package com.ucas.bigdata.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 服务器指标在某一时刻的快照，是STATS请求的响应。
+ * 格式：UTF 来源, long 时间, int n, n * (UTF 名称, long 值),
+ * int m, m * (UTF 名称, long count, sum, p50, p90, p99, p999, max)
+ * 延迟直方图的单位是纳秒，名称以".ns"结尾。
+ */
+public class StatsSnapshot {
+    private final String source;
+    private final long time;
+    private final Map<String, Long> values = new LinkedHashMap<>();                 // 计数器和即时值
+    private final Map<String, Histogram.Summary> histograms = new LinkedHashMap<>();
+
+    public StatsSnapshot(String source, long time) {
+        this.source = source;
+        this.time = time;
+    }
+
+    public void put(String name, long value) {
+        values.put(name, value);
+    }
+
+    public void put(String name, Histogram.Summary summary) {
+        histograms.put(name, summary);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public Map<String, Long> getValues() {
+        return values;
+    }
+
+    public Map<String, Histogram.Summary> getHistograms() {
+        return histograms;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(source);
+        out.writeLong(time);
+        out.writeInt(values.size());
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(histograms.size());
+        for (Map.Entry<String, Histogram.Summary> e : histograms.entrySet()) {
+            Histogram.Summary s = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeLong(s.count);
+            out.writeLong(s.sum);
+            out.writeLong(s.p50);
+            out.writeLong(s.p90);
+            out.writeLong(s.p99);
+            out.writeLong(s.p999);
+            out.writeLong(s.max);
+        }
+    }
+
+    public static StatsSnapshot read(DataInput in) throws IOException {
+        StatsSnapshot snapshot = new StatsSnapshot(in.readUTF(), in.readLong());
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            snapshot.put(in.readUTF(), in.readLong());
+        }
+        int m = in.readInt();
+        for (int i = 0; i < m; i++) {
+            snapshot.put(in.readUTF(), new Histogram.Summary(in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+        }
+        return snapshot;
+    }
+
+    // 每行一项，纳秒直方图以微秒显示
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== ").append(source).append(' ')
+                .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(time))).append(" ===\n");
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram.Summary> e : histograms.entrySet()) {
+            Histogram.Summary s = e.getValue();
+            if (e.getKey().endsWith(".ns")) {
+                sb.append(String.format("%s count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                        e.getKey().substring(0, e.getKey().length() - 3), s.count, s.mean() / 1e3, s.p50 / 1e3,
+                        s.p90 / 1e3, s.p99 / 1e3, s.p999 / 1e3, s.max / 1e3));
+            } else {
+                sb.append(String.format("%s count=%d mean=%d p50=%d p90=%d p99=%d p999=%d max=%d%n",
+                        e.getKey(), s.count, s.mean(), s.p50, s.p90, s.p99, s.p999, s.max));
+            }
+        }
+        return sb.toString();
+    }
+}
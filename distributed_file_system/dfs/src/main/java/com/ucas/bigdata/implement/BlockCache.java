@@ -0,0 +1,277 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.DataChecksum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * DataServer的热数据块缓存。
+ * 数据块按固定大小的chunk缓存在堆外内存中：启动时按内存预算分配直接内存slab，
+ * 切成chunk大小的槽位，淘汰时复用槽位，运行中不再分配直接内存。
+ * 按LRU淘汰；正在发送的chunk被引用(pin)，不会被淘汰覆盖。
+ * 同时缓存chunk对应的校验和，命中时不访问数据块文件和校验文件。
+ * 数据块被写入或删除时调用invalidate；加载过程中发生失效的chunk不会进入缓存。
+ */
+public class BlockCache {
+    private final int chunkSize;
+    private final long capacity;
+    private final ArrayDeque<ByteBuffer> freeSlots = new ArrayDeque<>();
+    // 访问顺序的LinkedHashMap，迭代顺序即LRU顺序
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Key>> byBlock = new HashMap<>();
+    private long epoch;   // 每次失效加一
+
+    private long hits;
+    private long misses;
+    private long loadedBytes;
+    private long evictions;
+    private long invalidations;
+    private long uncacheable;  // 所有槽位都在使用中，直接读文件
+
+    /**
+     * @param capacity 内存预算(字节)
+     * @param chunkSize 缓存单位，需为校验chunk大小的整数倍
+     */
+    public BlockCache(long capacity, int chunkSize) {
+        this.chunkSize = chunkSize;
+        long slots = capacity / chunkSize;
+        this.capacity = slots * chunkSize;
+        int slotsPerSlab = Integer.MAX_VALUE / chunkSize;
+        while (slots > 0) {
+            int n = (int) Math.min(slots, slotsPerSlab);
+            ByteBuffer slab = ByteBuffer.allocateDirect(n * chunkSize);
+            for (int i = 0; i < n; i++) {
+                slab.limit((i + 1) * chunkSize);
+                slab.position(i * chunkSize);
+                freeSlots.add(slab.slice());
+            }
+            slots -= n;
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // 该数据块的校验chunk能否与缓存chunk对齐
+    public boolean supports(int bytesPerChecksum) {
+        return chunkSize % bytesPerChecksum == 0;
+    }
+
+    /**
+     * 取得数据块第chunkIndex个chunk并pin住，未命中时从文件加载。用完后必须调用release。
+     * @param meta 校验文件，为null表示数据块没有校验和
+     * @return 缓存已满且全部被pin时返回null，调用方直接读文件
+     */
+    public Entry acquire(String blockId, long chunkIndex, FileChannel fc, FileChannel meta,
+                         ChecksumFile header) throws IOException {
+        Key key = new Key(blockId, chunkIndex);
+        ByteBuffer slot;
+        long loadEpoch;
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                hits++;
+                e.pins++;
+                return e;
+            }
+            misses++;
+            slot = takeSlot();
+            if (slot == null) {
+                uncacheable++;
+                return null;
+            }
+            loadEpoch = epoch;
+        }
+
+        // 在锁外读取文件
+        Entry e;
+        try {
+            e = load(key, slot, fc, meta, header);
+        } catch (IOException | RuntimeException ex) {
+            synchronized (this) {
+                freeSlots.push(slot);
+            }
+            throw ex;
+        }
+        synchronized (this) {
+            loadedBytes += e.length;
+            e.pins = 1;
+            if (epoch != loadEpoch || entries.containsKey(key)) {
+                // 加载期间数据块失效了，或者其他线程已经加载，本次结果只用一次
+                e.removed = true;
+            } else {
+                entries.put(key, e);
+                Set<Key> keys = byBlock.get(blockId);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    byBlock.put(blockId, keys);
+                }
+                keys.add(key);
+            }
+            return e;
+        }
+    }
+
+    public synchronized void release(Entry e) {
+        e.pins--;
+        if (e.removed && e.pins == 0) {
+            freeSlots.push(e.slot);
+        }
+    }
+
+    // 数据块被改写或删除，丢弃它的所有chunk
+    public synchronized void invalidate(String blockId) {
+        epoch++;
+        Set<Key> keys = byBlock.remove(blockId);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            remove(entries.remove(key));
+            invalidations++;
+        }
+    }
+
+    private Entry load(Key key, ByteBuffer slot, FileChannel fc, FileChannel meta, ChecksumFile header) throws IOException {
+        long start = key.chunkIndex * chunkSize;
+        int length = (int) Math.max(0, Math.min(chunkSize, fc.size() - start));
+        ByteBuffer data = slot.duplicate();
+        data.clear();
+        data.limit(length);
+        ChecksumFile.readFully(fc, data, start);
+
+        int[] sums = null;
+        if (meta != null) {
+            int bpc = header.bytesPerChecksum;
+            int n = DataChecksum.chunkCount(length, bpc);
+            ByteBuffer buf = ByteBuffer.allocate(n * DataChecksum.CHECKSUM_SIZE);
+            header.readChecksums(meta, start / bpc, n, buf);
+            sums = new int[n];
+            buf.asIntBuffer().get(sums);
+        }
+        return new Entry(key, slot, length, sums);
+    }
+
+    // 取一个空闲槽位，没有时淘汰最久未使用且未被pin的chunk
+    private ByteBuffer takeSlot() {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.pop();
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.pins == 0) {
+                it.remove();
+                Set<Key> keys = byBlock.get(e.key.blockId);
+                if (keys != null) {
+                    keys.remove(e.key);
+                    if (keys.isEmpty()) {
+                        byBlock.remove(e.key.blockId);
+                    }
+                }
+                evictions++;
+                e.removed = true;
+                return e.slot;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Entry e) {
+        if (e == null) {
+            return;
+        }
+        e.removed = true;
+        if (e.pins == 0) {
+            freeSlots.push(e.slot);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized String metrics() {
+        return String.format("cache{capacity=%dMB, used=%dMB, hits=%d, misses=%d, hitRate=%.3f, loaded=%dMB, "
+                        + "evictions=%d, invalidations=%d, uncacheable=%d}",
+                capacity >> 20, (long) entries.size() * chunkSize >> 20, hits, misses, getHitRate(),
+                loadedBytes >> 20, evictions, invalidations, uncacheable);
+    }
+
+    private static class Key {
+        final String blockId;
+        final long chunkIndex;
+
+        Key(String blockId, long chunkIndex) {
+            this.blockId = blockId;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return chunkIndex == k.chunkIndex && blockId.equals(k.blockId);
+        }
+
+        @Override
+        public int hashCode() {
+            return blockId.hashCode() * 31 + (int) (chunkIndex ^ (chunkIndex >>> 32));
+        }
+    }
+
+    /**
+     * 一个缓存的chunk，data和sums在pin住期间不会改变
+     */
+    public static class Entry {
+        final Key key;
+        final ByteBuffer slot;
+        public final int length;
+        private final int[] sums;   // 没有校验和时为null
+        int pins;
+        boolean removed;
+
+        Entry(Key key, ByteBuffer slot, int length, int[] sums) {
+            this.key = key;
+            this.slot = slot;
+            this.length = length;
+            this.sums = sums;
+        }
+
+        // chunk内[offset, offset+len)的数据，返回独立的position/limit
+        public ByteBuffer data(int offset, int len) {
+            ByteBuffer b = slot.duplicate();
+            b.limit(offset + len);
+            b.position(offset);
+            return b;
+        }
+
+        // 把chunk内从第first个开始的n个校验和写入dst
+        public void putChecksums(ByteBuffer dst, int first, int n) {
+            for (int i = 0; i < n; i++) {
+                dst.putInt(sums[first + i]);
+            }
+        }
+    }
+}
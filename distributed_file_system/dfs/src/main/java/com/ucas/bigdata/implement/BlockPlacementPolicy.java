@@ -0,0 +1,33 @@
+package com.ucas.bigdata.implement;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 为新数据块选择副本节点的策略，由Config.META_PLACEMENT_POLICY指定
+ */
+public interface BlockPlacementPolicy {
+
+    /**
+     * 从nodes中选择最多count个不同的节点，按流水线顺序排列，不选择失效的节点
+     * @param now 当前时间，用于判断节点是否存活
+     */
+    List<StorageNode> chooseTargets(Collection<StorageNode> nodes, int count, long now);
+
+    /**
+     * @param name "random"、"load"，或者实现了本接口且有无参构造函数的类名
+     */
+    static BlockPlacementPolicy create(String name) {
+        if ("random".equalsIgnoreCase(name)) {
+            return new RandomPlacementPolicy();
+        }
+        if ("load".equalsIgnoreCase(name)) {
+            return new LoadAwarePlacementPolicy();
+        }
+        try {
+            return (BlockPlacementPolicy) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown block placement policy " + name, e);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.Connection;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataChecksum;
+import com.ucas.bigdata.common.DataOpCode;
+import com.ucas.bigdata.common.ReplicaStatus;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 接收WRITE_BLOCK的数据包：写入本地文件的同时转发给副本链中的下一个DataServer。
+ * 数据包格式为 int长度 + 数据，以 END_STREAM(-1) 结束。
+ * 数据接收完毕后等待下游的确认，把整条链上各副本的状态返回给上游。
+ * 每个节点在写入时自己计算chunk校验和，写到数据块旁的校验文件(ChecksumFile)。
+ * 转发给下游失败时跳过该节点，连接链上其后的节点并从本地文件补发已收到的数据；
+ * 下游在结束确认阶段出错时无法知道是哪一跳断开，其后的副本都记为失败。
+ * 本地副本没有完整写入(接收中断或写盘失败)时删除数据块和校验文件，不留下不完整的副本。
+ */
+public class BlockReceiver {
+    private static Logger log = LogManager.getLogger(BlockReceiver.class);
+    public static final int MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+    private final String blockId;
+    private final File file;
+    private final List<String> targets; // 下游节点，按链的顺序
+    private final List<Integer> statuses = new ArrayList<>(); // [本节点, targets...]
+    private Connection mirror;     // 下游连接
+    private int mirrorIndex = -1;  // 下游节点在targets中的位置
+    private long bytesReceived;
+    private boolean localOk = true;
+
+    public BlockReceiver(String blockId, File file, List<String> targets) {
+        this.blockId = blockId;
+        this.file = file;
+        this.targets = targets;
+        statuses.add(ReplicaStatus.PENDING);
+        for (int i = 0; i < targets.size(); i++) {
+            statuses.add(ReplicaStatus.FAILED);
+        }
+    }
+
+    /**
+     * 接收数据包直到END_STREAM
+     * @return 各副本状态，顺序为[本节点, targets...]
+     */
+    public List<Integer> receive(DataInputStream in) throws IOException {
+        connectMirror(0);
+        FileOutputStream fout = null;
+        ChecksumFile.Writer checksums = null;
+        try {
+            try {
+                fout = new FileOutputStream(file);
+                checksums = new ChecksumFile.Writer(ChecksumFile.metaFileOf(file),
+                        DataChecksum.defaultType(), Config.BYTES_PER_CHECKSUM);
+            } catch (IOException e) {
+                log.error("Cannot create block file " + file, e);
+                localOk = false;
+            }
+
+            byte[] buffer = new byte[Config.PACKET_SIZE];
+            int len;
+            while ((len = in.readInt()) != BlockSender.END_STREAM) {
+                if (len < 0 || len > MAX_PACKET_SIZE) {
+                    throw new IOException("Bad packet length " + len + " for block " + blockId);
+                }
+                if (len > buffer.length) {
+                    buffer = new byte[len];
+                }
+                in.readFully(buffer, 0, len);
+                bytesReceived += len;
+
+                if (localOk) {
+                    try {
+                        fout.write(buffer, 0, len);
+                        checksums.update(buffer, 0, len);
+                    } catch (IOException e) {
+                        log.error("Write block " + blockId + " failed", e);
+                        localOk = false;
+                    }
+                }
+                forward(buffer, len);
+            }
+
+            if (fout != null) {
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                    localOk = false;
+                }
+                fout = null;
+            }
+            if (checksums != null) {
+                try {
+                    checksums.close();
+                } catch (IOException e) {
+                    log.error("Write checksums of block " + blockId + " failed", e);
+                    localOk = false;
+                }
+                checksums = null;
+            }
+            statuses.set(0, localOk ? ReplicaStatus.FINALIZED : ReplicaStatus.FAILED);
+            finishMirror();
+            return statuses;
+        } finally {
+            if (fout != null) {
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
+            if (checksums != null) {
+                try {
+                    checksums.close();
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
+            closeMirror();
+            if (statuses.get(0) != ReplicaStatus.FINALIZED) {
+                file.delete();
+                ChecksumFile.metaFileOf(file).delete();
+            }
+        }
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // 从targets[from]开始按顺序连接下游节点，连不上的节点记为失败，由后面的节点继续组成链
+    private void connectMirror(int from) {
+        for (int i = from; i < targets.size(); i++) {
+            try {
+                Connection conn = new Connection(targets.get(i), Config.DATA_SERVRE_PORT);
+                DataOutputStream out = conn.getOut();
+                DataOpCode.WRITE_BLOCK.write(out);
+                out.writeUTF(blockId);
+                out.writeInt(targets.size() - i - 1);
+                for (String target : targets.subList(i + 1, targets.size())) {
+                    out.writeUTF(target);
+                }
+                mirror = conn;
+                mirrorIndex = i;
+                return;
+            } catch (IOException e) {
+                log.error("Cannot connect to pipeline node " + targets.get(i) + " for block " + blockId, e);
+            }
+        }
+    }
+
+    private void forward(byte[] buffer, int len) {
+        if (mirror == null) {
+            return;
+        }
+        try {
+            DataOutputStream out = mirror.getOut();
+            out.writeInt(len);
+            out.write(buffer, 0, len);
+        } catch (IOException e) {
+            log.error("Forward block " + blockId + " to " + targets.get(mirrorIndex) + " failed", e);
+            closeMirror();
+            reconnectMirror();
+        }
+    }
+
+    /**
+     * 下游节点出错后连接它之后的节点，从本地文件补发已收到的bytesReceived字节。
+     * 本地副本写入失败时没有可补发的数据，链在这里断开。
+     */
+    private void reconnectMirror() {
+        int failed = mirrorIndex;
+        mirrorIndex = -1;
+        if (!localOk) {
+            return;
+        }
+        while (failed + 1 < targets.size()) {
+            connectMirror(failed + 1);
+            if (mirror == null) {
+                return;
+            }
+            try (InputStream replay = new FileInputStream(file)) {
+                DataOutputStream out = mirror.getOut();
+                byte[] buffer = new byte[Config.PACKET_SIZE];
+                long left = bytesReceived;
+                while (left > 0) {
+                    int n = replay.read(buffer, 0, (int) Math.min(buffer.length, left));
+                    if (n < 0) {
+                        throw new IOException("Block file " + file + " shorter than " + bytesReceived);
+                    }
+                    out.writeInt(n);
+                    out.write(buffer, 0, n);
+                    left -= n;
+                }
+                log.info("Pipeline for block " + blockId + " skipped " + targets.get(failed)
+                        + ", continuing with " + targets.get(mirrorIndex));
+                return;
+            } catch (IOException e) {
+                log.error("Resend block " + blockId + " to " + targets.get(mirrorIndex) + " failed", e);
+                failed = mirrorIndex;
+                closeMirror();
+            }
+        }
+    }
+
+    // 发送结束标记并读取下游返回的各副本状态
+    private void finishMirror() {
+        if (mirror == null) {
+            return;
+        }
+        try {
+            DataOutputStream out = mirror.getOut();
+            out.writeInt(BlockSender.END_STREAM);
+            out.flush();
+            DataInputStream in = mirror.getIn();
+            int retCode = in.readInt();
+            String msg = in.readUTF();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int status = in.readInt();
+                int index = mirrorIndex + 1 + i;
+                if (index < statuses.size()) {
+                    statuses.set(index, status);
+                }
+            }
+            if (retCode != 0) {
+                log.info("Pipeline node " + targets.get(mirrorIndex) + " reported: " + msg);
+            }
+        } catch (IOException e) {
+            log.error("Pipeline ack for block " + blockId + " failed", e);
+        }
+    }
+
+    private void closeMirror() {
+        if (mirror != null) {
+            try {
+                mirror.close();
+            } catch (IOException e) {
+                log.error(e);
+            }
+            mirror = null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.Connection;
+import com.ucas.bigdata.common.ChecksumException;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataOpCode;
+import com.ucas.bigdata.common.HeartbeatResponse;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 执行元数据服务器随心跳下发的复制任务：把本地的数据块用TRANSFER_BLOCK发送给目标DataServer。
+ * 任务在独立的线程池中执行，不占用处理客户端请求的工作线程；同时发送的数据块不超过DATA_REPLICATION_MAX_STREAMS，
+ * 总发送速率不超过DATA_REPLICATION_BANDWIDTH。目标拒绝或发送失败的任务只记录日志，由元数据服务器超时后重新分配。
+ * 发送前按校验文件检查每个chunk，本地副本损坏时中止任务并删除它，下一次心跳汇报为已删除，
+ * 元数据服务器会从其他副本重新复制。没有校验文件的旧数据块不检查。
+ */
+public class BlockReplicator {
+    private static Logger log = LogManager.getLogger(BlockReplicator.class);
+
+    private final DataServer server;
+    private final ThreadPoolExecutor executor;
+    private final DataTransferThrottler throttler;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public BlockReplicator(DataServer server) {
+        this.server = server;
+        int streams = Math.max(1, Config.DATA_REPLICATION_MAX_STREAMS);
+        // 元数据服务器按同样的上限分配任务，队列只用来容纳心跳之间的少量积压
+        executor = new ThreadPoolExecutor(streams, streams, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(streams * 8),
+                new RequestEngine.NamedThreadFactory("replicate-" + server.nodeName));
+        throttler = new DataTransferThrottler(Config.DATA_REPLICATION_BANDWIDTH);
+    }
+
+    public void submit(final HeartbeatResponse.Transfer transfer) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    transfer(transfer.getBlockId(), transfer.getTarget());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failed.incrementAndGet();
+            log.error("Replication queue full, dropping " + transfer);
+        }
+    }
+
+    private void transfer(String blockId, String target) {
+        long start = System.currentTimeMillis();
+        server.activeTransfers.incrementAndGet();
+        RandomAccessFile file = null;
+        ChecksumFile.Verifier verifier = null;
+        Connection connection = null;
+        long sent = 0;
+        try {
+            File blockFile = new File(server.storage_path, blockId);
+            file = new RandomAccessFile(blockFile, "r");
+            long length = file.length();
+            File metaFile = ChecksumFile.metaFileOf(blockFile);
+            if (metaFile.exists()) {
+                verifier = new ChecksumFile.Verifier(blockId, metaFile);
+                verifier.checkLength(length);
+            }
+            connection = new Connection(target, Config.DATA_SERVRE_PORT);
+            DataOutputStream out = connection.getOut();
+            DataInputStream in = connection.getIn();
+            DataOpCode.TRANSFER_BLOCK.write(out);
+            out.writeUTF(blockId);
+            out.writeLong(length);
+            out.flush();
+            if (in.readInt() != 0) {
+                failed.incrementAndGet();
+                log.info("Target " + target + " refused block " + blockId + ": " + in.readUTF());
+                return;
+            }
+            in.readUTF();
+
+            // 数据包按chunk对齐，每个数据包校验后再发送
+            byte[] buffer = new byte[verifier == null ? Config.PACKET_SIZE : verifier.alignedSize(Config.PACKET_SIZE)];
+            while (sent < length) {
+                int n = (int) Math.min(buffer.length, length - sent);
+                file.readFully(buffer, 0, n);
+                if (verifier != null) {
+                    verifier.verify(buffer, 0, n, sent);
+                }
+                throttler.throttle(n);
+                out.writeInt(n);
+                out.write(buffer, 0, n);
+                sent += n;
+            }
+            out.writeInt(BlockSender.END_STREAM);
+            out.flush();
+            int retCode = in.readInt();
+            String msg = in.readUTF();
+            if (retCode == 0) {
+                completed.incrementAndGet();
+                log.info("Block " + blockId + " replicated to " + target + ", " + sent + " bytes in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            } else {
+                failed.incrementAndGet();
+                log.error("Replicate block " + blockId + " to " + target + " failed: " + msg);
+            }
+        } catch (ChecksumException e) {
+            // 不发送END_STREAM就关闭连接，目标丢弃收到的部分
+            failed.incrementAndGet();
+            log.error("Replicate block " + blockId + " to " + target + " aborted, local replica is corrupt: "
+                    + e.getMessage());
+            server.discardBlock(blockId);
+        } catch (IOException | InterruptedException e) {
+            failed.incrementAndGet();
+            log.error("Replicate block " + blockId + " to " + target + " failed", e);
+        } finally {
+            server.activeTransfers.decrementAndGet();
+            server.addBytesOut(sent);
+            bytesSent.addAndGet(sent);
+            try {
+                if (file != null) {
+                    file.close();
+                }
+                if (verifier != null) {
+                    verifier.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String metrics() {
+        return "replicator{active=" + executor.getActiveCount() +
+                ", queued=" + executor.getQueue().size() +
+                ", completed=" + completed.get() +
+                ", failed=" + failed.get() +
+                ", bytes=" + bytesSent.get() +
+                '}';
+    }
+}
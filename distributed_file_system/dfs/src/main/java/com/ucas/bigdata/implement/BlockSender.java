@@ -0,0 +1,206 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.DataChecksum;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 把本地数据块按READ_FILE的帧格式发送给客户端：
+ * 每个分段为 int长度 + 数据，最后以 END_STREAM(-1) 结束。
+ * 客户端只依赖长度前缀，所以分段大小可以与旧实现的1KB不同。
+ * READ_RANGE使用sendChecked，每个分段附带覆盖它的chunk校验和。
+ */
+public class BlockSender {
+    public static final int END_STREAM = -1;
+    public static final int LEGACY_CHUNK_SIZE = 1024;
+
+    /**
+     * 旧的读路径：每1KB一次read、一次writeInt和一次flush。
+     * @return 发送的字节数
+     */
+    public static long sendCopy(RandomAccessFile file, long offset, DataOutputStream out) throws IOException {
+        return sendCopy(file, offset, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * 旧的读路径，最多发送length字节
+     */
+    public static long sendCopy(RandomAccessFile file, long offset, long length, DataOutputStream out) throws IOException {
+        byte[] buffer = new byte[LEGACY_CHUNK_SIZE];
+        file.seek(offset); // 设置文件指针到偏移量位置
+        long total = 0;
+        int bytesRead = file.read(buffer, 0, (int) Math.min(buffer.length, length));
+        while (bytesRead > 0) {
+            out.writeInt(bytesRead);
+            out.write(buffer, 0, bytesRead);
+            out.flush();
+            total += bytesRead;
+            bytesRead = file.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+        }
+        out.writeInt(END_STREAM);
+        out.flush();
+        return total;
+    }
+
+    /**
+     * 零拷贝读路径：分段头写入out后，数据段通过FileChannel.transferTo直接交给socket通道，
+     * 在Linux上由sendfile完成，不经过用户态缓冲区。
+     * @param socketChannel 与out对应的socket通道，out中缓冲的数据会在transferTo之前刷出
+     * @return 发送的字节数
+     */
+    public static long sendZeroCopy(FileChannel fc, long offset, DataOutputStream out,
+                                    WritableByteChannel socketChannel, int segmentSize) throws IOException {
+        return sendZeroCopy(fc, offset, Long.MAX_VALUE, out, socketChannel, segmentSize);
+    }
+
+    /**
+     * 零拷贝读路径，只发送[offset, offset+length)与文件重叠的部分
+     */
+    public static long sendZeroCopy(FileChannel fc, long offset, long length, DataOutputStream out,
+                                    WritableByteChannel socketChannel, int segmentSize) throws IOException {
+        long end = rangeEnd(fc.size(), offset, length);
+        long position = offset;
+        while (position < end) {
+            int len = (int) Math.min(segmentSize, end - position);
+            out.writeInt(len);
+            out.flush();
+            transferFully(fc, position, len, socketChannel);
+            position += len;
+        }
+        out.writeInt(END_STREAM);
+        out.flush();
+        return Math.max(0, position - offset);
+    }
+
+    /**
+     * 带校验和的读路径(READ_RANGE)，不使用缓存
+     */
+    public static long sendChecked(FileChannel fc, FileChannel meta, long offset, long length, DataOutputStream out,
+                                   WritableByteChannel socketChannel, int segmentSize) throws IOException {
+        return sendChecked(null, null, fc, meta, offset, length, out, socketChannel, segmentSize);
+    }
+
+    /**
+     * 带校验和的读路径(READ_RANGE)。先发送 byte算法 + int每chunk字节数 + long起始位置，
+     * 读取范围向外对齐到chunk边界，客户端才能校验首尾两个chunk。
+     * 每个分段为 int长度 + int校验和个数 + 校验和 + 数据，最后以END_STREAM结束。
+     * 校验和直接取自校验文件，服务端不重新计算；数据段仍走零拷贝。
+     * 有缓存时分段按缓存chunk的边界切分，命中的分段从堆外缓存直接写入socket。
+     * @param cache 块缓存，为null时不使用
+     * @param meta 校验文件，为null时(旧数据块)以TYPE_NONE发送，不带校验和
+     * @param socketChannel 为null时通过out拷贝发送数据
+     * @return 发送的数据字节数
+     */
+    public static long sendChecked(String blockId, BlockCache cache, FileChannel fc, FileChannel meta,
+                                   long offset, long length, DataOutputStream out,
+                                   WritableByteChannel socketChannel, int segmentSize) throws IOException {
+        ChecksumFile header = meta != null ? ChecksumFile.readHeader(meta)
+                : new ChecksumFile(DataChecksum.TYPE_NONE, 1);
+        int bpc = header.bytesPerChecksum;
+        long fileSize = fc.size();
+        long end = rangeEnd(fileSize, offset, length);
+        long start = Math.min(offset, end) / bpc * bpc;
+        end = Math.min(fileSize, (end + bpc - 1) / bpc * bpc);
+        boolean cached = cache != null && cache.supports(bpc);
+        // 分段大小取chunk的整数倍
+        int segment = cached ? cache.getChunkSize() : Math.max(bpc, segmentSize / bpc * bpc);
+
+        out.writeByte(header.type);
+        out.writeInt(bpc);
+        out.writeLong(start);
+
+        boolean checked = header.type != DataChecksum.TYPE_NONE;
+        ByteBuffer sums = checked ? ByteBuffer.allocate(DataChecksum.chunkCount(segment, bpc) * DataChecksum.CHECKSUM_SIZE) : null;
+        ByteBuffer copyBuffer = socketChannel == null ? ByteBuffer.allocate((int) Math.min(segment, Math.max(0, end - start))) : null;
+        long position = start;
+        while (position < end) {
+            int len = (int) Math.min(segment, end - position);
+            BlockCache.Entry entry = null;
+            int offsetInChunk = 0;
+            if (cached) {
+                long chunkIndex = position / segment;
+                offsetInChunk = (int) (position - chunkIndex * segment);
+                len = (int) Math.min(segment - offsetInChunk, end - position);
+                entry = cache.acquire(blockId, chunkIndex, fc, meta, header);
+            }
+            try {
+                out.writeInt(len);
+                if (checked) {
+                    int n = DataChecksum.chunkCount(len, bpc);
+                    if (entry != null) {
+                        sums.clear();
+                        entry.putChecksums(sums, offsetInChunk / bpc, n);
+                        sums.flip();
+                    } else {
+                        header.readChecksums(meta, position / bpc, n, sums);
+                    }
+                    out.writeInt(n);
+                    out.write(sums.array(), 0, sums.limit());
+                } else {
+                    out.writeInt(0);
+                }
+                if (entry != null) {
+                    sendBuffer(entry.data(offsetInChunk, len), out, socketChannel, copyBuffer);
+                } else if (socketChannel != null) {
+                    out.flush();
+                    transferFully(fc, position, len, socketChannel);
+                } else {
+                    copyBuffer.clear();
+                    copyBuffer.limit(len);
+                    ChecksumFile.readFully(fc, copyBuffer, position);
+                    out.write(copyBuffer.array(), 0, len);
+                }
+            } finally {
+                if (entry != null) {
+                    cache.release(entry);
+                }
+            }
+            position += len;
+        }
+        out.writeInt(END_STREAM);
+        out.flush();
+        return position - start;
+    }
+
+    // 发送缓存中的数据：有socket通道时直接写入通道，否则经copyBuffer拷贝到out
+    private static void sendBuffer(ByteBuffer data, DataOutputStream out, WritableByteChannel socketChannel,
+                                   ByteBuffer copyBuffer) throws IOException {
+        if (socketChannel != null) {
+            out.flush();
+            while (data.hasRemaining()) {
+                socketChannel.write(data);
+            }
+            return;
+        }
+        while (data.hasRemaining()) {
+            int n = Math.min(data.remaining(), copyBuffer.capacity());
+            data.get(copyBuffer.array(), 0, n);
+            out.write(copyBuffer.array(), 0, n);
+        }
+    }
+
+    // 计算读取范围的结束位置，不超过文件末尾，避免offset+length溢出
+    static long rangeEnd(long fileSize, long offset, long length) {
+        return length >= fileSize - offset ? fileSize : offset + length;
+    }
+
+    static void transferFully(FileChannel fc, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long n = fc.transferTo(position, count, target);
+            if (n <= 0) {
+                // 已经写出了分段头，文件被截断时只能中断连接
+                if (position >= fc.size()) {
+                    throw new IOException("File truncated while sending, " + count + " bytes missing");
+                }
+                continue;
+            }
+            position += n;
+            count -= n;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.ChecksumException;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataChecksum;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+/**
+ * 数据块的校验文件，与数据块放在同一目录，文件名为"块ID.meta"。
+ * 格式：short版本 + byte算法 + int每个chunk的字节数，之后每个chunk一个int校验和。
+ */
+public class ChecksumFile {
+    public static final String SUFFIX = ".meta";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 2 + 1 + 4;
+
+    public final int type;
+    public final int bytesPerChecksum;
+
+    public ChecksumFile(int type, int bytesPerChecksum) {
+        this.type = type;
+        this.bytesPerChecksum = bytesPerChecksum;
+    }
+
+    public static File metaFileOf(File blockFile) {
+        return new File(blockFile.getPath() + SUFFIX);
+    }
+
+    public static ChecksumFile readHeader(FileChannel meta) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(meta, header, 0);
+        header.flip();
+        int version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checksum file version " + version);
+        }
+        int type = header.get();
+        int bytesPerChecksum = header.getInt();
+        if (bytesPerChecksum <= 0) {
+            throw new IOException("Bad bytesPerChecksum " + bytesPerChecksum);
+        }
+        return new ChecksumFile(type, bytesPerChecksum);
+    }
+
+    // 读取从第firstChunk个chunk开始的count个校验和到dst
+    public void readChecksums(FileChannel meta, long firstChunk, int count, ByteBuffer dst) throws IOException {
+        dst.clear();
+        dst.limit(count * DataChecksum.CHECKSUM_SIZE);
+        readFully(meta, dst, HEADER_SIZE + firstChunk * DataChecksum.CHECKSUM_SIZE);
+        dst.flip();
+    }
+
+    static void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of " + ch);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * 用校验文件检查整个数据块
+     * @throws ChecksumException 内容或校验和个数与校验文件不一致
+     * @throws IOException 没有校验文件或读取失败
+     */
+    public static void verifyBlock(String blockId, File blockFile) throws IOException {
+        try (Verifier verifier = new Verifier(blockId, metaFileOf(blockFile));
+             RandomAccessFile in = new RandomAccessFile(blockFile, "r")) {
+            long length = in.length();
+            verifier.checkLength(length);
+            byte[] buffer = new byte[verifier.alignedSize(Config.PACKET_SIZE)];
+            long position = 0;
+            while (position < length) {
+                int n = (int) Math.min(buffer.length, length - position);
+                in.readFully(buffer, 0, n);
+                verifier.verify(buffer, 0, n, position);
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * 按校验文件检查从数据块中读出的数据，每段数据从chunk的边界开始
+     */
+    public static class Verifier implements Closeable {
+        private final String blockId;
+        private final FileChannel meta;
+        private final ChecksumFile header;
+        private final Checksum sum;
+        private ByteBuffer sums = ByteBuffer.allocate(0);
+
+        public Verifier(String blockId, File metaFile) throws IOException {
+            this.blockId = blockId;
+            this.meta = FileChannel.open(metaFile.toPath(), StandardOpenOption.READ);
+            try {
+                header = readHeader(meta);
+                sum = DataChecksum.newChecksum(header.type);
+                if (sum == null) {
+                    throw new IOException("No checksums in " + metaFile);
+                }
+            } catch (IOException | RuntimeException e) {
+                meta.close();
+                throw e;
+            }
+        }
+
+        // 不超过size的chunk整数倍，至少一个chunk
+        public int alignedSize(int size) {
+            return Math.max(1, size / header.bytesPerChecksum) * header.bytesPerChecksum;
+        }
+
+        /**
+         * 校验文件中的校验和个数应与length字节的数据块一致
+         * @throws ChecksumException 个数不一致，位置为校验和覆盖的字节数
+         */
+        public void checkLength(long length) throws IOException {
+            long expected = HEADER_SIZE + (long) DataChecksum.chunkCount(length, header.bytesPerChecksum)
+                    * DataChecksum.CHECKSUM_SIZE;
+            long size = meta.size();
+            if (size != expected) {
+                long covered = Math.max(0, size - HEADER_SIZE) / DataChecksum.CHECKSUM_SIZE * header.bytesPerChecksum;
+                throw new ChecksumException("Checksum file of block " + blockId + " has " + size
+                        + " bytes, expected " + expected + " for " + length + " bytes of data", Math.min(covered, length));
+            }
+        }
+
+        /**
+         * 校验数据块中从position开始的data[off, off+len)，只有数据块的最后一段可以不满一个chunk
+         * @throws ChecksumException 某个chunk与校验和不一致
+         */
+        public void verify(byte[] data, int off, int len, long position) throws IOException {
+            int bpc = header.bytesPerChecksum;
+            int chunks = DataChecksum.chunkCount(len, bpc);
+            if (sums.capacity() < chunks * DataChecksum.CHECKSUM_SIZE) {
+                sums = ByteBuffer.allocate(chunks * DataChecksum.CHECKSUM_SIZE);
+            }
+            header.readChecksums(meta, position / bpc, chunks, sums);
+            for (int i = 0; i < chunks; i++) {
+                int n = Math.min(bpc, len - i * bpc);
+                if (DataChecksum.compute(sum, data, off + i * bpc, n) != sums.getInt()) {
+                    long chunkStart = position + (long) i * bpc;
+                    throw new ChecksumException("Checksum error in block " + blockId + " at " + chunkStart, chunkStart);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            meta.close();
+        }
+    }
+
+    /**
+     * 边接收数据边计算chunk校验和，写入校验文件
+     */
+    public static class Writer {
+        private final DataOutputStream out;
+        private final Checksum sum;
+        private final int bytesPerChecksum;
+        private int inChunk; // 当前chunk已累计的字节数
+
+        public Writer(File metaFile, int type, int bytesPerChecksum) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metaFile)));
+            this.sum = DataChecksum.newChecksum(type);
+            this.bytesPerChecksum = bytesPerChecksum;
+            out.writeShort(VERSION);
+            out.writeByte(type);
+            out.writeInt(bytesPerChecksum);
+        }
+
+        public void update(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, bytesPerChecksum - inChunk);
+                sum.update(b, off, n);
+                inChunk += n;
+                off += n;
+                len -= n;
+                if (inChunk == bytesPerChecksum) {
+                    out.writeInt((int) sum.getValue());
+                    sum.reset();
+                    inChunk = 0;
+                }
+            }
+        }
+
+        // 写出最后一个不满的chunk并关闭
+        public void close() throws IOException {
+            if (inChunk > 0) {
+                out.writeInt((int) sum.getValue());
+                inChunk = 0;
+            }
+            out.close();
+        }
+    }
+}
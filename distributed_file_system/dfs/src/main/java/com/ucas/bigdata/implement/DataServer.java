@@ -4,6 +4,11 @@ package com.ucas.bigdata.implement;
 import com.ucas.bigdata.client.MetaServerClient;
 import com.ucas.bigdata.common.Config;
 import com.ucas.bigdata.common.DataOpCode;
+import com.ucas.bigdata.common.HeartbeatResponse;
+import com.ucas.bigdata.common.Histogram;
+import com.ucas.bigdata.common.Metrics;
+import com.ucas.bigdata.common.NodeStats;
+import com.ucas.bigdata.common.ReplicaStatus;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import sun.security.krb5.internal.HostAddress;
@@ -11,77 +16,372 @@ import sun.security.x509.IPAddressName;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DataServer {
     private static Logger log = LogManager.getLogger(DataServer.class);
     String nodeName;
-    boolean isRunning = false;
-    int DATA_SERVRE_PORT = 9526;
-    int END_STREAM = -1;
+    volatile boolean isRunning = false;
+    int DATA_SERVRE_PORT = Config.DATA_SERVRE_PORT;
     String storage_path;
     MetaServerClient metaClient;
     ServerSocket serverSocket;
     HeartBeatThread heartBeat;
+    RequestEngine engine;
+    volatile NioDataEngine nio;     // Config.DATA_SERVER_ENGINE为nio时使用
+    BlockCache cache;      // 热数据块缓存，Config.BLOCK_CACHE_SIZE为0时不启用
+    final AtomicInteger activeTransfers = new AtomicInteger(); // 正在处理的请求数，随心跳汇报
+    final AtomicLong ioBytes = new AtomicLong();               // 累计读写的数据字节数
+    // 上次汇报之后写入完成(true)或删除(false)的数据块，随下一次心跳发送
+    final Map<String, Boolean> blockDelta = new ConcurrentHashMap<>();
+    BlockReplicator replicator;  // 执行元数据服务器下发的复制任务
+    final Semaphore replicationSlots = new Semaphore(Config.DATA_REPLICATION_MAX_STREAMS); // 同时接收的复制数据块
+    final Metrics stats;                    // STATS请求返回的指标
+    private final Histogram[] opLatency = new Histogram[DataOpCode.values().length];  // 按DataOpCode的处理延迟
+    private final LongAdder bytesIn;        // 收到的数据块字节，包括复制
+    private final LongAdder bytesOut;       // 发送的数据块字节，包括复制
+    final LongAdder connections;            // 当前连接数
+    final LongAdder connectionsTotal;
+    private final Histogram heartbeatLatency;
+    private volatile long lastHeartbeat = System.currentTimeMillis();  // 最近一次成功心跳的时间
 
     public DataServer() {
+        this(localHostName(), "/homework_storage");
+    }
+
+    // 指定节点名和存储目录，基准测试在本机临时目录中启动DataServer时使用
+    DataServer(String nodeName, String storagePath) {
+        stats = new Metrics("data:" + nodeName);
+        for (DataOpCode op : DataOpCode.values()) {
+            opLatency[op.ordinal()] = stats.histogram("op." + op + ".ns");
+        }
+        bytesIn = stats.counter("bytes.in");
+        bytesOut = stats.counter("bytes.out");
+        connections = stats.counter("connections.active");
+        connectionsTotal = stats.counter("connections.total");
+        heartbeatLatency = stats.histogram("heartbeat.ns");
         try {
-            this.nodeName = InetAddress.getLocalHost().getHostName();
-            serverSocket = new ServerSocket(DATA_SERVRE_PORT);
+            this.nodeName = nodeName;
+            // 通过ServerSocketChannel创建，accept得到的socket带有通道，读路径可以使用transferTo
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(DATA_SERVRE_PORT));
             metaClient = new MetaServerClient();
             heartBeat = new HeartBeatThread();
-            storage_path = "/homework_storage";
+            replicator = new BlockReplicator(this);
+            engine = new RequestEngine("data-" + nodeName, Config.DATA_SERVER_WORKERS,
+                    Config.DATA_SERVER_QUEUE_SIZE, Config.DATA_SERVER_VIRTUAL_THREADS);
+            storage_path = storagePath;
+            if (Config.BLOCK_CACHE_SIZE > 0) {
+                cache = new BlockCache(Config.BLOCK_CACHE_SIZE, Config.BLOCK_CACHE_CHUNK_SIZE);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
 
-    private void serve() throws IOException {
+    private void registerGauges() {
+        stats.gauge("transfers.active", new Metrics.Gauge() {
+            public long value() {
+                return activeTransfers.get();
+            }
+        });
+        stats.gauge("engine.queued", new Metrics.Gauge() {
+            public long value() {
+                return engine.getQueueDepth();
+            }
+        });
+        stats.gauge("engine.active", new Metrics.Gauge() {
+            public long value() {
+                return engine.getActiveCount();
+            }
+        });
+        // 距上次成功心跳的时间，连不上元数据服务器时持续增长
+        stats.gauge("heartbeat.lagMs", new Metrics.Gauge() {
+            public long value() {
+                return System.currentTimeMillis() - lastHeartbeat;
+            }
+        });
+    }
+
+    // 数据块字节同时计入ioBytes，随心跳汇报读写速率
+    void addBytesIn(long n) {
+        ioBytes.addAndGet(n);
+        bytesIn.add(n);
+    }
+
+    void addBytesOut(long n) {
+        ioBytes.addAndGet(n);
+        bytesOut.add(n);
+    }
+
+    void recordOp(DataOpCode op, long nanos) {
+        opLatency[op.ordinal()].record(nanos);
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            return "localhost";
+        }
+    }
+
+    void serve() throws IOException {
         System.out.println("Data Server is running...");
         isRunning = true;
-        heartBeat.run();
+        // 心跳在独立线程中运行，不阻塞accept循环
+        Thread heartBeatThread = new Thread(heartBeat, "heartbeat-" + nodeName);
+        heartBeatThread.setDaemon(true);
+        heartBeatThread.start();
+        registerGauges();
+        stats.startDump(Config.DATA_STATS_DUMP_FILE, Config.STATS_DUMP_INTERVAL_SECS);
+        if ("nio".equalsIgnoreCase(Config.DATA_SERVER_ENGINE)) {
+            // 非阻塞引擎：selector线程处理读请求和空闲连接，写请求仍交给engine的工作线程
+            nio = new NioDataEngine(this, serverSocket.getChannel());
+            nio.serve();
+            engine.shutdown();
+            return;
+        }
         while (isRunning) {
-            // 接受客户端连接
+            // 接受客户端连接，交给工作线程池处理；线程池满时在这里阻塞形成反压
             Socket clientSocket = serverSocket.accept();
+            try {
+                engine.submit(new ConnectionHandler(clientSocket));
+            } catch (InterruptedException e) {
+                clientSocket.close();
+                break;
+            } catch (RejectedExecutionException e) {
+                log.error("Connection rejected: " + e.getMessage());
+                clientSocket.close();
+            }
+        }
+        engine.shutdown();
+    }
 
-            // 获取客户端请求的文件名和偏移量
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            // 发送文件内容给客户端
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-            // 关闭客户端连接
-            clientSocket.close();
-            DataOpCode op = DataOpCode.read(in);
-            process(op,in,out);
+    // 在工作线程中处理一个客户端连接
+    private class ConnectionHandler implements Runnable {
+        private final Socket clientSocket;
+
+        ConnectionHandler(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+        }
+
+        public void run() {
+            connections.increment();
+            connectionsTotal.increment();
+            try {
+                clientSocket.setTcpNoDelay(true); // 响应头和数据分多次flush，避免与客户端的延迟确认叠加
+                // 获取客户端请求的文件名和偏移量
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(clientSocket.getInputStream(), Config.DATA_IO_BUFFER_SIZE));
+                // 发送文件内容给客户端
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(clientSocket.getOutputStream(), Config.DATA_IO_BUFFER_SIZE));
+                // 长连接：同一个socket上依次处理多个请求，空闲超时或客户端关闭时结束。
+                // 两个请求之间每隔DATA_SERVER_BUSY_IDLE_MS检查一次，工作线程已满时关闭空闲的连接，
+                // 让排队的连接得到线程，客户端会在新连接上重试；第一个请求之前不关闭
+                long idleSince = System.currentTimeMillis();
+                boolean served = false;
+                while (isRunning && !clientSocket.isClosed()) {
+                    DataOpCode op;
+                    try {
+                        clientSocket.setSoTimeout(served ? Config.DATA_SERVER_BUSY_IDLE_MS
+                                : Config.DATA_SERVER_IDLE_TIMEOUT_MS);
+                        op = DataOpCode.read(in);
+                    } catch (EOFException e) {
+                        break;
+                    } catch (SocketTimeoutException e) {
+                        if (!served || engine.isSaturated()
+                                || System.currentTimeMillis() - idleSince >= Config.DATA_SERVER_IDLE_TIMEOUT_MS) {
+                            break;
+                        }
+                        continue;
+                    }
+                    clientSocket.setSoTimeout(Config.DATA_SERVER_IDLE_TIMEOUT_MS);
+                    process(op, in, out, clientSocket);
+                    out.flush();
+                    served = true;
+                    idleSince = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                log.info(e);
+            } finally {
+                connections.decrement();
+                // 关闭客户端连接
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
         }
     }
 
     public class HeartBeatThread implements Runnable{
+        private long lastBytes;
+        private long lastTime = System.currentTimeMillis();
 
+        // 存储目录所在磁盘的空间，以及上一个心跳周期的平均读写速率
+        NodeStats collectStats() {
+            long now = System.currentTimeMillis();
+            long bytes = ioBytes.get();
+            long rate = now > lastTime ? (bytes - lastBytes) * 1000 / (now - lastTime) : 0;
+            lastBytes = bytes;
+            lastTime = now;
+            File dir = new File(storage_path);
+            return new NodeStats(dir.getTotalSpace(), dir.getUsableSpace(), activeTransfers.get(), rate);
+        }
+
+        /**
+         * 启动后的第一次心跳之后发送完整块报告，元数据服务器要求时(它重启过或者曾判定本节点失效)再次发送。
+         * 心跳失败时重新连接元数据服务器，未送达的数据块变化留到下一次心跳。
+         */
         public void run() {
+            boolean reportNeeded = true;
             while(isRunning){
-                metaClient.heartBeat(nodeName);
+                List<String> added = new ArrayList<>();
+                List<String> removed = new ArrayList<>();
+                drainBlockDelta(added, removed);
+                long start = System.nanoTime();
+                HeartbeatResponse response = metaClient == null ? null
+                        : metaClient.heartBeat(nodeName, collectStats(), added, removed);
+                if (response == null) {
+                    for (String id : added) {
+                        blockDelta.putIfAbsent(id, true);
+                    }
+                    for (String id : removed) {
+                        blockDelta.putIfAbsent(id, false);
+                    }
+                    reconnect();
+                } else {
+                    heartbeatLatency.record(System.nanoTime() - start);
+                    lastHeartbeat = System.currentTimeMillis();
+                    for (HeartbeatResponse.Transfer transfer : response.getTransfers()) {
+                        replicator.submit(transfer);
+                    }
+                    // 元数据服务器中已不属于任何文件的数据块
+                    for (String blockId : response.getDeletes()) {
+                        discardBlock(blockId);
+                    }
+                    if (!response.getDeletes().isEmpty()) {
+                        log.info("Deleted " + response.getDeletes().size() + " blocks on request of the meta server");
+                    }
+                    if (reportNeeded || response.isReportNeeded()) {
+                        reportNeeded = !sendBlockReport();
+                    }
+                }
                 try {
                     Thread.sleep(Config.HEARTBEAT_SECS * 1000);
-                    System.out.println("heartBeat node " + nodeName + " time:"+new Date().toString());
+                    System.out.println("heartBeat node " + nodeName + " time:"+new Date().toString()
+                            + " " + engine.metrics() + (nio != null ? " " + nio.metrics() : "")
+                            + (cache != null ? " " + cache.metrics() : "") + " " + replicator.metrics());
                 } catch (InterruptedException e) {
                 }
             }
         }
+
+        private void reconnect() {
+            try {
+                if (metaClient != null) {
+                    metaClient.close();
+                }
+            } catch (IOException e) {
+                log.info(e);
+            }
+            try {
+                metaClient = new MetaServerClient();
+            } catch (IOException e) {
+                metaClient = null;
+                log.info("Cannot connect to meta server: " + e.getMessage());
+            }
+        }
+
+        // 扫描存储目录前清空变化记录，扫描期间的写入和删除会在之后的心跳中再次汇报，元数据服务器重复处理没有影响
+        private boolean sendBlockReport() {
+            blockDelta.clear();
+            List<String> blocks = listBlocks();
+            boolean ok = metaClient.blockReport(nodeName, blocks);
+            log.info("Block report of " + blocks.size() + " blocks " + (ok ? "sent" : "failed"));
+            return ok;
+        }
+    }
+
+    // 取出上次汇报之后的数据块变化，同一数据块只保留最后一次
+    private void drainBlockDelta(List<String> added, List<String> removed) {
+        for (Map.Entry<String, Boolean> e : blockDelta.entrySet()) {
+            if (blockDelta.remove(e.getKey(), e.getValue())) {
+                (e.getValue() ? added : removed).add(e.getKey());
+            }
+        }
+    }
+
+    // 存储目录中的数据块ID，不包括校验文件
+    List<String> listBlocks() {
+        List<String> blocks = new ArrayList<>();
+        File[] files = new File(storage_path).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile() && !f.getName().endsWith(ChecksumFile.SUFFIX)) {
+                    blocks.add(f.getName());
+                }
+            }
+        }
+        return blocks;
     }
 
     // 处理客户端请求并返回响应
-    protected final void process(DataOpCode op, DataInputStream in, DataOutputStream out) throws IOException {
+    protected final void process(DataOpCode op, DataInputStream in, DataOutputStream out, Socket socket) throws IOException {
+        if (op == null) {
+            throw new IOException("Unknown op in data stream");
+        }
+        activeTransfers.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            dispatch(op, in, out, socket);
+        } finally {
+            activeTransfers.decrementAndGet();
+            recordOp(op, System.nanoTime() - start);
+        }
+    }
+
+    private void dispatch(DataOpCode op, DataInputStream in, DataOutputStream out, Socket socket) throws IOException {
         switch(op) {
             case WRITE_FILE:
                 writeFile(in,out);
                 break;
             case READ_FILE:
-                readFile(in,out);
+                readFile(in,out,socket,false);
+                break;
+            case READ_RANGE:
+                readFile(in,out,socket,true);
                 break;
             case DEL_FILE:
                 deleteFile(in,out);
                 break;
+            case WRITE_BLOCK:
+                writeBlock(in,out);
+                break;
+            case TRANSFER_BLOCK:
+                receiveTransfer(in, out);
+                break;
+            case STATS:
+                out.writeInt(0);
+                stats.snapshot().write(out);
+                break;
             default:
                 throw new IOException("Unknown op " + op + " in data stream");
         }
@@ -93,7 +393,10 @@ public class DataServer {
         String filePath = storage_path + File.separator + fileId;
 
         File file = new File(filePath);
+        invalidateCache(fileId);
+        ChecksumFile.metaFileOf(file).delete(); // 同时删除校验文件
         if (file.exists() && file.delete()) {
+            blockDelta.put(fileId, false);
             out.writeInt(0); // 成功响应
             out.writeUTF("File deleted successfully: " + filePath);
         } else {
@@ -103,50 +406,73 @@ public class DataServer {
         out.flush();
     }
 
-    private void readFile(DataInputStream in, DataOutputStream out) {
+    /**
+     * 读取数据块
+     * @param ranged 为true时请求中带有长度(READ_RANGE)，只发送[offset, offset+length)范围，
+     *               并附带chunk校验和；否则读到文件末尾
+     */
+    private void readFile(DataInputStream in, DataOutputStream out, Socket socket, boolean ranged) {
         // 创建服务器套接字，监听指定端口
         RandomAccessFile file = null;
+        RandomAccessFile meta = null;
         int retCode = -1;
         String msg = "read failed";
+        boolean headerSent = false;
         try {
             String fileId = in.readUTF();
             long offset = in.readLong();
+            long length = ranged ? in.readLong() : Long.MAX_VALUE;
             String path = storage_path+File.separator+fileId;
-            byte[] buffer = new byte[1024];
             file = new RandomAccessFile(path, "r");
-            file.seek(offset); // 设置文件指针到偏移量位置
+            File metaFile = ChecksumFile.metaFileOf(new File(path));
+            if (ranged && metaFile.exists()) {
+                meta = new RandomAccessFile(metaFile, "r");
+            }
 
-            int bytesRead = file.read(buffer);
-            if(bytesRead>0){
-                retCode = 0;
-                out.writeInt(retCode);
-                out.writeUTF("OK");
-                out.flush();
+            retCode = 0;
+            out.writeInt(retCode);
+            out.writeUTF("OK");
+            headerSent = true;
 
-                do{
-                    out.writeInt(bytesRead);
-                    out.write(buffer,0,bytesRead);
-                    out.flush();
-                    bytesRead = file.read(buffer);
-                }while (bytesRead >0);
-                out.writeInt(END_STREAM);
+            SocketChannel channel = socket.getChannel();
+            boolean zeroCopy = Config.DATA_READ_ZERO_COPY && channel != null;
+            long sent;
+            if (ranged) {
+                sent = BlockSender.sendChecked(fileId, cache, file.getChannel(), meta != null ? meta.getChannel() : null,
+                        offset, length, out, zeroCopy ? channel : null, Config.DATA_READ_SEGMENT_SIZE);
+            } else if (zeroCopy) {
+                // 零拷贝：大分段 + transferTo(sendfile)
+                sent = BlockSender.sendZeroCopy(file.getChannel(), offset, length, out, channel, Config.DATA_READ_SEGMENT_SIZE);
+            } else {
+                sent = BlockSender.sendCopy(file, offset, length, out);
             }
-
+            addBytesOut(sent);
         } catch (IOException e) {
             log.info(e);
-            retCode = -1;
-            msg = "File write error:"+e.getMessage();
-            try {
-                out.writeInt(retCode);
-                out.writeUTF(msg);
-                out.flush();
-            } catch (IOException e1) {
-                log.error(e1);
+            if (!headerSent) {
+                retCode = -1;
+                msg = "File read error:" + e.getMessage();
+                try {
+                    out.writeInt(retCode);
+                    out.writeUTF(msg);
+                    out.flush();
+                } catch (IOException e1) {
+                    log.error(e1);
+                }
+            } else {
+                // 数据流已经开始，无法再回写错误码，只能断开连接
+                try {
+                    socket.close();
+                } catch (IOException e1) {
+                    log.error(e1);
+                }
             }
-
         }finally {
             try {
-                file.close();
+                if (file != null)
+                    file.close();
+                if (meta != null)
+                    meta.close();
             } catch (IOException e) {
                 log.error(e);
             }
@@ -154,40 +480,169 @@ public class DataServer {
     }
 
 
-    private void writeFile(DataInputStream in,DataOutputStream out){
-        // 创建服务器套接字，监听指定端口
-        FileOutputStream fout = null;
-        int retCode = 0;
-        String msg = "";
+    /**
+     * 写入单副本文件：UTF文件ID，然后是长度前缀的数据包，以END_STREAM结束。
+     * 数据包到达即写入本地文件，不再以短读判断文件结束。
+     */
+    private void writeFile(DataInputStream in,DataOutputStream out) throws IOException {
+        String fileId = in.readUTF();//1.读取文件ID
+        BlockReceiver receiver = new BlockReceiver(fileId, new File(storage_path, fileId),
+                Collections.<String>emptyList());
+        invalidateCache(fileId);
+        List<Integer> statuses;
         try {
-            String fileId = in.readUTF();//1.读取文件ID
-            String path = storage_path+File.separator+fileId;
-            fout = new FileOutputStream(path);
-            byte[] buffer = new byte[1024];
-            int bytesRead = in.read(buffer);//2.遍历读取
-            while (bytesRead>0) {
-                fout.write(buffer,0,bytesRead);
-                if(bytesRead < 1024) break;
-                bytesRead = in.read(buffer);
-            }
+            statuses = receiver.receive(in);//2.接收数据包直到END_STREAM
+        } finally {
+            invalidateCache(fileId);
+            addBytesIn(receiver.getBytesReceived());
+        }
 
-            log.info("File "+ fileId+" write succuessfully!");
+        int retCode;
+        String msg;
+        if (statuses.get(0) == ReplicaStatus.FINALIZED) {
+            blockDelta.put(fileId, true);
             retCode = 0;
             msg = "File "+ fileId+" write succuessfully!";
-        } catch (IOException e) {
-            log.info(e);
+        } else {
             retCode = -1;
-            msg = "File write error:"+e.getMessage();
-        }finally {
-            if(fout != null)
-                try {
-                    out.writeInt(retCode);//3.回写返回码
-                    out.writeUTF(msg);//4.回写消息
-                    out.flush();
-                    fout.close();
-                } catch (IOException e) {
-                    log.info(e);
-                }
+            msg = "File write error: " + fileId;
+        }
+        log.info(msg);
+        out.writeInt(retCode);//3.回写返回码
+        out.writeUTF(msg);//4.回写消息
+        out.flush();
+    }
+
+    /**
+     * 流水线写数据块：写入本地的同时转发给targets中的下一个节点，
+     * 全部接收后把链上各副本的状态依次返回给上游。
+     */
+    private void writeBlock(DataInputStream in, DataOutputStream out) throws IOException {
+        String blockId = in.readUTF();
+        int n = in.readInt();
+        List<String> targets = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            targets.add(in.readUTF());
+        }
+
+        BlockReceiver receiver = new BlockReceiver(blockId, new File(storage_path, blockId), targets);
+        invalidateCache(blockId);
+        List<Integer> statuses;
+        try {
+            statuses = receiver.receive(in);
+        } finally {
+            invalidateCache(blockId);
+            addBytesIn(receiver.getBytesReceived());
+        }
+
+        boolean ok = statuses.get(0) == ReplicaStatus.FINALIZED;
+        if (ok) {
+            blockDelta.put(blockId, true);
+        }
+        String msg = ok ? "Block " + blockId + " write succuessfully, " + receiver.getBytesReceived() + " bytes"
+                : "Block " + blockId + " write failed on " + nodeName;
+        log.info(msg + " replicas:" + statuses);
+        out.writeInt(ok ? 0 : -1);
+        out.writeUTF(msg);
+        out.writeInt(statuses.size());
+        for (int status : statuses) {
+            out.writeInt(status);
+        }
+        out.flush();
+    }
+
+    /**
+     * 接收另一个DataServer复制过来的数据块。
+     * 请求：UTF 块ID, long 长度；响应：int 0接受或-1拒绝, UTF 信息。
+     * 接受后是数据包，以END_STREAM结束，再回复 int 0或-1, UTF 信息。
+     * 同时接收的复制数据块达到DATA_REPLICATION_MAX_STREAMS或者数据块已存在时拒绝，
+     * 已存在的数据块重新随心跳汇报，元数据服务器据此完成复制任务。
+     */
+    private void receiveTransfer(DataInputStream in, DataOutputStream out) throws IOException {
+        String blockId = in.readUTF();
+        long length = in.readLong();
+        File file = new File(storage_path, blockId);
+        if (file.exists()) {
+            if (isCompleteReplica(blockId, file, length)) {
+                blockDelta.put(blockId, true);
+                out.writeInt(-1);
+                out.writeUTF("Block " + blockId + " already exists on " + nodeName);
+                out.flush();
+                return;
+            }
+            // 之前留下的不完整或损坏的文件不算副本，删除后重新接收
+            discardBlock(blockId);
+        }
+        if (!replicationSlots.tryAcquire()) {
+            out.writeInt(-1);
+            out.writeUTF("Too many replication streams on " + nodeName);
+            out.flush();
+            return;
+        }
+        boolean ok = false;
+        try {
+            out.writeInt(0);
+            out.writeUTF("OK");
+            out.flush();
+            BlockReceiver receiver = new BlockReceiver(blockId, file, Collections.<String>emptyList());
+            List<Integer> statuses;
+            try {
+                statuses = receiver.receive(in);
+            } finally {
+                addBytesIn(receiver.getBytesReceived());
+            }
+            ok = statuses.get(0) == ReplicaStatus.FINALIZED && receiver.getBytesReceived() == length;
+            String msg;
+            if (ok) {
+                blockDelta.put(blockId, true);
+                msg = "Block " + blockId + " replicated to " + nodeName + ", " + length + " bytes";
+            } else {
+                msg = "Block " + blockId + " replication to " + nodeName + " failed, received "
+                        + receiver.getBytesReceived() + " of " + length + " bytes";
+            }
+            log.info(msg);
+            out.writeInt(ok ? 0 : -1);
+            out.writeUTF(msg);
+            out.flush();
+        } finally {
+            if (!ok) {
+                // 不完整的副本不保留，否则块报告会把它当作可用副本；接收时抛出异常也要删除
+                file.delete();
+                ChecksumFile.metaFileOf(file).delete();
+            }
+            replicationSlots.release();
+        }
+    }
+
+    // 已有的文件长度为length，并且内容与校验文件一致
+    private boolean isCompleteReplica(String blockId, File file, long length) {
+        if (file.length() != length) {
+            log.warn("Existing replica of block " + blockId + " has " + file.length() + " of " + length + " bytes");
+            return false;
+        }
+        try {
+            ChecksumFile.verifyBlock(blockId, file);
+            return true;
+        } catch (IOException e) {
+            log.warn("Existing replica of block " + blockId + " failed verification: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // 删除损坏、不完整或元数据服务器要求删除的数据块和校验文件，下一次心跳汇报为已删除，元数据服务器不再把本节点当作它的副本
+    void discardBlock(String blockId) {
+        File file = new File(storage_path, blockId);
+        invalidateCache(blockId);
+        ChecksumFile.metaFileOf(file).delete();
+        if (file.delete()) {
+            blockDelta.put(blockId, false);
+        }
+    }
+
+    // 数据块被改写或删除前后都要使缓存失效，写入过程中加载的内容不会留在缓存里
+    void invalidateCache(String blockId) {
+        if (cache != null) {
+            cache.invalidate(blockId);
         }
     }
 
@@ -198,7 +653,24 @@ public class DataServer {
 
 
 
+    void stop() {
+        isRunning = false;
+        replicator.shutdown();
+        if (nio != null) {
+            nio.stop();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    // 参数：[blocking|nio] 选择DataServer引擎
     public static void main(String[] args) {
+        if (args.length > 0) {
+            Config.DATA_SERVER_ENGINE = args[0];
+        }
         DataServer dataServer = new DataServer();
         try {
             dataServer.serve();
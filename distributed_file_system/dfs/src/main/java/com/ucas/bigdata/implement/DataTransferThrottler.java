@@ -0,0 +1,36 @@
+package com.ucas.bigdata.implement;
+
+/**
+ * 多个线程共享的带宽限制：按bytesPerSec排出每次放行的字节的发送时刻，早于该时刻的调用方等待。
+ * 空闲时最多积累MAX_BURST_NANOS的额度，bytesPerSec小于等于0时不限速。
+ */
+public class DataTransferThrottler {
+    private static final long MAX_BURST_NANOS = 100_000_000L;
+
+    private final long bytesPerSec;
+    private long nextFree = System.nanoTime();  // 之前放行的数据按限速发送完的时刻
+
+    public DataTransferThrottler(long bytesPerSec) {
+        this.bytesPerSec = bytesPerSec;
+    }
+
+    // 发送bytes字节之前调用
+    public void throttle(long bytes) throws InterruptedException {
+        if (bytesPerSec <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now - MAX_BURST_NANOS) + (long) (bytes * 1e9 / bytesPerSec);
+            wait = nextFree - now;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    public long getBytesPerSec() {
+        return bytesPerSec;
+    }
+}
@@ -0,0 +1,65 @@
+package com.ucas.bigdata.implement;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 固定大小的直接缓冲区池。
+ * 直接缓冲区分配和回收的代价都很高，这里归还的缓冲区最多保留maxPooled个，
+ * 超出部分交给GC回收；池空时再新分配，所以池不会成为硬上限。
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();   // free中的缓冲区数
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();      // 新分配的次数
+    private final AtomicLong reused = new AtomicLong();         // 从池中取出的次数
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public ByteBuffer acquire() {
+        inUse.incrementAndGet();
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            reused.incrementAndGet();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        buffer.clear();
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    public String metrics() {
+        return "buffers{size=" + bufferSize +
+                ", inUse=" + inUse.get() +
+                ", pooled=" + pooled.get() +
+                ", allocated=" + allocated.get() +
+                ", reused=" + reused.get() +
+                '}';
+    }
+}
@@ -0,0 +1,180 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileInfoCodec;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RocksDB中按inode号组织的命名空间：
+ * <pre>
+ *   'I' + long inode号                     -&gt; FileInfoCodec编码的属性
+ *   'D' + long 父目录inode号 + 文件名(UTF-8) -&gt; long inode号
+ *   'S'                                    -&gt; int 格式版本，存在时说明已是这种格式
+ * </pre>
+ * 整数都是大端，一个目录的目录项在RocksDB中连续且按文件名排序，列目录和遍历子树都是前缀扫描；
+ * 改名只需移动一个目录项，子树下的记录和inode记录都不变，所以条目的文件名以目录项为准。
+ * 根目录的inode号固定为ROOT_ID，不保存属性。
+ * 两张表由MetaCommitter在写入日志的同一个WriteBatch中更新。
+ */
+public class InodeTable {
+    public static final long ROOT_ID = 1;
+    public static final int SCHEMA_VERSION = 2;
+    private static final byte INODE_PREFIX = 'I';
+    private static final byte DENTRY_PREFIX = 'D';
+    private static final byte[] SCHEMA_KEY = {'S'};
+
+    private final RocksDB db;
+
+    public InodeTable(RocksDB db) {
+        this.db = db;
+    }
+
+    static byte[] inodeKey(long id) {
+        return ByteBuffer.allocate(9).put(INODE_PREFIX).putLong(id).array();
+    }
+
+    static byte[] dentryPrefix(long parentId) {
+        return ByteBuffer.allocate(9).put(DENTRY_PREFIX).putLong(parentId).array();
+    }
+
+    static byte[] dentryKey(long parentId, String name) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(9 + n.length).put(DENTRY_PREFIX).putLong(parentId).put(n).array();
+    }
+
+    private static byte[] longBytes(long v) {
+        return ByteBuffer.allocate(8).putLong(v).array();
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 把日志操作转为对两张表的修改，加入batch
+    static MetaCommitter.Replayer writer(final WriteBatch batch) {
+        return new MetaCommitter.Replayer() {
+            public void putInode(long id, byte[] value) throws IOException {
+                try {
+                    batch.put(inodeKey(id), value);
+                } catch (RocksDBException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            public void deleteInode(long id) throws IOException {
+                try {
+                    batch.delete(inodeKey(id));
+                } catch (RocksDBException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            public void link(long parentId, String name, long id) throws IOException {
+                try {
+                    batch.put(dentryKey(parentId, name), longBytes(id));
+                } catch (RocksDBException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            public void unlink(long parentId, String name) throws IOException {
+                try {
+                    batch.delete(dentryKey(parentId, name));
+                } catch (RocksDBException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    public boolean hasSchema() throws RocksDBException {
+        return db.get(SCHEMA_KEY) != null;
+    }
+
+    static void putSchema(WriteBatch batch) throws RocksDBException {
+        batch.put(SCHEMA_KEY, ByteBuffer.allocate(4).putInt(SCHEMA_VERSION).array());
+    }
+
+    /**
+     * 目录中的一项
+     */
+    public static class Dentry {
+        public final String name;
+        public final long id;
+
+        Dentry(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    /**
+     * 按文件名顺序列出目录parentId中startAfter之后的最多limit项
+     * @param startAfter 为null时从头开始
+     */
+    public List<Dentry> list(long parentId, String startAfter, int limit) {
+        byte[] prefix = dentryPrefix(parentId);
+        List<Dentry> result = new ArrayList<>();
+        try (RocksIterator it = db.newIterator()) {
+            it.seek(startAfter == null ? prefix : dentryKey(parentId, startAfter));
+            for (; it.isValid() && result.size() < limit; it.next()) {
+                byte[] key = it.key();
+                if (!startsWith(key, prefix)) {
+                    break;
+                }
+                String name = new String(key, prefix.length, key.length - prefix.length, StandardCharsets.UTF_8);
+                if (name.equals(startAfter)) {
+                    continue;
+                }
+                result.add(new Dentry(name, ByteBuffer.wrap(it.value()).getLong()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 顺序扫描两张表，加载除根目录外的所有条目到inodes，设置inode号、父目录和文件名，不建立目录树
+     * @return 加载的条目数
+     */
+    public long load(Map<Long, FileInfo> inodes) throws IOException {
+        long n = 0;
+        try (RocksIterator it = db.newIterator()) {
+            byte[] prefix = {INODE_PREFIX};
+            for (it.seek(prefix); it.isValid() && startsWith(it.key(), prefix); it.next()) {
+                long id = ByteBuffer.wrap(it.key(), 1, 8).getLong();
+                FileInfo fi = FileInfoCodec.decode(null, it.value());
+                fi.setInodeId(id);
+                inodes.put(id, fi);
+                n++;
+            }
+            prefix = new byte[]{DENTRY_PREFIX};
+            for (it.seek(prefix); it.isValid() && startsWith(it.key(), prefix); it.next()) {
+                byte[] key = it.key();
+                FileInfo fi = inodes.get(ByteBuffer.wrap(it.value()).getLong());
+                if (fi != null) {
+                    fi.setParentId(ByteBuffer.wrap(key, 1, 8).getLong());
+                    fi.setFileName(new String(key, 9, key.length - 9, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return n;
+    }
+}
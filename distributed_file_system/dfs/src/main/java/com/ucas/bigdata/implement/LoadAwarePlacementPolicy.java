@@ -0,0 +1,67 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.NodeStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 两次随机选择(power of two choices)：每个副本从候选节点中随机取两个，选负载较低的一个；
+ * 两者负载相差不超过Config.META_PLACEMENT_LOAD_SLACK时选已用空间比例较低的一个，使各节点的磁盘使用率趋于一致。
+ * 失效的节点，以及可用空间不足一个数据块或低于容量的Config.META_PLACEMENT_MIN_FREE_RATIO的节点不作为候选。
+ * 负载和空间来自心跳，并计入上次心跳之后已分配的副本，心跳间隔内不会集中分配到同一个节点。
+ */
+public class LoadAwarePlacementPolicy implements BlockPlacementPolicy {
+
+    public List<StorageNode> chooseTargets(Collection<StorageNode> nodes, int count, long now) {
+        List<StorageNode> candidates = new ArrayList<>(nodes.size());
+        for (StorageNode node : nodes) {
+            if (node.isAlive(now) && hasSpace(node)) {
+                candidates.add(node);
+            }
+        }
+        Random random = ThreadLocalRandom.current();
+        List<StorageNode> chosen = new ArrayList<>(count);
+        while (chosen.size() < count && !candidates.isEmpty()) {
+            int n = candidates.size();
+            int pick = random.nextInt(n);
+            if (n > 1) {
+                int other = random.nextInt(n - 1);
+                if (other >= pick) {
+                    other++;
+                }
+                if (better(candidates.get(other), candidates.get(pick))) {
+                    pick = other;
+                }
+            }
+            chosen.add(candidates.get(pick));
+            candidates.set(pick, candidates.get(n - 1));
+            candidates.remove(n - 1);
+        }
+        return chosen;
+    }
+
+    // 还没有汇报过空间的节点视为有空间
+    static boolean hasSpace(StorageNode node) {
+        NodeStats stats = node.getStats();
+        if (stats == null) {
+            return true;
+        }
+        long remaining = node.getRemaining();
+        return remaining >= Config.BLOCK_SIZE && remaining >= stats.getCapacity() * Config.META_PLACEMENT_MIN_FREE_RATIO;
+    }
+
+    // a是否比b更适合放置副本
+    static boolean better(StorageNode a, StorageNode b) {
+        double la = a.getLoad();
+        double lb = b.getLoad();
+        if (Math.abs(la - lb) > Config.META_PLACEMENT_LOAD_SLACK) {
+            return la < lb;
+        }
+        return a.getUsedRatio() < b.getUsedRatio();
+    }
+}
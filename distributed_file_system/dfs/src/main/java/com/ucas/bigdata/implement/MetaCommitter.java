@@ -0,0 +1,384 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Histogram;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 元数据修改的组提交和编辑日志。
+ * 工作线程把一次请求的所有修改放进一个Mutation后调用commit。同一时刻只有一个提交线程作为写入者，
+ * 把排队中的Mutation合并成一个WriteBatch，一次写入WAL(可选fsync)，然后唤醒这些Mutation的线程；
+ * 写入期间新到的Mutation排队等待下一个写入者。
+ * 没有竞争时请求线程自己写入，不经过线程切换；并发请求分摊一次写入和同步的开销。
+ * 一个WriteBatch整体原子生效，所以同一个Mutation中的修改(例如递归删除整个子树)
+ * 在崩溃后要么全部存在、要么全部不存在。
+ * 每个Mutation分配一个递增的事务号，作为一条日志记录写入RocksDB，key为'J'加8字节大端事务号，
+ * 启动时在命名空间镜像之后按事务号顺序重放；写入新镜像后截断已包含的日志。
+ * 同一个WriteBatch中还按记录更新InodeTable的inode表和目录项表，两者总是一致。
+ * 记录格式：若干个操作，每个为 byte 操作码加参数：
+ * <pre>
+ *   PUT_INODE    long inode号, int 长度, FileInfoCodec编码
+ *   DELETE_INODE long inode号
+ *   LINK         long 父目录inode号, UTF 文件名, long inode号
+ *   UNLINK       long 父目录inode号, UTF 文件名
+ * </pre>
+ * 操作码1、2是旧格式以路径为key的PUT/DELETE，只由MetaSchemaMigration读取。
+ */
+public class MetaCommitter {
+    private static Logger log = LogManager.getLogger(MetaCommitter.class);
+    private static final byte JOURNAL_PREFIX = 'J';
+    private static final int JOURNAL_KEY_SIZE = 9;
+    private static final byte OP_PUT = 1;      // 旧格式
+    private static final byte OP_DELETE = 2;   // 旧格式
+    private static final byte OP_PUT_INODE = 3;
+    private static final byte OP_DELETE_INODE = 4;
+    private static final byte OP_LINK = 5;
+    private static final byte OP_UNLINK = 6;
+
+    private final RocksDB db;
+    private final WriteOptions writeOptions;
+    private final int maxGroupSize;
+    private final ConcurrentLinkedQueue<Mutation> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();   // 是否已有写入者
+    // 以下字段只由写入者使用
+    private final List<Mutation> group = new ArrayList<>();
+    private final WriteBatch batch = new WriteBatch();
+    private final Replayer tables = InodeTable.writer(batch);
+    private volatile long lastTxId;      // 最后一个已写入的事务号
+
+    // 统计计数只由写入者修改
+    private volatile long commits;       // 提交的Mutation数
+    private volatile long groups;        // 写入RocksDB的次数
+    private volatile long ops;
+    private volatile long writeNanos;
+    private volatile int maxGroup;
+    private final Histogram writeLatency = new Histogram();  // 每次db.write的纳秒数
+    private final Histogram groupSizes = new Histogram();    // 每次写入合并的Mutation数
+
+    /**
+     * @param sync 为true时每次写入都fsync WAL
+     * @param maxGroupSize 一次写入最多合并的Mutation数
+     */
+    public MetaCommitter(RocksDB db, boolean sync, int maxGroupSize) {
+        this.db = db;
+        this.writeOptions = new WriteOptions().setSync(sync);
+        this.maxGroupSize = maxGroupSize;
+    }
+
+    public void close() {
+        batch.close();
+        writeOptions.close();
+    }
+
+    /**
+     * 提交一组修改并等待写入RocksDB
+     * @throws IOException 写入失败，修改都没有生效
+     */
+    public void commit(Mutation m) throws IOException {
+        if (m.isEmpty()) {
+            return;
+        }
+        m.waiter = Thread.currentThread();
+        queue.add(m);
+        while (!m.done) {
+            if (writing.compareAndSet(false, true)) {
+                // 当前线程成为写入者，把排队中的Mutation一起写入
+                try {
+                    Mutation next;
+                    while (group.size() < maxGroupSize && (next = queue.poll()) != null) {
+                        group.add(next);
+                    }
+                    write(group);
+                    for (Mutation done : group) {
+                        if (done != m) {
+                            LockSupport.unpark(done.waiter);
+                        }
+                    }
+                    group.clear();
+                } finally {
+                    writing.set(false);
+                }
+                // 写入期间排队的Mutation由队首的线程接着写入
+                Mutation head = queue.peek();
+                if (head != null) {
+                    LockSupport.unpark(head.waiter);
+                }
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (m.error != null) {
+            throw new IOException("Metadata commit failed: " + m.error.getMessage(), m.error);
+        }
+    }
+
+    private void write(List<Mutation> group) {
+        Exception error = null;
+        int n = 0;
+        long start = System.nanoTime();
+        long txId = lastTxId;
+        try {
+            batch.clear();
+            for (Mutation m : group) {
+                byte[] record = m.record();
+                batch.put(journalKey(++txId), record);
+                applyRecord(record, tables, null);
+                n += m.size();
+            }
+            long writeStart = System.nanoTime();
+            db.write(writeOptions, batch);
+            writeLatency.record(System.nanoTime() - writeStart);
+        } catch (RocksDBException | IOException e) {
+            log.error("Metadata group commit of " + group.size() + " mutations failed", e);
+            error = e;
+        }
+        if (error == null) {
+            lastTxId = txId;
+            writeNanos += System.nanoTime() - start;
+            commits += group.size();
+            groups++;
+            ops += n;
+            maxGroup = Math.max(maxGroup, group.size());
+            groupSizes.record(group.size());
+        }
+        for (Mutation m : group) {
+            m.error = error;
+            m.done = true;
+        }
+    }
+
+    public Histogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public Histogram getGroupSizes() {
+        return groupSizes;
+    }
+
+    public long getLastTxId() {
+        return lastTxId;
+    }
+
+    /**
+     * 按事务号顺序重放afterTxId之后的日志，并把最后一个事务号作为后续提交的起点
+     * @return 重放的事务数
+     */
+    public long replay(long afterTxId, Replayer replayer) throws IOException {
+        return replay(afterTxId, replayer, null);
+    }
+
+    // 重放旧格式以路径为key的日志，用于迁移
+    public long replayPaths(long afterTxId, PathReplayer replayer) throws IOException {
+        return replay(afterTxId, null, replayer);
+    }
+
+    private long replay(long afterTxId, Replayer replayer, PathReplayer pathReplayer) throws IOException {
+        long count = 0;
+        long txId = afterTxId;
+        try (RocksIterator it = db.newIterator()) {
+            for (it.seek(journalKey(afterTxId + 1)); it.isValid(); it.next()) {
+                byte[] key = it.key();
+                if (!isJournalKey(key)) {
+                    break;
+                }
+                long id = ByteBuffer.wrap(key, 1, 8).getLong();
+                if (id != txId + 1) {
+                    throw new IOException("Journal gap: expected txid " + (txId + 1) + " but found " + id);
+                }
+                applyRecord(it.value(), replayer, pathReplayer);
+                txId = id;
+                count++;
+            }
+        }
+        lastTxId = txId;
+        return count;
+    }
+
+    /**
+     * 不重放日志，直接以最后一条日志的事务号作为起点，用于从InodeTable加载命名空间时
+     * @param floor 没有日志时的事务号(最新镜像的事务号)
+     */
+    public long recoverLastTxId(long floor) {
+        long txId = floor;
+        try (RocksIterator it = db.newIterator()) {
+            it.seekForPrev(journalKey(Long.MAX_VALUE));
+            if (it.isValid() && isJournalKey(it.key())) {
+                txId = Math.max(txId, ByteBuffer.wrap(it.key(), 1, 8).getLong());
+            }
+        }
+        lastTxId = txId;
+        return txId;
+    }
+
+    private static void applyRecord(byte[] record, Replayer replayer, PathReplayer pathReplayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        while (in.available() > 0) {
+            byte op = in.readByte();
+            if (op == OP_PUT || op == OP_DELETE) {
+                if (pathReplayer == null) {
+                    throw new IOException("Path-keyed journal record, the metadata needs MetaSchemaMigration");
+                }
+                String path = in.readUTF();
+                if (op == OP_PUT) {
+                    pathReplayer.put(path, readValue(in));
+                } else {
+                    pathReplayer.delete(path);
+                }
+                continue;
+            }
+            if (replayer == null) {
+                throw new IOException("Unexpected journal op " + op + " while reading path-keyed records");
+            }
+            switch (op) {
+                case OP_PUT_INODE:
+                    long id = in.readLong();
+                    replayer.putInode(id, readValue(in));
+                    break;
+                case OP_DELETE_INODE:
+                    replayer.deleteInode(in.readLong());
+                    break;
+                case OP_LINK:
+                    long parentId = in.readLong();
+                    String name = in.readUTF();
+                    replayer.link(parentId, name, in.readLong());
+                    break;
+                case OP_UNLINK:
+                    parentId = in.readLong();
+                    replayer.unlink(parentId, in.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unknown journal op " + op);
+            }
+        }
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+    // 删除事务号不大于txId的日志，它们已经包含在镜像中
+    public void truncate(long txId) throws RocksDBException {
+        db.deleteRange(journalKey(0), journalKey(txId + 1));
+    }
+
+    // 加入删除所有日志的操作，迁移后旧格式的日志不再需要
+    static void deleteAll(WriteBatch batch) throws RocksDBException {
+        batch.deleteRange(journalKey(0), journalKey(Long.MAX_VALUE));
+    }
+
+    public static boolean isJournalKey(byte[] key) {
+        return key.length == JOURNAL_KEY_SIZE && key[0] == JOURNAL_PREFIX;
+    }
+
+    static byte[] journalKey(long txId) {
+        return ByteBuffer.allocate(JOURNAL_KEY_SIZE).put(JOURNAL_PREFIX).putLong(txId).array();
+    }
+
+    public String metrics() {
+        long g = groups;
+        return String.format("committer{sync=%s, txid=%d, commits=%d, writes=%d, ops=%d, avgGroup=%.1f, maxGroup=%d, avgWriteUs=%.1f, queued=%d}",
+                writeOptions.sync(), lastTxId, commits, g, ops, g == 0 ? 0 : (double) commits / g, maxGroup,
+                g == 0 ? 0 : writeNanos / 1000.0 / g, queue.size());
+    }
+
+    /**
+     * 重放日志时对每个操作的回调
+     */
+    public interface Replayer {
+        void putInode(long id, byte[] value) throws IOException;
+
+        void deleteInode(long id) throws IOException;
+
+        void link(long parentId, String name, long id) throws IOException;
+
+        void unlink(long parentId, String name) throws IOException;
+    }
+
+    /**
+     * 旧格式日志的回调
+     */
+    public interface PathReplayer {
+        void put(String path, byte[] value) throws IOException;
+
+        void delete(String path) throws IOException;
+    }
+
+    /**
+     * 一次请求产生的修改，提交时作为一条日志记录原子生效
+     */
+    public static class Mutation {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int size;
+        private Thread waiter;
+        private volatile boolean done;
+        private Exception error;   // 在done之前写入，done为true后可见
+
+        // 写入inode的属性(FileInfoCodec编码)
+        public Mutation putInode(long id, byte[] value) throws IOException {
+            out.writeByte(OP_PUT_INODE);
+            out.writeLong(id);
+            out.writeInt(value.length);
+            out.write(value);
+            size++;
+            return this;
+        }
+
+        public Mutation deleteInode(long id) throws IOException {
+            out.writeByte(OP_DELETE_INODE);
+            out.writeLong(id);
+            size++;
+            return this;
+        }
+
+        // 在目录parentId下添加指向id的目录项
+        public Mutation link(long parentId, String name, long id) throws IOException {
+            out.writeByte(OP_LINK);
+            out.writeLong(parentId);
+            out.writeUTF(name);
+            out.writeLong(id);
+            size++;
+            return this;
+        }
+
+        public Mutation unlink(long parentId, String name) throws IOException {
+            out.writeByte(OP_UNLINK);
+            out.writeLong(parentId);
+            out.writeUTF(name);
+            size++;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        byte[] record() throws IOException {
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileInfoCodec;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 把以路径为key的旧格式元数据转换为InodeTable格式。
+ * 旧格式的来源依次为：版本1的镜像加路径格式的日志，或者没有镜像时RocksDB中以路径为key的条目。
+ * 按目录树广度优先、同一目录内按文件名顺序分配inode号，写入inode表和目录项表以及版本2的镜像，
+ * 最后在一个WriteBatch中删除旧日志和旧条目并写入格式标记。标记写入前中途失败时，下次会从旧数据重新迁移。
+ * MetadataServer启动时自动调用；也可以单独运行：MetaSchemaMigration [db路径] [镜像目录]，完成后逐个目录校验。
+ */
+public class MetaSchemaMigration {
+    private static Logger log = LogManager.getLogger(MetaSchemaMigration.class);
+    private static final int BATCH_SIZE = 10000;
+
+    public static void main(String[] args) throws Exception {
+        String dbPath = args.length > 0 ? args[0] : Config.META_DB_PATH;
+        String imageDir = args.length > 1 ? args[1] : Config.META_IMAGE_DIR;
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, dbPath)) {
+            MetaCommitter committer = new MetaCommitter(db, true, 1);
+            try {
+                FileInfo root = migrate(db, committer, new File(imageDir), Config.META_LOAD_THREADS);
+                if (root == null) {
+                    System.out.println(dbPath + " is already in the inode format.");
+                    return;
+                }
+                long mismatches = verify(new InodeTable(db), root);
+                System.out.println("Verified directory listings against the inode tables: " + mismatches + " mismatches");
+            } finally {
+                committer.close();
+            }
+        }
+    }
+
+    /**
+     * 需要时转换旧格式，已是新格式时什么也不做。committer的事务号会设为旧日志的最后一个事务号
+     * @return 转换后的目录树的根，没有进行转换时返回null
+     */
+    public static FileInfo migrate(RocksDB db, MetaCommitter committer, File imageDir, int threads)
+            throws IOException, RocksDBException {
+        InodeTable table = new InodeTable(db);
+        if (table.hasSchema()) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        final Map<String, FileInfo> paths = new ConcurrentHashMap<>();
+        FileInfo root = new FileInfo(null, "/", true, 0L, "root", 0L);
+        paths.put("/", root);
+
+        List<File> oldImages = new ArrayList<>();
+        for (File image : NamespaceImage.list(imageDir)) {
+            if (NamespaceImage.versionOf(image) == NamespaceImage.VERSION_PATHS) {
+                oldImages.add(image);
+            }
+        }
+        long imageTx = 0;
+        String source = "none";
+        boolean loaded = false;
+        for (File image : oldImages) {
+            try {
+                NamespaceImage.LoadStats stats = NamespaceImage.loadPaths(image, paths, threads);
+                imageTx = stats.txId;
+                source = stats.toString();
+                loaded = true;
+                break;
+            } catch (IOException e) {
+                log.error("Cannot load image " + image + ", trying an older one", e);
+                paths.clear();
+                paths.put("/", root);
+            }
+        }
+        if (!oldImages.isEmpty() && !loaded) {
+            throw new IOException("No loadable image to migrate in " + imageDir);
+        }
+        if (!loaded) {
+            long legacy = loadLegacyEntries(db, paths);
+            source = "legacy{entries=" + legacy + "}";
+        }
+        long txns = committer.replayPaths(imageTx, new MetaCommitter.PathReplayer() {
+            public void put(String path, byte[] value) throws IOException {
+                paths.put(path, FileInfoCodec.decode(path, value));
+            }
+
+            public void delete(String path) {
+                paths.remove(path);
+            }
+        });
+
+        if (!loaded && paths.size() == 1 && txns == 0) {
+            // 新建的db，没有需要转换的数据
+            try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+                InodeTable.putSchema(batch);
+                db.write(writeOptions, batch);
+            }
+            return null;
+        }
+
+        long orphans = NamespaceImage.relink(paths, threads);
+        long lastInodeId = assignInodes(root);
+        long txId = committer.getLastTxId();
+        writeTables(db, paths.values());
+        // 镜像在删除旧数据之前写入，与旧镜像同名时替换它
+        long count;
+        try (NamespaceImage.Writer writer = new NamespaceImage.Writer(imageDir, txId, lastInodeId)) {
+            for (FileInfo fi : paths.values()) {
+                if (fi != root) {
+                    writer.append(fi);
+                }
+            }
+            count = writer.getCount();
+            writer.commit();
+        }
+        try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+            MetaCommitter.deleteAll(batch);
+            batch.deleteRange("/".getBytes(), "0".getBytes()); // '0'是'/'的下一个字符，删除所有以'/'开头的旧条目
+            InodeTable.putSchema(batch);
+            db.write(writeOptions, batch);
+        }
+        for (File image : oldImages) {
+            if (NamespaceImage.versionOf(image) == NamespaceImage.VERSION_PATHS && !image.delete()) {
+                log.error("Cannot delete migrated image " + image);
+            }
+        }
+        System.out.println(String.format("Metadata migrated to inode tables: entries=%d source=%s journal{txns=%d} "
+                        + "orphans=%d lastInodeId=%d txid=%d in %dms", count, source, txns, orphans, lastInodeId, txId,
+                System.currentTimeMillis() - start));
+        return root;
+    }
+
+    // 读取旧格式以路径为key的条目，返回条目数
+    private static long loadLegacyEntries(RocksDB db, Map<String, FileInfo> paths) throws IOException {
+        long n = 0;
+        try (RocksIterator iterator = db.newIterator()) {
+            for (iterator.seek("/".getBytes()); iterator.isValid(); iterator.next()) {
+                byte[] key = iterator.key();
+                if (key.length == 0 || key[0] != '/') {
+                    break;
+                }
+                String path = new String(key);
+                if (!"/".equals(path)) {
+                    paths.put(path, FileInfoCodec.decode(path, iterator.value()));
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    // 广度优先分配inode号，同一目录的条目编号相邻，返回最大的inode号
+    private static long assignInodes(FileInfo root) {
+        long next = InodeTable.ROOT_ID;
+        root.setInodeId(next);
+        List<FileInfo> level = new ArrayList<>();
+        level.add(root);
+        while (!level.isEmpty()) {
+            List<FileInfo> children = new ArrayList<>();
+            for (FileInfo dir : level) {
+                for (FileInfo child : dir.getChildren()) {
+                    child.setInodeId(++next);
+                    child.setParentId(dir.getInodeId());
+                    if (child.isDirectory()) {
+                        children.add(child);
+                    }
+                }
+            }
+            level = children;
+        }
+        return next;
+    }
+
+    private static void writeTables(RocksDB db, Iterable<FileInfo> entries) throws IOException, RocksDBException {
+        FileInfoCodec codec = new FileInfoCodec();
+        try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+            // 清除上一次未完成的迁移写入的记录
+            batch.deleteRange(new byte[]{'D'}, new byte[]{'E'});
+            batch.deleteRange(new byte[]{'I'}, new byte[]{'J'});
+            MetaCommitter.Replayer tables = InodeTable.writer(batch);
+            for (FileInfo fi : entries) {
+                if (fi.getInodeId() == InodeTable.ROOT_ID) {
+                    continue;
+                }
+                tables.putInode(fi.getInodeId(), codec.encodeToArray(fi));
+                tables.link(fi.getParentId(), fi.getFileName(), fi.getInodeId());
+                if (batch.count() >= BATCH_SIZE) {
+                    db.write(writeOptions, batch);
+                    batch.clear();
+                }
+            }
+            db.write(writeOptions, batch);
+        }
+    }
+
+    // 逐个目录比较目录项表的前缀扫描结果与内存中的目录树，返回不一致的目录数
+    private static long verify(InodeTable table, FileInfo root) {
+        long mismatches = 0;
+        List<FileInfo> stack = new ArrayList<>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            FileInfo dir = stack.remove(stack.size() - 1);
+            List<InodeTable.Dentry> dentries = table.list(dir.getInodeId(), null, Integer.MAX_VALUE);
+            int i = 0;
+            boolean same = dentries.size() == dir.getChildren().size();
+            for (FileInfo child : dir.getChildren()) {
+                if (same && (i >= dentries.size() || dentries.get(i).id != child.getInodeId()
+                        || !dentries.get(i).name.equals(child.getFileName()))) {
+                    same = false;
+                }
+                i++;
+                if (child.isDirectory()) {
+                    stack.add(child);
+                }
+            }
+            if (!same) {
+                mismatches++;
+                log.error("Directory " + dir.getPath() + " differs in the inode tables");
+            }
+        }
+        return mismatches;
+    }
+}
@@ -1,107 +1,449 @@
 package com.ucas.bigdata.implement;
 
+import com.ucas.bigdata.common.BlockInfo;
 import com.ucas.bigdata.common.Config;
 import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileInfoCodec;
+import com.ucas.bigdata.common.FileStatus;
+import com.ucas.bigdata.common.HeartbeatResponse;
+import com.ucas.bigdata.common.Histogram;
 import com.ucas.bigdata.common.MetaOpCode;
+import com.ucas.bigdata.common.Metrics;
+import com.ucas.bigdata.common.NodeStats;
+import com.ucas.bigdata.common.ReplicaStatus;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
-import org.rocksdb.RocksIterator;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 元数据服务器。每个客户端连接由RequestEngine的一个工作线程处理，
+ * 命名空间保存在并发Map中，create/delete/list等操作通过PathLockManager的分段路径锁互斥：
+ * 读锁住祖先目录，按操作类型读锁或写锁住目标路径。
+ */
+@SuppressWarnings("try")  // try (PathLockManager.Locked l = ...) 只用于在块结束时释放路径锁，块中不引用l
 public class MetadataServer {
     private static Logger log = LogManager.getLogger(MetadataServer.class);
     private ServerSocket serverSocket;
     private Map<String, String> fileToStorageNode; // 文件路径到存储节点名称的映射
-    private LinkedHashMap<String,StorageNode> storageNodes = new LinkedHashMap();
-    private LinkedHashMap<String,Long> storageNodesUpTime = new LinkedHashMap();
+    private Map<String,StorageNode> storageNodes = new ConcurrentHashMap<>();
+    private final BlockPlacementPolicy placement = BlockPlacementPolicy.create(Config.META_PLACEMENT_POLICY);
+    private final Map<String, FileInfo> blockFiles = new ConcurrentHashMap<>(); // 数据块ID到所属文件，处理块报告和节点失效时使用
+    private final UnderReplicatedBlocks neededReplications = new UnderReplicatedBlocks(Config.REPLICATION);
     private Map<String, String> fileOwners;
-    private Map<String, FileInfo> fileSystem; // 文件元数据，文件路径到文件信息的映射
+    private final FileInfo root;               // 目录树的根，路径从这里逐级查找
+    private final Map<Long, FileInfo> inodes;  // inode号到条目的映射，包括根目录，写镜像时遍历
     private RocksDB db;
+    private MetaCommitter committer;   // 所有修改经由组提交作为日志写入db，同时更新db中的InodeTable
+    private final AtomicLong lastInodeId = new AtomicLong(InodeTable.ROOT_ID);
+    private File imageDir;             // 命名空间镜像目录
+    private volatile long lastImageTxId;
+    private volatile long lastCheckpointTime = System.currentTimeMillis();
+    private final PathLockManager locks = new PathLockManager(Config.META_LOCK_STRIPES);
+    private RequestEngine engine;
+    private final Metrics stats;                 // STATS请求返回的指标
+    private final Histogram[] opLatency = new Histogram[MetaOpCode.values().length];  // 按MetaOpCode的处理延迟
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder connections;         // 当前连接数
+    private final LongAdder connectionsTotal;
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
 
     public MetadataServer() {
-        fileSystem = new HashMap();
-        fileToStorageNode = new HashMap();
+        this(Config.META_SERVRE_PORT, Config.META_DB_PATH, Config.META_IMAGE_DIR);
+    }
+
+    public MetadataServer(int port, String dbPath) {
+        this(port, dbPath, dbPath + "_image");
+    }
+
+    public MetadataServer(int port, String dbPath, String imageDir) {
+        this.imageDir = new File(imageDir);
+        inodes = new ConcurrentHashMap<>();
+        fileToStorageNode = new ConcurrentHashMap<>();
+        stats = new Metrics("meta:" + port);
+        for (MetaOpCode op : MetaOpCode.values()) {
+            opLatency[op.ordinal()] = stats.histogram("op." + op + ".ns");
+        }
+        bytesIn = stats.counter("bytes.in");
+        bytesOut = stats.counter("bytes.out");
+        connections = stats.counter("connections.active");
+        connectionsTotal = stats.counter("connections.total");
         // 初始化存储节点，对应三台虚拟机
-        storageNodes.put("dfs101", new StorageNode("dfs101"));
-        storageNodes.put("dfs102", new StorageNode("dfs102"));
-        storageNodes.put("dfs103", new StorageNode("dfs103"));
+        long now = System.currentTimeMillis();
+        registerNode("dfs101", now);
+        registerNode("dfs102", now);
+        registerNode("dfs103", now);
         // 初始化根目录（文件系统的起点）
-        fileSystem.put("/", new FileInfo(null, "/", true,0l,"root", 0l));
+        root = new FileInfo(null, "/", true,0l,"root", 0l);
+        root.setInodeId(InodeTable.ROOT_ID);
+        inodes.put(InodeTable.ROOT_ID, root);
+        engine = new RequestEngine("meta", Config.META_SERVER_WORKERS, Config.META_SERVER_QUEUE_SIZE,
+                Config.META_SERVER_VIRTUAL_THREADS);
         try {
-            serverSocket = new ServerSocket(Config.META_SERVRE_PORT);
+            serverSocket = new ServerSocket(port);
 
             // 初始化DB
             Options options = new Options().setCreateIfMissing(true);
-            db = RocksDB.open(options, Config.META_DB_PATH);
-
-            // 加载已有元数据
-            loadMetadata();
+            db = RocksDB.open(options, dbPath);
+            committer = new MetaCommitter(db, Config.META_COMMIT_SYNC, Config.META_COMMIT_MAX_GROUP);
+            stats.register("rocksdb.write.ns", committer.getWriteLatency());
+            stats.register("rocksdb.group", committer.getGroupSizes());
 
         } catch (IOException e) {
             log.info(e);} catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
+        // 加载已有元数据，失败时不能以空的命名空间启动，否则下一次镜像会覆盖已有数据
+        try {
+            loadMetadata();
+        } catch (IOException | RocksDBException e) {
+            throw new RuntimeException("Cannot recover namespace", e);
+        }
+    }
+
+    /**
+     * 启动时恢复命名空间：并行加载最新的镜像，按顺序重放镜像之后的日志，再并行建立目录树。
+     * 旧的以路径为key的格式先由MetaSchemaMigration转换；没有可用的镜像时从InodeTable顺序加载。
+     */
+    private void loadMetadata() throws IOException, RocksDBException {
+        long start = System.currentTimeMillis();
+        int threads = Config.META_LOAD_THREADS;
+        MetaSchemaMigration.migrate(db, committer, imageDir, threads);
+
+        long imageTx = -1;
+        String imageStats = "image{none}";
+        List<File> images = NamespaceImage.list(imageDir);
+        for (File image : images) {
+            try {
+                NamespaceImage.LoadStats stats = NamespaceImage.load(image, inodes, threads);
+                imageTx = stats.txId;
+                imageStats = stats.toString();
+                lastInodeId.set(Math.max(lastInodeId.get(), stats.lastInodeId));
+                break;
+            } catch (IOException e) {
+                // 镜像损坏时退回上一个镜像，日志保留到最旧的镜像
+                log.error("Cannot load image " + image + ", trying an older one", e);
+                inodes.clear();
+                inodes.put(InodeTable.ROOT_ID, root);
+            }
+        }
+
+        long replayStart = System.currentTimeMillis();
+        long txns = 0;
+        if (imageTx >= 0) {
+            txns = committer.replay(imageTx, new MetaCommitter.Replayer() {
+                public void putInode(long id, byte[] value) throws IOException {
+                    FileInfo fi = FileInfoCodec.decode(null, value);
+                    fi.setInodeId(id);
+                    FileInfo old = inodes.put(id, fi);
+                    if (old != null) {
+                        fi.setParentId(old.getParentId());
+                    }
+                }
+
+                public void deleteInode(long id) {
+                    inodes.remove(id);
+                }
+
+                public void link(long parentId, String name, long id) {
+                    FileInfo fi = inodes.get(id);
+                    if (fi != null) {
+                        fi.setParentId(parentId);
+                        fi.setFileName(name);
+                    }
+                }
+
+                public void unlink(long parentId, String name) {
+                    // 目录项之后总是跟着删除inode或者新的目录项
+                }
+            });
+        } else {
+            // InodeTable与日志在同一个WriteBatch中写入，总是最新的
+            if (!images.isEmpty()) {
+                log.error("No loadable namespace image in " + imageDir + ", loading the inode tables");
+            }
+            long entries = new InodeTable(db).load(inodes);
+            long txId = committer.recoverLastTxId(images.isEmpty() ? 0 : NamespaceImage.txIdOf(images.get(0)));
+            imageStats = String.format("tables{txid=%d, entries=%d, %dms}", txId, entries,
+                    System.currentTimeMillis() - replayStart);
+        }
+        for (long id : inodes.keySet()) {
+            if (id > lastInodeId.get()) {
+                lastInodeId.set(id);
+            }
+        }
+        long linkStart = System.currentTimeMillis();
+        long orphans = NamespaceImage.link(inodes, root, threads);
+        for (FileInfo fi : inodes.values()) {
+            for (BlockInfo block : fi.getBlocks()) {
+                indexBlock(fi, block);
+                checkReplication(block);
+            }
+        }
+        long end = System.currentTimeMillis();
+        lastImageTxId = imageTx;
+        System.out.println(String.format("Namespace loaded: entries=%d %s journal{txns=%d, %dms} "
+                        + "link{%dms, orphans=%d} lastInodeId=%d total=%dms", inodes.size(), imageStats, txns,
+                linkStart - replayStart, end - linkStart, orphans, lastInodeId.get(), end - start));
     }
 
-    private void loadMetadata() {
-        try (RocksIterator iterator = db.newIterator()) {
-            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
-                String path = new String(iterator.key());
-                FileInfo fileInfo = deserializeFileInfo(iterator.value());
-                fileSystem.put(path, fileInfo);
+    /**
+     * 写入新的命名空间镜像，并截断保留的最旧镜像之前的日志。
+     * 与请求并发进行：先短暂锁住所有分段取得一个没有进行中操作的事务号，
+     * 之后逐条在条目路径的读锁下编码；该事务号之后的修改即使已经反映在镜像中，重放日志时也会得到同样的结果。
+     * 按inode遍历而不是遍历目录树，并发的改名不会使整个子树被漏掉或写入两次。
+     * @return 新镜像，自上次镜像以来没有修改时返回null
+     */
+    public synchronized File checkpoint() throws IOException {
+        long txId;
+        try (PathLockManager.Locked l = locks.lockAll()) {
+            txId = committer.getLastTxId();
+        }
+        if (txId == lastImageTxId && !NamespaceImage.list(imageDir).isEmpty()) {
+            lastCheckpointTime = System.currentTimeMillis();
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        File image;
+        long count;
+        try (NamespaceImage.Writer writer = new NamespaceImage.Writer(imageDir, txId, lastInodeId.get())) {
+            for (FileInfo fi : inodes.values()) {
+                if (fi == root) {
+                    continue;   // 根目录总是在启动时创建
+                }
+                while (true) {
+                    String path = fi.getPath();
+                    // 读锁住路径上的所有目录，条目自身和它的祖先都不会在编码期间被改名
+                    try (PathLockManager.Locked l = locks.lockForRead(path)) {
+                        if (inodes.get(fi.getInodeId()) != fi) {
+                            break;   // 已删除的条目由日志处理
+                        }
+                        if (path.equals(fi.getPath())) {
+                            writer.append(fi);
+                            break;
+                        }
+                    }
+                }
             }
-        } catch (Exception e) {
-            log.error("Error loading metadata from RocksDB: ", e);
+            count = writer.getCount();
+            image = writer.commit();
         }
+        lastImageTxId = txId;
+        lastCheckpointTime = System.currentTimeMillis();
+        long oldest = NamespaceImage.purge(imageDir, Config.META_IMAGE_RETAIN);
+        try {
+            committer.truncate(oldest);
+        } catch (RocksDBException e) {
+            log.error("Cannot truncate journal up to txid " + oldest, e);
+        }
+        log.info(String.format("Checkpoint %s: %d entries, %dMB in %dms", image.getName(), count,
+                image.length() >> 20, lastCheckpointTime - start));
+        return image;
     }
 
-    private FileInfo deserializeFileInfo(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return (FileInfo) ois.readObject();
+    // 按日志长度或时间间隔定期写入镜像
+    private class CheckpointThread implements Runnable {
+        public void run() {
+            while (isRunning) {
+                try {
+                    Thread.sleep(10 * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long pending = committer.getLastTxId() - lastImageTxId;
+                boolean due = System.currentTimeMillis() - lastCheckpointTime >= Config.META_CHECKPOINT_INTERVAL_SECS * 1000L;
+                if (pending >= Config.META_CHECKPOINT_TXNS || (pending > 0 && due)) {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        log.error("Checkpoint failed", e);
+                    }
+                }
+            }
+        }
     }
 
-    private byte[] serializeFileInfo(FileInfo fileInfo) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(fileInfo);
-        return bos.toByteArray();
+    // 每个心跳周期检查一次DataServer，超时的节点判定为失效，并为副本数不足的数据块分配复制任务
+    private class LivenessMonitor implements Runnable {
+        public void run() {
+            while (isRunning) {
+                try {
+                    Thread.sleep(Config.HEARTBEAT_SECS * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                checkLiveness(System.currentTimeMillis());
+                scheduleReplication(System.currentTimeMillis());
+            }
+        }
     }
 
-    private void serve() {
+    /**
+     * 把超过TIMEOUT_OF_HEARTBEATS个心跳周期没有心跳的节点标记为失效，其上FINALIZED的副本改为MISSING，
+     * 读请求和副本放置不再使用它；节点恢复心跳后由完整块报告恢复副本状态
+     */
+    void checkLiveness(long now) {
+        for (StorageNode node : storageNodes.values()) {
+            synchronized (node) {
+                if (!node.markDead(now)) {
+                    continue;
+                }
+                int missing = updateReplicas(node, node.getBlocks(), ReplicaStatus.FINALIZED, ReplicaStatus.MISSING, null);
+                log.warn("DataServer " + node.getName() + " is dead, no heartbeat for "
+                        + (now - node.getLastHeartbeat()) / 1000 + "s, " + missing + " replicas marked missing");
+            }
+        }
+    }
+
+    // 每个工作线程复用一个编码器和它的缓冲区
+    private static final ThreadLocal<FileInfoCodec> CODEC = new ThreadLocal<FileInfoCodec>() {
+        @Override
+        protected FileInfoCodec initialValue() {
+            return new FileInfoCodec();
+        }
+    };
+
+    // 把一个条目的属性写入RocksDB，等待组提交完成
+    private void persist(FileInfo fileInfo) throws IOException {
+        committer.commit(new MetaCommitter.Mutation().putInode(fileInfo.getInodeId(),
+                CODEC.get().encodeToArray(fileInfo)));
+    }
+
+    public void serve() {
         System.out.println("MetaServer is running...");
         isRunning = true;
+        Thread checkpointThread = new Thread(new CheckpointThread(), "meta-checkpoint");
+        checkpointThread.setDaemon(true);
+        checkpointThread.start();
+        Thread livenessThread = new Thread(new LivenessMonitor(), "meta-liveness");
+        livenessThread.setDaemon(true);
+        livenessThread.start();
+        registerGauges();
+        stats.startDump(Config.META_STATS_DUMP_FILE, Config.STATS_DUMP_INTERVAL_SECS);
         while (isRunning) {
-            // 接受客户端连接
-            Socket clientSocket = null;
+            // 接受客户端连接，交给工作线程处理，客户端和DataServer心跳使用长连接，互不阻塞
+            Socket clientSocket;
             try {
                 clientSocket = serverSocket.accept();
-                // 获取客户端请求的文件名和偏移量
-                DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                // 发送文件内容给客户端
-                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-                MetaOpCode op = MetaOpCode.read(in);
-                process(clientSocket,op,in,out);
             } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-            finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
+                if (isRunning) {
                     e.printStackTrace();
                 }
+                break;
+            }
+            try {
+                engine.submit(new ConnectionHandler(clientSocket));
+            } catch (InterruptedException e) {
+                closeQuietly(clientSocket);
+                break;
+            } catch (RejectedExecutionException e) {
+                log.error("Connection rejected: " + e.getMessage());
+                closeQuietly(clientSocket);
+            }
+        }
+        engine.shutdown();
+    }
+
+    boolean isRunning() {
+        return isRunning;
+    }
+
+    public void stop() {
+        isRunning = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    public String metrics() {
+        return engine.metrics() + " " + committer.metrics() + " files=" + inodes.size() + " "
+                + neededReplications.metrics() + " nodes=" + storageNodes.values();
+    }
+
+    private void registerGauges() {
+        stats.gauge("files", new Metrics.Gauge() {
+            public long value() {
+                return inodes.size();
+            }
+        });
+        stats.gauge("engine.queued", new Metrics.Gauge() {
+            public long value() {
+                return engine.getQueueDepth();
+            }
+        });
+        stats.gauge("engine.active", new Metrics.Gauge() {
+            public long value() {
+                return engine.getActiveCount();
+            }
+        });
+        stats.gauge("blocks.underReplicated", new Metrics.Gauge() {
+            public long value() {
+                return neededReplications.size();
+            }
+        });
+    }
+
+    public Metrics getStats() {
+        return stats;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    /**
+     * 在工作线程中处理一个客户端连接上的所有请求。
+     * 工作线程是平台线程，每个长连接占用一个，空闲超过META_SERVER_IDLE_TIMEOUT_MS的连接被关闭，
+     * 不会因为空闲的客户端占满线程池而让新连接一直排队；客户端在空闲后重新连接
+     */
+    private class ConnectionHandler implements Runnable {
+        private final Socket clientSocket;
+
+        ConnectionHandler(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+        }
+
+        public void run() {
+            connections.increment();
+            connectionsTotal.increment();
+            try {
+                clientSocket.setTcpNoDelay(true);
+                clientSocket.setSoTimeout(Config.META_SERVER_IDLE_TIMEOUT_MS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new Metrics.CountingInputStream(clientSocket.getInputStream(), bytesIn)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new Metrics.CountingOutputStream(clientSocket.getOutputStream(), bytesOut)));
+                MetaOpCode op = MetaOpCode.read(in);
+                process(clientSocket, op, in, out);
+            } catch (EOFException e) {
+                // 客户端关闭连接
+            } catch (SocketTimeoutException e) {
+                log.debug("Closing idle connection from " + clientSocket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                log.info(e);
+            } finally {
+                connections.decrement();
+                closeQuietly(clientSocket);
             }
         }
     }
@@ -119,6 +461,10 @@ public class MetadataServer {
      */
     protected final void process(Socket clientSocket, MetaOpCode op, DataInputStream in, DataOutputStream out) throws IOException {
         while(isRunning) {
+            if (op == null) {
+                throw new IOException("Unknown op in meta stream");
+            }
+            long start = System.nanoTime();
             switch (op) {
                 case HEART_BEAT:
                     handleHeartBeat(in, out);
@@ -127,7 +473,7 @@ public class MetadataServer {
                     createFile(in, out);
                     break;
                 case RENAME_FILE:
-                    //@todo
+                    rename(in, out);
                     break;
                 case DEL_FILE:
                     delete(in, "dfs", out);  // 默认用户 "dfs"
@@ -141,19 +487,40 @@ public class MetadataServer {
                 case CLOSE_FILE:
                     closeFile(in, out);
                     break;
+                case ADD_BLOCK:
+                    addBlock(in, out);
+                    break;
+                case GET_BLOCK_LOCATIONS:
+                    getBlockLocations(in, out);
+                    break;
+                case LIST_STATUS:
+                    listStatus(in, out);
+                    break;
+                case BATCH:
+                    batch(in, "dfs", out);
+                    break;
+                case BLOCK_REPORT:
+                    blockReport(in, out);
+                    break;
+                case STATS:
+                    out.writeInt(0);
+                    stats.snapshot().write(out);
+                    break;
                 default:
                     System.out.println("Unknown op " + op + " in data stream");
                     //throw new IOException("Unknown op " + op + " in data stream");
             }
+            out.flush();
+            opLatency[op.ordinal()].record(System.nanoTime() - start);
             try {
                 op = MetaOpCode.read(in);
+            } catch (EOFException e) {
+                break; // 客户端关闭连接
+            } catch (SocketTimeoutException e) {
+                log.debug("Closing idle connection from " + clientSocket.getRemoteSocketAddress());
+                break;
             } catch (IOException e) {
-                e.printStackTrace();
-                try {
-                    clientSocket.close();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
+                log.info(e);
                 break;
             }
         }
@@ -162,16 +529,26 @@ public class MetadataServer {
     private void closeFile(DataInputStream in, DataOutputStream out) {
         try {
             String path = in.readUTF();
-            if (!fileSystem.containsKey(path)) {
-                out.writeInt(-1); // 错误响应
-                out.writeUTF("File not found: " + path);
-                return;
+            long lastBlockLength = in.readLong(); // 最后一个数据块的长度，-1表示未知
+            List<Integer> replicaStatus = readReplicaStatus(in); // 最后一个数据块各副本的写入结果
+            FileInfo fi;
+            try (PathLockManager.Locked l = locks.lockForWrite(path)) {
+                fi = lookup(path);
+                if (fi == null) {
+                    out.writeInt(-1); // 错误响应
+                    out.writeUTF("File not found: " + path);
+                    return;
+                }
+                if (lastBlockLength >= 0 && !fi.getBlocks().isEmpty()) {
+                    commitLastBlock(fi, lastBlockLength, replicaStatus);
+                    persist(fi);
+                }
             }
 
             // 这里可以添加资源释放逻辑，例如标记文件已关闭
             out.writeInt(0); // 成功响应
             out.writeUTF("File closed successfully.");
-            log.info("File " + path + " closed successfully.");
+            log.info("File " + path + " closed successfully, size " + fi.getFileSize());
         } catch (IOException e) {
             try {
                 out.writeInt(-1); // 错误响应
@@ -182,6 +559,168 @@ public class MetadataServer {
         }
     }
 
+    // 为文件追加下一个数据块，并记录上一个数据块的实际长度
+    private void addBlock(DataInputStream in, DataOutputStream out) {
+        try {
+            String path = in.readUTF();
+            long prevBlockLength = in.readLong();
+            List<Integer> replicaStatus = readReplicaStatus(in);
+            BlockInfo block;
+            int index;
+            try (PathLockManager.Locked l = locks.lockForWrite(path)) {
+                FileInfo fi = lookup(path);
+                if (fi == null || fi.isDirectory()) {
+                    out.writeInt(-1);
+                    out.writeUTF("File not found: " + path);
+                    out.flush();
+                    return;
+                }
+                List<String> targets = chooseTargets();
+                if (prevBlockLength >= 0 && !fi.getBlocks().isEmpty()) {
+                    commitLastBlock(fi, prevBlockLength, replicaStatus);
+                }
+                block = allocateBlock(fi, targets);
+                index = fi.getBlocks().size() - 1;
+                persist(fi);
+            }
+
+            out.writeInt(0);
+            writeBlockInfo(block, out);
+            out.flush();
+            log.info("Block " + block.getBlockId() + " #" + index + " allocated for " + path);
+        } catch (IOException e) {
+            log.error("Error adding block: ", e);
+            try {
+                out.writeInt(-1);
+                out.writeUTF("Error adding block: " + e.getMessage());
+                out.flush();
+            } catch (IOException ex) {
+                log.error("Error sending addBlock response: ", ex);
+            }
+        }
+    }
+
+    // 查询文件所有数据块的位置
+    private void getBlockLocations(DataInputStream in, DataOutputStream out) throws IOException {
+        String path = in.readUTF();
+        try (PathLockManager.Locked l = locks.lockForRead(path)) {
+            FileInfo fi = lookup(path);
+            if (fi == null || fi.isDirectory()) {
+                out.writeInt(-1);
+                out.writeUTF("File not found: " + path);
+                out.flush();
+                return;
+            }
+            out.writeInt(0);
+            writeBlockLocations(fi, out);
+        }
+        out.flush();
+    }
+
+    // 文件大小和所有数据块的位置，调用方持有文件的锁
+    private void writeBlockLocations(FileInfo fi, DataOutputStream out) throws IOException {
+        out.writeLong(fi.getFileSize());
+        out.writeInt(fi.getBlocks().size());
+        for (BlockInfo block : fi.getBlocks()) {
+            writeBlockInfo(block, out);
+        }
+    }
+
+    private void writeBlockInfo(BlockInfo block, DataOutputStream out) throws IOException {
+        out.writeUTF(block.getBlockId());
+        out.writeLong(block.getLength());
+        out.writeInt(block.getLocations().size());
+        for (int i = 0; i < block.getLocations().size(); i++) {
+            out.writeUTF(block.getLocations().get(i));
+            out.writeInt(block.getStatus(i));
+        }
+    }
+
+    private List<Integer> readReplicaStatus(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<Integer> status = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            status.add(in.readInt());
+        }
+        return status;
+    }
+
+    // 记录最后一个数据块的长度和各副本的写入结果
+    private void commitLastBlock(FileInfo fi, long length, List<Integer> replicaStatus) {
+        BlockInfo block = fi.getBlocks().get(fi.getBlocks().size() - 1);
+        block.setLength(length);
+        if (replicaStatus.size() == block.getLocations().size()) {
+            block.setStatus(new ArrayList<>(replicaStatus));
+        }
+        checkReplication(block);
+        fi.updateFileSize();
+        if (fi.getBlocks().size() == 1) {
+            syncLegacyLocations(fi);
+        }
+    }
+
+    // FileInfo.locations/status 保存第一个数据块的"节点:块ID"和副本状态，供GET_FILE_LOCATIONS使用
+    private void syncLegacyLocations(FileInfo fi) {
+        fi.getLocations().clear();
+        fi.getStatus().clear();
+        if (fi.getBlocks().isEmpty()) {
+            return;
+        }
+        BlockInfo first = fi.getBlocks().get(0);
+        for (int i = 0; i < first.getLocations().size(); i++) {
+            fi.getLocations().add(first.getLocations().get(i) + ":" + first.getBlockId());
+            fi.getStatus().add(first.getStatus(i));
+        }
+    }
+
+    // 由放置策略选择新数据块的副本节点，没有可用节点时失败
+    private List<String> chooseTargets() throws IOException {
+        List<String> targets = getNewStorageNodes(Config.REPLICATION);
+        if (targets.isEmpty()) {
+            throw new IOException("No live DataServer with free space for a new block");
+        }
+        return targets;
+    }
+
+    // 为文件分配一个新的数据块，副本节点按流水线顺序排列
+    private BlockInfo allocateBlock(FileInfo fi, List<String> targets) {
+        BlockInfo block = newBlock(targets);
+        fi.getBlocks().add(block);
+        indexBlock(fi, block);
+        return block;
+    }
+
+    private static BlockInfo newBlock(List<String> targets) {
+        BlockInfo block = new BlockInfo(UUID.randomUUID().toString());
+        for (String node : targets) {
+            block.addLocation(node, ReplicaStatus.PENDING);
+        }
+        return block;
+    }
+
+    // 登记数据块所属的文件和副本所在的节点，节点第一次出现时注册
+    private void indexBlock(FileInfo fi, BlockInfo block) {
+        blockFiles.put(block.getBlockId(), fi);
+        for (String node : block.getLocations()) {
+            registerNode(node, System.currentTimeMillis()).addBlock(block.getBlockId());
+        }
+    }
+
+    // 文件被删除或重写时注销它的数据块，副本随之后的心跳回复由所在节点删除，包括不是FINALIZED的副本
+    private void unindexBlocks(FileInfo fi) {
+        for (BlockInfo block : fi.getBlocks()) {
+            blockFiles.remove(block.getBlockId(), fi);
+            releasePending(neededReplications.remove(block.getBlockId()));
+            for (String node : block.getLocations()) {
+                StorageNode sn = storageNodes.get(node);
+                if (sn != null) {
+                    sn.removeBlock(block.getBlockId());
+                    sn.addInvalidBlock(block.getBlockId());
+                }
+            }
+        }
+    }
+
 
     private void createFile(DataInputStream in, DataOutputStream out) {
         try {
@@ -189,21 +728,26 @@ public class MetadataServer {
             String owner = in.readUTF(); // 读取客户端发送用户
             boolean isDir = in.readBoolean(); // 是否为目录
 
-            log.info(new Date().toString()+" before createFile." );
-            FileInfo fi = create(path,owner,isDir);
-            log.info(new Date().toString()+" after createFile." );
-            String nodeName = getNewStorageNode(0);
-            String localFileId = UUID.randomUUID().toString();
-            fi.getLocations().add(nodeName+":"+localFileId);
-
-            // 持久化到 RocksDB
-            db.put(path.getBytes(), serializeFileInfo(fi));
+            ensureParents(path, owner);
+            String result;
+            try (PathLockManager.Locked l = locks.lockForWrite(path)) {
+                PendingChanges changes = new PendingChanges();
+                result = createInLock(path, owner, isDir, changes);
+                if (result == null) {
+                    out.writeInt(-1);
+                    out.writeUTF("Cannot create " + path);
+                    out.flush();
+                    return;
+                }
+                // 持久化到 RocksDB，成功后再修改内存中的命名空间
+                changes.commit();
+            }
 
             // 返回code
             out.writeInt(0);
-            out.writeUTF(nodeName+":"+localFileId);
+            out.writeUTF(result);
             out.flush();
-            log.info(new Date().toString()+" createFile 1." );
+            log.debug("createFile " + path + " done.");
         } catch (IOException e) {
             e.printStackTrace();
             try {
@@ -214,12 +758,178 @@ public class MetadataServer {
                 e1.printStackTrace();
             }
 
-        } catch (RocksDBException e) {
-            throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * 创建文件或目录，修改暂存在changes中，调用方持有path的写锁，父目录需已存在
+     * @return 文件第一个数据块的"节点:块ID"，目录返回path；父目录不存在或类型不符时返回null
+     * @throws IOException 没有可以放置数据块的节点，此时changes没有修改
+     */
+    private String createInLock(String path, String owner, boolean isDir, PendingChanges changes)
+            throws IOException {
+        FileInfo existing = changes.lookup(path);
+        if (existing != null && existing.isDirectory() != isDir) {
+            return null;
+        }
+        if (existing != null && isDir) {
+            log.debug("Directory " + path + " already exists.");
+            return path;
+        }
+        FileInfo fi;
+        if (existing == null) {
+            FileInfo parent = changes.lookup(getParentPath(path));
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if (parent == null || !parent.isDirectory() || name.isEmpty()) {
+                log.info("Parent directory of " + path + " does not exist.");
+                return null;
+            }
+            fi = new FileInfo(name, path, isDir, -1, owner, System.currentTimeMillis());
+            fi.setInodeId(lastInodeId.incrementAndGet());
+            fi.setParent(parent);
+            fi.setParentId(parent.getInodeId());
+        } else {
+            // 重新写入已存在的文件时在副本上换成新的数据块列表
+            fi = new FileInfo(existing.getFileName(), path, false, -1, existing.getOwner(), existing.getCreationTime());
+            fi.setGroup(existing.getGroup());
+            fi.setInodeId(existing.getInodeId());
+            fi.setParent(existing.getParent());
+            fi.setParentId(existing.getParentId());
+        }
+        String result = path;
+        if (!isDir) {
+            // 校验通过后再选择节点，选中的节点会计入待汇报的副本数
+            fi.setFileSize(0);
+            fi.getBlocks().add(newBlock(chooseTargets()));
+            syncLegacyLocations(fi);
+            result = fi.getLocations().get(0);
+        }
+        changes.create(path, fi, existing == null);
+        log.debug((isDir ? "Directory " : "File ") + path + (existing == null ? " created by " + owner : " rewritten"));
+        return result;
+    }
 
-        System.out.println(new Date().toString()+" createFile done." );
+    /**
+     * 一次提交对内存中命名空间的修改。新建的条目和重写文件的副本先暂存，不挂到目录树上，
+     * 删除的路径记录下来，之后的查找看不到它和它下面的条目；持久化操作加入m。
+     * commit()写入RocksDB成功后按顺序作用到内存，失败时丢弃，内存中的命名空间不变。
+     * 调用方持有涉及路径的写锁。
+     */
+    private class PendingChanges {
+        final MetaCommitter.Mutation m = new MetaCommitter.Mutation();
+        private final Map<String, FileInfo> created = new HashMap<>();
+        private final Set<String> deleted = new HashSet<>();
+        private final List<Runnable> actions = new ArrayList<>();
 
+        // 先查暂存的条目，再查内存中的命名空间，自身或祖先被删除的路径不存在
+        FileInfo lookup(String path) {
+            FileInfo fi = created.get(path);
+            if (fi != null) {
+                return fi;
+            }
+            if (!deleted.isEmpty()) {
+                if (deleted.contains(path)) {
+                    return null;
+                }
+                for (String dir : PathLockManager.ancestors(path)) {
+                    if (deleted.contains(dir)) {
+                        return null;
+                    }
+                }
+            }
+            return MetadataServer.this.lookup(path);
+        }
+
+        // 删除path及其下的所有条目，fi为lookup(path)的结果
+        void delete(String path, FileInfo fi) throws IOException {
+            String prefix = path + "/";
+            for (Iterator<Map.Entry<String, FileInfo>> it = created.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, FileInfo> e = it.next();
+                if (e.getKey().equals(path) || e.getKey().startsWith(prefix)) {
+                    FileInfo staged = e.getValue();
+                    if (!inodes.containsKey(staged.getInodeId())) {
+                        // 本次新建的条目，重写的文件在下面随内存中的条目一起删除
+                        m.unlink(staged.getParentId(), staged.getFileName());
+                        m.deleteInode(staged.getInodeId());
+                    }
+                    it.remove();
+                }
+            }
+            FileInfo existing = inodes.get(fi.getInodeId());
+            if (existing != null) {
+                collectVisible(path, existing);
+            }
+            deleted.add(path);
+            final long id = fi.getInodeId();
+            actions.add(new Runnable() {
+                public void run() {
+                    removeSubtree(inodes.get(id));
+                }
+            });
+        }
+
+        // 内存中fi及其下没有被删除过的条目
+        private void collectVisible(String path, FileInfo fi) throws IOException {
+            for (FileInfo child : fi.getChildren()) {
+                String childPath = ("/".equals(path) ? "" : path) + "/" + child.getFileName();
+                if (!deleted.contains(childPath)) {
+                    collectVisible(childPath, child);
+                }
+            }
+            m.unlink(fi.getParentId(), fi.getFileName());
+            m.deleteInode(fi.getInodeId());
+        }
+
+        // 暂存新建的条目或重写后的文件
+        void create(String path, final FileInfo fi, boolean isNew) throws IOException {
+            m.putInode(fi.getInodeId(), CODEC.get().encodeToArray(fi));
+            if (isNew) {
+                m.link(fi.getParentId(), fi.getFileName(), fi.getInodeId());
+            }
+            created.put(path, fi);
+            if (isNew) {
+                actions.add(new Runnable() {
+                    public void run() {
+                        fi.getParent().addChild(fi);
+                        inodes.put(fi.getInodeId(), fi);
+                        for (BlockInfo block : fi.getBlocks()) {
+                            indexBlock(fi, block);
+                        }
+                    }
+                });
+            } else {
+                actions.add(new Runnable() {
+                    public void run() {
+                        // 按inode号找到内存中的条目，丢弃旧的数据块列表
+                        FileInfo target = inodes.get(fi.getInodeId());
+                        unindexBlocks(target);
+                        target.setBlocks(fi.getBlocks());
+                        target.setFileSize(0);
+                        syncLegacyLocations(target);
+                        for (BlockInfo block : target.getBlocks()) {
+                            indexBlock(target, block);
+                        }
+                    }
+                });
+            }
+        }
+
+        // 提交m，成功后修改内存
+        void commit() throws IOException {
+            if (!m.isEmpty()) {
+                committer.commit(m);
+            }
+            apply();
+        }
+
+        void apply() {
+            for (Runnable action : actions) {
+                action.run();
+            }
+            actions.clear();
+            created.clear();
+            deleted.clear();
+        }
     }
 
 //    // 添加文件元数据
@@ -229,32 +939,44 @@ public class MetadataServer {
 //        fileToStorageNode.put(filePath, storageNode);
 //    }
 
-    // 创建文件或目录
+    // 创建文件或目录，不存在的父目录一并创建；已存在时返回已有的项，不重写文件
     public FileInfo create(String path, String owner, boolean isDirectory) {
-        FileInfo fileInfo = null;
-        if (!fileSystem.containsKey(path)) {
-
-            String parentPath = getParentPath(path);
-            if (!fileSystem.containsKey(parentPath) && !parentPath.equals("/")) {
-                System.out.println("Parent directory " + parentPath + " does not exist.");
-                create(parentPath,  owner, true);
+        try {
+            ensureParents(path, owner);
+            try (PathLockManager.Locked l = locks.lockForWrite(path)) {
+                FileInfo existing = lookup(path);
+                if (existing != null) {
+                    log.debug((isDirectory ? "Directory" : "File") + " " + path + " already exists.");
+                    return existing;
+                }
+                PendingChanges changes = new PendingChanges();
+                if (createInLock(path, owner, isDirectory, changes) == null) {
+                    return null;
+                }
+                changes.commit();
+                return lookup(path);
             }
+        } catch (IOException e) {
+            log.error("Cannot create " + path, e);
+            return null;
+        }
+    }
 
-            if (fileSystem.containsKey(parentPath) || parentPath.equals("/")) {
-                FileInfo parentInfo = fileSystem.get(parentPath);
-                fileInfo = new FileInfo(path, owner, isDirectory, parentInfo);
-                fileSystem.put(path, fileInfo);
-                System.out.println((isDirectory ? "Directory" : "File") + " " + path + " created by " + owner);
+    // 逐级创建path不存在的祖先目录，每一级单独加锁并持久化
+    private void ensureParents(String path, String owner) throws IOException {
+        for (String dir : PathLockManager.ancestors(path)) {
+            if (lookup(dir) != null) {
+                continue;
+            }
+            try (PathLockManager.Locked l = locks.lockForWrite(dir)) {
+                PendingChanges changes = new PendingChanges();
+                if (createInLock(dir, owner, true, changes) != null) {
+                    changes.commit();
+                }
             }
-            return fileInfo;
-        } else {
-            System.out.println((isDirectory ? "Directory" : "File") + " " + path + " already exists.");
-            fileInfo = fileSystem.get(path);
-            return fileInfo;
         }
     }
 
-
     // 删除文件或目录
     public void delete(DataInputStream in, String requester, DataOutputStream out) {
         String path = null;
@@ -263,39 +985,26 @@ public class MetadataServer {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        try {
-            if (!fileSystem.containsKey(path)) {
-                // 文件或目录不存在
+        try (PathLockManager.Locked l = locks.lockForWrite(path)) {
+            FileInfo fileInfo = lookup(path);
+            String error = checkDelete(fileInfo, path, requester);
+            if (error != null) {
                 out.writeInt(-1); // 错误响应
-                out.writeUTF("File/Directory " + path + " not found.");
-                log.info("File/Directory " + path + " not found.");
+                out.writeUTF(error);
+                log.info(error);
                 return;
             }
 
-            FileInfo fileInfo = fileSystem.get(path);
-            String owner = fileInfo.getOwner();
-
-            if (!owner.equals(requester)) {
-                // 权限不足
-                out.writeInt(-1); // 错误响应
-                out.writeUTF("Permission denied. You are not the owner of " + path);
-                log.info("Permission denied. You are not the owner of " + path);
-                return;
-            }
-
-            // 如果是目录，递归删除子文件和子目录
-            if (fileInfo.isDirectory()) {
-                deleteDirectoryRecursive(fileInfo);
-            }
-
-            // 删除文件元数据
-            fileSystem.remove(path);
-            db.delete(path.getBytes()); // 删除持久化记录
+            // 整个子树的持久化记录在一次提交中原子删除，成功后再修改内存中的命名空间
+            MetaCommitter.Mutation m = new MetaCommitter.Mutation();
+            collectSubtree(fileInfo, m);
+            committer.commit(m);
+            removeSubtree(fileInfo);
 
             out.writeInt(0); // 成功响应
             out.writeUTF("File/Directory " + path + " deleted successfully.");
-            log.info((fileInfo.isDirectory() ? "Directory" : "File") + " " + path + " deleted by " + requester);
-        } catch (IOException | RocksDBException e) {
+            log.debug((fileInfo.isDirectory() ? "Directory" : "File") + " " + path + " deleted by " + requester);
+        } catch (IOException e) {
             try {
                 out.writeInt(-1); // 错误响应
                 out.writeUTF("Error deleting file/directory: " + e.getMessage());
@@ -306,20 +1015,111 @@ public class MetadataServer {
         }
     }
 
-    // 递归删除目录的所有子文件和子目录
+    // 检查requester能否删除path，可以时返回null，否则返回失败原因
+    private String checkDelete(FileInfo fileInfo, String path, String requester) {
+        if (fileInfo == null || fileInfo == root) {
+            // 文件或目录不存在
+            return "File/Directory " + path + " not found.";
+        }
+        if (!fileInfo.getOwner().equals(requester)) {
+            // 权限不足
+            return "Permission denied. You are not the owner of " + path;
+        }
+        return null;
+    }
+
+    // 从内存中的命名空间删除fileInfo及其下所有条目，调用方持有它的写锁
+    private void removeSubtree(FileInfo fileInfo) {
+        // 如果是目录，递归删除子文件和子目录
+        if (fileInfo.isDirectory()) {
+            deleteDirectoryRecursive(fileInfo);
+        }
+        // 删除文件元数据
+        inodes.remove(fileInfo.getInodeId());
+        unindexBlocks(fileInfo);
+        if (fileInfo.getParent() != null) {
+            fileInfo.getParent().removeChild(fileInfo.getFileName());
+        }
+    }
+
+    /**
+     * 改名或移动文件/目录。只把被移动条目的目录项从原目录移到目标目录，
+     * 子树下的条目和数据块都不变，持久化为一次提交中的两个目录项操作，代价与子树大小无关。
+     * 目标已存在、目标父目录不存在或者把目录移动到自身之下时失败。
+     * 请求：UTF 原路径, UTF 目标路径；响应：int 0或-1, UTF 信息
+     */
+    private void rename(DataInputStream in, DataOutputStream out) throws IOException {
+        String src = in.readUTF();
+        String dst = in.readUTF();
+        String error;
+        List<String> readPaths = PathLockManager.ancestors(src);
+        readPaths.addAll(PathLockManager.ancestors(dst));
+        // 写锁住两处路径，原路径下和目标路径下的操作都被排斥
+        try (PathLockManager.Locked l = locks.lock(readPaths, Arrays.asList(src, dst))) {
+            error = renameEntry(src, dst);
+        } catch (IOException e) {
+            log.error("Error renaming " + src + " to " + dst, e);
+            error = "Error renaming " + src + ": " + e.getMessage();
+        }
+        if (error != null) {
+            log.info(error);
+            out.writeInt(-1);
+            out.writeUTF(error);
+            return;
+        }
+        out.writeInt(0);
+        out.writeUTF("Renamed " + src + " to " + dst);
+        log.debug("rename " + src + " to " + dst + " done.");
+    }
+
+    // 调用方持有src和dst的写锁，成功时返回null，否则返回失败原因
+    private String renameEntry(String src, String dst) throws IOException {
+        FileInfo fi = lookup(src);
+        if (fi == null || fi == root) {
+            return "File/Directory " + src + " not found.";
+        }
+        if (src.equals(dst)) {
+            return null;
+        }
+        if (lookup(dst) != null) {
+            return "Destination " + dst + " already exists.";
+        }
+        FileInfo newParent = lookup(getParentPath(dst));
+        if (newParent == null || !newParent.isDirectory()) {
+            return "Parent directory of " + dst + " does not exist.";
+        }
+        if (dst.startsWith(src + "/")) {
+            return "Cannot move " + src + " into itself.";
+        }
+        String newName = dst.substring(dst.lastIndexOf('/') + 1);
+        // inode记录中的文件名不更新，加载时以目录项为准
+        committer.commit(new MetaCommitter.Mutation()
+                .unlink(fi.getParentId(), fi.getFileName())
+                .link(newParent.getInodeId(), newName, fi.getInodeId()));
+        fi.moveTo(newParent, newName);
+        return null;
+    }
+
+    // 把fileInfo及其下所有条目的目录项和inode的删除加入m
+    private void collectSubtree(FileInfo fileInfo, MetaCommitter.Mutation m) throws IOException {
+        for (FileInfo child : fileInfo.getChildren()) {
+            collectSubtree(child, m);
+        }
+        m.unlink(fileInfo.getParentId(), fileInfo.getFileName());
+        m.deleteInode(fileInfo.getInodeId());
+    }
+
+    // 递归删除目录的所有子文件和子目录，调用方持有目录的写锁，其下的操作都被排斥
     private void deleteDirectoryRecursive(FileInfo dirInfo) {
         if (dirInfo.getChildren() != null) {
             for (FileInfo child : new ArrayList<>(dirInfo.getChildren())) {
+                dirInfo.removeChild(child.getFileName());
                 if (child.isDirectory()) {
                     deleteDirectoryRecursive(child); // 递归删除子目录
                 }
-                fileSystem.remove(child.getPath());
-                try {
-                    db.delete(child.getPath().getBytes()); // 删除持久化记录
-                } catch (RocksDBException e) {
-                    log.error("Error deleting persistent metadata for " + child.getPath(), e);
-                }
-                log.info((child.isDirectory() ? "Directory" : "File") + " " + child.getPath() + " deleted.");
+                inodes.remove(child.getInodeId());
+                unindexBlocks(child);
+                log.debug((child.isDirectory() ? "Directory" : "File") + " " + child.getFileName() + " deleted.");
             }
         }
     }
@@ -327,18 +1127,42 @@ public class MetadataServer {
 
     // 获取文件或目录信息
     public FileInfo getFileInfo(String path) {
-        FileInfo fileInfo = null;
-        if (fileSystem.containsKey(path)) {
-            fileInfo = fileSystem.get(path);
-            System.out.print("Path: " + path);
-            System.out.print( " Owner: " + fileInfo.getOwner());
-            System.out.print(" Is Directory: " + fileInfo.isDirectory());
+        FileInfo fileInfo = lookup(path);
+        if (fileInfo != null) {
+            log.debug("Path: " + path + " Owner: " + fileInfo.getOwner() + " Is Directory: " + fileInfo.isDirectory());
         } else {
-            System.out.print(" File/Directory " + path + " not found.");
+            log.debug("File/Directory " + path + " not found.");
         }
         return fileInfo;
     }
 
+    /**
+     * 从根目录逐级查找路径对应的条目，不存在时返回null。
+     * 调用方持有路径上的锁时，结果在持有期间不会改变
+     */
+    private FileInfo lookup(String path) {
+        if (!path.startsWith("/")) {
+            return null;
+        }
+        FileInfo fi = root;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end == start || !fi.isDirectory()) {
+                return null;   // 路径中有空的一级("//"或结尾的'/')，与锁使用的路径不一致
+            }
+            fi = fi.getChild(path.substring(start, end));
+            if (fi == null) {
+                return null;
+            }
+            start = end + 1;
+        }
+        return fi;
+    }
+
     // 获取父目录路径
     private String getParentPath(String path) {
         int lastSeparatorIndex = path.lastIndexOf('/');
@@ -359,10 +1183,17 @@ public class MetadataServer {
     }
 
     public String getNewStorageNode(long fileSize) {
-        Random random = new Random();
-        int id = random.nextInt() % storageNodes.size();
-        String sn = (String)storageNodes.keySet().toArray()[id];
-        return sn;
+        return getNewStorageNodes(1).get(0);
+    }
+
+    // 由放置策略选择最多count个节点，计入它们的待汇报副本数
+    public List<String> getNewStorageNodes(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (StorageNode node : placement.chooseTargets(storageNodes.values(), count, System.currentTimeMillis())) {
+            node.addPendingBlock();
+            names.add(node.getName());
+        }
+        return names;
     }
 
     public void setStorageNode(List<StorageNode> storageNodes) {
@@ -375,66 +1206,641 @@ public class MetadataServer {
         try {
             List<String> fileList = new ArrayList<String>();
             String cur_dir = in.readUTF();
-            FileInfo fileInfo = getFileInfo(cur_dir);
-            if(fileInfo != null && fileInfo.getChildren() != null){
-                for(FileInfo ch:fileInfo.getChildren()){
-                    fileList.add(ch.getFileName());
+            try (PathLockManager.Locked l = locks.lockForRead(cur_dir)) {
+                FileInfo fileInfo = getFileInfo(cur_dir);
+                if(fileInfo != null && fileInfo.getChildren() != null){
+                    for(FileInfo ch:fileInfo.getChildren()){
+                        fileList.add(ch.getFileName());
+                    }
                 }
             }
             int size = fileList.size();
             out.writeInt(size);
-            System.out.println(" size:" + size);
+            log.debug("listFile " + cur_dir + " size:" + size);
             if(size > 0) {
                 for (String name : fileList) {
                     out.writeUTF(name);
                 }
                 out.flush();
             }
-            System.out.print("end of listfile.");
         } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
+    /**
+     * 分页列出目录，每个条目带上文件属性
+     * 请求：UTF 目录, UTF startAfter(上一页最后一个文件名，""表示从头开始), int 页大小
+     * 响应：int 0, int 条目数, 每个条目一个FileStatus, boolean 是否还有后续条目；失败时 int -1, UTF 原因
+     * 子节点按文件名有序，每页从startAfter处定位，两页之间的修改不影响游标
+     */
+    private void listStatus(DataInputStream in, DataOutputStream out) throws IOException {
+        String path = in.readUTF();
+        String startAfter = in.readUTF();
+        int limit = in.readInt();
+        if (limit <= 0 || limit > Config.META_LIST_MAX_PAGE) {
+            limit = Config.META_LIST_MAX_PAGE;
+        }
+        List<FileStatus> page = new ArrayList<>(Math.min(limit, 64));
+        boolean hasMore = false;
+        try (PathLockManager.Locked l = locks.lockForRead(path)) {
+            FileInfo dir = getFileInfo(path);
+            if (dir == null || !dir.isDirectory()) {
+                out.writeInt(-1);
+                out.writeUTF("Directory not found: " + path);
+                return;
+            }
+            for (FileInfo child : dir.getChildrenAfter(startAfter.isEmpty() ? null : startAfter)) {
+                if (page.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                page.add(FileStatus.of(child));
+            }
+        }
+        out.writeInt(0);
+        out.writeInt(page.size());
+        for (FileStatus status : page) {
+            status.write(out);
+        }
+        out.writeBoolean(hasMore);
+        log.debug("listStatus " + path + " after '" + startAfter + "' returned " + page.size());
+    }
+
+    // BATCH中的一个子请求
+    private static class BatchItem {
+        final MetaOpCode op;
+        final String path;
+        String owner;
+        boolean isDir;
+
+        BatchItem(MetaOpCode op, String path) {
+            this.op = op;
+            this.path = path;
+        }
+    }
+
+    /**
+     * 在一个请求中执行多个子请求并逐项返回结果。所有子请求在一次加锁中按顺序执行，
+     * 修改合并为一次提交(一个WriteBatch)；后面的子请求能看到前面暂存的修改，提交成功后才修改内存，
+     * 提交失败时整个请求失败，命名空间不变。
+     * 请求：int 子请求数，每个子请求为 byte 操作码加参数：
+     * <pre>
+     *   CREATE_FILE          UTF 路径, UTF 用户, boolean 是否目录   不存在的父目录一并创建
+     *   DEL_FILE             UTF 路径
+     *   GET_BLOCK_LOCATIONS  UTF 路径
+     *   GET_FILE_LOCATIONS   UTF 路径
+     * </pre>
+     * 响应：int 0, int 子请求数, 每项 int 0加结果或 int -1, UTF 原因；结果与单独请求相同：
+     * CREATE_FILE为UTF，DEL_FILE为UTF，GET_BLOCK_LOCATIONS为文件大小和数据块列表，GET_FILE_LOCATIONS为int 个数加UTF列表。
+     * 子请求过多或提交失败时响应 int -1, UTF 原因。
+     */
+    private void batch(DataInputStream in, String requester, DataOutputStream out) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Invalid batch size " + n);
+        }
+        List<BatchItem> items = new ArrayList<>(Math.min(n, Config.META_BATCH_MAX));
+        for (int i = 0; i < n; i++) {
+            MetaOpCode op = MetaOpCode.read(in);
+            String path = op == null ? null : in.readUTF();
+            BatchItem item = new BatchItem(op, path);
+            if (op == MetaOpCode.CREATE_FILE) {
+                item.owner = in.readUTF();
+                item.isDir = in.readBoolean();
+            } else if (op != MetaOpCode.DEL_FILE && op != MetaOpCode.GET_BLOCK_LOCATIONS
+                    && op != MetaOpCode.GET_FILE_LOCATIONS) {
+                // 不知道子请求参数的长度，无法继续读取这个连接
+                throw new IOException("Op " + op + " is not supported in a batch");
+            }
+            if (i < Config.META_BATCH_MAX) {
+                items.add(item);
+            }
+        }
+        if (n > Config.META_BATCH_MAX) {
+            out.writeInt(-1);
+            out.writeUTF("Batch of " + n + " requests exceeds the limit " + Config.META_BATCH_MAX);
+            return;
+        }
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream results = new DataOutputStream(buf);
+        try (PathLockManager.Locked l = lockBatch(items)) {
+            PendingChanges changes = new PendingChanges();
+            for (BatchItem item : items) {
+                applyBatchItem(item, requester, changes, results);
+            }
+            changes.commit();
+        } catch (IOException e) {
+            log.error("Batch of " + n + " requests failed", e);
+            out.writeInt(-1);
+            out.writeUTF("Batch failed: " + e.getMessage());
+            return;
+        }
+        out.writeInt(0);
+        out.writeInt(n);
+        buf.writeTo(out);
+        log.debug("batch of " + n + " requests done.");
+    }
+
+    /**
+     * 一次锁住批中所有子请求需要的路径：读锁住所有祖先目录和查询的路径，写锁住创建和删除的路径，
+     * 以及需要新建、且没有被写锁住的祖先目录覆盖的目录。加锁后重新检查，
+     * 有祖先目录在加锁前被其他请求删除时补上它的写锁重新加锁。
+     */
+    private PathLockManager.Locked lockBatch(List<BatchItem> items) {
+        Set<String> readPaths = new HashSet<>();
+        Set<String> writePaths = new HashSet<>();
+        for (BatchItem item : items) {
+            readPaths.addAll(PathLockManager.ancestors(item.path));
+            if (item.op == MetaOpCode.CREATE_FILE || item.op == MetaOpCode.DEL_FILE) {
+                writePaths.add(item.path);
+            } else {
+                readPaths.add(item.path);
+            }
+        }
+        addMissingParents(items, writePaths);
+        while (true) {
+            PathLockManager.Locked l = locks.lock(readPaths, writePaths);
+            if (!addMissingParents(items, writePaths)) {
+                return l;
+            }
+            l.close();
+        }
+    }
+
+    // 把创建请求中不存在、且自身和祖先都不在writePaths中的祖先目录加入writePaths，有加入时返回true
+    private boolean addMissingParents(List<BatchItem> items, Set<String> writePaths) {
+        boolean added = false;
+        for (BatchItem item : items) {
+            if (item.op != MetaOpCode.CREATE_FILE) {
+                continue;
+            }
+            boolean covered = false;
+            for (String dir : PathLockManager.ancestors(item.path)) {
+                covered = covered || writePaths.contains(dir);
+                if (!covered && lookup(dir) == null) {
+                    writePaths.add(dir);
+                    added = true;
+                    covered = true;
+                }
+            }
+        }
+        return added;
+    }
+
+    // 执行批中的一个子请求，结果写入results，修改暂存在changes中；调用方持有lockBatch的锁
+    private void applyBatchItem(BatchItem item, String requester, PendingChanges changes,
+                                DataOutputStream results) throws IOException {
+        String path = item.path;
+        FileInfo fi;
+        switch (item.op) {
+            case CREATE_FILE:
+                String result = null;
+                String reason = "Cannot create " + path;
+                try {
+                    if (createParentsInLock(path, item.owner, changes)) {
+                        result = createInLock(path, item.owner, item.isDir, changes);
+                    }
+                } catch (IOException e) {
+                    reason = "Cannot create " + path + ": " + e.getMessage();
+                }
+                if (result == null) {
+                    results.writeInt(-1);
+                    results.writeUTF(reason);
+                } else {
+                    results.writeInt(0);
+                    results.writeUTF(result);
+                }
+                break;
+            case DEL_FILE:
+                fi = changes.lookup(path);
+                String error = checkDelete(fi, path, requester);
+                if (error != null) {
+                    results.writeInt(-1);
+                    results.writeUTF(error);
+                } else {
+                    changes.delete(path, fi);
+                    results.writeInt(0);
+                    results.writeUTF("File/Directory " + path + " deleted successfully.");
+                }
+                break;
+            case GET_BLOCK_LOCATIONS:
+                fi = changes.lookup(path);
+                if (fi == null || fi.isDirectory()) {
+                    results.writeInt(-1);
+                    results.writeUTF("File not found: " + path);
+                } else {
+                    results.writeInt(0);
+                    writeBlockLocations(fi, results);
+                }
+                break;
+            default:
+                fi = changes.lookup(path);
+                if (fi == null) {
+                    results.writeInt(-1);
+                    results.writeUTF("File/Directory " + path + " not found.");
+                } else {
+                    results.writeInt(0);
+                    results.writeInt(fi.getLocations().size());
+                    for (String location : fi.getLocations()) {
+                        results.writeUTF(location);
+                    }
+                }
+        }
+    }
+
+    // 在批中创建path不存在的祖先目录，调用方已写锁住它们或它们的祖先；某一级是文件时返回false
+    private boolean createParentsInLock(String path, String owner, PendingChanges changes) throws IOException {
+        for (String dir : PathLockManager.ancestors(path)) {
+            if (changes.lookup(dir) == null && createInLock(dir, owner, true, changes) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 处理DataServer的心跳，第一次收到某个节点的心跳时注册它。心跳中带有上次汇报之后该节点新增和删除的数据块，
+     * 新增的MISSING副本恢复为FINALIZED，删除的FINALIZED副本改为MISSING，新增的不属于任何文件的数据块让节点删除。
+     * 请求：UTF 节点名, NodeStats, int n, n个UTF 新增的块ID, int m, m个UTF 删除的块ID；
+     * 响应：int 0, HeartbeatResponse
+     */
     private void handleHeartBeat(DataInputStream in, DataOutputStream out) {
         try {
             String nodeName = in.readUTF(); // 读取数据服务器发送的注册信息
-            System.out.println(new Date().toString()+" received heartBeat from DataServer: " + nodeName);
+            NodeStats stats = NodeStats.read(in);
+            List<String> added = readBlockIds(in);
+            List<String> removed = readBlockIds(in);
+            log.debug("Received heartbeat from DataServer " + nodeName + " " + stats
+                    + " added=" + added.size() + " removed=" + removed.size());
 
             String msg = nodeName;
-            Long now = System.currentTimeMillis();
-            if(this.storageNodes.containsKey(nodeName)){//更新时间
-                if(!storageNodesUpTime.containsKey(nodeName)){
-                    storageNodesUpTime.put(nodeName,now);
-                    msg += " time out is registered.";
-                    System.out.println(msg);
-                }
-
-                Long lastUpTime = storageNodesUpTime.get(nodeName);
-                if(now - lastUpTime > Config.TIMEOUT_OF_HEARTBEATS * Config.HEARTBEAT_SECS * 1000){
+            List<String> orphans = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            boolean known = storageNodes.containsKey(nodeName);
+            StorageNode node = registerNode(nodeName, now);
+            if (!known) {
+                msg += " is registered.";
+                log.info(msg);
+            }
+            synchronized (node) {
+                if (node.heartbeat(stats, now)) {
                     msg += " time out is recovered.";
-                    System.out.println(msg);
-                }else{
-                    storageNodesUpTime.put(nodeName,now);//更新时间
+                    log.info(msg);
                 }
+                completeReplications(node, added);
+                updateReplicas(node, added, ReplicaStatus.MISSING, ReplicaStatus.FINALIZED, orphans);
+                updateReplicas(node, removed, ReplicaStatus.FINALIZED, ReplicaStatus.MISSING, null);
             }
+            invalidateOrphans(node, orphans);
 
-            // 处理心跳信息并回复数据服务器
+            // 处理心跳信息并回复数据服务器，附带分配给它的复制任务和要删除的数据块
             out.writeInt(0);
-            out.writeUTF(msg);
+            new HeartbeatResponse(msg, node.isReportNeeded(), node.pollTransfers(),
+                    node.pollInvalidBlocks(Config.META_BLOCK_DELETES_PER_HEARTBEAT)).write(out);
         }catch (IOException e) {
             log.error(e.getMessage());
         }
     }
 
+    /**
+     * 处理DataServer的完整块报告：命名空间中记录在该节点、报告中却没有的FINALIZED副本改为MISSING，
+     * 报告中有的MISSING副本恢复为FINALIZED，不属于任何文件的数据块随之后的心跳回复让节点删除。
+     * 请求：UTF 节点名, int n, n个UTF 块ID；响应：int 0, UTF 信息
+     */
+    private void blockReport(DataInputStream in, DataOutputStream out) throws IOException {
+        String nodeName = in.readUTF();
+        List<String> reported = readBlockIds(in);
+        long start = System.currentTimeMillis();
+        StorageNode node = registerNode(nodeName, start);
+        List<String> orphans = new ArrayList<>();
+        int restored;
+        int missing;
+        synchronized (node) {
+            Set<String> absent = new HashSet<>(node.getBlocks());
+            absent.removeAll(reported);
+            completeReplications(node, reported);
+            restored = updateReplicas(node, reported, ReplicaStatus.MISSING, ReplicaStatus.FINALIZED, orphans);
+            missing = updateReplicas(node, absent, ReplicaStatus.FINALIZED, ReplicaStatus.MISSING, null);
+            node.setReportNeeded(false);
+        }
+        invalidateOrphans(node, orphans);
+        String msg = String.format("Block report from %s: blocks=%d restored=%d missing=%d orphans=%d %dms", nodeName,
+                reported.size(), restored, missing, orphans.size(), System.currentTimeMillis() - start);
+        log.info(msg);
+        out.writeInt(0);
+        out.writeUTF(msg);
+    }
+
+    /**
+     * 节点汇报的不属于任何文件的数据块：所属文件已被删除或重写，而节点没有收到或没有执行删除请求，
+     * 例如删除时节点已失效，或者文件删除后写入才完成。加入节点的删除队列。
+     */
+    private void invalidateOrphans(StorageNode node, List<String> orphans) {
+        for (String id : orphans) {
+            node.addInvalidBlock(id);
+        }
+        if (!orphans.isEmpty()) {
+            log.info(orphans.size() + " orphan blocks on " + node.getName() + " scheduled for deletion");
+        }
+    }
+
+    private static List<String> readBlockIds(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<String> ids = new ArrayList<>(Math.min(n, 65536));
+        for (int i = 0; i < n; i++) {
+            ids.add(in.readUTF());
+        }
+        return ids;
+    }
+
+    // 取得节点的记录，第一次出现时注册
+    private StorageNode registerNode(String name, long now) {
+        StorageNode node = storageNodes.get(name);
+        if (node == null) {
+            node = new StorageNode(name, now);
+            StorageNode existing = storageNodes.putIfAbsent(name, node);
+            if (existing != null) {
+                node = existing;
+            } else {
+                // 距上次心跳的时间，节点失效后继续增长
+                final StorageNode added = node;
+                stats.gauge("node." + name + ".heartbeatLagMs", new Metrics.Gauge() {
+                    public long value() {
+                        return System.currentTimeMillis() - added.getLastHeartbeat();
+                    }
+                });
+            }
+        }
+        return node;
+    }
+
+    /**
+     * 把node上ids中状态为from的副本改为to，同一文件的数据块在一次加锁中修改。调用方持有node的锁。
+     * 副本状态只在内存中修改，元数据服务器重启后由块报告和监控线程重新得出。
+     * @param unknown 不属于任何文件的块ID加入其中，可以为null
+     * @return 修改的副本数
+     */
+    private int updateReplicas(StorageNode node, Collection<String> ids, int from, int to, List<String> unknown) {
+        Map<FileInfo, Set<String>> byFile = new HashMap<>();
+        for (String id : ids) {
+            FileInfo fi = blockFiles.get(id);
+            if (fi == null) {
+                if (unknown != null) {
+                    unknown.add(id);
+                }
+                continue;
+            }
+            Set<String> blocks = byFile.get(fi);
+            if (blocks == null) {
+                blocks = new HashSet<>();
+                byFile.put(fi, blocks);
+            }
+            blocks.add(id);
+        }
+        int changed = 0;
+        for (Map.Entry<FileInfo, Set<String>> e : byFile.entrySet()) {
+            changed += updateReplicas(node.getName(), e.getKey(), e.getValue(), from, to);
+        }
+        return changed;
+    }
+
+    private int updateReplicas(String node, FileInfo fi, Set<String> ids, int from, int to) {
+        try (PathLockManager.Locked l = lockFile(fi, true)) {
+            if (l == null) {
+                return 0;
+            }
+            int changed = 0;
+            boolean first = false;
+            List<BlockInfo> blocks = fi.getBlocks();
+            for (int b = 0; b < blocks.size(); b++) {
+                BlockInfo block = blocks.get(b);
+                if (!ids.contains(block.getBlockId())) {
+                    continue;
+                }
+                int replica = block.getLocations().indexOf(node);
+                if (replica < 0 || replica >= block.getStatus().size() || block.getStatus(replica) != from) {
+                    continue;
+                }
+                block.getStatus().set(replica, to);
+                checkReplication(block);
+                changed++;
+                first |= b == 0;
+            }
+            if (first) {
+                syncLegacyLocations(fi);
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * 锁住fi当前的路径。路径由父目录链得出，加锁前文件可能被改名，锁住后确认路径仍指向它
+     * @return 文件已被删除时返回null
+     */
+    private PathLockManager.Locked lockFile(FileInfo fi, boolean write) {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            String path = fi.getPath();
+            PathLockManager.Locked l = write ? locks.lockForWrite(path) : locks.lockForRead(path);
+            if (lookup(path) == fi) {
+                return l;
+            }
+            l.close();
+            if (inodes.get(fi.getInodeId()) != fi) {
+                return null;
+            }
+        }
+        log.error("Cannot lock " + fi.getPath() + ": path keeps changing");
+        return null;
+    }
+
+    // 重新计算数据块的可用副本数并更新复制队列，正在写入(还有PENDING副本)的数据块不处理。调用方持有文件的锁
+    private void checkReplication(BlockInfo block) {
+        int live = 0;
+        for (int i = 0; i < block.getLocations().size(); i++) {
+            int status = block.getStatus(i);
+            if (status == ReplicaStatus.PENDING) {
+                return;
+            }
+            if (status == ReplicaStatus.FINALIZED) {
+                live++;
+            }
+        }
+        neededReplications.update(block.getBlockId(), live);
+    }
+
+    /**
+     * 为副本数不足的数据块分配复制任务，可用副本少的先分配。每个任务从有可用副本的节点中选一个源，
+     * 由放置策略选目标，节点作为源或目标的未完成任务都不超过META_REPLICATION_MAX_STREAMS。
+     * 任务随源节点的下一次心跳下发，超时没有完成的任务释放后重新分配。
+     */
+    void scheduleReplication(long now) {
+        for (UnderReplicatedBlocks.Pending p : neededReplications.expire(now)) {
+            releasePending(p);
+            log.info("Replication of block " + p.blockId + " from " + p.source + " to " + p.target + " timed out");
+        }
+        int capacity = 0;  // 各节点还能接收的复制任务数
+        for (StorageNode node : storageNodes.values()) {
+            if (node.isAlive(now)) {
+                capacity += Math.max(0, Config.META_REPLICATION_MAX_STREAMS - node.getReplicationsIn().get());
+            }
+        }
+        for (String blockId : neededReplications.inPriorityOrder()) {
+            if (capacity <= 0) {
+                break;
+            }
+            FileInfo fi = blockFiles.get(blockId);
+            if (fi == null) {
+                releasePending(neededReplications.remove(blockId));
+                continue;
+            }
+            capacity -= scheduleBlock(fi, blockId, now);
+        }
+    }
+
+    // 为一个数据块分配复制任务，返回分配的任务数
+    private int scheduleBlock(FileInfo fi, String blockId, long now) {
+        try (PathLockManager.Locked l = lockFile(fi, false)) {
+            if (l == null) {
+                return 0;
+            }
+            BlockInfo block = null;
+            for (BlockInfo b : fi.getBlocks()) {
+                if (b.getBlockId().equals(blockId)) {
+                    block = b;
+                    break;
+                }
+            }
+            if (block == null) {
+                return 0;
+            }
+            List<String> pendingTargets = neededReplications.pendingTargets(blockId);
+            Set<String> excluded = new HashSet<>(pendingTargets); // 已有副本(不包括丢失的)和正在复制的节点
+            int live = 0;
+            StorageNode source = null;
+            for (int i = 0; i < block.getLocations().size(); i++) {
+                int status = block.getStatus(i);
+                String name = block.getLocations().get(i);
+                if (status != ReplicaStatus.MISSING) {
+                    excluded.add(name);
+                }
+                if (status != ReplicaStatus.FINALIZED) {
+                    continue;
+                }
+                live++;
+                StorageNode node = storageNodes.get(name);
+                if (node != null && node.isAlive(now)
+                        && node.getReplicationsOut().get() < Config.META_REPLICATION_MAX_STREAMS
+                        && (source == null || node.getReplicationsOut().get() < source.getReplicationsOut().get())) {
+                    source = node;
+                }
+            }
+            int needed = Config.REPLICATION - live - pendingTargets.size();
+            if (needed <= 0 || source == null) {
+                return 0;
+            }
+            needed = Math.min(needed, Config.META_REPLICATION_MAX_STREAMS - source.getReplicationsOut().get());
+            List<StorageNode> candidates = new ArrayList<>();
+            for (StorageNode node : storageNodes.values()) {
+                if (!excluded.contains(node.getName())
+                        && node.getReplicationsIn().get() < Config.META_REPLICATION_MAX_STREAMS) {
+                    candidates.add(node);
+                }
+            }
+            int scheduled = 0;
+            for (StorageNode target : placement.chooseTargets(candidates, needed, now)) {
+                target.addPendingBlock();
+                source.getReplicationsOut().incrementAndGet();
+                target.getReplicationsIn().incrementAndGet();
+                neededReplications.addPending(new UnderReplicatedBlocks.Pending(blockId, source.getName(),
+                        target.getName(), now + Config.META_REPLICATION_TIMEOUT_SECS * 1000L));
+                source.addTransfer(new HeartbeatResponse.Transfer(blockId, target.getName()));
+                log.info("Replicate block " + blockId + " of " + fi.getPath() + " (" + live + " live) from "
+                        + source.getName() + " to " + target.getName());
+                scheduled++;
+            }
+            return scheduled;
+        }
+    }
+
+    private void releasePending(UnderReplicatedBlocks.Pending p) {
+        StorageNode source = storageNodes.get(p.source);
+        if (source != null) {
+            source.getReplicationsOut().decrementAndGet();
+        }
+        StorageNode target = storageNodes.get(p.target);
+        if (target != null) {
+            target.getReplicationsIn().decrementAndGet();
+        }
+    }
+
+    private void releasePending(List<UnderReplicatedBlocks.Pending> tasks) {
+        for (UnderReplicatedBlocks.Pending p : tasks) {
+            releasePending(p);
+        }
+    }
+
+    // node汇报收到了ids中的数据块，其中正在复制到该节点的加入数据块的副本位置并持久化
+    private void completeReplications(StorageNode node, Collection<String> ids) {
+        for (String id : ids) {
+            UnderReplicatedBlocks.Pending p = neededReplications.complete(id, node.getName());
+            if (p == null) {
+                continue;
+            }
+            releasePending(p);
+            FileInfo fi = blockFiles.get(id);
+            if (fi != null) {
+                addReplica(fi, id, node);
+            }
+        }
+    }
+
+    private void addReplica(FileInfo fi, String blockId, StorageNode node) {
+        try (PathLockManager.Locked l = lockFile(fi, true)) {
+            if (l == null) {
+                return;
+            }
+            List<BlockInfo> blocks = fi.getBlocks();
+            for (int b = 0; b < blocks.size(); b++) {
+                BlockInfo block = blocks.get(b);
+                if (!block.getBlockId().equals(blockId)) {
+                    continue;
+                }
+                int replica = block.getLocations().indexOf(node.getName());
+                if (replica >= 0) {
+                    block.getStatus().set(replica, ReplicaStatus.FINALIZED); // 之前丢失的副本
+                } else {
+                    block.addLocation(node.getName(), ReplicaStatus.FINALIZED);
+                }
+                node.addBlock(blockId);
+                checkReplication(block);
+                if (b == 0) {
+                    syncLegacyLocations(fi);
+                }
+                persist(fi);
+                log.info("Block " + blockId + " of " + fi.getPath() + " replicated to " + node.getName());
+                return;
+            }
+        } catch (IOException e) {
+            log.error("Cannot persist new replica of block " + blockId + " on " + node.getName(), e);
+        }
+    }
+
+
     // 查询文件的存储位置
     public void getFileLocations(DataInputStream in, DataOutputStream out) throws IOException {
         String path = in.readUTF();
-        FileInfo fileInfo = fileSystem.get(path);
-        if (fileInfo != null) {
+        List<String> locations = null;
+        try (PathLockManager.Locked l = locks.lockForRead(path)) {
+            FileInfo fileInfo = lookup(path);
+            if (fileInfo != null) {
+                locations = new ArrayList<>(fileInfo.getLocations());
+            }
+        }
+        if (locations != null) {
             // 写出List<String>
-            List<String> locations = fileInfo.getLocations();
             out.writeInt(locations.size());
             for (String location : locations) {
                 out.writeUTF(location);
@@ -449,6 +1855,21 @@ public class MetadataServer {
 
     public static void main(String[] args) {
         MetadataServer metaServer = new MetadataServer();
+        // 心跳输出中包含工作线程的指标
+        Thread stats = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Config.HEARTBEAT_SECS * 1000L * 10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.out.println(new Date().toString() + " " + metaServer.metrics());
+                }
+            }
+        }, "meta-stats");
+        stats.setDaemon(true);
+        stats.start();
         metaServer.serve();
 
     }
@@ -0,0 +1,520 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.FileInfo;
+import com.ucas.bigdata.common.FileInfoCodec;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 命名空间镜像：某个事务号时刻所有条目的顺序文件，配合编辑日志实现快速启动。
+ * 文件名为 image_&lt;事务号&gt;，先写入临时文件，fsync后原子改名。
+ * 格式(版本2)：
+ * <pre>
+ *   int  魔数 "DFSI"，int 版本号，long 事务号，long 已分配的最大inode号
+ *   记录：int 16，long inode号，long 父目录inode号，int 编码长度，FileInfoCodec编码
+ *   int  -1 结束标记
+ *   long 记录数，long 所有记录字节的CRC32
+ * </pre>
+ * 版本1没有inode号，头部只到事务号，记录的key为路径(UTF-8)，只由MetaSchemaMigration读取。
+ * 加载时由一个线程顺序读取文件，按块交给解码线程池并行解码。
+ */
+public class NamespaceImage {
+    private static Logger log = LogManager.getLogger(NamespaceImage.class);
+    private static final int MAGIC = 0x44465349;   // "DFSI"
+    public static final int VERSION = 2;
+    public static final int VERSION_PATHS = 1;
+    private static final int INODE_KEY_SIZE = 16;
+    private static final String PREFIX = "image_";
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 20;  // 交给一个解码任务的记录字节数
+
+    // dir中的镜像，按事务号从大到小排列
+    public static List<File> list(File dir) {
+        List<File> images = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (txIdOf(f) >= 0) {
+                    images.add(f);
+                }
+            }
+        }
+        Collections.sort(images, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(txIdOf(b), txIdOf(a));
+            }
+        });
+        return images;
+    }
+
+    // 镜像文件对应的事务号，不是镜像文件时返回-1
+    public static long txIdOf(File f) {
+        String name = f.getName();
+        if (!name.startsWith(PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 只保留事务号最大的retain个镜像
+     * @return 保留的最旧镜像的事务号，它之前的日志可以截断；没有镜像时返回-1
+     */
+    public static long purge(File dir, int retain) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(PREFIX) && f.getName().endsWith(".tmp")) {
+                    f.delete();   // 未完成的镜像
+                }
+            }
+        }
+        List<File> images = list(dir);
+        for (int i = retain; i < images.size(); i++) {
+            if (!images.get(i).delete()) {
+                log.error("Cannot delete old image " + images.get(i));
+            }
+        }
+        int oldest = Math.min(retain, images.size()) - 1;
+        return oldest < 0 ? -1 : txIdOf(images.get(oldest));
+    }
+
+    // 镜像的格式版本，无法读取时返回-1
+    public static int versionOf(File image) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(image))) {
+            return in.readInt() == MAGIC ? in.readInt() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 顺序写入一个镜像，commit后才对加载可见
+     */
+    public static class Writer implements AutoCloseable {
+        private final File target;
+        private final File tmp;
+        private final FileOutputStream fos;
+        private final DataOutputStream out;
+        private final FileInfoCodec codec = new FileInfoCodec();
+        private final CRC32 crc = new CRC32();
+        private long count;
+        private boolean committed;
+
+        private final byte[] key = new byte[INODE_KEY_SIZE];
+
+        public Writer(File dir, long txId, long lastInodeId) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create image directory " + dir);
+            }
+            target = new File(dir, PREFIX + txId);
+            tmp = new File(dir, PREFIX + txId + ".tmp");
+            fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos, IO_BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(txId);
+            out.writeLong(lastInodeId);
+        }
+
+        public void append(FileInfo fi) throws IOException {
+            putLong(key, 0, fi.getInodeId());
+            putLong(key, 8, fi.getParentId());
+            int len = codec.encode(fi);
+            writeInt(INODE_KEY_SIZE);
+            out.write(key);
+            crc.update(key, 0, INODE_KEY_SIZE);
+            writeInt(len);
+            out.write(codec.buffer(), 0, len);
+            crc.update(codec.buffer(), 0, len);
+            count++;
+        }
+
+        private void writeInt(int v) throws IOException {
+            out.writeInt(v);
+            crc.update(v >>> 24);
+            crc.update(v >>> 16);
+            crc.update(v >>> 8);
+            crc.update(v);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        // 写入结尾、fsync并改名为正式镜像
+        public File commit() throws IOException {
+            out.writeInt(-1);
+            out.writeLong(count);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            return target;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * 加载结果
+     */
+    public static class LoadStats {
+        public long txId;
+        public long lastInodeId;
+        public long entries;
+        public long bytes;
+        public long millis;
+
+        @Override
+        public String toString() {
+            return String.format("image{txid=%d, entries=%d, size=%dMB, %dms, %.0f entries/s}", txId, entries,
+                    bytes >> 20, millis, millis == 0 ? 0 : entries * 1000.0 / millis);
+        }
+    }
+
+    /**
+     * 并行加载镜像到target(需要是并发Map)，key为inode号，设置条目的inode号和父目录inode号，不建立目录树
+     * @param threads 解码线程数
+     */
+    public static LoadStats load(File image, final Map<Long, FileInfo> target, int threads) throws IOException {
+        return load(image, VERSION, threads, new Decoder() {
+            public void decode(byte[] chunk, int keyOff, int keyLen, int valueOff, int valueLen) throws IOException {
+                if (keyLen != INODE_KEY_SIZE) {
+                    throw new IOException("Bad image record key size " + keyLen);
+                }
+                FileInfo fi = FileInfoCodec.decode(null, chunk, valueOff, valueLen);
+                fi.setInodeId(getLong(chunk, keyOff));
+                fi.setParentId(getLong(chunk, keyOff + 8));
+                target.put(fi.getInodeId(), fi);
+            }
+        });
+    }
+
+    /**
+     * 并行加载版本1以路径为key的镜像到target，不建立父子关系
+     */
+    public static LoadStats loadPaths(File image, final Map<String, FileInfo> target, int threads) throws IOException {
+        return load(image, VERSION_PATHS, threads, new Decoder() {
+            public void decode(byte[] chunk, int keyOff, int keyLen, int valueOff, int valueLen) throws IOException {
+                String path = new String(chunk, keyOff, keyLen, StandardCharsets.UTF_8);
+                target.put(path, FileInfoCodec.decode(path, chunk, valueOff, valueLen));
+            }
+        });
+    }
+
+    // 解码块中的一条记录
+    private interface Decoder {
+        void decode(byte[] chunk, int keyOff, int keyLen, int valueOff, int valueLen) throws IOException;
+    }
+
+    private static LoadStats load(File image, int expectedVersion, int threads, Decoder decoder) throws IOException {
+        long start = System.currentTimeMillis();
+        LoadStats stats = new LoadStats();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * 2);   // 限制已读入未解码的块数
+        final AtomicLong decoded = new AtomicLong();
+        List<Future<?>> tasks = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(image), IO_BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a namespace image: " + image);
+            }
+            int version = in.readInt();
+            if (version != expectedVersion) {
+                throw new IOException("Unexpected image version " + version + ": " + image);
+            }
+            stats.txId = in.readLong();
+            if (version >= VERSION) {
+                stats.lastInodeId = in.readLong();
+            }
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int used = 0;
+            while (true) {
+                int keyLen = in.readInt();
+                if (keyLen < 0) {
+                    break;
+                }
+                int recordSize = 8 + keyLen;
+                chunk = ensure(chunk, used, recordSize);
+                putInt(chunk, used, keyLen);
+                in.readFully(chunk, used + 4, keyLen);
+                int valueLen = in.readInt();
+                putInt(chunk, used + 4 + keyLen, valueLen);
+                chunk = ensure(chunk, used, recordSize + valueLen);
+                in.readFully(chunk, used + recordSize, valueLen);
+                recordSize += valueLen;
+                crc.update(chunk, used, recordSize);
+                used += recordSize;
+                if (used >= CHUNK_SIZE) {
+                    tasks.add(submit(pool, inFlight, chunk, used, decoder, decoded));
+                    chunk = new byte[CHUNK_SIZE];
+                    used = 0;
+                }
+            }
+            if (used > 0) {
+                tasks.add(submit(pool, inFlight, chunk, used, decoder, decoded));
+            }
+            long count = in.readLong();
+            long sum = in.readLong();
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+            if (sum != crc.getValue()) {
+                throw new IOException("Image checksum mismatch: " + image);
+            }
+            if (count != decoded.get()) {
+                throw new IOException("Image entry count mismatch: expected " + count + " but decoded "
+                        + decoded.get() + " in " + image);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + image);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot decode image " + image + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        stats.entries = decoded.get();
+        stats.bytes = image.length();
+        stats.millis = System.currentTimeMillis() - start;
+        return stats;
+    }
+
+    private static Future<?> submit(ExecutorService pool, final Semaphore inFlight, final byte[] chunk,
+                                    final int used, final Decoder decoder, final AtomicLong decoded)
+            throws InterruptedException {
+        inFlight.acquire();
+        return pool.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    int pos = 0;
+                    long n = 0;
+                    while (pos < used) {
+                        int keyLen = getInt(chunk, pos);
+                        int valueLen = getInt(chunk, pos + 4 + keyLen);
+                        decoder.decode(chunk, pos + 4, keyLen, pos + 8 + keyLen, valueLen);
+                        pos += 8 + keyLen + valueLen;
+                        n++;
+                    }
+                    decoded.addAndGet(n);
+                    return null;
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * 并行按父目录inode号建立目录树，从根目录不可达的条目从inodes中删除
+     * @param inodes 所有条目，包括根目录
+     * @return 不可达的条目数
+     */
+    public static long link(final Map<Long, FileInfo> inodes, FileInfo root, int threads) throws IOException {
+        final FileInfo[] all = inodes.values().toArray(new FileInfo[0]);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            int slice = (all.length + threads - 1) / Math.max(1, threads);
+            for (int t = 0; t < threads; t++) {
+                final int from = t * slice;
+                final int to = Math.min(all.length, from + slice);
+                tasks.add(pool.submit(new Runnable() {
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            FileInfo fi = all[i];
+                            FileInfo parent = inodes.get(fi.getParentId());
+                            if (fi.getInodeId() != InodeTable.ROOT_ID && parent != null && parent.isDirectory()) {
+                                fi.setParent(parent);
+                                parent.addChild(fi);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while linking namespace");
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot link namespace", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        // 从根目录广度优先统计可达的条目
+        List<FileInfo> level = new ArrayList<>();
+        level.add(root);
+        long reached = 1;
+        while (!level.isEmpty()) {
+            List<FileInfo> next = new ArrayList<>();
+            for (FileInfo dir : level) {
+                for (FileInfo child : dir.getChildren()) {
+                    if (child.isDirectory()) {
+                        next.add(child);
+                    }
+                    reached++;
+                }
+            }
+            level = next;
+        }
+        long orphans = all.length - reached;
+        if (orphans > 0) {
+            // 父目录已不存在的条目(及其下的条目)无法访问，丢弃
+            for (FileInfo fi : all) {
+                FileInfo p = fi;
+                for (int depth = 0; p.getParent() != null && depth <= all.length; depth++) {
+                    p = p.getParent();
+                }
+                if (p != root) {
+                    inodes.remove(fi.getInodeId());
+                }
+            }
+            log.error(orphans + " metadata entries are not reachable from the root and were dropped");
+        }
+        return orphans;
+    }
+
+    /**
+     * 并行按路径把条目连接到父目录，找不到父目录的条目从entries中删除，用于版本1的镜像
+     * @return 删除的孤立条目数
+     */
+    public static long relink(final Map<String, FileInfo> entries, int threads) throws IOException {
+        final FileInfo[] all = entries.values().toArray(new FileInfo[0]);
+        final AtomicLong orphans = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            int slice = (all.length + threads - 1) / Math.max(1, threads);
+            for (int t = 0; t < threads; t++) {
+                final int from = t * slice;
+                final int to = Math.min(all.length, from + slice);
+                tasks.add(pool.submit(new Runnable() {
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            FileInfo fi = all[i];
+                            String path = fi.getPath();
+                            if ("/".equals(path)) {
+                                continue;
+                            }
+                            FileInfo parent = entries.get(parentOf(path));
+                            if (parent != null && parent.isDirectory()) {
+                                fi.setParent(parent);
+                                parent.addChild(fi);
+                            } else {
+                                orphans.incrementAndGet();
+                                log.error("Orphan metadata entry " + path);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while linking namespace");
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot link namespace", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        if (orphans.get() > 0) {
+            // 父目录已不存在的条目(及其下的条目)无法访问，丢弃
+            removeUnreachable(entries);
+        }
+        return orphans.get();
+    }
+
+    private static void removeUnreachable(Map<String, FileInfo> entries) {
+        Collection<FileInfo> all = new ArrayList<>(entries.values());
+        for (FileInfo fi : all) {
+            FileInfo p = fi;
+            while (p.getParent() != null) {
+                p = p.getParent();
+            }
+            if (!"/".equals(p.getPath())) {
+                entries.remove(fi.getPath());
+            }
+        }
+    }
+
+    static String parentOf(String path) {
+        int i = path.lastIndexOf('/');
+        return i <= 0 ? "/" : path.substring(0, i);
+    }
+
+    private static byte[] ensure(byte[] chunk, int used, int need) {
+        return used + need <= chunk.length ? chunk : Arrays.copyOf(chunk, Math.max(chunk.length * 2, used + need));
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xFF);
+        }
+        return v;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
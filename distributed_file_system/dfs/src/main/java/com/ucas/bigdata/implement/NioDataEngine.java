@@ -0,0 +1,796 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataChecksum;
+import com.ucas.bigdata.common.DataOpCode;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于Selector的非阻塞DataServer引擎，与阻塞引擎使用同样的DataOpCode协议。
+ * accept线程把新连接轮流分给若干selector线程，空闲的长连接只占一个SelectionKey，
+ * 不占线程，也不占缓冲区。
+ * READ_FILE/READ_RANGE/DEL_FILE/STATS在selector线程中以状态机完成：请求从池化的直接缓冲区中解析，
+ * 响应头写入直接缓冲区，数据段用transferTo发送，socket写满时注册OP_WRITE等待。
+ * WRITE_FILE/WRITE_BLOCK要同步转发给下游节点，交给RequestEngine的工作线程按阻塞流处理，
+ * 流的底层仍是同一对直接缓冲区，处理完后连接回到selector。
+ */
+public class NioDataEngine {
+    private static Logger log = LogManager.getLogger(NioDataEngine.class);
+    // 返回码0 + writeUTF("OK")
+    private static final byte[] OK_HEADER = {0, 0, 0, 0, 0, 2, 'O', 'K'};
+
+    private final DataServer server;
+    private final ServerSocketChannel serverChannel;
+    private final DirectBufferPool buffers;
+    private final SelectorLoop[] loops;
+    private volatile boolean running;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong handoffs = new AtomicLong();  // 交给工作线程的写请求数
+
+    public NioDataEngine(DataServer server, ServerSocketChannel serverChannel) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.buffers = new DirectBufferPool(Config.NIO_BUFFER_SIZE, Config.NIO_BUFFER_POOL_MAX);
+        this.loops = new SelectorLoop[Math.max(1, Config.NIO_SELECTOR_THREADS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop();
+        }
+    }
+
+    /**
+     * 在当前线程中循环accept，直到stop
+     */
+    public void serve() throws IOException {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-selector-" + server.nodeName + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        serverChannel.configureBlocking(true);
+        int next = 0;
+        while (running) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            accepted.incrementAndGet();
+            connections.incrementAndGet();
+            server.connections.increment();
+            server.connectionsTotal.increment();
+            SelectorLoop loop = loops[next++ % loops.length];
+            loop.add(new NioConnection(channel, loop));
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (SelectorLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    public String metrics() {
+        return "nio{connections=" + connections.get() +
+                ", accepted=" + accepted.get() +
+                ", requests=" + requests.get() +
+                ", handoffs=" + handoffs.get() +
+                ", " + buffers.metrics() +
+                '}';
+    }
+
+    private class SelectorLoop implements Runnable {
+        final Selector selector;
+        final Queue<NioConnection> pending = new ConcurrentLinkedQueue<>();  // 新连接和从工作线程返回的连接
+        final List<NioConnection> deferred = new ArrayList<>();  // 工作线程已满，等待重新提交
+        long lastSweep = System.currentTimeMillis();
+
+        SelectorLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(NioConnection c) {
+            pending.add(c);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(deferred.isEmpty() ? 1000 : 50);
+                    NioConnection c;
+                    while ((c = pending.poll()) != null) {
+                        c.resume(selector);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((NioConnection) key.attachment()).handle(key);
+                    }
+                    retryDeferred();
+                    sweep();
+                } catch (IOException e) {
+                    log.error("Selector loop error", e);
+                }
+            }
+        }
+
+        void handoff(NioConnection c) {
+            handoffs.incrementAndGet();
+            if (!deferred.isEmpty() || !server.engine.trySubmit(c)) {
+                deferred.add(c);
+            }
+        }
+
+        private void retryDeferred() {
+            Iterator<NioConnection> it = deferred.iterator();
+            while (it.hasNext()) {
+                if (!server.engine.trySubmit(it.next())) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+
+        // 关闭空闲超时的连接，正在工作线程中的连接由工作线程自己处理超时
+        private void sweep() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < 1000) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                NioConnection c = (NioConnection) key.attachment();
+                if (c != null && !c.busy && now - c.lastActive > Config.DATA_SERVER_IDLE_TIMEOUT_MS) {
+                    c.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个客户端连接的状态。除了交给工作线程的期间(busy)，只由所属的selector线程访问。
+     */
+    private class NioConnection implements Runnable {
+        final SocketChannel channel;
+        final SelectorLoop loop;
+        SelectionKey key;
+        ByteBuffer in;     // 已收到未处理的请求数据，填充模式；空闲时归还缓冲池
+        ByteBuffer out;    // 待发送的响应数据，填充模式
+        Response response; // 正在发送的响应
+        DataOpCode pendingOp;  // 交给工作线程处理的写请求
+        volatile boolean busy;
+        volatile long lastActive = System.currentTimeMillis();
+        private boolean closed;
+
+        NioConnection(SocketChannel channel, SelectorLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // 在selector线程中注册新连接，或继续处理从工作线程返回的连接
+        void resume(Selector selector) {
+            try {
+                if (key == null) {
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                }
+                advance();
+            } catch (IOException e) {
+                log.info(e);
+                close();
+            }
+        }
+
+        void handle(SelectionKey k) {
+            try {
+                if (k.isReadable()) {
+                    if (in == null) {
+                        in = buffers.acquire();
+                    }
+                    int n = channel.read(in);
+                    if (n < 0) {
+                        close();
+                        return;
+                    }
+                    lastActive = System.currentTimeMillis();
+                }
+                advance();
+            } catch (IOException | RuntimeException e) {
+                log.info(e);
+                close();
+            }
+        }
+
+        // 尽量推进：发送当前响应，然后解析并执行缓冲区中的下一个请求
+        private void advance() throws IOException {
+            while (!closed) {
+                if (response != null) {
+                    if (out == null) {
+                        out = buffers.acquire();
+                    }
+                    if (!response.send(this)) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    response.close();
+                    response = null;
+                    buffers.release(out);
+                    out = null;
+                }
+                if (in == null || in.position() == 0) {
+                    if (in != null) {
+                        buffers.release(in);
+                        in = null;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                in.flip();
+                int start = in.position();
+                if (!parseRequest()) {
+                    // 请求还没收全
+                    in.position(start);
+                    in.compact();
+                    if (!in.hasRemaining()) {
+                        throw new IOException("Request header too large");
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                in.compact();
+                requests.incrementAndGet();
+                if (pendingOp != null) {
+                    busy = true;
+                    key.interestOps(0);
+                    loop.handoff(this);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 从in(读模式)解析一个请求，设置response或pendingOp
+         * @return 请求不完整时返回false
+         */
+        private boolean parseRequest() throws IOException {
+            if (!in.hasRemaining()) {
+                return false;
+            }
+            byte code = in.get();
+            DataOpCode op = DataOpCode.valueOf(code);
+            if (op == null) {
+                throw new IOException("Unknown op " + code + " in data stream");
+            }
+            switch (op) {
+                case WRITE_FILE:
+                case WRITE_BLOCK:
+                case TRANSFER_BLOCK:
+                    pendingOp = op;
+                    return true;
+                case READ_FILE:
+                case READ_RANGE: {
+                    boolean ranged = op == DataOpCode.READ_RANGE;
+                    String fileId = getUTF(in);
+                    if (fileId == null || in.remaining() < (ranged ? 16 : 8)) {
+                        return false;
+                    }
+                    long offset = in.getLong();
+                    long length = ranged ? in.getLong() : Long.MAX_VALUE;
+                    response = openRead(fileId, offset, length, ranged);
+                    return true;
+                }
+                case DEL_FILE: {
+                    String fileId = getUTF(in);
+                    if (fileId == null) {
+                        return false;
+                    }
+                    response = runInline(op, fileId);
+                    return true;
+                }
+                case STATS:
+                    response = runInline(op, null);
+                    return true;
+                default:
+                    throw new IOException("Unknown op " + op + " in data stream");
+            }
+        }
+
+        // 交给工作线程：用阻塞流处理一个写请求
+        public void run() {
+            Selector waiter = null;
+            boolean ok = false;
+            try {
+                waiter = Selector.open();
+                SelectionKey waitKey = channel.register(waiter, 0);
+                in.flip();
+                out = buffers.acquire();
+                DataInputStream din = new DataInputStream(new ChannelInput(waiter, waitKey));
+                DataOutputStream dout = new DataOutputStream(new ChannelOutput(waiter, waitKey));
+                server.process(pendingOp, din, dout, channel.socket());
+                dout.flush();
+                in.compact();
+                ok = true;
+            } catch (IOException | RuntimeException e) {
+                log.info(e);
+            } finally {
+                if (waiter != null) {
+                    try {
+                        waiter.close();
+                    } catch (IOException e) {
+                        log.error(e);
+                    }
+                }
+                if (ok) {
+                    buffers.release(out);
+                    out = null;
+                    pendingOp = null;
+                    lastActive = System.currentTimeMillis();
+                    busy = false;
+                    loop.add(this);
+                } else {
+                    close();
+                }
+            }
+        }
+
+        // 把out中的数据写入socket
+        // @return out已全部写出
+        boolean flushOut() throws IOException {
+            out.flip();
+            if (channel.write(out) > 0) {
+                lastActive = System.currentTimeMillis();
+            }
+            boolean empty = !out.hasRemaining();
+            out.compact();
+            return empty;
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.decrementAndGet();
+            server.connections.decrement();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error(e);
+            }
+            if (response != null) {
+                response.close();
+                response = null;
+            }
+            // 工作线程出错时也在结束前调用这里，此时缓冲区已经不再被使用
+            if (in != null) {
+                buffers.release(in);
+                in = null;
+            }
+            if (out != null) {
+                buffers.release(out);
+                out = null;
+            }
+        }
+
+        // 工作线程中的阻塞输入流，数据来自in缓冲区(读模式)，读空后从socket补充
+        private class ChannelInput extends InputStream {
+            private final Selector waiter;
+            private final SelectionKey waitKey;
+
+            ChannelInput(Selector waiter, SelectionKey waitKey) {
+                this.waiter = waiter;
+                this.waitKey = waitKey;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? in.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, in.remaining());
+                in.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return in.remaining();
+            }
+
+            private boolean fill() throws IOException {
+                if (in.hasRemaining()) {
+                    return true;
+                }
+                in.clear();
+                try {
+                    int n;
+                    while ((n = channel.read(in)) == 0) {
+                        await(waiter, waitKey, SelectionKey.OP_READ);
+                    }
+                    lastActive = System.currentTimeMillis();
+                    return n > 0;
+                } finally {
+                    in.flip();
+                }
+            }
+        }
+
+        // 工作线程中的阻塞输出流，写满out缓冲区后等待socket可写
+        private class ChannelOutput extends OutputStream {
+            private final Selector waiter;
+            private final SelectionKey waitKey;
+
+            ChannelOutput(Selector waiter, SelectionKey waitKey) {
+                this.waiter = waiter;
+                this.waitKey = waitKey;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (!out.hasRemaining()) {
+                    flush();
+                }
+                out.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (!out.hasRemaining()) {
+                        flush();
+                    }
+                    int n = Math.min(len, out.remaining());
+                    out.put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                while (!flushOut()) {
+                    await(waiter, waitKey, SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    // 在工作线程的临时Selector上等待socket就绪，超过空闲超时则放弃
+    private static void await(Selector waiter, SelectionKey waitKey, int ops) throws IOException {
+        waitKey.interestOps(ops);
+        if (waiter.select(Config.DATA_SERVER_IDLE_TIMEOUT_MS) == 0) {
+            throw new SocketTimeoutException("Timed out waiting for data channel");
+        }
+        waiter.selectedKeys().clear();
+    }
+
+    // 读取writeUTF格式的字符串，数据不完整时返回null
+    private static String getUTF(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) {
+            return null;
+        }
+        int len = in.getShort(in.position()) & 0xffff;
+        if (in.remaining() < 2 + len) {
+            return null;
+        }
+        byte[] bytes = new byte[2 + len];
+        in.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    // 在selector线程中直接执行一个很快的请求(DEL_FILE、STATS)，复用DataServer的实现，STATS没有fileId
+    private Response runInline(DataOpCode op, String fileId) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        if (fileId != null) {
+            new DataOutputStream(request).writeUTF(fileId);
+        }
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        server.process(op, new DataInputStream(new ByteArrayInputStream(request.toByteArray())),
+                new DataOutputStream(reply), null);
+        return new BytesResponse(reply.toByteArray());
+    }
+
+    private Response openRead(String fileId, long offset, long length, boolean ranged) {
+        try {
+            return new ReadResponse(fileId, new File(server.storage_path, fileId), offset, length, ranged,
+                    ranged ? server.cache : null, server);
+        } catch (IOException e) {
+            log.info(e);
+            try {
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(reply);
+                out.writeInt(-1);
+                out.writeUTF("File read error:" + e.getMessage());
+                return new BytesResponse(reply.toByteArray());
+            } catch (IOException e1) {
+                throw new IllegalStateException(e1);
+            }
+        }
+    }
+
+    private interface Response {
+        /**
+         * 尽量多地把响应写入连接
+         * @return 响应已全部写出
+         */
+        boolean send(NioConnection c) throws IOException;
+
+        void close();
+    }
+
+    private static class BytesResponse implements Response {
+        private final byte[] data;
+        private int pos;
+
+        BytesResponse(byte[] data) {
+            this.data = data;
+        }
+
+        public boolean send(NioConnection c) throws IOException {
+            while (true) {
+                int n = Math.min(c.out.remaining(), data.length - pos);
+                c.out.put(data, pos, n);
+                pos += n;
+                if (!c.flushOut()) {
+                    return false;
+                }
+                if (pos == data.length) {
+                    return true;
+                }
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * READ_FILE/READ_RANGE的响应，帧格式与BlockSender相同。
+     * READ_RANGE带校验和：范围向外对齐到chunk边界，每个分段前附带校验文件中的chunk校验和。
+     * 启用块缓存时READ_RANGE的分段按缓存chunk切分，命中的分段从堆外缓存直接写入socket。
+     */
+    private static class ReadResponse implements Response {
+        private final RandomAccessFile file;
+        private final FileChannel fc;
+        private RandomAccessFile meta;
+        private FileChannel mc;
+        private final boolean ranged;
+        private final boolean zeroCopy = Config.DATA_READ_ZERO_COPY;
+        private final String blockId;
+        private BlockCache cache;
+        private ChecksumFile header;
+        private BlockCache.Entry entry;   // 当前分段来自缓存时pin住的chunk
+        private ByteBuffer entryData;
+        private int type = DataChecksum.TYPE_NONE;
+        private int bpc = 1;
+        private long position;
+        private long end;
+        private final long start;
+        private int segment;
+        private long segRemaining;  // 当前分段还没发送的数据
+        private boolean headerSent;
+        private boolean endSent;
+        private final DataServer server;   // 计入它的activeTransfers、字节数和操作延迟
+        private final DataOpCode op;
+        private final long startNanos = System.nanoTime();
+        private boolean counted;
+
+        ReadResponse(String blockId, File path, long offset, long length, boolean ranged,
+                     BlockCache cache, DataServer server) throws IOException {
+            this.blockId = blockId;
+            this.server = server;
+            this.ranged = ranged;
+            this.op = ranged ? DataOpCode.READ_RANGE : DataOpCode.READ_FILE;
+            this.file = new RandomAccessFile(path, "r");
+            try {
+                this.fc = file.getChannel();
+                long fileSize = fc.size();
+                end = BlockSender.rangeEnd(fileSize, offset, length);
+                segment = Config.DATA_READ_SEGMENT_SIZE;
+                if (ranged) {
+                    File metaFile = ChecksumFile.metaFileOf(path);
+                    if (metaFile.exists()) {
+                        meta = new RandomAccessFile(metaFile, "r");
+                        mc = meta.getChannel();
+                        header = ChecksumFile.readHeader(mc);
+                        type = header.type;
+                        bpc = header.bytesPerChecksum;
+                        // 一个分段的校验和要能放进一个缓冲区
+                        int maxChunks = (Config.NIO_BUFFER_SIZE - 8) / DataChecksum.CHECKSUM_SIZE;
+                        segment = (int) Math.min(segment, (long) maxChunks * bpc);
+                    }
+                    if (header == null) {
+                        header = new ChecksumFile(DataChecksum.TYPE_NONE, 1);
+                    }
+                    position = Math.min(offset, end) / bpc * bpc;
+                    end = Math.min(fileSize, (end + bpc - 1) / bpc * bpc);
+                    segment = Math.max(bpc, segment / bpc * bpc);
+                    // 缓存chunk的校验和同样要能放进一个缓冲区
+                    if (cache != null && cache.supports(bpc) && 8 + DataChecksum.chunkCount(cache.getChunkSize(), bpc)
+                            * DataChecksum.CHECKSUM_SIZE <= Config.NIO_BUFFER_SIZE) {
+                        this.cache = cache;
+                        segment = cache.getChunkSize();
+                    }
+                } else {
+                    position = offset;
+                }
+                start = position;
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            server.activeTransfers.incrementAndGet();
+            counted = true;
+        }
+
+        public boolean send(NioConnection c) throws IOException {
+            ByteBuffer out = c.out;
+            if (!headerSent) {
+                out.put(OK_HEADER);
+                if (ranged) {
+                    out.put((byte) type);
+                    out.putInt(bpc);
+                    out.putLong(start);
+                }
+                headerSent = true;
+            }
+            while (true) {
+                if (segRemaining > 0) {
+                    long n;
+                    if (entryData != null) {
+                        if (!c.flushOut()) {
+                            return false;
+                        }
+                        n = c.channel.write(entryData);
+                        if (n == 0) {
+                            return false;
+                        }
+                        c.lastActive = System.currentTimeMillis();
+                        if (n == segRemaining) {
+                            releaseEntry();
+                        }
+                    } else if (zeroCopy) {
+                        if (!c.flushOut()) {
+                            return false;
+                        }
+                        n = fc.transferTo(position, segRemaining, c.channel);
+                        if (n <= 0) {
+                            if (position >= fc.size()) {
+                                throw new IOException("File truncated while sending");
+                            }
+                            return false;  // socket写满，等待OP_WRITE
+                        }
+                        c.lastActive = System.currentTimeMillis();
+                    } else {
+                        if (!out.hasRemaining() && !c.flushOut()) {
+                            return false;
+                        }
+                        int limit = out.limit();
+                        out.limit(out.position() + (int) Math.min(out.remaining(), segRemaining));
+                        try {
+                            n = fc.read(out, position);
+                        } finally {
+                            out.limit(limit);
+                        }
+                        if (n <= 0) {
+                            throw new IOException("File truncated while sending");
+                        }
+                    }
+                    position += n;
+                    segRemaining -= n;
+                    continue;
+                }
+                if (position >= end) {
+                    if (!endSent) {
+                        if (out.remaining() < 4 && !c.flushOut()) {
+                            return false;
+                        }
+                        out.putInt(BlockSender.END_STREAM);
+                        endSent = true;
+                    }
+                    return c.flushOut();
+                }
+                // 下一个分段头
+                int len = (int) Math.min(segment, end - position);
+                int offsetInChunk = 0;
+                if (cache != null) {
+                    offsetInChunk = (int) (position % segment);
+                    len = (int) Math.min(segment - offsetInChunk, end - position);
+                }
+                int n = mc != null ? DataChecksum.chunkCount(len, bpc) : 0;
+                int headerSize = ranged ? 8 + n * DataChecksum.CHECKSUM_SIZE : 4;
+                if (out.remaining() < headerSize && !c.flushOut()) {
+                    return false;
+                }
+                if (cache != null) {
+                    entry = cache.acquire(blockId, position / segment, fc, mc, header);
+                    if (entry != null) {
+                        entryData = entry.data(offsetInChunk, len);
+                    }
+                }
+                out.putInt(len);
+                if (ranged) {
+                    out.putInt(n);
+                    if (n > 0 && entry != null) {
+                        entry.putChecksums(out, offsetInChunk / bpc, n);
+                    } else if (n > 0) {
+                        int limit = out.limit();
+                        out.limit(out.position() + n * DataChecksum.CHECKSUM_SIZE);
+                        try {
+                            ChecksumFile.readFully(mc, out,
+                                    ChecksumFile.HEADER_SIZE + position / bpc * DataChecksum.CHECKSUM_SIZE);
+                        } finally {
+                            out.limit(limit);
+                        }
+                    }
+                }
+                segRemaining = len;
+            }
+        }
+
+        private void releaseEntry() {
+            if (entry != null) {
+                cache.release(entry);
+                entry = null;
+                entryData = null;
+            }
+        }
+
+        public void close() {
+            releaseEntry();
+            if (counted) {
+                counted = false;
+                server.activeTransfers.decrementAndGet();
+                server.addBytesOut(position - start);
+                server.recordOp(op, System.nanoTime() - startNanos);
+            }
+            try {
+                file.close();
+                if (meta != null) {
+                    meta.close();
+                }
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.ucas.bigdata.implement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 命名空间的分段路径锁。
+ * 路径按哈希映射到固定数量的读写锁上。修改一个路径时读锁住它的所有祖先目录、写锁住它本身，
+ * 所以删除目录会排斥目录下的所有操作，而同一目录下不同文件的操作可以并发。
+ * 一次操作需要的锁按分段序号升序获取，同一分段既要读又要写时只取写锁，不会死锁。
+ */
+public class PathLockManager {
+    private final ReentrantReadWriteLock[] stripes;
+
+    public PathLockManager(int stripeCount) {
+        stripes = new ReentrantReadWriteLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    // 读锁住祖先目录，写锁住path
+    public Locked lockForWrite(String path) {
+        return lock(ancestors(path), Collections.singletonList(path));
+    }
+
+    // 读锁住path及其祖先目录
+    public Locked lockForRead(String path) {
+        List<String> paths = ancestors(path);
+        paths.add(path);
+        return lock(paths, Collections.<String>emptyList());
+    }
+
+    // 写锁住所有分段，等待正在进行的操作结束并阻止新操作，只能短暂持有
+    public Locked lockAll() {
+        List<Lock> held = new ArrayList<>(stripes.length);
+        for (ReentrantReadWriteLock rw : stripes) {
+            rw.writeLock().lock();
+            held.add(rw.writeLock());
+        }
+        return new Locked(held);
+    }
+
+    /**
+     * 读锁住readPaths，写锁住writePaths
+     */
+    public Locked lock(Collection<String> readPaths, Collection<String> writePaths) {
+        TreeMap<Integer, Boolean> wanted = new TreeMap<>(); // 分段序号 -> 是否写锁
+        for (String path : readPaths) {
+            Integer stripe = stripeOf(path);
+            if (!wanted.containsKey(stripe)) {
+                wanted.put(stripe, false);
+            }
+        }
+        for (String path : writePaths) {
+            wanted.put(stripeOf(path), true);
+        }
+        List<Lock> held = new ArrayList<>(wanted.size());
+        try {
+            for (Map.Entry<Integer, Boolean> e : wanted.entrySet()) {
+                ReentrantReadWriteLock rw = stripes[e.getKey()];
+                Lock lock = e.getValue() ? rw.writeLock() : rw.readLock();
+                lock.lock();
+                held.add(lock);
+            }
+        } catch (RuntimeException e) {
+            new Locked(held).close();
+            throw e;
+        }
+        return new Locked(held);
+    }
+
+    // path的所有祖先目录，从根目录开始
+    public static List<String> ancestors(String path) {
+        List<String> result = new ArrayList<>();
+        String p = path;
+        while (!"/".equals(p)) {
+            int i = p.lastIndexOf('/');
+            if (i < 0) {
+                break;
+            }
+            p = i == 0 ? "/" : p.substring(0, i);
+            result.add(p);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private int stripeOf(String path) {
+        int h = path.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+
+    /**
+     * 一次加锁的结果，close时按相反顺序释放
+     */
+    public static class Locked implements AutoCloseable {
+        private final List<Lock> held;
+
+        Locked(List<Lock> held) {
+            this.held = held;
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+            }
+            held.clear();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.ucas.bigdata.implement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 在存活的节点中均匀随机选择，不考虑负载和空间
+ */
+public class RandomPlacementPolicy implements BlockPlacementPolicy {
+
+    public List<StorageNode> chooseTargets(Collection<StorageNode> nodes, int count, long now) {
+        List<StorageNode> alive = new ArrayList<>(nodes.size());
+        for (StorageNode node : nodes) {
+            if (node.isAlive(now)) {
+                alive.add(node);
+            }
+        }
+        Collections.shuffle(alive, ThreadLocalRandom.current()); // 多个工作线程并发分配，不共享Random
+        return new ArrayList<>(alive.subList(0, Math.min(count, alive.size())));
+    }
+}
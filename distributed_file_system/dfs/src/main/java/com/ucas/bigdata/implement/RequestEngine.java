@@ -0,0 +1,192 @@
+package com.ucas.bigdata.implement;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 并发请求引擎：把每个连接交给有界工作线程池处理。
+ * 同时处理和排队的连接总数受信号量限制，超过上限时accept线程阻塞，
+ * 新连接留在内核backlog中，从而形成反压。
+ * 在支持虚拟线程的JDK上每个连接使用一个虚拟线程，否则使用固定大小的平台线程池。
+ */
+public class RequestEngine {
+    private static Logger log = LogManager.getLogger(RequestEngine.class);
+
+    private final String name;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int workers;
+    private final int queueCapacity;
+    private final boolean virtualThreads;
+
+    private final AtomicInteger queued = new AtomicInteger();   // 已提交但还未开始执行
+    private final AtomicInteger active = new AtomicInteger();   // 正在执行
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();     // 因反压而等待的次数
+
+    public RequestEngine(String name, int workers, int queueCapacity, boolean useVirtualThreads) {
+        this.name = name;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.permits = new Semaphore(workers + queueCapacity);
+        ExecutorService vt = useVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtualThreads = vt != null;
+        this.executor = vt != null ? vt : new ThreadPoolExecutor(workers, workers,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        log.info("RequestEngine " + name + " started, workers=" + workers + " queue=" + queueCapacity
+                + " virtualThreads=" + virtualThreads);
+    }
+
+    // JDK 21+ 才有 Executors.newVirtualThreadPerTaskExecutor，这里用反射保持Java 8可编译
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 提交一个任务，超过并发上限时阻塞调用线程直到有空位。
+     */
+    public void submit(final Runnable task) throws InterruptedException {
+        if (!permits.tryAcquire()) {
+            throttled.incrementAndGet();
+            permits.acquire();
+        }
+        execute(task);
+    }
+
+    /**
+     * 不阻塞的提交，没有空位时返回false，由调用方稍后重试。供selector线程使用。
+     */
+    public boolean trySubmit(Runnable task) {
+        if (!permits.tryAcquire()) {
+            throttled.incrementAndGet();
+            return false;
+        }
+        execute(task);
+        return true;
+    }
+
+    private void execute(final Runnable task) {
+        submitted.incrementAndGet();
+        int depth = queued.incrementAndGet();
+        updateMax(depth);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                        completed.incrementAndGet();
+                    } catch (Throwable t) {
+                        failed.incrementAndGet();
+                        log.error("Request failed in " + name, t);
+                    } finally {
+                        active.decrementAndGet();
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void updateMax(int depth) {
+        int max;
+        while (depth > (max = maxQueued.get())) {
+            if (maxQueued.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    // 有任务在等待线程池的线程，或者并发上限已用完、下一次submit会阻塞；虚拟线程时只有后一种
+    public boolean isSaturated() {
+        return queued.get() > 0 || permits.availablePermits() == 0;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public String metrics() {
+        return name + "{active=" + active.get() +
+                ", queued=" + queued.get() +
+                ", maxQueued=" + maxQueued.get() +
+                ", capacity=" + (workers + queueCapacity) +
+                ", submitted=" + submitted.get() +
+                ", completed=" + completed.get() +
+                ", failed=" + failed.get() +
+                ", throttled=" + throttled.get() +
+                '}';
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger seq = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-worker-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
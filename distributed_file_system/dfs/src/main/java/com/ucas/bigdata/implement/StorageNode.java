@@ -1,16 +1,184 @@
 package com.ucas.bigdata.implement;
 
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.HeartbeatResponse;
+import com.ucas.bigdata.common.NodeStats;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 元数据服务器记录的一个DataServer：最近一次心跳的时间和汇报的状态，
+ * 之后分配给它、心跳中还没有反映出来的副本数，以及命名空间中记录在它上面的数据块。
+ * 监控线程判定失效和处理块报告时持有该对象的锁，两者不会交错。
+ */
 public class StorageNode {
 
     private String name;
     private Map<String, byte[]> fileStorage; // 文件存储，文件路径到文件数据的映射
+    private volatile long lastHeartbeat;     // 最近一次心跳的时间，还没有心跳时为注册时间
+    private volatile NodeStats stats;        // 最近一次心跳汇报的状态，还没有汇报时为null
+    private final AtomicInteger pendingBlocks = new AtomicInteger(); // 上次心跳之后分配的副本数
+    private final Set<String> blocks = ConcurrentHashMap.newKeySet(); // 命名空间中位于该节点的数据块ID
+    private volatile boolean dead;                 // 已被监控线程判定失效，副本已标记为MISSING
+    private volatile boolean reportNeeded = true;  // 需要DataServer发送完整块报告：元数据服务器启动后还没收到或节点曾失效
+    private final AtomicInteger replicationsOut = new AtomicInteger(); // 作为源的未完成复制任务数
+    private final AtomicInteger replicationsIn = new AtomicInteger();  // 作为目标的未完成复制任务数
+    private final Queue<HeartbeatResponse.Transfer> transfers = new ConcurrentLinkedQueue<>(); // 等待随心跳下发的复制任务
+    private final Queue<String> invalidBlocks = new ConcurrentLinkedQueue<>(); // 等待随心跳下发的删除数据块
 
     public StorageNode(String name) {
+        this(name, System.currentTimeMillis());
+    }
+
+    public StorageNode(String name, long now) {
         this.name = name;
         fileStorage = new HashMap<>();
+        lastHeartbeat = now;
+    }
+
+    /**
+     * 收到心跳，已分配的副本此后反映在汇报的负载和空间中
+     * @return 节点之前已被判定失效
+     */
+    public synchronized boolean heartbeat(NodeStats stats, long now) {
+        this.stats = stats;
+        lastHeartbeat = now;
+        pendingBlocks.set(0);
+        boolean wasDead = dead;
+        dead = false;
+        return wasDead;
+    }
+
+    /**
+     * 超时且还没有判定失效时把节点标记为失效，之后需要完整块报告才能恢复副本状态；
+     * 丢弃等待下发的删除，节点恢复后块报告中仍存在的数据块会再次加入
+     * @return 本次由存活变为失效
+     */
+    public synchronized boolean markDead(long now) {
+        if (dead || isAlive(now)) {
+            return false;
+        }
+        dead = true;
+        reportNeeded = true;
+        invalidBlocks.clear();
+        return true;
+    }
+
+    public boolean isDead() {
+        return dead;
+    }
+
+    public boolean isReportNeeded() {
+        return reportNeeded;
+    }
+
+    public void setReportNeeded(boolean reportNeeded) {
+        this.reportNeeded = reportNeeded;
+    }
+
+    public void addBlock(String blockId) {
+        blocks.add(blockId);
+    }
+
+    public void removeBlock(String blockId) {
+        blocks.remove(blockId);
+    }
+
+    // 命名空间中位于该节点的数据块ID，并发修改时遍历不会失败
+    public Set<String> getBlocks() {
+        return blocks;
+    }
+
+    public AtomicInteger getReplicationsOut() {
+        return replicationsOut;
+    }
+
+    public AtomicInteger getReplicationsIn() {
+        return replicationsIn;
+    }
+
+    public void addTransfer(HeartbeatResponse.Transfer transfer) {
+        transfers.add(transfer);
+    }
+
+    // 取出等待下发的复制任务
+    public List<HeartbeatResponse.Transfer> pollTransfers() {
+        List<HeartbeatResponse.Transfer> list = new ArrayList<>();
+        HeartbeatResponse.Transfer t;
+        while ((t = transfers.poll()) != null) {
+            list.add(t);
+        }
+        return list;
+    }
+
+    public void addInvalidBlock(String blockId) {
+        invalidBlocks.add(blockId);
+    }
+
+    // 取出最多max个等待删除的数据块，其余的留到之后的心跳
+    public List<String> pollInvalidBlocks(int max) {
+        List<String> list = new ArrayList<>();
+        String id;
+        while (list.size() < max && (id = invalidBlocks.poll()) != null) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    // 超过TIMEOUT_OF_HEARTBEATS个心跳周期没有心跳时认为节点已失效
+    public boolean isAlive(long now) {
+        return now - lastHeartbeat <= Config.TIMEOUT_OF_HEARTBEATS * Config.HEARTBEAT_SECS * 1000L;
+    }
+
+    public long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    public NodeStats getStats() {
+        return stats;
+    }
+
+    public void addPendingBlock() {
+        pendingBlocks.incrementAndGet();
+    }
+
+    public int getPendingBlocks() {
+        return pendingBlocks.get();
+    }
+
+    // 估计的可用空间，扣除上次心跳之后分配的副本；还没有汇报时为Long.MAX_VALUE
+    public long getRemaining() {
+        NodeStats s = stats;
+        return s == null ? Long.MAX_VALUE : s.getRemaining() - pendingBlocks.get() * Config.BLOCK_SIZE;
+    }
+
+    // 估计的已用空间比例，还没有汇报时为0
+    public double getUsedRatio() {
+        NodeStats s = stats;
+        if (s == null || s.getCapacity() <= 0) {
+            return 0;
+        }
+        return 1.0 - (double) getRemaining() / s.getCapacity();
+    }
+
+    /**
+     * 负载：正在进行的传输数，加上次心跳之后分配的副本数，再加每秒读写的数据块数
+     */
+    public double getLoad() {
+        NodeStats s = stats;
+        double load = pendingBlocks.get();
+        if (s != null) {
+            load += s.getActiveTransfers() + (double) s.getIoBytesPerSec() / Config.BLOCK_SIZE;
+        }
+        return load;
     }
 
     // 上传文件到存储节点
@@ -46,5 +214,12 @@ public class StorageNode {
     public String getName() {
         return name;
     }
+
+    @Override
+    public String toString() {
+        return String.format("%s{alive=%s load=%.1f used=%.1f%% pending=%d blocks=%d replicating=%d/%d}", name,
+                isAlive(System.currentTimeMillis()), getLoad(), getUsedRatio() * 100, pendingBlocks.get(), blocks.size(),
+                replicationsOut.get(), replicationsIn.get());
+    }
 }
 
@@ -0,0 +1,158 @@
+package com.ucas.bigdata.implement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 副本数不足的数据块，按可用(FINALIZED)副本数分级，可用副本越少越先复制。
+ * 第0级的数据块已经没有可用副本，无法复制，等节点恢复后由块报告恢复。
+ * 同时记录已经下发、等待目标节点汇报的复制任务，它们计入数据块期望的副本数。
+ */
+class UnderReplicatedBlocks {
+    // 一个已下发的复制任务
+    static class Pending {
+        final String blockId;
+        final String source;
+        final String target;
+        final long deadline;
+
+        Pending(String blockId, String source, String target, long deadline) {
+            this.blockId = blockId;
+            this.source = source;
+            this.target = target;
+            this.deadline = deadline;
+        }
+    }
+
+    private final List<LinkedHashSet<String>> levels = new ArrayList<>(); // levels[i]: 可用副本数为i的数据块
+    private final Map<String, Integer> levelOf = new HashMap<>();
+    private final Map<String, List<Pending>> pending = new HashMap<>();
+    private int pendingCount;
+
+    UnderReplicatedBlocks(int replication) {
+        for (int i = 0; i < Math.max(1, replication); i++) {
+            levels.add(new LinkedHashSet<String>());
+        }
+    }
+
+    // 按可用副本数放入对应的级别，副本数足够时移出队列
+    synchronized void update(String blockId, int live) {
+        Integer old = levelOf.get(blockId);
+        if (old != null) {
+            if (old == live) {
+                return;
+            }
+            levels.get(old).remove(blockId);
+            levelOf.remove(blockId);
+        }
+        if (live < levels.size()) {
+            levels.get(live).add(blockId);
+            levelOf.put(blockId, live);
+        }
+    }
+
+    /**
+     * 数据块被删除，移出队列
+     * @return 它未完成的复制任务，调用方释放节点上的计数
+     */
+    synchronized List<Pending> remove(String blockId) {
+        Integer level = levelOf.remove(blockId);
+        if (level != null) {
+            levels.get(level).remove(blockId);
+        }
+        List<Pending> tasks = pending.remove(blockId);
+        if (tasks == null) {
+            return new ArrayList<>();
+        }
+        pendingCount -= tasks.size();
+        return tasks;
+    }
+
+    // 按优先级排列的可以复制的数据块(不包括没有可用副本的)
+    synchronized List<String> inPriorityOrder() {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 1; i < levels.size(); i++) {
+            blocks.addAll(levels.get(i));
+        }
+        return blocks;
+    }
+
+    synchronized void addPending(Pending p) {
+        List<Pending> tasks = pending.get(p.blockId);
+        if (tasks == null) {
+            tasks = new ArrayList<>(1);
+            pending.put(p.blockId, tasks);
+        }
+        tasks.add(p);
+        pendingCount++;
+    }
+
+    // 数据块正在复制的目标节点
+    synchronized List<String> pendingTargets(String blockId) {
+        List<String> targets = new ArrayList<>();
+        List<Pending> tasks = pending.get(blockId);
+        if (tasks != null) {
+            for (Pending p : tasks) {
+                targets.add(p.target);
+            }
+        }
+        return targets;
+    }
+
+    // 目标节点汇报收到了数据块，返回对应的任务，没有时返回null
+    synchronized Pending complete(String blockId, String target) {
+        List<Pending> tasks = pending.get(blockId);
+        if (tasks == null) {
+            return null;
+        }
+        for (Iterator<Pending> it = tasks.iterator(); it.hasNext(); ) {
+            Pending p = it.next();
+            if (p.target.equals(target)) {
+                it.remove();
+                pendingCount--;
+                if (tasks.isEmpty()) {
+                    pending.remove(blockId);
+                }
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // 取出已超时的任务
+    synchronized List<Pending> expire(long now) {
+        List<Pending> expired = new ArrayList<>();
+        for (Iterator<List<Pending>> it = pending.values().iterator(); it.hasNext(); ) {
+            List<Pending> tasks = it.next();
+            for (Iterator<Pending> t = tasks.iterator(); t.hasNext(); ) {
+                Pending p = t.next();
+                if (now - p.deadline >= 0) {
+                    t.remove();
+                    expired.add(p);
+                }
+            }
+            if (tasks.isEmpty()) {
+                it.remove();
+            }
+        }
+        pendingCount -= expired.size();
+        return expired;
+    }
+
+    // 等待复制的数据块数，不含已下发的任务
+    synchronized int size() {
+        return levelOf.size();
+    }
+
+    synchronized String metrics() {
+        StringBuilder sb = new StringBuilder("replication{queued=[");
+        for (int i = 0; i < levels.size(); i++) {
+            sb.append(i == 0 ? "" : ",").append(levels.get(i).size());
+        }
+        return sb.append("] pending=").append(pendingCount).append('}').toString();
+    }
+}
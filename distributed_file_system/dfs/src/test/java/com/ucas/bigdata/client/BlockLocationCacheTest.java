@@ -0,0 +1,127 @@
+package com.ucas.bigdata.client;
+
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.ReplicaStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BlockLocationCacheTest {
+
+    private static List<BlockInfo> blocks(int lastStatus) {
+        List<BlockInfo> blocks = new ArrayList<>();
+        BlockInfo first = new BlockInfo("b1", 100);
+        first.addLocation("dfs101", ReplicaStatus.FINALIZED);
+        BlockInfo last = new BlockInfo("b2", 10);
+        last.addLocation("dfs101", ReplicaStatus.FINALIZED);
+        last.addLocation("dfs102", lastStatus);
+        blocks.add(first);
+        blocks.add(last);
+        return blocks;
+    }
+
+    @Test
+    public void hitAndMiss() {
+        BlockLocationCache cache = new BlockLocationCache(10, 60000);
+        assertNull(cache.get("/f"));
+        cache.put("/f", blocks(ReplicaStatus.FINALIZED));
+        List<BlockInfo> cached = cache.get("/f");
+        assertNotNull(cached);
+        assertEquals(2, cached.size());
+        assertEquals("b2", cached.get(1).getBlockId());
+        assertEquals("locationCache{size=1 hits=1 misses=1}", cache.metrics());
+    }
+
+    // 调用方之后修改自己的列表不影响缓存
+    @Test
+    public void cachesCopy() {
+        BlockLocationCache cache = new BlockLocationCache(10, 60000);
+        List<BlockInfo> blocks = blocks(ReplicaStatus.FINALIZED);
+        cache.put("/f", blocks);
+        blocks.clear();
+        assertEquals(2, cache.get("/f").size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedListIsReadOnly() {
+        BlockLocationCache cache = new BlockLocationCache(10, 60000);
+        cache.put("/f", blocks(ReplicaStatus.FINALIZED));
+        cache.get("/f").clear();
+    }
+
+    @Test
+    public void expiresAfterTtl() throws InterruptedException {
+        BlockLocationCache cache = new BlockLocationCache(10, 50);
+        cache.put("/f", blocks(ReplicaStatus.FINALIZED));
+        assertNotNull(cache.get("/f"));
+        Thread.sleep(100);
+        assertNull(cache.get("/f"));
+    }
+
+    @Test
+    public void disabledWhenTtlOrCapacityNotPositive() {
+        BlockLocationCache noTtl = new BlockLocationCache(10, 0);
+        noTtl.put("/f", blocks(ReplicaStatus.FINALIZED));
+        assertNull(noTtl.get("/f"));
+        BlockLocationCache noCapacity = new BlockLocationCache(0, 60000);
+        noCapacity.put("/f", blocks(ReplicaStatus.FINALIZED));
+        assertNull(noCapacity.get("/f"));
+    }
+
+    // 最后一个数据块还有PENDING副本的文件正在写入，不缓存；空文件和失败的副本可以缓存
+    @Test
+    public void skipsFilesUnderConstruction() {
+        BlockLocationCache cache = new BlockLocationCache(10, 60000);
+        cache.put("/writing", blocks(ReplicaStatus.PENDING));
+        assertNull(cache.get("/writing"));
+        cache.put("/failed", blocks(ReplicaStatus.FAILED));
+        assertNotNull(cache.get("/failed"));
+        cache.put("/empty", Collections.<BlockInfo>emptyList());
+        assertNotNull(cache.get("/empty"));
+    }
+
+    @Test
+    public void invalidate() {
+        BlockLocationCache cache = new BlockLocationCache(10, 60000);
+        cache.put("/a", blocks(ReplicaStatus.FINALIZED));
+        cache.put("/b", blocks(ReplicaStatus.FINALIZED));
+        cache.invalidate("/a");
+        assertNull(cache.get("/a"));
+        assertNotNull(cache.get("/b"));
+        cache.clear();
+        assertNull(cache.get("/b"));
+    }
+
+    // 只失效路径本身和它下面的文件，不包括名字以它开头的兄弟
+    @Test
+    public void invalidateTree() {
+        BlockLocationCache cache = new BlockLocationCache(10, 60000);
+        for (String path : new String[]{"/a", "/a/b", "/a/b/c", "/ab", "/b"}) {
+            cache.put(path, blocks(ReplicaStatus.FINALIZED));
+        }
+        cache.invalidateTree("/a");
+        assertNull(cache.get("/a"));
+        assertNull(cache.get("/a/b"));
+        assertNull(cache.get("/a/b/c"));
+        assertNotNull(cache.get("/ab"));
+        assertNotNull(cache.get("/b"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        BlockLocationCache cache = new BlockLocationCache(2, 60000);
+        cache.put("/a", blocks(ReplicaStatus.FINALIZED));
+        cache.put("/b", blocks(ReplicaStatus.FINALIZED));
+        cache.get("/a");
+        cache.put("/c", blocks(ReplicaStatus.FINALIZED));
+        assertNull(cache.get("/b"));
+        assertNotNull(cache.get("/a"));
+        assertNotNull(cache.get("/c"));
+    }
+}
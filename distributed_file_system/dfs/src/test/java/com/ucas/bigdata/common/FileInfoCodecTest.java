@@ -0,0 +1,176 @@
+package com.ucas.bigdata.common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileInfoCodecTest {
+
+    private static FileInfo sampleFile() {
+        FileInfo fi = new FileInfo("数据.txt", "/dir/数据.txt", false, 300L * 1024 * 1024, "dfs", 1700000000123L);
+        fi.setGroup("dfsg");
+        fi.getLocations().add("dfs101");
+        fi.getStatus().add(ReplicaStatus.FINALIZED);
+        BlockInfo uuidBlock = new BlockInfo(UUID.randomUUID().toString(), 128L * 1024 * 1024);
+        uuidBlock.addLocation("dfs101", ReplicaStatus.FINALIZED);
+        uuidBlock.addLocation("dfs102", ReplicaStatus.MISSING);
+        uuidBlock.addLocation("dfs103", ReplicaStatus.FAILED);
+        BlockInfo namedBlock = new BlockInfo("legacy-block-1", 44L * 1024 * 1024);
+        namedBlock.addLocation("dfs102", ReplicaStatus.FINALIZED);
+        namedBlock.addLocation("dfs101", ReplicaStatus.PENDING);
+        fi.getBlocks().add(uuidBlock);
+        fi.getBlocks().add(namedBlock);
+        return fi;
+    }
+
+    private static void assertSameEntry(FileInfo expected, FileInfo actual) {
+        assertEquals(expected.getFileName(), actual.getFileName());
+        assertEquals(expected.isDirectory(), actual.isDirectory());
+        assertEquals(expected.getOwner(), actual.getOwner());
+        assertEquals(expected.getGroup(), actual.getGroup());
+        assertEquals(expected.getFileSize(), actual.getFileSize());
+        assertEquals(expected.getCreationTime(), actual.getCreationTime());
+        assertEquals(expected.getLocations(), actual.getLocations());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getBlocks().size(), actual.getBlocks().size());
+        for (int i = 0; i < expected.getBlocks().size(); i++) {
+            BlockInfo e = expected.getBlocks().get(i);
+            BlockInfo a = actual.getBlocks().get(i);
+            assertEquals(e.getBlockId(), a.getBlockId());
+            assertEquals(e.getLength(), a.getLength());
+            assertEquals(e.getLocations(), a.getLocations());
+            assertEquals(e.getStatus(), a.getStatus());
+        }
+    }
+
+    @Test
+    public void roundTripFile() throws IOException {
+        FileInfo fi = sampleFile();
+        byte[] data = new FileInfoCodec().encodeToArray(fi);
+        assertFalse(FileInfoCodec.isLegacy(data));
+        FileInfo decoded = FileInfoCodec.decode("/dir/数据.txt", data);
+        assertEquals("/dir/数据.txt", decoded.getPath());
+        assertSameEntry(fi, decoded);
+    }
+
+    @Test
+    public void roundTripDirectoryWithNulls() throws IOException {
+        FileInfo dir = new FileInfo("d", "/d", true, -1, null, 0);
+        FileInfo decoded = FileInfoCodec.decode("/d", new FileInfoCodec().encodeToArray(dir));
+        assertTrue(decoded.isDirectory());
+        assertNull(decoded.getOwner());
+        assertNull(decoded.getGroup());
+        assertEquals(-1, decoded.getFileSize());
+        assertTrue(decoded.getBlocks().isEmpty());
+    }
+
+    @Test
+    public void decodeFromOffset() throws IOException {
+        FileInfo fi = sampleFile();
+        byte[] data = new FileInfoCodec().encodeToArray(fi);
+        byte[] padded = new byte[data.length + 10];
+        System.arraycopy(data, 0, padded, 5, data.length);
+        assertSameEntry(fi, FileInfoCodec.decode("/dir/数据.txt", padded, 5, data.length));
+    }
+
+    // 编码器复用缓冲区，较大的条目会扩容，之后的较小条目不受影响
+    @Test
+    public void encoderReusesBuffer() throws IOException {
+        FileInfoCodec codec = new FileInfoCodec(4);
+        FileInfo big = sampleFile();
+        for (int i = 0; i < 100; i++) {
+            BlockInfo b = new BlockInfo(UUID.randomUUID().toString(), i);
+            b.addLocation("node-" + i, ReplicaStatus.FINALIZED);
+            big.getBlocks().add(b);
+        }
+        byte[] first = codec.encodeToArray(big);
+        FileInfo small = new FileInfo("s", "/s", false, 1, "u", 2);
+        byte[] second = codec.encodeToArray(small);
+        assertSameEntry(big, FileInfoCodec.decode("/big", first));
+        assertSameEntry(small, FileInfoCodec.decode("/s", second));
+    }
+
+    @Test
+    public void rejectsTruncatedEntry() {
+        byte[] data = new FileInfoCodec().encodeToArray(sampleFile());
+        for (int len = 0; len < data.length; len++) {
+            try {
+                FileInfoCodec.decode("/x", Arrays.copyOf(data, len));
+                fail("decoded a prefix of " + len + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrailingBytes() throws IOException {
+        byte[] data = new FileInfoCodec().encodeToArray(sampleFile());
+        FileInfoCodec.decode("/x", Arrays.copyOf(data, data.length + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        byte[] data = new FileInfoCodec().encodeToArray(sampleFile());
+        data[0] = FileInfoCodec.VERSION + 1;
+        FileInfoCodec.decode("/x", data);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptCount() throws IOException {
+        FileInfo fi = new FileInfo("f", "/f", false, 0, null, 0);
+        byte[] data = new FileInfoCodec().encodeToArray(fi);
+        // 最后一个字节是数据块数0，改为很大的数
+        data[data.length - 1] = 0x7e;
+        FileInfoCodec.decode("/f", data);
+    }
+
+    // 节点引用为负数(zigzag编码的-1)或超出已出现的节点数
+    @Test
+    public void rejectsBadNodeReference() {
+        FileInfo fi = new FileInfo("f", "/f", false, 1, null, 0);
+        fi.getLocations().add("n");
+        fi.getStatus().add(ReplicaStatus.FINALIZED);
+        BlockInfo block = new BlockInfo("b", 1);
+        block.addLocation("n", ReplicaStatus.FINALIZED);
+        fi.getBlocks().add(block);
+        byte[] data = new FileInfoCodec().encodeToArray(fi);
+        // 倒数第二个字节是数据块副本的节点引用1(编码为2)
+        for (byte ref : new byte[]{0x01, 0x04}) {
+            data[data.length - 2] = ref;
+            try {
+                FileInfoCodec.decode("/f", data);
+                fail("accepted node reference byte " + ref);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void detectsLegacySerialization() throws IOException {
+        FileInfo fi = sampleFile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(fi);
+        }
+        byte[] data = bytes.toByteArray();
+        assertTrue(FileInfoCodec.isLegacy(data));
+        assertSameEntry(fi, FileInfoCodec.decode("/dir/数据.txt", data));
+    }
+
+    @Test
+    public void shortInputIsNotLegacy() {
+        assertFalse(FileInfoCodec.isLegacy(new byte[0]));
+        assertFalse(FileInfoCodec.isLegacy(new byte[]{(byte) 0xAC}));
+        assertTrue(FileInfoCodec.isLegacy(new byte[]{(byte) 0xAC, (byte) 0xED}));
+    }
+}
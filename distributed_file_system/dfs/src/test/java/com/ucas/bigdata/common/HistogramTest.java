@@ -0,0 +1,93 @@
+package com.ucas.bigdata.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(50));
+        assertEquals(0, h.summary().mean());
+    }
+
+    // 小于128的值精确记录
+    @Test
+    public void smallValuesAreExact() {
+        for (long v = 0; v < 128; v++) {
+            Histogram h = new Histogram();
+            h.record(v);
+            h.record(1000);
+            assertEquals(v, h.percentile(50));
+        }
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(1, h.count());
+        assertEquals(0, h.percentile(100));
+    }
+
+    // 较大的值落在桶中间，相对误差不超过1/64
+    @Test
+    public void largeValuesWithinBucketError() {
+        long[] values = {128, 129, 1000, 4095, 4096, 123456789L, Long.MAX_VALUE / 3};
+        for (long v : values) {
+            Histogram h = new Histogram();
+            h.record(v);
+            h.record(Long.MAX_VALUE);
+            long p = h.percentile(50);
+            assertTrue(v + " -> " + p, Math.abs(p - v) <= v / 64);
+        }
+    }
+
+    // 百分位不超过记录的最大值
+    @Test
+    public void percentileCappedByMax() {
+        Histogram h = new Histogram();
+        h.record(1000);
+        assertEquals(1000, h.max());
+        assertEquals(1000, h.percentile(99));
+    }
+
+    @Test
+    public void uniformPercentiles() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 100; v++) {
+            h.record(v);
+        }
+        assertEquals(100, h.count());
+        assertArrayEquals(new long[]{1, 50, 90, 99, 100}, h.percentiles(1, 50, 90, 99, 100));
+        Histogram.Summary s = h.summary();
+        assertEquals(100, s.count);
+        assertEquals(5050, s.sum);
+        assertEquals(50, s.mean());
+        assertEquals(100, s.max);
+    }
+
+    @Test
+    public void addMergesCounts() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        for (long v = 1; v <= 50; v++) {
+            a.record(v);
+        }
+        for (long v = 51; v <= 100; v++) {
+            b.record(v);
+        }
+        a.add(b);
+        assertEquals(100, a.count());
+        assertEquals(100, a.max());
+        assertEquals(50, a.percentile(50));
+        assertEquals(5050, a.summary().sum);
+        assertEquals(50, b.count());
+    }
+}
@@ -0,0 +1,213 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataOpCode;
+import com.ucas.bigdata.common.ReplicaStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockReceiverTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private int savedPort;
+    private ServerSocket server;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        savedPort = Config.DATA_SERVRE_PORT;
+        server = new ServerSocket(0);
+        Config.DATA_SERVRE_PORT = server.getLocalPort();
+        data = new byte[20 * 64 * 1024 + 1234];
+        new Random(4).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        Config.DATA_SERVRE_PORT = savedPort;
+    }
+
+    // 上游发来的数据包，每个64KB，以END_STREAM结束
+    private static byte[] packets(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int off = 0; off < data.length; off += 64 * 1024) {
+            int len = Math.min(64 * 1024, data.length - off);
+            out.writeInt(len);
+            out.write(data, off, len);
+        }
+        out.writeInt(BlockSender.END_STREAM);
+        return bytes.toByteArray();
+    }
+
+    // 先提供前gate个字节，等latch打开后再提供其余的，让下游的断开发生在转发中途
+    private static InputStream gated(final byte[] stream, final int gate, final CountDownLatch latch) {
+        return new InputStream() {
+            private int pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (pos == gate) {
+                    try {
+                        assertTrue(latch.await(10, TimeUnit.SECONDS));
+                        Thread.sleep(100);  // 等下游的RST到达
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (pos >= stream.length) {
+                    return -1;
+                }
+                int n = Math.min(len, (pos < gate ? gate : stream.length) - pos);
+                System.arraycopy(stream, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * 模拟下游DataServer，依次接受连接。前failures个连接读完请求头后以RST断开，
+     * 之后的连接接收全部数据包并回复FINALIZED
+     */
+    private static class Downstream extends Thread {
+        final ServerSocket server;
+        final int failures;
+        final CountDownLatch failed = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final List<String> headers = new ArrayList<>();
+        volatile Throwable error;
+
+        Downstream(ServerSocket server, int failures) {
+            this.server = server;
+            this.failures = failures;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; ; i++) {
+                    Socket socket = server.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    assertEquals(DataOpCode.WRITE_BLOCK, DataOpCode.read(in));
+                    String header = in.readUTF();
+                    int n = in.readInt();
+                    for (int t = 0; t < n; t++) {
+                        header += " " + in.readUTF();
+                    }
+                    headers.add(header);
+                    if (i < failures) {
+                        socket.setSoLinger(true, 0);
+                        socket.close();
+                        failed.countDown();
+                        continue;
+                    }
+                    byte[] buffer = new byte[BlockReceiver.MAX_PACKET_SIZE];
+                    int len;
+                    while ((len = in.readInt()) != BlockSender.END_STREAM) {
+                        in.readFully(buffer, 0, len);
+                        received.write(buffer, 0, len);
+                    }
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeInt(0);
+                    out.writeUTF("OK");
+                    out.writeInt(1);
+                    out.writeInt(ReplicaStatus.FINALIZED);
+                    out.flush();
+                    socket.close();
+                    return;
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
+    // 第一个下游在转发中途断开，接着连接第二个下游，从本地文件补发已收到的数据
+    @Test(timeout = 30000)
+    public void skipsFailedMirrorAndResendsToNext() throws Exception {
+        Downstream downstream = new Downstream(server, 1);
+        downstream.start();
+        File file = new File(tmp.getRoot(), "blk");
+        BlockReceiver receiver = new BlockReceiver("blk", file, Arrays.asList("127.0.0.1", "127.0.0.1"));
+        byte[] stream = packets(data);
+        List<Integer> statuses = receiver.receive(new DataInputStream(
+                gated(stream, 4 * (4 + 64 * 1024), downstream.failed)));
+        downstream.join(10000);
+
+        assertEquals(null, downstream.error);
+        assertEquals(Arrays.asList(ReplicaStatus.FINALIZED, ReplicaStatus.FAILED, ReplicaStatus.FINALIZED), statuses);
+        // 第一个下游还要继续转发给第二个，第二个是链尾
+        assertEquals(Arrays.asList("blk 127.0.0.1", "blk"), downstream.headers);
+        assertArrayEquals(data, downstream.received.toByteArray());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertTrue(ChecksumFile.metaFileOf(file).exists());
+        assertEquals(data.length, receiver.getBytesReceived());
+    }
+
+    // 链尾的下游断开后没有可以接替的节点，本地副本仍然完整
+    @Test(timeout = 30000)
+    public void lastMirrorFailureKeepsLocalReplica() throws Exception {
+        Downstream downstream = new Downstream(server, 1);
+        downstream.start();
+        File file = new File(tmp.getRoot(), "blk");
+        BlockReceiver receiver = new BlockReceiver("blk", file, Collections.singletonList("127.0.0.1"));
+        List<Integer> statuses = receiver.receive(new DataInputStream(
+                gated(packets(data), 4 + 64 * 1024, downstream.failed)));
+
+        assertEquals(Arrays.asList(ReplicaStatus.FINALIZED, ReplicaStatus.FAILED), statuses);
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    // 上游在数据包中途断开时不留下不完整的副本和校验文件
+    @Test(timeout = 30000)
+    public void truncatedStreamDeletesPartialReplica() throws Exception {
+        File file = new File(tmp.getRoot(), "blk");
+        BlockReceiver receiver = new BlockReceiver("blk", file, Collections.<String>emptyList());
+        byte[] stream = packets(data);
+        try {
+            receiver.receive(new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(stream, stream.length / 2))));
+            fail("accepted a truncated stream");
+        } catch (EOFException expected) {
+        }
+        assertFalse(file.exists());
+        assertFalse(ChecksumFile.metaFileOf(file).exists());
+    }
+}
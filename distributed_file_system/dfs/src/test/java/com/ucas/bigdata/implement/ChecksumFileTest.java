@@ -0,0 +1,87 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.ChecksumException;
+import com.ucas.bigdata.common.DataChecksum;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChecksumFileTest {
+    private static final int BPC = 512;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeBlock(String id, byte[] data) throws IOException {
+        File file = new File(tmp.getRoot(), id);
+        Files.write(file.toPath(), data);
+        ChecksumFile.Writer writer = new ChecksumFile.Writer(ChecksumFile.metaFileOf(file), DataChecksum.TYPE_CRC32, BPC);
+        writer.update(data, 0, data.length);
+        writer.close();
+        return file;
+    }
+
+    private static byte[] randomBytes(int n) {
+        byte[] data = new byte[n];
+        new Random(n).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void verifiesIntactBlock() throws IOException {
+        ChecksumFile.verifyBlock("b", writeBlock("b", randomBytes(10 * BPC + 17)));
+        ChecksumFile.verifyBlock("e", writeBlock("e", new byte[0]));
+    }
+
+    @Test
+    public void reportsCorruptChunk() throws IOException {
+        File file = writeBlock("b", randomBytes(10 * BPC + 17));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(7 * BPC + 3);
+            int b = raf.read();
+            raf.seek(7 * BPC + 3);
+            raf.write(b ^ 1);
+        }
+        try {
+            ChecksumFile.verifyBlock("b", file);
+            fail("corrupt chunk not detected");
+        } catch (ChecksumException e) {
+            assertEquals(7 * BPC, e.getPosition());
+        }
+    }
+
+    // 校验和个数与数据长度不符，例如数据块被截断
+    @Test(expected = ChecksumException.class)
+    public void reportsTruncatedData() throws IOException {
+        File file = writeBlock("b", randomBytes(4 * BPC));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(3 * BPC);
+        }
+        ChecksumFile.verifyBlock("b", file);
+    }
+
+    @Test(expected = IOException.class)
+    public void missingMetaCannotBeVerified() throws IOException {
+        File file = writeBlock("b", randomBytes(BPC));
+        ChecksumFile.metaFileOf(file).delete();
+        ChecksumFile.verifyBlock("b", file);
+    }
+
+    @Test
+    public void alignedSize() throws IOException {
+        File file = writeBlock("b", randomBytes(BPC));
+        try (ChecksumFile.Verifier verifier = new ChecksumFile.Verifier("b", ChecksumFile.metaFileOf(file))) {
+            assertEquals(2 * BPC, verifier.alignedSize(2 * BPC + 100));
+            assertEquals(BPC, verifier.alignedSize(10));
+        }
+    }
+}
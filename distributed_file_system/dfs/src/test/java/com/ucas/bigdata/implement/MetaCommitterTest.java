@@ -0,0 +1,207 @@
+package com.ucas.bigdata.implement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetaCommitterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Options options;
+    private RocksDB db;
+    private String dbPath;
+
+    @Before
+    public void open() throws Exception {
+        RocksDB.loadLibrary();
+        options = new Options().setCreateIfMissing(true);
+        dbPath = tmp.newFolder("meta").getAbsolutePath();
+        db = RocksDB.open(options, dbPath);
+    }
+
+    @After
+    public void close() {
+        db.close();
+        options.close();
+    }
+
+    // 多个线程并发提交，每个Mutation都写入且事务号连续
+    @Test(timeout = 30000)
+    public void concurrentCommits() throws Exception {
+        final int threads = 8;
+        final int perThread = 200;
+        final MetaCommitter committer = new MetaCommitter(db, false, 16);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread + 2;
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            long id = base + i;
+                            committer.commit(new MetaCommitter.Mutation()
+                                    .putInode(id, ("v" + id).getBytes())
+                                    .link(1, "f" + id, id));
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(threads * perThread, committer.getLastTxId());
+        assertEquals(threads * perThread, committer.getGroupSizes().summary().sum);
+        for (long id = 2; id < threads * perThread + 2; id++) {
+            assertArrayEquals(("v" + id).getBytes(), db.get(InodeTable.inodeKey(id)));
+            assertEquals(8, db.get(InodeTable.dentryKey(1, "f" + id)).length);
+        }
+        committer.close();
+    }
+
+    // 写入失败时整个Mutation都不生效，事务号不前进
+    @Test
+    public void failedCommitAppliesNothing() throws Exception {
+        MetaCommitter committer = new MetaCommitter(db, false, 16);
+        committer.commit(new MetaCommitter.Mutation().putInode(2, "a".getBytes()));
+        committer.close();
+
+        RocksDB readOnly = RocksDB.openReadOnly(dbPath);
+        MetaCommitter failing = new MetaCommitter(readOnly, false, 16);
+        failing.recoverLastTxId(0);
+        try {
+            failing.commit(new MetaCommitter.Mutation().putInode(3, "b".getBytes()).link(1, "b", 3));
+            fail("committed to a read-only database");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, failing.getLastTxId());
+        failing.close();
+        readOnly.close();
+        assertNull(db.get(InodeTable.inodeKey(3)));
+        assertNull(db.get(InodeTable.dentryKey(1, "b")));
+    }
+
+    // 按顺序记录重放的操作
+    private static class Recorder implements MetaCommitter.Replayer {
+        final List<String> ops = new ArrayList<>();
+
+        public void putInode(long id, byte[] value) {
+            ops.add("put " + id + " " + new String(value));
+        }
+
+        public void deleteInode(long id) {
+            ops.add("delete " + id);
+        }
+
+        public void link(long parentId, String name, long id) {
+            ops.add("link " + parentId + " " + name + " " + id);
+        }
+
+        public void unlink(long parentId, String name) {
+            ops.add("unlink " + parentId + " " + name);
+        }
+    }
+
+    private void commitSample(MetaCommitter committer) throws IOException {
+        committer.commit(new MetaCommitter.Mutation().putInode(2, "a".getBytes()).link(1, "a", 2));
+        committer.commit(new MetaCommitter.Mutation().putInode(3, "b".getBytes()).link(2, "b", 3));
+        committer.commit(new MetaCommitter.Mutation().unlink(2, "b").deleteInode(3));
+    }
+
+    @Test
+    public void replayInOrder() throws IOException {
+        MetaCommitter committer = new MetaCommitter(db, false, 16);
+        committer.commit(new MetaCommitter.Mutation());   // 空的Mutation不写日志
+        commitSample(committer);
+        assertEquals(3, committer.getLastTxId());
+        committer.close();
+
+        MetaCommitter reopened = new MetaCommitter(db, false, 16);
+        Recorder recorder = new Recorder();
+        assertEquals(3, reopened.replay(0, recorder));
+        assertEquals(Arrays.asList(
+                "put 2 a", "link 1 a 2",
+                "put 3 b", "link 2 b 3",
+                "unlink 2 b", "delete 3"), recorder.ops);
+        assertEquals(3, reopened.getLastTxId());
+
+        // 从镜像的事务号之后重放
+        Recorder tail = new Recorder();
+        assertEquals(1, reopened.replay(2, tail));
+        assertEquals(Arrays.asList("unlink 2 b", "delete 3"), tail.ops);
+
+        // 后续提交接着最后一个事务号
+        reopened.commit(new MetaCommitter.Mutation().deleteInode(2));
+        assertEquals(4, reopened.getLastTxId());
+        reopened.close();
+    }
+
+    @Test
+    public void recoverLastTxId() throws IOException {
+        MetaCommitter committer = new MetaCommitter(db, false, 16);
+        commitSample(committer);
+        committer.close();
+
+        MetaCommitter reopened = new MetaCommitter(db, false, 16);
+        assertEquals(3, reopened.recoverLastTxId(0));
+        assertEquals(10, reopened.recoverLastTxId(10));
+        reopened.close();
+    }
+
+    @Test
+    public void detectsJournalGap() throws Exception {
+        MetaCommitter committer = new MetaCommitter(db, false, 16);
+        commitSample(committer);
+        committer.close();
+        db.delete(MetaCommitter.journalKey(2));
+
+        MetaCommitter reopened = new MetaCommitter(db, false, 16);
+        try {
+            reopened.replay(0, new Recorder());
+            fail("replayed a journal with a gap");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Journal gap: expected txid 2 but found 3"));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void truncateDropsOldRecords() throws Exception {
+        MetaCommitter committer = new MetaCommitter(db, false, 16);
+        commitSample(committer);
+        committer.truncate(2);
+        Recorder recorder = new Recorder();
+        assertEquals(1, committer.replay(2, recorder));
+        assertEquals(Arrays.asList("unlink 2 b", "delete 3"), recorder.ops);
+        committer.close();
+    }
+}
@@ -0,0 +1,163 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.FileStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MetadataServerBatchTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MetadataServer meta;
+    private MetaServerClient client;
+    private Object committer;   // 注入失败前的committer
+    private RocksDB readOnly;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServers.save();
+        meta = TestServers.startMeta(tmp.getRoot());
+        client = new MetaServerClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        if (readOnly != null) {
+            restoreCommits();
+        }
+        TestServers.stop(meta);
+        TestServers.restore();
+    }
+
+    private static Field committerField() throws NoSuchFieldException {
+        Field f = MetadataServer.class.getDeclaredField("committer");
+        f.setAccessible(true);
+        return f;
+    }
+
+    // 换成写只读RocksDB的committer，之后的提交都失败
+    private void failCommits() throws Exception {
+        File dir = tmp.newFolder("readonly");
+        try (Options options = new Options().setCreateIfMissing(true)) {
+            RocksDB.open(options, dir.getPath()).close();
+        }
+        readOnly = RocksDB.openReadOnly(dir.getPath());
+        committer = committerField().get(meta);
+        committerField().set(meta, new MetaCommitter(readOnly, false, 16));
+    }
+
+    private void restoreCommits() throws Exception {
+        committerField().set(meta, committer);
+        readOnly.close();
+        readOnly = null;
+    }
+
+    private List<String> list(String dir) throws IOException {
+        MetaServerClient.ListPage page = client.listStatus(dir, null, 100);
+        if (page == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        for (FileStatus status : page.getEntries()) {
+            names.add(status.getName());
+        }
+        return names;
+    }
+
+    private Map<String, String> blocks(List<String> paths) throws IOException {
+        Map<String, String> ids = new LinkedHashMap<>();
+        for (Map.Entry<String, List<BlockInfo>> e : client.getBlockLocations(paths).entrySet()) {
+            assertEquals(1, e.getValue().size());
+            ids.put(e.getKey(), e.getValue().get(0).getBlockId());
+        }
+        return ids;
+    }
+
+    @Test(timeout = 30000)
+    public void batchCreateLookupDelete() throws IOException {
+        List<String> paths = Arrays.asList("/a/1", "/a/2", "/b/c/3");
+        List<String> ids = client.createFiles(paths);
+        for (String id : ids) {
+            assertNotNull(id);
+        }
+        Map<String, String> blocks = blocks(paths);
+        assertEquals(paths, new ArrayList<>(blocks.keySet()));
+        assertEquals(ids, new ArrayList<>(blocks.values()));
+
+        assertEquals(Arrays.asList(true, false, true), client.deleteFiles(Arrays.asList("/a/1", "/missing", "/b")));
+        assertEquals(Arrays.asList("2"), list("/a"));
+        assertNull(list("/b"));
+        assertEquals(Arrays.asList("/a/2"), new ArrayList<>(blocks(paths).keySet()));
+    }
+
+    // 提交失败时整批不生效，内存中的命名空间保持原样
+    @Test(timeout = 30000)
+    public void failedBatchCreateAppliesNothing() throws Exception {
+        assertNotNull(client.createFile("/d/existing"));
+        failCommits();
+        try {
+            client.createFiles(Arrays.asList("/d/1", "/n/2", "/n/m/3"));
+            fail("batch create succeeded with a failing committer");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList("d"), list("/"));
+        assertEquals(Arrays.asList("existing"), list("/d"));
+        assertNull(list("/n"));
+
+        // 恢复后同一批可以成功创建
+        restoreCommits();
+        for (String id : client.createFiles(Arrays.asList("/d/1", "/n/2", "/n/m/3"))) {
+            assertNotNull(id);
+        }
+        assertEquals(Arrays.asList("1", "existing"), list("/d"));
+        assertEquals(Arrays.asList("2", "m"), list("/n"));
+    }
+
+    @Test(timeout = 30000)
+    public void failedBatchDeleteAppliesNothing() throws Exception {
+        List<String> paths = Arrays.asList("/d/1", "/d/sub/2", "/e/3");
+        client.createFiles(paths);
+        Map<String, String> before = blocks(paths);
+        assertEquals(3, before.size());
+        failCommits();
+        try {
+            client.deleteFiles(Arrays.asList("/d/1", "/d/sub", "/e"));
+            fail("batch delete succeeded with a failing committer");
+        } catch (IOException expected) {
+        }
+        assertEquals(before, blocks(paths));
+        assertEquals(Arrays.asList("1", "sub"), list("/d"));
+        restoreCommits();
+
+        // 失败的批次也没有写入RocksDB，重启后与内存中的一致
+        client.close();
+        meta = TestServers.restartMeta(meta, tmp.getRoot());
+        client = new MetaServerClient();
+        assertEquals(before, blocks(paths));
+        assertEquals(Arrays.asList(true, true, true), client.deleteFiles(Arrays.asList("/d/1", "/d/sub", "/e")));
+        assertEquals(Arrays.asList("d"), list("/"));
+        assertEquals(new ArrayList<String>(), list("/d"));
+    }
+}
@@ -0,0 +1,124 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.FileStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataServerRenameTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MetadataServer meta;
+    private MetaServerClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServers.save();
+        meta = TestServers.startMeta(tmp.getRoot());
+        client = new MetaServerClient();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        client.close();
+        TestServers.stop(meta);
+        TestServers.restore();
+    }
+
+    private List<String> list(String dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (FileStatus status : client.listStatus(dir, null, 100).getEntries()) {
+            names.add(status.getName());
+        }
+        return names;
+    }
+
+    private String blockOf(String path) {
+        List<BlockInfo> blocks = client.getBlockLocations(path);
+        assertNotNull(path, blocks);
+        assertEquals(1, blocks.size());
+        return blocks.get(0).getBlockId();
+    }
+
+    @Test(timeout = 30000)
+    public void renameFileKeepsBlocks() throws IOException {
+        String blockId = client.createFile("/a/f");
+        assertNotNull(client.createFile("/b/other"));
+
+        assertTrue(client.renameFile("/a/f", "/b/g"));
+        assertNull(client.getBlockLocations("/a/f"));
+        assertEquals(blockId, blockOf("/b/g"));
+        assertEquals(Collections.emptyList(), list("/a"));
+        assertEquals(Arrays.asList("g", "other"), list("/b"));
+    }
+
+    // 目录改名后其下的条目随之移动
+    @Test(timeout = 30000)
+    public void renameDirectoryMovesSubtree() throws IOException {
+        String f1 = client.createFile("/d/sub/f1");
+        String f2 = client.createFile("/d/f2");
+
+        assertTrue(client.renameFile("/d", "/e"));
+        assertNull(client.listStatus("/d", null, 100));
+        assertNull(client.getBlockLocations("/d/sub/f1"));
+        assertEquals(Arrays.asList("f2", "sub"), list("/e"));
+        assertEquals(f1, blockOf("/e/sub/f1"));
+        assertEquals(f2, blockOf("/e/f2"));
+        // 移动后的目录中可以继续创建文件
+        assertNotNull(client.createFile("/e/sub/f3"));
+        assertEquals(Arrays.asList("f1", "f3"), list("/e/sub"));
+    }
+
+    @Test(timeout = 30000)
+    public void rejectedRenamesChangeNothing() throws IOException {
+        String f = client.createFile("/d/f");
+        String g = client.createFile("/d/g");
+
+        assertFalse(client.renameFile("/missing", "/x"));        // 原路径不存在
+        assertFalse(client.renameFile("/d/f", "/d/g"));          // 目标已存在
+        assertFalse(client.renameFile("/d/f", "/nodir/f"));      // 目标父目录不存在
+        assertFalse(client.renameFile("/d/f", "/d/g/f"));        // 目标父路径是文件
+        assertFalse(client.renameFile("/d", "/d/sub"));          // 移动到自身下面
+        assertFalse(client.renameFile("/", "/r"));
+
+        assertEquals(Arrays.asList("d"), list("/"));
+        assertEquals(Arrays.asList("f", "g"), list("/d"));
+        assertEquals(f, blockOf("/d/f"));
+        assertEquals(g, blockOf("/d/g"));
+    }
+
+    // 改名写入RocksDB，重启后从目录项恢复新的名字
+    @Test(timeout = 30000)
+    public void renameSurvivesRestart() throws Exception {
+        String f = client.createFile("/d/sub/f");
+        assertNotNull(client.createFile("/x/y"));
+        assertTrue(client.renameFile("/d/sub", "/x/moved"));
+        assertTrue(client.renameFile("/x/moved/f", "/x/moved/renamed"));
+
+        client.close();
+        meta = TestServers.restartMeta(meta, tmp.getRoot());
+        client = new MetaServerClient();
+
+        assertEquals(Collections.emptyList(), list("/d"));
+        assertEquals(Arrays.asList("moved", "y"), list("/x"));
+        assertEquals(Arrays.asList("renamed"), list("/x/moved"));
+        assertEquals(f, blockOf("/x/moved/renamed"));
+    }
+}
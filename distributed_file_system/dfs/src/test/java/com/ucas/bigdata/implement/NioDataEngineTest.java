@@ -0,0 +1,238 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.BlockReader;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.DataOpCode;
+import com.ucas.bigdata.common.ReplicaStatus;
+import com.ucas.bigdata.common.StatsSnapshot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioDataEngineTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MetadataServer meta;
+    private DataServer data;
+    private File storage;
+    private byte[] block;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServers.save();
+        Config.DATA_SERVER_ENGINE = "nio";
+        meta = TestServers.startMeta(tmp.getRoot());
+        storage = new File(tmp.getRoot(), "data");
+        data = TestServers.startData("127.0.0.1", storage);
+        // 比nio缓冲区大，跨越多个数据包
+        block = new byte[3 * Config.NIO_BUFFER_SIZE + 777];
+        new Random(9).nextBytes(block);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        TestServers.stop(data);
+        TestServers.stop(meta);
+        TestServers.restore();
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", Config.DATA_SERVRE_PORT);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static DataInputStream in(Socket socket) throws IOException {
+        return new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    private static DataOutputStream out(Socket socket) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    // WRITE_BLOCK请求，没有下游节点，数据包每个16KB
+    private static void writeBlock(DataOutputStream out, String blockId, byte[] data) throws IOException {
+        DataOpCode.WRITE_BLOCK.write(out);
+        out.writeUTF(blockId);
+        out.writeInt(0);
+        for (int off = 0; off < data.length; off += 16 * 1024) {
+            int len = Math.min(16 * 1024, data.length - off);
+            out.writeInt(len);
+            out.write(data, off, len);
+        }
+        out.writeInt(BlockSender.END_STREAM);
+    }
+
+    private static void assertBlockWritten(DataInputStream in) throws IOException {
+        assertEquals(0, in.readInt());
+        in.readUTF();
+        assertEquals(1, in.readInt());
+        assertEquals(ReplicaStatus.FINALIZED, in.readInt());
+    }
+
+    private static byte[] readRangeRequest(String blockId, long offset, long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        DataOpCode.READ_RANGE.write(out);
+        out.writeUTF(blockId);
+        out.writeLong(offset);
+        out.writeLong(length);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readRange(DataInputStream in, String blockId, long offset, long length) throws IOException {
+        assertEquals(0, in.readInt());
+        in.readUTF();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        new BlockReader(blockId).read(in, offset, length, sink);
+        return sink.toByteArray();
+    }
+
+    // READ_FILE的响应：int长度 + 数据的分段，以END_STREAM结束
+    private static byte[] readFile(DataInputStream in) throws IOException {
+        assertEquals(0, in.readInt());
+        in.readUTF();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        int len;
+        while ((len = in.readInt()) != BlockSender.END_STREAM) {
+            byte[] segment = new byte[len];
+            in.readFully(segment);
+            sink.write(segment);
+        }
+        return sink.toByteArray();
+    }
+
+    private long metric(String name) {
+        String metrics = data.nio.metrics();
+        int start = metrics.indexOf(name + "=") + name.length() + 1;
+        int end = start;
+        while (Character.isDigit(metrics.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(metrics.substring(start, end));
+    }
+
+    // 写请求交给工作线程，之后同一连接上紧跟着的读请求回到selector线程处理
+    @Test(timeout = 30000)
+    public void writeHandoffThenReadsOnSameConnection() throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = out(socket);
+            DataInputStream in = in(socket);
+            // 读请求和写请求一起发出，工作线程缓冲区中剩下的读请求要交还给selector
+            writeBlock(out, "blk_1", block);
+            out.write(readRangeRequest("blk_1", 1000, 70000));
+            DataOpCode.READ_FILE.write(out);
+            out.writeUTF("blk_1");
+            out.writeLong(5000);
+            out.flush();
+
+            assertBlockWritten(in);
+            assertArrayEquals(Arrays.copyOfRange(block, 1000, 71000), readRange(in, "blk_1", 1000, 70000));
+            assertArrayEquals(Arrays.copyOfRange(block, 5000, block.length), readFile(in));
+        }
+        assertArrayEquals(block, Files.readAllBytes(new File(storage, "blk_1").toPath()));
+        assertEquals(1, metric("handoffs"));
+        assertEquals(3, metric("requests"));
+    }
+
+    // 请求逐字节到达，selector线程等请求收全后再处理
+    @Test(timeout = 30000)
+    public void requestArrivingByteByByte() throws Exception {
+        try (Socket socket = connect()) {
+            DataOutputStream out = out(socket);
+            DataInputStream in = in(socket);
+            writeBlock(out, "blk_2", block);
+            out.flush();
+            assertBlockWritten(in);
+
+            for (byte b : readRangeRequest("blk_2", 65530, 20)) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(2);
+            }
+            assertArrayEquals(Arrays.copyOfRange(block, 65530, 65550), readRange(in, "blk_2", 65530, 20));
+        }
+    }
+
+    // 一次发出的多个内联请求按顺序响应
+    @Test(timeout = 30000)
+    public void pipelinedInlineRequests() throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = out(socket);
+            DataInputStream in = in(socket);
+            writeBlock(out, "blk_3", block);
+            out.flush();
+            assertBlockWritten(in);
+
+            DataOpCode.STATS.write(out);
+            DataOpCode.DEL_FILE.write(out);
+            out.writeUTF("blk_3");
+            DataOpCode.DEL_FILE.write(out);
+            out.writeUTF("blk_3");
+            out.write(readRangeRequest("blk_3", 0, 10));
+            DataOpCode.STATS.write(out);
+            out.flush();
+
+            assertEquals(0, in.readInt());
+            StatsSnapshot stats = StatsSnapshot.read(in);
+            assertEquals("data:127.0.0.1", stats.getSource());
+            assertEquals(0, in.readInt());
+            in.readUTF();
+            assertEquals(-1, in.readInt());  // 已经删除
+            in.readUTF();
+            assertEquals(-1, in.readInt());
+            assertTrue(in.readUTF().startsWith("File read error"));
+            assertEquals(0, in.readInt());
+            StatsSnapshot.read(in);
+        }
+        assertFalse(new File(storage, "blk_3").exists());
+    }
+
+    // 未知操作码关闭连接，不影响其他连接
+    @Test(timeout = 30000)
+    public void unknownOpClosesConnection() throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = out(socket);
+            out.writeByte(99);
+            out.flush();
+            try {
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (IOException expected) {
+                // 连接被重置
+            }
+        }
+        try (Socket socket = connect()) {
+            DataOutputStream out = out(socket);
+            DataInputStream in = in(socket);
+            DataOpCode.STATS.write(out);
+            out.flush();
+            assertEquals(0, in.readInt());
+            StatsSnapshot.read(in);
+        } catch (IOException e) {
+            fail("server stopped accepting after a bad request: " + e);
+        }
+    }
+}
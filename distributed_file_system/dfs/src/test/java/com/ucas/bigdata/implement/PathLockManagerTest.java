@@ -0,0 +1,106 @@
+package com.ucas.bigdata.implement;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathLockManagerTest {
+
+    @Test
+    public void ancestors() {
+        assertEquals(Arrays.asList("/", "/a", "/a/b"), PathLockManager.ancestors("/a/b/c"));
+        assertEquals(Collections.singletonList("/"), PathLockManager.ancestors("/a"));
+        assertEquals(Collections.<String>emptyList(), PathLockManager.ancestors("/"));
+    }
+
+    // 只有一个分段时祖先的读锁和自身的写锁落在同一分段上，只取写锁
+    @Test(timeout = 5000)
+    public void sameStripeReadAndWrite() {
+        PathLockManager locks = new PathLockManager(1);
+        try (PathLockManager.Locked l = locks.lockForWrite("/a/b/c")) {
+            assertTrue(l != null);
+        }
+        try (PathLockManager.Locked l = locks.lockForWrite("/a/b/c")) {
+            assertTrue(l != null);
+        }
+    }
+
+    // 两个线程按相反的顺序请求同样的路径，按分段序号加锁不会死锁
+    @Test(timeout = 10000)
+    public void oppositeOrderDoesNotDeadlock() throws Exception {
+        final PathLockManager locks = new PathLockManager(16);
+        final CountDownLatch done = new CountDownLatch(2);
+        Thread t1 = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 10000; i++) {
+                    locks.lock(Collections.<String>emptyList(), Arrays.asList("/x", "/y", "/z")).close();
+                }
+                done.countDown();
+            }
+        });
+        Thread t2 = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 10000; i++) {
+                    locks.lock(Collections.<String>emptyList(), Arrays.asList("/z", "/y", "/x")).close();
+                }
+                done.countDown();
+            }
+        });
+        t1.start();
+        t2.start();
+        assertTrue(done.await(8, TimeUnit.SECONDS));
+    }
+
+    // 写锁住目录时，目录下的文件不能加锁
+    @SuppressWarnings("try")  // 块中不引用锁，只在块结束时释放
+    @Test(timeout = 10000)
+    public void writeLockExcludesDescendants() throws Exception {
+        final PathLockManager locks = new PathLockManager(64);
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread child;
+        try (PathLockManager.Locked dir = locks.lockForWrite("/dir")) {
+            child = new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try (PathLockManager.Locked l = locks.lockForRead("/dir/file")) {
+                        acquired.set(true);
+                    }
+                }
+            });
+            child.start();
+            started.await();
+            Thread.sleep(200);
+            assertFalse(acquired.get());
+        }
+        child.join(5000);
+        assertTrue(acquired.get());
+    }
+
+    @SuppressWarnings("try")  // 块中不引用锁，只在块结束时释放
+    @Test(timeout = 5000)
+    public void readLocksAreShared() throws Exception {
+        final PathLockManager locks = new PathLockManager(64);
+        final AtomicBoolean acquired = new AtomicBoolean();
+        try (PathLockManager.Locked l = locks.lockForRead("/dir/file")) {
+            Thread other = new Thread(new Runnable() {
+                public void run() {
+                    try (PathLockManager.Locked l2 = locks.lockForRead("/dir/file")) {
+                        acquired.set(true);
+                    }
+                }
+            });
+            other.start();
+            other.join(3000);
+        }
+        assertTrue(acquired.get());
+    }
+}
@@ -0,0 +1,149 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.client.MetaServerClient;
+import com.ucas.bigdata.common.BlockInfo;
+import com.ucas.bigdata.common.Config;
+import com.ucas.bigdata.common.HeartbeatResponse;
+import com.ucas.bigdata.common.NodeStats;
+import com.ucas.bigdata.common.ReplicaStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过心跳驱动复制调度：测试直接以节点的身份发送心跳，元数据服务器中预置的dfs101~dfs103
+ * 加上dfs104共四个节点，数据块的三个副本丢失一个后，剩下的节点里总有一个可以作为目标。
+ */
+public class ReplicationSchedulerTest {
+    private static final List<String> NODES = Arrays.asList("dfs101", "dfs102", "dfs103", "dfs104");
+    private static final NodeStats STATS = new NodeStats(1L << 40, 1L << 40, 0, 0);
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MetadataServer meta;
+    private MetaServerClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServers.save();
+        meta = TestServers.startMeta(tmp.getRoot());
+        client = new MetaServerClient();
+        for (String node : NODES) {
+            assertNotNull(client.heartBeat(node, STATS, NONE, NONE));
+            assertTrue(client.blockReport(node, NONE));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        TestServers.stop(meta);
+        TestServers.restore();
+    }
+
+    // 节点 -> 副本状态
+    private Map<String, Integer> replicas(String path) {
+        List<BlockInfo> blocks = client.getBlockLocations(path);
+        assertEquals(1, blocks.size());
+        Map<String, Integer> replicas = new LinkedHashMap<>();
+        for (int i = 0; i < blocks.get(0).getLocations().size(); i++) {
+            replicas.put(blocks.get(0).getLocations().get(i), blocks.get(0).getStatus(i));
+        }
+        return replicas;
+    }
+
+    private int finalized(String path) {
+        return Collections.frequency(replicas(path).values(), ReplicaStatus.FINALIZED);
+    }
+
+    // 所有节点各发一次心跳，收集下发的复制任务，源节点 -> 任务
+    private Map<String, HeartbeatResponse.Transfer> pollTransfers() {
+        Map<String, HeartbeatResponse.Transfer> transfers = new LinkedHashMap<>();
+        for (String node : NODES) {
+            for (HeartbeatResponse.Transfer t : client.heartBeat(node, STATS, NONE, NONE).getTransfers()) {
+                assertEquals(null, transfers.put(node, t));
+            }
+        }
+        return transfers;
+    }
+
+    // 写完一个三副本的文件，然后其中一个节点汇报副本丢失，返回丢失副本的节点
+    private String writeAndLoseReplica(String path) {
+        String blockId = client.createFile(path);
+        assertNotNull(blockId);
+        assertTrue(client.closeFile(path, 1024, Arrays.asList(ReplicaStatus.FINALIZED, ReplicaStatus.FINALIZED,
+                ReplicaStatus.FINALIZED)));
+        assertEquals(Config.REPLICATION, finalized(path));
+
+        String lost = replicas(path).keySet().iterator().next();
+        client.heartBeat(lost, STATS, NONE, Collections.singletonList(blockId));
+        assertEquals(ReplicaStatus.MISSING, (int) replicas(path).get(lost));
+        return lost;
+    }
+
+    @Test(timeout = 30000)
+    public void lostReplicaIsCopiedToAnotherNode() {
+        String lost = writeAndLoseReplica("/f");
+        String blockId = client.getBlockLocations("/f").get(0).getBlockId();
+        List<String> live = new ArrayList<>(replicas("/f").keySet());
+        live.remove(lost);
+
+        meta.scheduleReplication(System.currentTimeMillis());
+        Map<String, HeartbeatResponse.Transfer> transfers = pollTransfers();
+        assertEquals(1, transfers.size());
+        String source = transfers.keySet().iterator().next();
+        HeartbeatResponse.Transfer transfer = transfers.get(source);
+        assertTrue(live.contains(source));
+        assertEquals(blockId, transfer.getBlockId());
+        assertFalse(live.contains(transfer.getTarget()));
+
+        // 目标节点随心跳汇报收到数据块，成为新的副本位置
+        client.heartBeat(transfer.getTarget(), STATS, Collections.singletonList(blockId), NONE);
+        assertEquals(ReplicaStatus.FINALIZED, (int) replicas("/f").get(transfer.getTarget()));
+        assertEquals(Config.REPLICATION, finalized("/f"));
+
+        meta.scheduleReplication(System.currentTimeMillis());
+        assertTrue(pollTransfers().isEmpty());
+    }
+
+    // 目标节点超时没有汇报，任务释放后重新分配；超时之前不重复分配
+    @Test(timeout = 30000)
+    public void timedOutTransferIsRescheduled() {
+        writeAndLoseReplica("/f");
+        long now = System.currentTimeMillis();
+        meta.scheduleReplication(now);
+        assertEquals(1, pollTransfers().size());
+
+        meta.scheduleReplication(now + 1000);
+        assertTrue(pollTransfers().isEmpty());
+
+        meta.scheduleReplication(now + Config.META_REPLICATION_TIMEOUT_SECS * 1000L + 1);
+        assertEquals(1, pollTransfers().size());
+        assertEquals(Config.REPLICATION - 1, finalized("/f"));
+    }
+
+    // 文件删除后它的数据块不再复制
+    @Test(timeout = 30000)
+    public void deletedFileIsNotReplicated() {
+        writeAndLoseReplica("/f");
+        assertTrue(client.deleteFile("/f"));
+        meta.scheduleReplication(System.currentTimeMillis());
+        assertTrue(pollTransfers().isEmpty());
+    }
+}
@@ -0,0 +1,130 @@
+package com.ucas.bigdata.implement;
+
+import com.ucas.bigdata.common.Config;
+import org.rocksdb.RocksDB;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+
+/**
+ * 在测试的临时目录中启动元数据服务器和DataServer，与基准测试的LocalServers相同。
+ * 服务器使用Config中的端口，测试前后用save/restore保存和恢复这些静态配置。
+ * MetaServerClient在类加载时读取元数据服务器端口，所以同一JVM中的测试共用一组端口。
+ */
+class TestServers {
+    private static final int META_PORT;
+    private static final int DATA_PORT;
+
+    static {
+        try {
+            META_PORT = freePort();
+            DATA_PORT = freePort();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static int metaPort;
+    private static int dataPort;
+    private static int heartbeatSecs;
+    private static String engine;
+
+    private TestServers() {
+    }
+
+    // 保存测试会修改的配置，改用测试端口，关闭周期心跳
+    static void save() throws IOException {
+        metaPort = Config.META_SERVRE_PORT;
+        dataPort = Config.DATA_SERVRE_PORT;
+        heartbeatSecs = Config.HEARTBEAT_SECS;
+        engine = Config.DATA_SERVER_ENGINE;
+        Config.META_SERVRE_PORT = META_PORT;
+        Config.DATA_SERVRE_PORT = DATA_PORT;
+        Config.HEARTBEAT_SECS = 3600;
+    }
+
+    static void restore() {
+        Config.META_SERVRE_PORT = metaPort;
+        Config.DATA_SERVRE_PORT = dataPort;
+        Config.HEARTBEAT_SECS = heartbeatSecs;
+        Config.DATA_SERVER_ENGINE = engine;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // 启动元数据服务器，返回时已经在接受请求
+    static MetadataServer startMeta(File dir) throws InterruptedException {
+        final MetadataServer server = new MetadataServer(Config.META_SERVRE_PORT, new File(dir, "meta").getPath());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "test-meta");
+        thread.setDaemon(true);
+        thread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(1);
+        }
+        return server;
+    }
+
+    /**
+     * 停止元数据服务器，关闭它的RocksDB后用同一目录重新启动，检查修改是否已经持久化。
+     * 调用前先关闭连到旧服务器的客户端
+     */
+    static MetadataServer restartMeta(MetadataServer server, File dir) throws Exception {
+        stop(server);
+        Field db = MetadataServer.class.getDeclaredField("db");
+        db.setAccessible(true);
+        ((RocksDB) db.get(server)).close();
+        return startMeta(dir);
+    }
+
+    static DataServer startData(String nodeName, File dir) throws InterruptedException {
+        dir.mkdirs();
+        final DataServer server = new DataServer(nodeName, dir.getPath());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    // stop()关闭监听socket后accept抛出异常
+                }
+            }
+        }, "test-data");
+        thread.setDaemon(true);
+        thread.start();
+        while (!server.isRunning) {
+            Thread.sleep(1);
+        }
+        return server;
+    }
+
+    static void stop(MetadataServer server) throws InterruptedException {
+        server.stop();
+        awaitPortFree(Config.META_SERVRE_PORT);
+    }
+
+    static void stop(DataServer server) throws InterruptedException {
+        server.stop();
+        awaitPortFree(Config.DATA_SERVRE_PORT);
+    }
+
+    // 监听socket关闭时accept线程还阻塞着，端口等它退出后才释放，之后的测试才能再绑定
+    private static void awaitPortFree(int port) throws InterruptedException {
+        while (true) {
+            try {
+                new ServerSocket(port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}